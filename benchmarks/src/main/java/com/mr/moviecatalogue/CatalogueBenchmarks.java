@@ -0,0 +1,37 @@
+package com.mr.moviecatalogue;
+
+import org.openjdk.jmh.Main;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Main class of benchmarks.jar. Runs the JMH benchmarks with the command line options given, always adding the
+ * gc profiler so that the allocation rate per operation is reported alongside the throughput, and writing the
+ * results to jmh-result.json unless another result format is given.
+ */
+public class CatalogueBenchmarks {
+
+    public static void main(String[] args) throws Exception {
+        List<String> arguments = new ArrayList<>(Arrays.asList(args));
+        if (!hasOption(arguments, "-prof", "gc")) {
+            arguments.add("-prof");
+            arguments.add("gc");
+        }
+        if (!arguments.contains("-rf")) {
+            arguments.add("-rf");
+            arguments.add("json");
+        }
+        Main.main(arguments.toArray(new String[0]));
+    }
+
+    private static boolean hasOption(List<String> arguments, String option, String value) {
+        for (int i = 0; i + 1 < arguments.size(); i++) {
+            if (arguments.get(i).equals(option) && arguments.get(i + 1).equals(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,40 @@
+package com.mr.moviecatalogue;
+
+import com.mr.moviecatalogue.inputobject.MovieIO;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Generates the catalogues used by the benchmarks. The same size always gives the same movies, so results can
+ * be compared between runs.
+ */
+public class CatalogueFixtures {
+
+    //Number of distinct directors, each directing catalogueSize / DIRECTORS movies
+    public static final int DIRECTORS = 1000;
+
+    /**
+     * Generates a catalogue of movies titled Movie 0 to Movie size - 1. One movie in ten has no director and one
+     * in ten has no rating, stored as -1.0, and the rest have ratings spread over 0.0 - 5.0.
+     * @param size Number of movies
+     * @return The movies, in title number order
+     */
+    public static List<MovieIO> movies(int size) {
+        List<MovieIO> movies = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            String director = i % 10 == 9 ? null : director(i % DIRECTORS);
+            Float rating = i % 10 == 3 ? Float.valueOf((float) -1.0) : Float.valueOf((i * 7 % 51) / (float) 10.0);
+            movies.add(new MovieIO(title(i), director, rating));
+        }
+        return movies;
+    }
+
+    public static String title(int i) {
+        return "Movie " + i;
+    }
+
+    public static String director(int i) {
+        return "Director " + i;
+    }
+}
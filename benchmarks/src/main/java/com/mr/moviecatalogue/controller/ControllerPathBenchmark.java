@@ -0,0 +1,116 @@
+package com.mr.moviecatalogue.controller;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mr.moviecatalogue.CatalogueFixtures;
+import com.mr.moviecatalogue.MovieCatalogueApplication;
+import com.mr.moviecatalogue.inputobject.MovieIO;
+import com.mr.moviecatalogue.service.MovieCatalogueService;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
+import org.springframework.web.servlet.mvc.method.annotation.RequestMappingHandlerAdapter;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the path of a GET /movies request from the controller through the service to the repository, and the
+ * serialization of the response by the application's message converter. Requests for the whole catalogue are
+ * answered from the response cache, so getAllMovies measures writing out its bytes. The application is started in process
+ * with the memory profile, so the movies are held by the in-memory repository in place of the database.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ControllerPathBenchmark {
+
+    private static final int BATCH_SIZE = 1000;
+
+    //Unconditional requests, so the catalogue is always read
+    private static final HttpHeaders NO_HEADERS = new HttpHeaders();
+
+    @Param({"100", "10000", "100000"})
+    int catalogueSize;
+
+    private ConfigurableApplicationContext context;
+    private MovieCatalogueController controller;
+    private ObjectMapper objectMapper;
+    private int nextTitle;
+
+    @Setup
+    public void setup() {
+        context = new SpringApplicationBuilder(MovieCatalogueApplication.class)
+                .profiles("memory")
+                .properties("server.port=0", "catalogue.batch.max-size=" + BATCH_SIZE)
+                .run();
+        controller = context.getBean(MovieCatalogueController.class);
+        objectMapper = messageConverterObjectMapper();
+        MovieCatalogueService service = context.getBean(MovieCatalogueService.class);
+        List<MovieIO> movies = CatalogueFixtures.movies(catalogueSize);
+        for (int i = 0; i < movies.size(); i += BATCH_SIZE) {
+            service.addMovies(movies.subList(i, Math.min(i + BATCH_SIZE, movies.size())));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public byte[] getAllMovies() throws JsonProcessingException {
+        return respond(controller.getMovies(null, null, null, null, null, NO_HEADERS));
+    }
+
+    @Benchmark
+    public byte[] getMovieByTitle() throws JsonProcessingException {
+        nextTitle = (nextTitle + 1) % catalogueSize;
+        return respond(controller.getMovies(null, CatalogueFixtures.title(nextTitle), null, null, null, NO_HEADERS));
+    }
+
+    @Benchmark
+    public byte[] getMoviesByDirector() throws JsonProcessingException {
+        return respond(controller.getMovies(CatalogueFixtures.director(42), null, null, null, null, NO_HEADERS));
+    }
+
+    @Benchmark
+    public byte[] getMoviesByDirectorPrefix() throws JsonProcessingException {
+        return respond(controller.getMovies("Director 42*", null, null, null, null, NO_HEADERS));
+    }
+
+    @Benchmark
+    public byte[] getMoviesAboveRating() throws JsonProcessingException {
+        return respond(controller.getMovies(null, null, "4.5", null, null, NO_HEADERS));
+    }
+
+    @Benchmark
+    public byte[] getMoviesPage() throws JsonProcessingException {
+        return respond(controller.getMovies(null, null, null, 100, null, NO_HEADERS));
+    }
+
+    //Waits for the handler to run on the database executor, as the servlet container would. The whole catalogue is
+    //already encoded by the response cache, so is written out as it is.
+    private byte[] respond(CompletableFuture<? extends ResponseEntity<?>> response) throws JsonProcessingException {
+        Object body = response.join().getBody();
+        return body instanceof byte[] ? (byte[]) body : objectMapper.writeValueAsBytes(body);
+    }
+
+    //The ObjectMapper that writes the application's JSON responses, as configured by ServiceContext
+    private ObjectMapper messageConverterObjectMapper() {
+        for (HttpMessageConverter<?> converter : context.getBean(RequestMappingHandlerAdapter.class).getMessageConverters()) {
+            if (converter instanceof MappingJackson2HttpMessageConverter) {
+                return ((MappingJackson2HttpMessageConverter) converter).getObjectMapper();
+            }
+        }
+        throw new IllegalStateException("No JSON message converter is configured");
+    }
+}
@@ -0,0 +1,50 @@
+package com.mr.moviecatalogue.domain;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mr.moviecatalogue.CatalogueFixtures;
+import com.mr.moviecatalogue.inputobject.MovieIO;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the Jackson serialization of a Catalogue and its Optional fields, using an ObjectMapper configured in
+ * the same way as the one ServiceContext gives the message converter.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CatalogueSerializationBenchmark {
+
+    @Param({"100", "10000", "100000"})
+    int catalogueSize;
+
+    private ObjectMapper objectMapper;
+    private Catalogue catalogue;
+
+    @Setup
+    public void setup() {
+        objectMapper = new Jackson2ObjectMapperBuilder().featuresToDisable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES).build();
+        Map<String, Movie> movies = new HashMap<>();
+        for (MovieIO movieIO : CatalogueFixtures.movies(catalogueSize)) {
+            Optional<Float> rating = movieIO.getRating() < 0 ? Optional.empty() : Optional.of(movieIO.getRating());
+            movies.put(movieIO.getTitle(), new Movie(Optional.ofNullable(movieIO.getDirector()), rating));
+        }
+        catalogue = new Catalogue();
+        catalogue.setMovies(movies);
+    }
+
+    @Benchmark
+    public byte[] serializeCatalogue() throws JsonProcessingException {
+        return objectMapper.writeValueAsBytes(catalogue);
+    }
+}
@@ -0,0 +1,47 @@
+package com.mr.moviecatalogue.domain;
+
+import com.mr.moviecatalogue.CatalogueFixtures;
+import com.mr.moviecatalogue.inputobject.MovieIO;
+import org.openjdk.jol.info.GraphLayout;
+import org.openjdk.jol.vm.VM;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Prints the memory held per movie by a catalogue, measured with JOL, for the same catalogues as the benchmarks.
+ * The movies are held in a ConcurrentSkipListMap as in the CatalogueSnapshot, and each director is read into a new
+ * String as it would be from a result set. The map's own nodes and the titles are reported separately, as they do
+ * not depend on the Movie class.
+ *
+ * Run with java -cp target/benchmarks.jar com.mr.moviecatalogue.domain.MovieFootprint [catalogue sizes]
+ */
+public class MovieFootprint {
+
+    public static void main(String[] args) {
+        String[] sizes = args.length > 0 ? args : new String[]{"100", "10000", "100000"};
+        for (String size : sizes) {
+            int catalogueSize = Integer.parseInt(size);
+            List<MovieIO> movieIOs = CatalogueFixtures.movies(catalogueSize);
+            Map<String, Movie> movies = new ConcurrentSkipListMap<>();
+            for (MovieIO movieIO : movieIOs) {
+                Optional<String> director = Optional.ofNullable(movieIO.getDirector()).map(String::new);
+                Optional<Float> rating = movieIO.getRating() < 0 ? Optional.empty() : Optional.of(movieIO.getRating());
+                movies.put(movieIO.getTitle(), new Movie(director, rating));
+            }
+            long total = GraphLayout.parseInstance(movies).totalSize();
+            long movieValues = sizeOfElements(movies.values().toArray());
+            long titles = sizeOfElements(movies.keySet().toArray());
+            System.out.println(String.format("%d movies: %d bytes per movie in total, %d in the Movie values, %d in the titles, %d in the map",
+                    catalogueSize, total / catalogueSize, movieValues / catalogueSize, titles / catalogueSize,
+                    (total - movieValues - titles) / catalogueSize));
+        }
+    }
+
+    //Size of everything reachable from the array, less the array itself
+    private static long sizeOfElements(Object[] elements) {
+        return GraphLayout.parseInstance((Object) elements).totalSize() - VM.current().sizeOf(elements);
+    }
+}
@@ -0,0 +1,88 @@
+package com.mr.moviecatalogue.domain;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.mr.moviecatalogue.CatalogueFixtures;
+import com.mr.moviecatalogue.inputobject.MovieIO;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the formats ServiceContext negotiates, encoding and decoding a Catalogue and decoding a batch of
+ * MovieIO request bodies, using ObjectMappers configured in the same way as the message converters. The size of
+ * each payload is printed when the benchmark starts.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WireFormatBenchmark {
+
+    @Param({"json", "smile", "cbor"})
+    String format;
+
+    @Param({"100", "10000", "100000"})
+    int catalogueSize;
+
+    private ObjectMapper objectMapper;
+    private Catalogue catalogue;
+    private byte[] encodedCatalogue;
+    private byte[] encodedMovieIOs;
+
+    @Setup
+    public void setup() throws IOException {
+        objectMapper = new Jackson2ObjectMapperBuilder().featuresToDisable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES)
+                .factory(factory(format)).build();
+        List<MovieIO> movieIOs = CatalogueFixtures.movies(catalogueSize);
+        Map<String, Movie> movies = new HashMap<>();
+        for (MovieIO movieIO : movieIOs) {
+            Optional<Float> rating = movieIO.getRating() < 0 ? Optional.empty() : Optional.of(movieIO.getRating());
+            movies.put(movieIO.getTitle(), new Movie(Optional.ofNullable(movieIO.getDirector()), rating));
+        }
+        catalogue = new Catalogue();
+        catalogue.setMovies(movies);
+        encodedCatalogue = objectMapper.writeValueAsBytes(catalogue);
+        encodedMovieIOs = objectMapper.writeValueAsBytes(movieIOs);
+        System.out.println(String.format("%s: catalogue of %d movies is %d bytes, request body of %d movies is %d bytes",
+                format, catalogueSize, encodedCatalogue.length, catalogueSize, encodedMovieIOs.length));
+    }
+
+    @Benchmark
+    public byte[] encodeCatalogue() throws IOException {
+        return objectMapper.writeValueAsBytes(catalogue);
+    }
+
+    @Benchmark
+    public Catalogue decodeCatalogue() throws IOException {
+        return objectMapper.readValue(encodedCatalogue, Catalogue.class);
+    }
+
+    @Benchmark
+    public List<MovieIO> decodeMovieIOs() throws IOException {
+        return objectMapper.readValue(encodedMovieIOs, new TypeReference<List<MovieIO>>() {});
+    }
+
+    private static JsonFactory factory(String format) {
+        switch (format) {
+            case "smile":
+                return new SmileFactory();
+            case "cbor":
+                return new CBORFactory();
+            default:
+                return new JsonFactory();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.mr.moviecatalogue.service;
+
+import com.mr.moviecatalogue.CatalogueFixtures;
+import com.mr.moviecatalogue.domain.Movie;
+import com.mr.moviecatalogue.inputobject.MovieIO;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the rating handling applied to each movie by MovieCatalogueService: roundRating, used on every rating
+ * given in a request, and handleNullRatings, applied to every movie read from the database. Both are run over a
+ * whole catalogue so that the results are per catalogue, as with the other benchmarks.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RatingBenchmark {
+
+    @Param({"100", "10000", "100000"})
+    int catalogueSize;
+
+    private MovieCatalogueService service;
+    private String[] titles;
+    private Float[] ratings;
+    private float[] storedRatings;
+    private Movie[] movies;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setup() {
+        service = new MovieCatalogueService();
+        List<MovieIO> movieIOs = CatalogueFixtures.movies(catalogueSize);
+        titles = new String[catalogueSize];
+        ratings = new Float[catalogueSize];
+        storedRatings = new float[catalogueSize];
+        movies = new Movie[catalogueSize];
+        for (int i = 0; i < catalogueSize; i++) {
+            MovieIO movieIO = movieIOs.get(i);
+            titles[i] = movieIO.getTitle();
+            //Unrounded ratings, as given in requests
+            ratings[i] = Float.valueOf(movieIO.getRating() + (float) 0.037);
+            storedRatings[i] = movieIO.getRating();
+            movies[i] = new Movie(movieIO.getDirector(), storedRatings[i]);
+        }
+    }
+
+    @Benchmark
+    public float roundRatings() {
+        float total = 0;
+        for (Float rating : ratings) {
+            total += service.roundRating(rating, 1);
+        }
+        return total;
+    }
+
+    @Benchmark
+    public Movie[] handleNullRatings() {
+        for (int i = 0; i < movies.length; i++) {
+            //handleNullRatings replaces -1.0 with empty, so the stored rating is restored before each call
+            movies[i].setRatingValue(storedRatings[i]);
+            service.handleNullRatings.accept(titles[i], movies[i]);
+        }
+        return movies;
+    }
+}
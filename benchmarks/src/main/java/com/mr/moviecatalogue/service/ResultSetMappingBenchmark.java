@@ -0,0 +1,63 @@
+package com.mr.moviecatalogue.service;
+
+import com.mr.moviecatalogue.CatalogueFixtures;
+import com.mr.moviecatalogue.domain.Movie;
+import com.mr.moviecatalogue.inputobject.MovieIO;
+import org.openjdk.jmh.annotations.*;
+
+import javax.sql.RowSetMetaData;
+import javax.sql.rowset.CachedRowSet;
+import javax.sql.rowset.RowSetMetaDataImpl;
+import javax.sql.rowset.RowSetProvider;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures DatabaseService.getMovieMapFromResultSet, which maps every row read by the catalogue queries. The rows
+ * are held in a CachedRowSet so that no database is needed, and the time spent reading the row set is included.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResultSetMappingBenchmark {
+
+    @Param({"100", "10000", "100000"})
+    int catalogueSize;
+
+    private DatabaseService databaseService;
+    private CachedRowSet rows;
+
+    @Setup
+    public void setup() throws SQLException {
+        databaseService = new DatabaseService();
+        rows = RowSetProvider.newFactory().createCachedRowSet();
+        RowSetMetaData metaData = new RowSetMetaDataImpl();
+        metaData.setColumnCount(3);
+        metaData.setColumnName(1, "TITLE");
+        metaData.setColumnType(1, Types.VARCHAR);
+        metaData.setColumnName(2, "DIRECTOR");
+        metaData.setColumnType(2, Types.VARCHAR);
+        metaData.setColumnName(3, "RATING");
+        metaData.setColumnType(3, Types.REAL);
+        rows.setMetaData(metaData);
+        for (MovieIO movieIO : CatalogueFixtures.movies(catalogueSize)) {
+            rows.moveToInsertRow();
+            rows.updateString(1, movieIO.getTitle());
+            rows.updateString(2, movieIO.getDirector());
+            rows.updateFloat(3, movieIO.getRating());
+            rows.insertRow();
+            rows.moveToCurrentRow();
+        }
+    }
+
+    @Benchmark
+    public Map<String, Movie> mapResultSet() throws SQLException {
+        rows.beforeFirst();
+        return databaseService.getMovieMapFromResultSet(rows);
+    }
+}
@@ -2,8 +2,10 @@ package com.mr.moviecatalogue;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceAutoConfiguration;
 
-@SpringBootApplication
+//The pool for spring.datasource.url is created by the DataSourceContext, only when the catalogue is held there
+@SpringBootApplication(exclude = DataSourceAutoConfiguration.class)
 public class MovieCatalogueApplication {
 
 	public static void main(String[] args) {
@@ -0,0 +1,32 @@
+package com.mr.moviecatalogue.configuration;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.autoconfigure.jdbc.metadata.DataSourcePoolMetadataProvidersConfiguration;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+
+/**
+ * Creates the pool for the database at spring.datasource.url, in place of Spring Boot's DataSourceAutoConfiguration,
+ * only when the catalogue is held in that one database. The sharded repository opens its own pool for each shard,
+ * and the in-memory repository uses no database, so neither has a pool or schema migrations for spring.datasource.url.
+ */
+@Configuration
+@ConditionalOnProperty(name = "catalogue.repository", havingValue = "jdbc", matchIfMissing = true)
+@EnableConfigurationProperties(DataSourceProperties.class)
+@Import(DataSourcePoolMetadataProvidersConfiguration.class)
+public class DataSourceContext {
+
+    /**
+     * Binds the spring.datasource.* and spring.datasource.hikari.* properties as Spring Boot would
+     */
+    @Bean
+    @ConfigurationProperties("spring.datasource.hikari")
+    public HikariDataSource dataSource(DataSourceProperties properties) {
+        return properties.initializeDataSourceBuilder().type(HikariDataSource.class).build();
+    }
+}
@@ -0,0 +1,78 @@
+package com.mr.moviecatalogue.configuration;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.TaskDecorator;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Collections;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Fixed size thread pool that the controller runs its calls to the service on, so that requests waiting on the
+ * database do not hold servlet threads. The queue in front of the pool is bounded, and work submitted when it is
+ * full is rejected rather than queued. The pool is sized by catalogue.database-executor.pool-size, which should
+ * match the connection pool as threads beyond it would only wait for a connection, and the queue by
+ * catalogue.database-executor.queue-capacity. Each task is wrapped by the TaskDecorator, if there is one, so
+ * that state held by the submitting thread, such as the request's ReadRouting, carries over to the pool.
+ *
+ * This is deliberately not an Executor bean, as Spring Boot only creates its own applicationTaskExecutor, used
+ * for streamed responses, when no other Executor is defined.
+ */
+@Component
+public class DatabaseExecutor {
+
+    @Autowired(required = false)
+    MeterRegistry meterRegistry;
+
+    @Autowired(required = false)
+    TaskDecorator taskDecorator;
+
+    @Value("${catalogue.database-executor.pool-size:20}")
+    private int poolSize;
+
+    @Value("${catalogue.database-executor.queue-capacity:100}")
+    private int queueCapacity;
+
+    private ExecutorService executor;
+
+    @PostConstruct
+    public void start() {
+        ThreadPoolExecutor threadPool = new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), new CustomizableThreadFactory("catalogue-db-"),
+                new ThreadPoolExecutor.AbortPolicy());
+        //Publishes the pool size, active threads and queue length as executor.* metrics
+        executor = meterRegistry == null ? threadPool
+                : ExecutorServiceMetrics.monitor(meterRegistry, threadPool, "catalogue-db", Collections.emptyList());
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(30, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Runs a task on the pool
+     * @param task Task to run
+     * @return A CompletableFuture that completes with the result of the task, or exceptionally if it throws
+     * @throws RejectedExecutionException if the queue is full, or the application is shutting down
+     */
+    public <T> CompletableFuture<T> supply(Supplier<T> task) {
+        if (taskDecorator == null) {
+            return CompletableFuture.supplyAsync(task, executor);
+        }
+        return CompletableFuture.supplyAsync(task, runnable -> executor.execute(taskDecorator.decorate(runnable)));
+    }
+}
@@ -0,0 +1,72 @@
+package com.mr.moviecatalogue.configuration;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counts the requests being handled, published as the catalogue.requests.in.flight gauge. Streamed responses
+ * that carry on after the request thread returns are counted until the response completes.
+ */
+public class InFlightRequestFilter extends OncePerRequestFilter {
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    //Shared by every async request, as it only needs to count the request as finished
+    private final AsyncListener completionListener = new AsyncListener() {
+        @Override
+        public void onComplete(AsyncEvent event) {
+            inFlight.decrementAndGet();
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+            //Listeners are dropped when an async request is restarted, so the listener adds itself again
+            event.getAsyncContext().addListener(this);
+        }
+    };
+
+    public InFlightRequestFilter(MeterRegistry meterRegistry) {
+        meterRegistry.gauge("catalogue.requests.in.flight", inFlight);
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+            throws ServletException, IOException {
+        inFlight.incrementAndGet();
+        boolean async = false;
+        try {
+            filterChain.doFilter(request, response);
+            async = request.isAsyncStarted();
+        } finally {
+            if (async) {
+                request.getAsyncContext().addListener(completionListener);
+            } else {
+                inFlight.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * @return The number of requests currently being handled
+     */
+    int getInFlight() {
+        return inFlight.get();
+    }
+}
@@ -0,0 +1,47 @@
+package com.mr.moviecatalogue.configuration;
+
+import com.mr.moviecatalogue.service.InstrumentedMovieRepository;
+import com.mr.moviecatalogue.service.MovieRepository;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.Ordered;
+
+/**
+ * Adds the application's own metrics to those recorded by Spring Boot, which include the latency of each
+ * endpoint as http.server.requests. The percentiles and histograms published for them are configured by the
+ * management.metrics.distribution.* properties.
+ */
+@Configuration
+public class MetricsContext {
+
+    /**
+     * Wraps the configured movie repository so that every call to it is recorded. Static so that the post
+     * processor is created before the repository, and the meter registry is only looked up once it is needed.
+     */
+    @Bean
+    public static BeanPostProcessor movieRepositoryMetrics(ObjectProvider<MeterRegistry> meterRegistry) {
+        return new BeanPostProcessor() {
+            @Override
+            public Object postProcessAfterInitialization(Object bean, String beanName) {
+                if (bean instanceof MovieRepository) {
+                    return new InstrumentedMovieRepository((MovieRepository) bean, meterRegistry.getObject());
+                }
+                return bean;
+            }
+        };
+    }
+
+    /**
+     * Registers the in-flight request count ahead of the other filters, so that the whole request is counted
+     */
+    @Bean
+    public FilterRegistrationBean<InFlightRequestFilter> inFlightRequestFilter(MeterRegistry meterRegistry) {
+        FilterRegistrationBean<InFlightRequestFilter> registration = new FilterRegistrationBean<>(new InFlightRequestFilter(meterRegistry));
+        registration.setOrder(Ordered.HIGHEST_PRECEDENCE);
+        return registration;
+    }
+}
@@ -0,0 +1,74 @@
+package com.mr.moviecatalogue.configuration;
+
+import com.mr.moviecatalogue.service.ReadRouting;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Pins requests to the primary database where they have to see writes that the replicas may not have received
+ * yet. Requests that write are always pinned, and are answered with a cookie holding the time until which the
+ * client's later requests are pinned too, so that a client reads its own writes for
+ * catalogue.replicas.read-your-writes-window milliseconds after making them.
+ */
+public class ReadYourWritesFilter extends OncePerRequestFilter {
+
+    static final String COOKIE_NAME = "catalogue-primary-until";
+
+    private static final Set<String> READ_METHODS = new HashSet<>(Arrays.asList("GET", "HEAD", "OPTIONS"));
+
+    private final long window;
+
+    public ReadYourWritesFilter(long window) {
+        this.window = window;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+            throws ServletException, IOException {
+        boolean write = !READ_METHODS.contains(request.getMethod());
+        long now = System.currentTimeMillis();
+        if (write && window > 0) {
+            //Added before the request is handled, as the response may be committed by then
+            Cookie cookie = new Cookie(COOKIE_NAME, String.valueOf(now + window));
+            cookie.setMaxAge((int) Math.max(1, (window + 999) / 1000));
+            cookie.setPath("/");
+            cookie.setHttpOnly(true);
+            response.addCookie(cookie);
+        }
+        ReadRouting.setPinnedToPrimary(write || pinnedUntil(request) > now);
+        try {
+            filterChain.doFilter(request, response);
+        } finally {
+            ReadRouting.setPinnedToPrimary(false);
+        }
+    }
+
+    /**
+     * @return The time until which the request's cookie pins it to the primary, capped at the window from now so
+     * that a client cannot pin itself for longer, or 0 if there is no valid cookie
+     */
+    private long pinnedUntil(HttpServletRequest request) {
+        if (window <= 0 || request.getCookies() == null) {
+            return 0;
+        }
+        for (Cookie cookie : request.getCookies()) {
+            if (COOKIE_NAME.equals(cookie.getName())) {
+                try {
+                    return Math.min(Long.parseLong(cookie.getValue()), System.currentTimeMillis() + window);
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 0;
+    }
+}
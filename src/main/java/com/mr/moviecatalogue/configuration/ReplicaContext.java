@@ -0,0 +1,38 @@
+package com.mr.moviecatalogue.configuration;
+
+import com.mr.moviecatalogue.service.ReadRouting;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.Ordered;
+import org.springframework.core.task.TaskDecorator;
+
+/**
+ * Routes reads that must see the latest writes to the primary database rather than to the read replicas, which
+ * are configured by the catalogue.replicas.* properties.
+ */
+@Configuration
+public class ReplicaContext {
+
+    /**
+     * Decides for each request whether its reads are pinned to the primary. Registered straight after the
+     * in-flight request count, so that everything the request does is routed.
+     */
+    @Bean
+    public FilterRegistrationBean<ReadYourWritesFilter> readYourWritesFilter(
+            @Value("${catalogue.replicas.read-your-writes-window:5000}") long window) {
+        FilterRegistrationBean<ReadYourWritesFilter> registration = new FilterRegistrationBean<>(new ReadYourWritesFilter(window));
+        registration.setOrder(Ordered.HIGHEST_PRECEDENCE + 1);
+        return registration;
+    }
+
+    /**
+     * Carries the request's routing over to the threads it is handled on. Spring Boot applies it to the
+     * applicationTaskExecutor, and the DatabaseExecutor to its own pool.
+     */
+    @Bean
+    public TaskDecorator readRoutingTaskDecorator() {
+        return ReadRouting::propagate;
+    }
+}
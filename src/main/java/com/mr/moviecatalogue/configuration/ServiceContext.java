@@ -1,19 +1,64 @@
 package com.mr.moviecatalogue.configuration;
 
 import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.http.converter.ByteArrayHttpMessageConverter;
 import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.http.converter.StringHttpMessageConverter;
+import org.springframework.http.converter.cbor.MappingJackson2CborHttpMessageConverter;
 import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
 import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
+import org.springframework.http.converter.smile.MappingJackson2SmileHttpMessageConverter;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurationSupport;
 
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 
 @Configuration
 public class ServiceContext extends WebMvcConfigurationSupport {
+
+    //Bounded pool configured by the spring.task.execution.* properties
+    @Autowired
+    @Qualifier("applicationTaskExecutor")
+    AsyncTaskExecutor applicationTaskExecutor;
+
+    @Value("${spring.mvc.async.request-timeout:60000}")
+    private long asyncRequestTimeout;
+
+    /**
+     * Reads and writes JSON, and the binary Smile (application/x-jackson-smile) and CBOR (application/cbor) formats
+     * for other services, chosen by the Accept and Content-Type headers. The binary formats have the same fields as
+     * the JSON, but are quicker to encode and decode and smaller, as Smile writes each field name once and refers back
+     * to it. JSON is added first so that it is still used when any type is accepted.
+     */
     @Override
     public void configureMessageConverters(List<HttpMessageConverter<?>> converters) {
-        Jackson2ObjectMapperBuilder builder = new Jackson2ObjectMapperBuilder().featuresToDisable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
-        converters.add(new MappingJackson2HttpMessageConverter(builder.build()));
+        //Writes responses that are already encoded, such as the catalogue from the CatalogueResponseCache
+        converters.add(new ByteArrayHttpMessageConverter());
+        //Writes plain text responses, such as the Prometheus scrape at /actuator/prometheus
+        converters.add(new StringHttpMessageConverter(StandardCharsets.UTF_8));
+        converters.add(new MappingJackson2HttpMessageConverter(objectMapperBuilder().build()));
+        converters.add(new MappingJackson2SmileHttpMessageConverter(objectMapperBuilder().factory(new SmileFactory()).build()));
+        converters.add(new MappingJackson2CborHttpMessageConverter(objectMapperBuilder().factory(new CBORFactory()).build()));
+    }
+
+    private Jackson2ObjectMapperBuilder objectMapperBuilder() {
+        return new Jackson2ObjectMapperBuilder().featuresToDisable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+    }
+
+    /**
+     * Runs streamed responses on the application's task pool rather than on a new thread per request
+     */
+    @Override
+    protected void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+        configurer.setTaskExecutor(applicationTaskExecutor);
+        configurer.setDefaultTimeout(asyncRequestTimeout);
     }
 }
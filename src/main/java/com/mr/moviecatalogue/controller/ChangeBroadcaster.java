@@ -0,0 +1,311 @@
+package com.mr.moviecatalogue.controller;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mr.moviecatalogue.domain.ChangeFeed;
+import com.mr.moviecatalogue.domain.MovieChange;
+import com.mr.moviecatalogue.service.ChangeLog;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Pushes the changes recorded in the ChangeLog to subscribers of GET /movies/events as server-sent events.
+ *
+ * Recording a change only wakes the dispatcher thread, so pushing changes never slows down or blocks the write.
+ * The dispatcher reads the new changes from the log, formats each one as an event once, and adds it to every
+ * subscriber's queue. Each queue holds up to catalogue.events.buffer-size events, which must be more than the
+ * changes made by the largest write, as they are all queued at once. A subscriber whose queue is full is
+ * disconnected rather than letting it hold more, so it should reconnect and catch up from /movies/changes using
+ * the id of the last event it received, which is the change's sequence. Queues are written out to the
+ * subscribers by a pool of catalogue.events.sender-threads threads, so the number of threads does not grow with
+ * the number of subscribers, and all of the events waiting for a subscriber are written and flushed together.
+ * A comment is also queued for every subscriber each heartbeat interval, so that subscribers which have gone
+ * are found and removed.
+ *
+ * The events are formatted here rather than by SseEmitter, which writes and flushes each line of an event
+ * separately for every subscriber.
+ */
+@Component
+public class ChangeBroadcaster {
+
+    //Most changes read from the log by the dispatcher at a time
+    private static final int DISPATCH_BATCH_SIZE = 1000;
+
+    private static final String HEARTBEAT = ":heartbeat\n\n";
+
+    @Autowired
+    ChangeLog changeLog;
+
+    @Autowired
+    ObjectMapper objectMapper;
+
+    @Autowired(required = false)
+    MeterRegistry meterRegistry;
+
+    @Value("${catalogue.events.buffer-size:2000}")
+    private int bufferSize;
+
+    @Value("${catalogue.events.max-subscribers:10000}")
+    private int maxSubscribers;
+
+    @Value("${catalogue.events.sender-threads:4}")
+    private int senderThreads;
+
+    //Time a subscription is held open before the client has to reconnect
+    @Value("${catalogue.events.timeout:1800000}")
+    private long timeout;
+
+    //Interval between the comments sent to every subscriber so that clients which have gone are noticed, or 0 for none
+    @Value("${catalogue.events.heartbeat-interval:15000}")
+    private long heartbeatInterval;
+
+    private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean dispatchScheduled = new AtomicBoolean();
+
+    //Held while changes are added to the subscribers' queues, so that a new subscriber starts between two batches
+    private final Object fanOutLock = new Object();
+
+    private ScheduledExecutorService dispatcher;
+    private ExecutorService senders;
+
+    //Sequence of the last change added to the subscribers' queues, only changed on the dispatcher thread
+    private long dispatched;
+
+    @PostConstruct
+    public void start() {
+        dispatcher = Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("catalogue-events-dispatch-"));
+        senders = Executors.newFixedThreadPool(senderThreads, new CustomizableThreadFactory("catalogue-events-send-"));
+        dispatched = changeLog.latest();
+        changeLog.addListener(this::changeRecorded);
+        if (heartbeatInterval > 0) {
+            dispatcher.scheduleWithFixedDelay(this::heartbeat, heartbeatInterval, heartbeatInterval, TimeUnit.MILLISECONDS);
+        }
+        if (meterRegistry != null) {
+            meterRegistry.gaugeCollectionSize("catalogue.events.subscribers", Collections.emptyList(), subscribers);
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        dispatcher.shutdownNow();
+        senders.shutdownNow();
+        subscribers.forEach(subscriber -> subscriber.emitter.complete());
+        subscribers.clear();
+    }
+
+    /**
+     * Subscribes to the changes made to the catalogue from now on. The first event sent is named subscribed, with
+     * the sequence of the last change before the subscription as its id and data, and every later change is pushed.
+     * @return The emitter to return from the request, with a content type of text/event-stream
+     * @throws IllegalStateException if there are already as many subscribers as allowed
+     */
+    public ResponseBodyEmitter subscribe() {
+        return subscribe(new ResponseBodyEmitter(timeout));
+    }
+
+    ResponseBodyEmitter subscribe(ResponseBodyEmitter emitter) {
+        if (subscribers.size() >= maxSubscribers) {
+            throw new IllegalStateException("The maximum number of subscribers to the catalogue's events has been reached");
+        }
+        Subscriber subscriber = new Subscriber(emitter);
+        emitter.onCompletion(() -> subscribers.remove(subscriber));
+        emitter.onTimeout(() -> subscribers.remove(subscriber));
+        emitter.onError(e -> subscribers.remove(subscriber));
+        synchronized (fanOutLock) {
+            String sequence = Long.toString(dispatched);
+            subscriber.offer(Collections.singletonList(event(sequence, "subscribed", sequence)));
+            subscribers.add(subscriber);
+        }
+        //Sending the first event straight away also sends the response headers
+        subscriber.scheduleSend();
+        return emitter;
+    }
+
+    int subscriberCount() {
+        return subscribers.size();
+    }
+
+    /**
+     * Called by the ChangeLog while it holds its lock, so only schedules the dispatcher if it is not already due to run
+     */
+    private void changeRecorded() {
+        if (dispatchScheduled.compareAndSet(false, true)) {
+            dispatcher.execute(this::dispatch);
+        }
+    }
+
+    /**
+     * Adds the changes recorded since the last dispatch to every subscriber's queue. If the log no longer holds
+     * all of them, or a change cannot be written as JSON, the subscribers cannot be told what changed and are
+     * disconnected, so that they catch up from /movies/changes rather than silently missing the change.
+     */
+    private void dispatch() {
+        dispatchScheduled.set(false);
+        ChangeFeed feed;
+        do {
+            feed = changeLog.since(dispatched, DISPATCH_BATCH_SIZE);
+            //Changes are only formatted for subscribers, and under the lock if one subscribed since they were checked
+            List<String> events = subscribers.isEmpty() ? null : describe(feed);
+            synchronized (fanOutLock) {
+                dispatched = feed.getLatest();
+                if (events == null && !subscribers.isEmpty()) {
+                    events = describe(feed);
+                }
+                if (feed.isResync() || events == null) {
+                    subscribers.forEach(subscriber -> disconnect(subscriber, "resync"));
+                } else {
+                    fanOut(events);
+                }
+            }
+        } while (feed.isMore());
+    }
+
+    /**
+     * Formats each change of the feed as an event
+     * @return The events, or null if a change cannot be written as JSON
+     */
+    private List<String> describe(ChangeFeed feed) {
+        List<String> events = new ArrayList<>(feed.getChanges().size());
+        for (MovieChange change : feed.getChanges()) {
+            try {
+                events.add(event(Long.toString(change.getSequence()), change.getType().name(), objectMapper.writeValueAsString(change)));
+            } catch (JsonProcessingException e) {
+                if (meterRegistry != null) {
+                    meterRegistry.counter("catalogue.events.errors", "exception", e.getClass().getSimpleName()).increment();
+                }
+                return null;
+            }
+        }
+        return events;
+    }
+
+    /**
+     * Sends a comment to every subscriber, as a client that has gone is only noticed when writing to it fails
+     */
+    private void heartbeat() {
+        fanOut(Collections.singletonList(HEARTBEAT));
+    }
+
+    private void fanOut(List<String> events) {
+        for (Subscriber subscriber : subscribers) {
+            if (subscriber.offer(events)) {
+                subscriber.scheduleSend();
+            } else {
+                disconnect(subscriber, "overflow");
+            }
+        }
+    }
+
+    private void disconnect(Subscriber subscriber, String reason) {
+        if (subscribers.remove(subscriber)) {
+            subscriber.close();
+            if (meterRegistry != null) {
+                meterRegistry.counter("catalogue.events.disconnected", "reason", reason).increment();
+            }
+        }
+    }
+
+    /**
+     * Formats an event in the text/event-stream format
+     * @param id Id of the event, which the client reports as the last event id
+     * @param name Name of the event
+     * @param data Data of the event, which must be on one line as written by the ObjectMapper
+     * @return The event, ending with the blank line that separates it from the next
+     */
+    private static String event(String id, String name, String data) {
+        return "id:" + id + "\nevent:" + name + "\ndata:" + data + "\n\n";
+    }
+
+    /**
+     * One subscriber's emitter and the queue of events waiting to be sent to it
+     */
+    private class Subscriber {
+
+        private final ResponseBodyEmitter emitter;
+        //Linked so that the queues of idle subscribers take no space
+        private final BlockingQueue<String> pending = new LinkedBlockingQueue<>(bufferSize);
+        //Set while a sender thread is writing the queue out, so that only one thread writes to the emitter at a time
+        private final AtomicBoolean sending = new AtomicBoolean();
+        private volatile boolean closed;
+
+        private Subscriber(ResponseBodyEmitter emitter) {
+            this.emitter = emitter;
+        }
+
+        /**
+         * @return false if the queue is full
+         */
+        private boolean offer(List<String> events) {
+            for (String event : events) {
+                if (!pending.offer(event)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Completes the emitter from a sender thread, as completing it waits for any send in progress, which can
+         * take as long as the client takes to read it
+         */
+        private void close() {
+            closed = true;
+            pending.clear();
+            scheduleSend();
+        }
+
+        private void scheduleSend() {
+            if (sending.compareAndSet(false, true)) {
+                senders.execute(this::send);
+            }
+        }
+
+        private void send() {
+            try {
+                StringBuilder events = new StringBuilder();
+                String event;
+                while (!closed && (event = pending.poll()) != null) {
+                    events.append(event);
+                }
+                if (closed) {
+                    emitter.complete();
+                    return;
+                }
+                if (events.length() > 0) {
+                    emitter.send(events.toString(), MediaType.TEXT_PLAIN);
+                }
+            } catch (IOException | IllegalStateException e) {
+                //The client has gone or the emitter has completed, and the container will complete the request
+                subscribers.remove(this);
+                return;
+            } finally {
+                sending.set(false);
+            }
+            //Events added, or the subscriber closed, after the queue was found to be empty but before sending was cleared
+            if (!pending.isEmpty() || closed) {
+                scheduleSend();
+            }
+        }
+    }
+}
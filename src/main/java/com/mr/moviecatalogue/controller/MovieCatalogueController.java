@@ -1,73 +1,174 @@
 package com.mr.moviecatalogue.controller;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.mr.moviecatalogue.configuration.DatabaseExecutor;
+import com.mr.moviecatalogue.domain.BatchItemResult;
 import com.mr.moviecatalogue.domain.Catalogue;
+import com.mr.moviecatalogue.domain.ChangeFeed;
+import com.mr.moviecatalogue.domain.DirectorSuggestion;
+import com.mr.moviecatalogue.domain.Movie;
 import com.mr.moviecatalogue.inputobject.DirectorIO;
 import com.mr.moviecatalogue.inputobject.MovieIO;
-import com.mr.moviecatalogue.service.DatabaseService;
+import com.mr.moviecatalogue.service.CatalogueResponseCache;
+import com.mr.moviecatalogue.service.CatalogueVersion;
 import com.mr.moviecatalogue.service.MovieCatalogueService;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
 
 /**
- * RestController class to define URIs, provide validation on requests and then call Service class to perform the logic of the application
+ * RestController class to define URIs, provide validation on requests and then call Service class to perform the logic of the application.
+ * Requests are validated on the servlet thread, and the service is then called on the database executor so that requests
+ * waiting on the database do not hold servlet threads. Responses to GET /movies carry an ETag and Last-Modified
+ * time from the catalogue version, and conditional requests for an unchanged catalogue are answered without reading it.
+ * The whole catalogue as JSON is written from the bytes held by the CatalogueResponseCache.
  */
 @RestController
 public class MovieCatalogueController {
 
+    //Request headers that responses to GET /movies depend on, as the same URL can be given in several formats and encodings
+    private static final String[] VARY = {HttpHeaders.ACCEPT, HttpHeaders.ACCEPT_ENCODING};
+
     @Autowired
     MovieCatalogueService movieCatalogueService;
 
     @Autowired
-    DatabaseService databaseService;
+    ObjectMapper objectMapper;
+
+    @Autowired
+    DatabaseExecutor databaseExecutor;
+
+    @Autowired
+    CatalogueVersion catalogueVersion;
+
+    @Autowired
+    ChangeBroadcaster changeBroadcaster;
+
+    @Autowired
+    CatalogueResponseCache catalogueResponseCache;
+
+    @Autowired(required = false)
+    MeterRegistry meterRegistry;
+
+    //Page size applied to requests that do not give a limit, or 0 to return everything when no paging parameters are given
+    @Value("${catalogue.paging.default-limit:0}")
+    private int defaultPageLimit;
+
+    @Value("${catalogue.batch.max-size:1000}")
+    private int maxBatchSize;
 
     /**
      * Calls the service method to return the current movie catalogue. Accepts request parameters to search based on title,
      * director name and rating. If title is passed, other request parameters are ignored as this is the primary key and
      * must be unique, duplicate titles are not allowed. Director and rating parameters can be used simultaneously.
+     * If limit or after are passed the movies are returned one page at a time in title order, with the cursor for the
+     * next page in the response. Paging is applied to every request without a title if a default limit is configured.
      * @param title Optional title to search for. Case sensitive.
      * @param director Optional director to search for. * or % can be used as wildcards - e.g. Ben* or Ben% returns results for all directors starting with Ben.
      * @param ratingString Optional rating to search for movies above the given rating. Must be within range 0.0 - 5.0 and will be rounded down to 1 decimal place.
+     * @param limit Optional maximum number of movies to return in a page. Capped at the server's maximum page size.
+     * @param after Optional cursor returned as next in the previous page, to get the page following it.
+     * @param requestHeaders Headers of the request. If-None-Match or If-Modified-Since can be sent with the ETag or
+     *                       Last-Modified of an earlier response, to get 304 not modified if the catalogue has not changed.
+     *                       Accept can ask for application/x-jackson-smile or application/cbor rather than JSON.
+     *                       The whole catalogue as JSON is compressed with gzip if Accept-Encoding allows it.
      * @return Returns the movie catalogue
      */
     @GetMapping("/movies")
-    public ResponseEntity<Catalogue> getMovies(@RequestParam(required = false, value = "director") final String director,
-                                               @RequestParam(required = false, value = "title") final String title,
-                                               @RequestParam(required = false, value = "rating") final String ratingString){
+    public CompletableFuture<? extends ResponseEntity<?>> getMovies(@RequestParam(required = false, value = "director") final String director,
+                                                                  @RequestParam(required = false, value = "title") final String title,
+                                                                  @RequestParam(required = false, value = "rating") final String ratingString,
+                                                                  @RequestParam(required = false, value = "limit") final Integer limit,
+                                                                  @RequestParam(required = false, value = "after") final String after,
+                                                                  @RequestHeader HttpHeaders requestHeaders){
         boolean directorNotPresent = director == null || director.equalsIgnoreCase("");
         boolean ratingNotPresent = ratingString == null || ratingString.equalsIgnoreCase("");
         boolean titleNotPresent = title == null || title.equalsIgnoreCase("");
+        boolean paged = limit != null || after != null || defaultPageLimit > 0;
+        Integer pageLimit = limit == null && defaultPageLimit > 0 ? Integer.valueOf(defaultPageLimit) : limit;
         if (!titleNotPresent) {
-            return new ResponseEntity<>(movieCatalogueService.getMovieByTitle(title), HttpStatus.OK);
-        } else if (titleNotPresent && ratingNotPresent && !directorNotPresent) {
-            return new ResponseEntity<>(movieCatalogueService.getMoviesByDirector(director), HttpStatus.OK);
-        } else if (titleNotPresent && directorNotPresent && !ratingNotPresent) {
+            return readCatalogue(requestHeaders, () -> movieCatalogueService.getMovieByTitle(title));
+        }
+        if (directorNotPresent && ratingNotPresent && !paged && catalogueResponseCache.isEnabled() && prefersJson(requestHeaders)) {
+            return readEncodedCatalogue(requestHeaders);
+        }
+        Float rating = null;
+        if (!ratingNotPresent) {
             try {
-                Float rating = Float.parseFloat(ratingString);
-                return new ResponseEntity<>(movieCatalogueService.getMoviesAboveRating(rating), HttpStatus.OK);
+                rating = Float.parseFloat(ratingString);
             } catch (NumberFormatException e) {
-                System.out.println("Invalid request parameter provided for rating");
-                System.out.println(e.getMessage());
-                return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
-            } catch (IllegalArgumentException e) {
-                System.out.println(e.getMessage());
-                return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+                countRejected("invalid");
+                return CompletableFuture.completedFuture(new ResponseEntity<>(HttpStatus.BAD_REQUEST));
             }
-        } else if (titleNotPresent && !ratingNotPresent && !directorNotPresent) {
-            try {
-                Float rating = Float.parseFloat(ratingString);
-                return new ResponseEntity<>(movieCatalogueService.getMoviesByDirectorAboveRating(director, rating), HttpStatus.OK);
-            } catch (NumberFormatException e) {
-                System.out.println("Invalid request parameter provided for rating");
-                System.out.println(e.getMessage());
-                return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
-            } catch (IllegalArgumentException e) {
-                System.out.println(e.getMessage());
-                return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        }
+        Float minimumRating = rating;
+        return readCatalogue(requestHeaders, () -> {
+            if (ratingNotPresent && !directorNotPresent) {
+                return paged ? movieCatalogueService.getMoviesByDirector(director, pageLimit, after)
+                        : movieCatalogueService.getMoviesByDirector(director);
+            } else if (directorNotPresent && !ratingNotPresent) {
+                return paged ? movieCatalogueService.getMoviesAboveRating(minimumRating, pageLimit, after)
+                        : movieCatalogueService.getMoviesAboveRating(minimumRating);
+            } else if (!ratingNotPresent) {
+                return paged ? movieCatalogueService.getMoviesByDirectorAboveRating(director, minimumRating, pageLimit, after)
+                        : movieCatalogueService.getMoviesByDirectorAboveRating(director, minimumRating);
             }
+            return paged ? movieCatalogueService.getCurrentCatalogue(pageLimit, after)
+                    : movieCatalogueService.getCurrentCatalogue();
+        });
+    }
+
+    /**
+     * Streams the full movie catalogue, writing each movie to the response as it is read rather than building
+     * the whole Catalogue first. The response has the same shape as the unfiltered GET /movies, with the movies
+     * in title order, but memory use per request and the time to the first byte do not grow with the catalogue.
+     * Conditional requests are answered in the same way as GET /movies. Only JSON is streamed, so requests that
+     * accept a binary format but not JSON are given the whole catalogue by GET /movies instead.
+     * @param requestHeaders Headers of the request, which may hold If-None-Match or If-Modified-Since
+     * @return Returns the movie catalogue as a streamed response body
+     */
+    @GetMapping(value = "/movies", params = "stream=true", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> streamMovies(@RequestHeader HttpHeaders requestHeaders){
+        CatalogueVersion.Stamp version = catalogueVersion.current();
+        if (isNotModified(requestHeaders, version)) {
+            return notModified(version);
         }
-        return new ResponseEntity<>(movieCatalogueService.getCurrentCatalogue(), HttpStatus.OK);
+        ObjectWriter movieWriter = objectMapper.writerFor(Movie.class).without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+        StreamingResponseBody body = outputStream -> {
+            JsonGenerator generator = objectMapper.getFactory().createGenerator(outputStream);
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            generator.writeStartObject();
+            generator.writeFieldName("movies");
+            generator.writeStartObject();
+            movieCatalogueService.streamCurrentCatalogue((title, movie) -> {
+                generator.writeFieldName(title);
+                movieWriter.writeValue(generator, movie);
+            });
+            generator.writeEndObject();
+            generator.writeEndObject();
+            generator.close();
+        };
+        return validators(ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).cacheControl(CacheControl.noCache())
+                .varyBy(VARY), version).body(body);
     }
 
     /**
@@ -76,18 +177,36 @@ public class MovieCatalogueController {
      * @return Http status code
      */
     @PostMapping("/movies")
-    public ResponseEntity<HttpStatus> addMovie(@RequestBody MovieIO movieIO){
+    public CompletableFuture<ResponseEntity<HttpStatus>> addMovie(@RequestBody MovieIO movieIO){
         if (movieIO == null || movieIO.getTitle() == null || movieIO.getTitle().equalsIgnoreCase("")) {
-            System.out.println("Movie must be provided with title in request body to add a movie");
-            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+            countRejected("invalid");
+            return CompletableFuture.completedFuture(new ResponseEntity<>(HttpStatus.BAD_REQUEST));
         }
-        try {
-            movieCatalogueService.addMovie(movieIO);
-            return new ResponseEntity<>(HttpStatus.OK);
-        } catch (IllegalArgumentException e) {
-            System.out.println(e.getMessage());
-            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        return onDatabaseExecutor(() -> {
+            try {
+                movieCatalogueService.addMovie(movieIO);
+                return new ResponseEntity<>(HttpStatus.OK);
+            } catch (IllegalArgumentException e) {
+                countRejected("invalid");
+                return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+            }
+        });
+    }
+
+    /**
+     * Calls the service method to add several movies to the catalogue in one request. Each movie is validated
+     * separately, so invalid movies are reported in the response without stopping the others from being added.
+     * Returns 400 bad request if the request body is null or empty, or has more movies than the maximum batch size.
+     * @param movieIOs List of MovieIOs, each containing a mandatory title string, and optional director name and rating value.
+     * @return The status of each movie, in the same order as the request body
+     */
+    @PostMapping("/movies/batch")
+    public CompletableFuture<ResponseEntity<List<BatchItemResult>>> addMovies(@RequestBody List<MovieIO> movieIOs){
+        if (movieIOs == null || movieIOs.isEmpty() || movieIOs.size() > maxBatchSize) {
+            countRejected("invalid");
+            return CompletableFuture.completedFuture(new ResponseEntity<>(HttpStatus.BAD_REQUEST));
         }
+        return onDatabaseExecutor(() -> new ResponseEntity<>(movieCatalogueService.addMovies(movieIOs), HttpStatus.OK));
     }
 
     /**
@@ -95,32 +214,115 @@ public class MovieCatalogueController {
      * of the movie to be edited. Returns 400 bad request if request body is null, or title is null or empty string
      * @param movieIO MovieIO containing the fields to be changes. All values inside are optional.
      * @param title The current title of the movie to be edited - mandatory parameter passed as path variable.
-     * @return Http status code
+     * @return Catalogue containing the movie after it has been edited
      */
     @PatchMapping("/movies/{title}")
-    public ResponseEntity<HttpStatus> editMovie(@RequestBody MovieIO movieIO, @PathVariable(value = "title") final String title){
+    public CompletableFuture<ResponseEntity<Catalogue>> editMovie(@RequestBody MovieIO movieIO, @PathVariable(value = "title") final String title){
         if (movieIO == null || title == null || title.equalsIgnoreCase("")) {
-            System.out.println("Movie must be provided in body with title in URI to edit a movie");
-            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+            countRejected("invalid");
+            return CompletableFuture.completedFuture(new ResponseEntity<>(HttpStatus.BAD_REQUEST));
         }
+        return onDatabaseExecutor(() -> {
+            try {
+                return new ResponseEntity<>(movieCatalogueService.editMovie(title, movieIO), HttpStatus.OK);
+            } catch (IllegalArgumentException e) {
+                countRejected("invalid");
+                return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+            }
+        });
+    }
+
+    /**
+     * Calls the service method to suggest directors for autocomplete, returning the directors starting with the
+     * prefix that have the most movies in the catalogue. Returns 400 bad request if the limit is not a positive number.
+     * @param prefix Optional start of the director's name, not case sensitive. Wildcard characters are taken literally.
+     * @param limit Optional maximum number of directors to return. Capped at the server's maximum.
+     * @return List of the directors with the number of movies by each, most movies first
+     */
+    @GetMapping("/movies/directors/suggest")
+    public CompletableFuture<ResponseEntity<List<DirectorSuggestion>>> suggestDirectors(@RequestParam(required = false, value = "prefix") final String prefix,
+                                                                                        @RequestParam(required = false, value = "limit") final Integer limit){
+        return onDatabaseExecutor(() -> {
+            try {
+                return new ResponseEntity<>(movieCatalogueService.suggestDirectors(prefix, limit), HttpStatus.OK);
+            } catch (IllegalArgumentException e) {
+                countRejected("invalid");
+                return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+            }
+        });
+    }
+
+    /**
+     * Calls the service method to search the movie titles for the words of the query, tolerating typos. Returns
+     * 400 bad request if the query has no letters or numbers, or the limit is not a positive number, and 503 service
+     * unavailable while the snapshot the titles are searched in is disabled or could not be loaded.
+     * @param query Words to be searched for, not case sensitive
+     * @param limit Optional maximum number of movies to return. Capped at the server's maximum.
+     * @return Catalogue of the matching movies, best match first
+     */
+    @GetMapping("/movies/search")
+    public CompletableFuture<ResponseEntity<Catalogue>> searchMovies(@RequestParam(value = "q") final String query,
+                                                                     @RequestParam(required = false, value = "limit") final Integer limit){
+        return onDatabaseExecutor(() -> {
+            try {
+                return new ResponseEntity<>(movieCatalogueService.searchMovies(query, limit), HttpStatus.OK);
+            } catch (IllegalArgumentException e) {
+                countRejected("invalid");
+                return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+            }
+        });
+    }
+
+    /**
+     * Calls the service method to return the changes made to the catalogue after the given sequence, so that clients
+     * keeping their own copy of the catalogue only need to fetch what has changed. The changes are held in memory, so
+     * this is answered on the servlet thread rather than the database executor. If the changes since the sequence are
+     * no longer held, resync is set in the response and the client should fetch the whole catalogue again.
+     * Sequences are only meaningful to the instance that gave them out, so clients of more than one instance should
+     * pass back the instance from their previous response, and are told to resync if they reach a different one.
+     * @param since Sequence of the last change the client has seen, the latest from its previous request. Clients
+     *              without one can pass 0, which always returns resync with the sequence to start from.
+     * @param instance Optional instance from the previous response
+     * @return Changes since the given sequence, oldest first, the sequence to pass as since next time and the
+     * instance to pass with it
+     */
+    @GetMapping("/movies/changes")
+    public ResponseEntity<ChangeFeed> getChanges(@RequestParam(value = "since") final long since,
+                                                 @RequestParam(value = "instance", required = false) final String instance){
+        return new ResponseEntity<>(movieCatalogueService.getChanges(since, instance), HttpStatus.OK);
+    }
+
+    /**
+     * Subscribes to the changes made to the catalogue, which are pushed as server-sent events as they are made. Each
+     * event is named after the type of change, has the change's sequence as its id and the change as JSON as its data.
+     * Subscribers that fall too far behind are disconnected, and should catch up from /movies/changes using the id
+     * of the last event received before subscribing again. The ids are sequences in this instance's change log, so
+     * the catch up has to reach the same instance, which is only checked if the client passes the instance from an
+     * earlier /movies/changes response. Returns 503 service unavailable if there are already as
+     * many subscribers as the server allows.
+     * @return The event stream
+     */
+    @GetMapping(value = "/movies/events", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public ResponseEntity<ResponseBodyEmitter> subscribeToChanges(){
         try {
-            movieCatalogueService.editMovie(title, movieIO);
-            return new ResponseEntity<>(HttpStatus.OK);
-        } catch (IllegalArgumentException e) {
-            System.out.println(e.getMessage());
-            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+            return ResponseEntity.ok().contentType(MediaType.TEXT_EVENT_STREAM).cacheControl(CacheControl.noCache())
+                    .body(changeBroadcaster.subscribe());
+        } catch (IllegalStateException e) {
+            countRejected("subscribers-full");
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).header(HttpHeaders.RETRY_AFTER, "1").build();
         }
     }
 
     /**
-     * Calls the database service to drop the database from the SQL server, clearing
-     * the stored data
+     * Calls the service method to clear all of the movies from the catalogue
      * @return Http status code
      */
     @DeleteMapping("/movies")
-    public ResponseEntity<HttpStatus> clearCatalogue(){
-        databaseService.dropDatabase();
-        return new ResponseEntity<>(HttpStatus.OK);
+    public CompletableFuture<ResponseEntity<HttpStatus>> clearCatalogue(){
+        return onDatabaseExecutor(() -> {
+            movieCatalogueService.clearCatalogue();
+            return new ResponseEntity<>(HttpStatus.OK);
+        });
     }
 
     /**
@@ -129,14 +331,16 @@ public class MovieCatalogueController {
      * @return Http status code
      */
     @DeleteMapping("/movies/{title}/director")
-    public ResponseEntity<HttpStatus> deleteDirectorFromMovie(@PathVariable(value = "title") final String title){
-        try {
-            movieCatalogueService.deleteDirectorFromMovie(title);
-            return new ResponseEntity<>(HttpStatus.OK);
-        } catch (IllegalArgumentException e) {
-            System.out.println(e.getMessage());
-            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
-        }
+    public CompletableFuture<ResponseEntity<HttpStatus>> deleteDirectorFromMovie(@PathVariable(value = "title") final String title){
+        return onDatabaseExecutor(() -> {
+            try {
+                movieCatalogueService.deleteDirectorFromMovie(title);
+                return new ResponseEntity<>(HttpStatus.OK);
+            } catch (IllegalArgumentException e) {
+                countRejected("invalid");
+                return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+            }
+        });
     }
 
     /**
@@ -145,14 +349,16 @@ public class MovieCatalogueController {
      * @return Http status code
      */
     @DeleteMapping("/movies/{title}/rating")
-    public ResponseEntity<HttpStatus> deleteRatingFromMovie(@PathVariable(value = "title") final String title){
-        try {
-            movieCatalogueService.deleteRatingFromMovie(title);
-            return new ResponseEntity<>(HttpStatus.OK);
-        } catch (IllegalArgumentException e) {
-            System.out.println(e.getMessage());
-            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
-        }
+    public CompletableFuture<ResponseEntity<HttpStatus>> deleteRatingFromMovie(@PathVariable(value = "title") final String title){
+        return onDatabaseExecutor(() -> {
+            try {
+                movieCatalogueService.deleteRatingFromMovie(title);
+                return new ResponseEntity<>(HttpStatus.OK);
+            } catch (IllegalArgumentException e) {
+                countRejected("invalid");
+                return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+            }
+        });
     }
 
     /**
@@ -161,14 +367,16 @@ public class MovieCatalogueController {
      * @return Http status code
      */
     @DeleteMapping("/movies/{title}")
-    public ResponseEntity<HttpStatus> deleteMovie(@PathVariable(value = "title") final String title){
-        try {
-            movieCatalogueService.deleteMovie(title);
-            return new ResponseEntity<>(HttpStatus.OK);
-        } catch (IllegalArgumentException e) {
-            System.out.println(e.getMessage());
-            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
-        }
+    public CompletableFuture<ResponseEntity<HttpStatus>> deleteMovie(@PathVariable(value = "title") final String title){
+        return onDatabaseExecutor(() -> {
+            try {
+                movieCatalogueService.deleteMovie(title);
+                return new ResponseEntity<>(HttpStatus.OK);
+            } catch (IllegalArgumentException e) {
+                countRejected("invalid");
+                return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+            }
+        });
     }
 
     /**
@@ -177,14 +385,16 @@ public class MovieCatalogueController {
      * @return Http status code
      */
     @DeleteMapping("/movies/directors/{director}")
-    public ResponseEntity<HttpStatus> deleteDirector(@PathVariable(value = "director") final String director){
-        try {
-            movieCatalogueService.deleteDirector(director);
-            return new ResponseEntity<>(HttpStatus.OK);
-        } catch (IllegalArgumentException e) {
-            System.out.println(e.getMessage());
-            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
-        }
+    public CompletableFuture<ResponseEntity<HttpStatus>> deleteDirector(@PathVariable(value = "director") final String director){
+        return onDatabaseExecutor(() -> {
+            try {
+                movieCatalogueService.deleteDirector(director);
+                return new ResponseEntity<>(HttpStatus.OK);
+            } catch (IllegalArgumentException e) {
+                countRejected("invalid");
+                return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+            }
+        });
     }
 
     /**
@@ -196,16 +406,209 @@ public class MovieCatalogueController {
      * @return Http status code
      */
     @PostMapping("/movies/directors")
-    public ResponseEntity<HttpStatus> addDirector(@RequestBody DirectorIO directorIO){
+    public CompletableFuture<ResponseEntity<HttpStatus>> addDirector(@RequestBody DirectorIO directorIO){
         if (directorIO == null || directorIO.getName() == null || directorIO.getName().equalsIgnoreCase("") || directorIO.getMovies() == null || directorIO.getMovies().isEmpty()){
-            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+            return CompletableFuture.completedFuture(new ResponseEntity<>(HttpStatus.BAD_REQUEST));
+        }
+        return onDatabaseExecutor(() -> {
+            try {
+                movieCatalogueService.addDirector(directorIO);
+                return new ResponseEntity<>(HttpStatus.OK);
+            } catch (IllegalArgumentException e) {
+                countRejected("invalid");
+                return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+            }
+        });
+    }
+
+    /**
+     * Reads movies from the catalogue for a GET request, labelling the response with the current catalogue
+     * version. If the request's If-None-Match or If-Modified-Since show the client already has this version,
+     * 304 not modified is returned straight away without reading or serializing the catalogue. The version is
+     * taken before the catalogue is read, so a change made during the read can only make the label older than
+     * the movies, which the client's next request will then fetch again.
+     * @param requestHeaders Headers of the request
+     * @param read Calls the service to read the movies
+     * @return The response, completed once the movies have been read
+     */
+    private CompletableFuture<ResponseEntity<Catalogue>> readCatalogue(HttpHeaders requestHeaders, Supplier<Catalogue> read) {
+        CatalogueVersion.Stamp version = catalogueVersion.current();
+        if (isNotModified(requestHeaders, version)) {
+            return CompletableFuture.completedFuture(notModified(version));
+        }
+        return onDatabaseExecutor(() -> {
+            try {
+                return validators(ResponseEntity.ok().cacheControl(CacheControl.noCache()).varyBy(VARY), version).body(read.get());
+            } catch (IllegalArgumentException e) {
+                countRejected("invalid");
+                return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+            }
+        });
+    }
+
+    /**
+     * Answers a request for the whole catalogue as JSON from the CatalogueResponseCache, writing out the bytes it
+     * holds rather than serializing the catalogue, compressed if the client accepts gzip. If the catalogue has
+     * changed since it was last encoded, it is encoded again on the database executor.
+     * @param requestHeaders Headers of the request
+     * @return The response, completed straight away if the current version has already been encoded
+     */
+    private CompletableFuture<ResponseEntity<byte[]>> readEncodedCatalogue(HttpHeaders requestHeaders) {
+        CatalogueVersion.Stamp version = catalogueVersion.current();
+        if (isNotModified(requestHeaders, version)) {
+            return CompletableFuture.completedFuture(notModified(version));
+        }
+        boolean gzip = acceptsGzip(requestHeaders);
+        Optional<CatalogueResponseCache.EncodedCatalogue> encoded = catalogueResponseCache.getIfCurrent(version);
+        if (encoded.isPresent()) {
+            return CompletableFuture.completedFuture(encodedCatalogue(encoded.get(), gzip));
+        }
+        return onDatabaseExecutor(() -> {
+            try {
+                return encodedCatalogue(catalogueResponseCache.get(), gzip);
+            } catch (IOException e) {
+                countRejected("unencodable");
+                return new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR);
+            }
+        });
+    }
+
+    private ResponseEntity<byte[]> encodedCatalogue(CatalogueResponseCache.EncodedCatalogue encoded, boolean gzip) {
+        ResponseEntity.BodyBuilder response = validators(ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON)
+                .cacheControl(CacheControl.noCache()).varyBy(VARY), encoded.getStamp());
+        if (gzip) {
+            return response.header(HttpHeaders.CONTENT_ENCODING, "gzip").body(encoded.getGzip());
         }
+        return response.body(encoded.getJson());
+    }
+
+    /**
+     * Checks whether JSON would be chosen for the response, which is when the client's most preferred type
+     * matches it, as the JSON converter is the first one able to write a Catalogue
+     * @param requestHeaders Headers of the request
+     * @return true if there is no Accept header or its most preferred type matches application/json
+     */
+    private boolean prefersJson(HttpHeaders requestHeaders) {
+        List<MediaType> accepted;
         try {
-            movieCatalogueService.addDirector(directorIO);
-            return new ResponseEntity<>(HttpStatus.OK);
-        } catch (IllegalArgumentException e) {
-            System.out.println(e.getMessage());
-            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+            accepted = requestHeaders.getAccept();
+        } catch (InvalidMediaTypeException e) {
+            //Left for content negotiation to reject
+            return false;
+        }
+        if (accepted.isEmpty()) {
+            return true;
+        }
+        MediaType.sortBySpecificityAndQuality(accepted);
+        return accepted.get(0).isCompatibleWith(MediaType.APPLICATION_JSON);
+    }
+
+    /**
+     * @param requestHeaders Headers of the request
+     * @return true if Accept-Encoding allows gzip by name, or with * if gzip is not named, with a quality above 0
+     */
+    private boolean acceptsGzip(HttpHeaders requestHeaders) {
+        boolean wildcard = false;
+        for (String acceptEncoding : requestHeaders.getOrEmpty(HttpHeaders.ACCEPT_ENCODING)) {
+            for (String coding : acceptEncoding.split(",")) {
+                String[] parameters = coding.split(";");
+                String name = parameters[0].trim();
+                boolean allowed = parameters.length < 2 || !parameters[1].trim().matches("q=0(\\.0*)?");
+                if (name.equalsIgnoreCase("gzip")) {
+                    return allowed;
+                } else if (name.equals("*")) {
+                    wildcard = allowed;
+                }
+            }
+        }
+        return wildcard;
+    }
+
+    /**
+     * Checks whether the client already has the given version of the catalogue. If-None-Match is compared using
+     * the weak comparison, and If-Modified-Since is only used when there is no If-None-Match, as the ETag changes
+     * with every version while Last-Modified is only precise to the second. As a later change can fall in the same
+     * second as the date a client sends, If-Modified-Since is only answered 304 when the version is strictly older
+     * than that date.
+     * @param requestHeaders Headers of the request
+     * @param version Current version of the catalogue
+     * @return true if the client's copy is still current
+     */
+    private boolean isNotModified(HttpHeaders requestHeaders, CatalogueVersion.Stamp version) {
+        List<String> ifNoneMatch = requestHeaders.getIfNoneMatch();
+        if (!ifNoneMatch.isEmpty()) {
+            String eTag = withoutWeakPrefix(version.getETag());
+            return ifNoneMatch.stream().anyMatch(tag -> tag.equals("*") || withoutWeakPrefix(tag).equals(eTag));
+        }
+        long ifModifiedSince = requestHeaders.getIfModifiedSince();
+        return ifModifiedSince != -1 && version.getLastModified() < ifModifiedSince;
+    }
+
+    private String withoutWeakPrefix(String eTag) {
+        return eTag.startsWith("W/") ? eTag.substring(2) : eTag;
+    }
+
+    private <T> ResponseEntity<T> notModified(CatalogueVersion.Stamp version) {
+        return validators(ResponseEntity.status(HttpStatus.NOT_MODIFIED).cacheControl(CacheControl.noCache()).varyBy(VARY),
+                version).build();
+    }
+
+    /**
+     * Labels a response with the ETag of the given catalogue version, and a Last-Modified of the first whole second
+     * after the version's change. Any client sending that date back in If-Modified-Since then has every change made
+     * before it, so it can be compared strictly against later versions, and Spring's own If-Modified-Since check on
+     * 200 responses, which compares to the second, never turns them into 304s. Last-Modified is left out until that
+     * second has passed, or once the catalogue has changed again, as a later change could then fall before it.
+     * @param response Response being built
+     * @param version Version of the catalogue the response holds
+     * @return The response, for chaining
+     */
+    private ResponseEntity.BodyBuilder validators(ResponseEntity.BodyBuilder response, CatalogueVersion.Stamp version) {
+        response.eTag(version.getETag());
+        long lastModified = version.getLastModified() / 1000 * 1000 + 1000;
+        if (lastModified <= System.currentTimeMillis() && catalogueVersion.current() == version) {
+            response.lastModified(lastModified);
+        }
+        return response;
+    }
+
+    /**
+     * Runs the handling of a request on the database executor, freeing the servlet thread until the response is
+     * ready. If the executor's queue is full the request is rejected straight away with 503 service unavailable,
+     * rather than waiting behind the requests already queued. Edits rejected by a full write-behind queue get the
+     * same response.
+     * @param handler Calls the service and builds the response
+     * @return The response, completed once the handler has run
+     */
+    private <T> CompletableFuture<ResponseEntity<T>> onDatabaseExecutor(Supplier<ResponseEntity<T>> handler) {
+        try {
+            return databaseExecutor.supply(() -> {
+                try {
+                    return handler.get();
+                } catch (RejectedExecutionException e) {
+                    countRejected("unavailable");
+                    return serviceUnavailable();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            countRejected("queue-full");
+            return CompletableFuture.completedFuture(serviceUnavailable());
+        }
+    }
+
+    /**
+     * Counts a request that was not served under catalogue.requests.rejected, tagged with the reason: invalid for
+     * a 400 bad request, queue-full when the database executor's queue is full, unavailable when the service could
+     * not serve it, subscribers-full when there are as many event subscribers as allowed, and unencodable when the
+     * catalogue could not be written
+     */
+    private void countRejected(String reason) {
+        if (meterRegistry != null) {
+            meterRegistry.counter("catalogue.requests.rejected", "reason", reason).increment();
         }
     }
+
+    private <T> ResponseEntity<T> serviceUnavailable() {
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).header(HttpHeaders.RETRY_AFTER, "1").build();
+    }
 }
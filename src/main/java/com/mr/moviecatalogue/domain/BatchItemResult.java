@@ -0,0 +1,16 @@
+package com.mr.moviecatalogue.domain;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Result for one movie in a batch of movies, returned in the same order as the movies in the request
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class BatchItemResult {
+    private String title;
+    private BatchItemStatus status;
+}
@@ -0,0 +1,19 @@
+package com.mr.moviecatalogue.domain;
+
+/**
+ * Outcome of adding one movie in a batch of movies
+ */
+public enum BatchItemStatus {
+    //The movie was added to the catalogue
+    CREATED,
+    //The movie was not given a title
+    MISSING_TITLE,
+    //The rating was outside the acceptable range of 0.0 - 5.0
+    RATING_OUT_OF_RANGE,
+    //A movie with the same title appears earlier in the batch
+    DUPLICATE_IN_BATCH,
+    //A movie with the same title is already in the catalogue
+    DUPLICATE_TITLE,
+    //The batch could not be written to the database, so the movie was not added
+    FAILED
+}
@@ -13,4 +13,6 @@ import java.util.Map;
 public class Catalogue {
     //Map of movies with keys as the title
     private Map<String, Movie> movies;
+    //Cursor to pass as the after parameter to get the next page, only set for paged requests with more movies to come
+    private String next;
 }
@@ -0,0 +1,24 @@
+package com.mr.moviecatalogue.domain;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * Changes made to the catalogue since the sequence a client last saw
+ */
+@Data
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class ChangeFeed {
+    //Changes in sequence order, empty if there have been none or the client needs to resync
+    private List<MovieChange> changes;
+    //Sequence to pass as the since parameter next time
+    private long latest;
+    //True if more changes were made than could be returned, which can be fetched straight away from latest
+    private boolean more;
+    //True if the changes since the given sequence are no longer held, so the whole catalogue needs to be fetched again
+    private boolean resync;
+    //Instance whose change log the sequences belong to, to pass as the instance parameter next time
+    private String instance;
+}
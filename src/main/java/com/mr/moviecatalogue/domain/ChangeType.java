@@ -0,0 +1,23 @@
+package com.mr.moviecatalogue.domain;
+
+/**
+ * Kind of change made to the catalogue, as reported by the change feed
+ */
+public enum ChangeType {
+    //The movie was added, with the director and rating it was given
+    ADDED,
+    //The movie was edited, with its director and rating after the edit and its previous title if it was renamed
+    EDITED,
+    //The director was set on the movie
+    DIRECTOR_ADDED,
+    //The director was removed from the movie
+    DIRECTOR_REMOVED,
+    //The rating was removed from the movie
+    RATING_REMOVED,
+    //The movie was deleted
+    DELETED,
+    //The director was removed from all of their movies
+    DIRECTOR_DELETED,
+    //All of the movies were removed from the catalogue
+    CLEARED
+}
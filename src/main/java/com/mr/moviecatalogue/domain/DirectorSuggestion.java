@@ -0,0 +1,16 @@
+package com.mr.moviecatalogue.domain;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Director returned by the director autocomplete, with the number of movies in the catalogue by them
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class DirectorSuggestion {
+    private String director;
+    private int movies;
+}
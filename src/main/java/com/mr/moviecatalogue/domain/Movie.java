@@ -1,21 +1,126 @@
 package com.mr.moviecatalogue.domain;
 
-import com.fasterxml.jackson.annotation.JsonInclude;
-import lombok.AllArgsConstructor;
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
 import lombok.Data;
-import lombok.NoArgsConstructor;
+import lombok.EqualsAndHashCode;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.Optional;
 
 /**
  * Movie class that contains 2 optionals, director and rating.
+ *
+ * The catalogue holds one Movie for every title, so the values are held without wrappers: the director as an
+ * interned String, so that every movie by the same director shares one copy of the name, and the rating as a
+ * primitive float, with NaN for no rating. The Optional getters and setters are kept for callers, and the JSON is
+ * written directly from the fields in the same shape as before, with null for a missing director or rating.
  */
 @Data
-@NoArgsConstructor
-@AllArgsConstructor
-@JsonInclude(JsonInclude.Include.NON_NULL)
+@EqualsAndHashCode(doNotUseGetters = true)
+@JsonSerialize(using = Movie.Serializer.class)
 public class Movie implements Serializable {
-    private Optional<String> director;
-    private Optional<Float> rating;
+
+    //Rating of a movie without one. Ratings stored as -1.0 in the database are held as -1.0 until they are handled.
+    public static final float NO_RATING = Float.NaN;
+
+    private String director;
+    private float rating = NO_RATING;
+
+    public Movie() {
+    }
+
+    public Movie(Optional<String> director, Optional<Float> rating) {
+        setDirector(director);
+        setRating(rating);
+    }
+
+    /**
+     * @param director Director's name, or null if the movie has none
+     * @param rating Rating, or NO_RATING if the movie has none
+     */
+    public Movie(String director, float rating) {
+        setDirectorName(director);
+        this.rating = rating;
+    }
+
+    @JsonCreator
+    static Movie fromJson(@JsonProperty("director") String director, @JsonProperty("rating") Float rating) {
+        return new Movie(director, rating == null ? NO_RATING : rating);
+    }
+
+    public Optional<String> getDirector() {
+        return Optional.ofNullable(director);
+    }
+
+    public void setDirector(Optional<String> director) {
+        setDirectorName(director == null ? null : director.orElse(null));
+    }
+
+    public Optional<Float> getRating() {
+        return hasRating() ? Optional.of(rating) : Optional.empty();
+    }
+
+    public void setRating(Optional<Float> rating) {
+        this.rating = rating != null && rating.isPresent() ? rating.get() : NO_RATING;
+    }
+
+    /**
+     * @return Director's name, or null if the movie has none
+     */
+    public String getDirectorName() {
+        return director;
+    }
+
+    public void setDirectorName(String director) {
+        this.director = director == null ? null : director.intern();
+    }
+
+    /**
+     * @return Rating, or NO_RATING if the movie has none
+     */
+    public float getRatingValue() {
+        return rating;
+    }
+
+    public void setRatingValue(float rating) {
+        this.rating = rating;
+    }
+
+    public boolean hasRating() {
+        return !Float.isNaN(rating);
+    }
+
+    /**
+     * Writes a Movie from its fields, without creating the Optionals returned by the getters
+     */
+    static class Serializer extends StdSerializer<Movie> {
+
+        Serializer() {
+            super(Movie.class);
+        }
+
+        @Override
+        public void serialize(Movie movie, JsonGenerator generator, SerializerProvider provider) throws IOException {
+            generator.writeStartObject();
+            generator.writeFieldName("director");
+            if (movie.director == null) {
+                generator.writeNull();
+            } else {
+                generator.writeString(movie.director);
+            }
+            generator.writeFieldName("rating");
+            if (movie.hasRating()) {
+                generator.writeNumber(movie.rating);
+            } else {
+                generator.writeNull();
+            }
+            generator.writeEndObject();
+        }
+    }
 }
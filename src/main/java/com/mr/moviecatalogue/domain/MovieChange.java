@@ -0,0 +1,27 @@
+package com.mr.moviecatalogue.domain;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * One change made to the catalogue. Which of the fields are set depends on the type of change.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class MovieChange {
+    //Position of the change in the change feed, increasing with each change
+    private long sequence;
+    private ChangeType type;
+    //Title of the movie changed, not set for changes to more than one movie
+    private String title;
+    //Title of the movie before it was renamed by an edit
+    private String previousTitle;
+    //Director set on the movie, or removed from all of their movies
+    private String director;
+    //The movie after it was added or edited
+    private Movie movie;
+}
@@ -0,0 +1,160 @@
+package com.mr.moviecatalogue.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Holds the full catalogue already serialized as JSON, and compressed with gzip, so that the unfiltered GET /movies
+ * can be answered by writing out the bytes rather than building and serializing a Catalogue for every request.
+ * The bytes are labelled with the CatalogueVersion they were read at, and are only encoded again once a change has
+ * made a newer version. Encoding takes a lock, so however many requests arrive together for a new version, the
+ * catalogue is encoded once and the other requests wait for it.
+ *
+ * As with responses built from a Catalogue, the version is taken before the catalogue is read, so a change made
+ * during the read can only make the label older than the movies, and the next request will encode them again.
+ */
+@Component
+public class CatalogueResponseCache {
+
+    @Autowired
+    MovieCatalogueService movieCatalogueService;
+
+    @Autowired
+    CatalogueVersion catalogueVersion;
+
+    @Autowired
+    ObjectMapper objectMapper;
+
+    @Autowired
+    MeterRegistry meterRegistry;
+
+    @Value("${catalogue.response-cache.enabled:true}")
+    private boolean enabled;
+
+    //Held while the catalogue is encoded. Requests for a version that has already been encoded do not take it.
+    private final Object lock = new Object();
+
+    //Null until the catalogue is first requested
+    private volatile EncodedCatalogue current;
+
+    private Counter hits;
+    private Counter misses;
+    private Timer encodeTimer;
+
+    @PostConstruct
+    public void registerMetrics() {
+        hits = meterRegistry.counter("catalogue.response-cache.requests", "result", "hit");
+        misses = meterRegistry.counter("catalogue.response-cache.requests", "result", "miss");
+        encodeTimer = meterRegistry.timer("catalogue.response-cache.encode");
+        meterRegistry.gauge("catalogue.response-cache.size", this, cache -> {
+            EncodedCatalogue encoded = cache.current;
+            return encoded == null ? 0 : encoded.json.length + encoded.gzip.length;
+        });
+    }
+
+    /**
+     * @return true if the unfiltered GET /movies should be answered from the cache
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Returns the encoded catalogue if it is already held for the given version or a later one, without waiting
+     * for it to be encoded
+     * @param version Version of the catalogue the request needs
+     * @return The encoded catalogue, or empty if it has to be encoded first
+     */
+    public Optional<EncodedCatalogue> getIfCurrent(CatalogueVersion.Stamp version) {
+        EncodedCatalogue encoded = current;
+        if (encoded != null && encoded.stamp.getVersion() >= version.getVersion()) {
+            hits.increment();
+            return Optional.of(encoded);
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Returns the encoded catalogue for the current version, encoding it if the catalogue has changed since it was
+     * last encoded. This may read the whole catalogue from the database, so should not be called on a servlet thread.
+     * @return The encoded catalogue
+     * @throws IOException if the catalogue could not be serialized or compressed
+     */
+    public EncodedCatalogue get() throws IOException {
+        Optional<EncodedCatalogue> encoded = getIfCurrent(catalogueVersion.current());
+        if (encoded.isPresent()) {
+            return encoded.get();
+        }
+        synchronized (lock) {
+            //Another request may have encoded this version while this one waited for the lock
+            CatalogueVersion.Stamp version = catalogueVersion.current();
+            encoded = getIfCurrent(version);
+            if (encoded.isPresent()) {
+                return encoded.get();
+            }
+            misses.increment();
+            long start = System.nanoTime();
+            byte[] json = objectMapper.writeValueAsBytes(movieCatalogueService.getCurrentCatalogue());
+            current = new EncodedCatalogue(version, json, gzip(json));
+            encodeTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            return current;
+        }
+    }
+
+    private static byte[] gzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(bytes.length / 4);
+        try (GZIPOutputStream gzipStream = new GZIPOutputStream(compressed)) {
+            gzipStream.write(bytes);
+        }
+        return compressed.toByteArray();
+    }
+
+    /**
+     * The full catalogue encoded at one version. The arrays are shared by every request, so must not be changed.
+     */
+    public static class EncodedCatalogue {
+
+        private final CatalogueVersion.Stamp stamp;
+        private final byte[] json;
+        private final byte[] gzip;
+
+        private EncodedCatalogue(CatalogueVersion.Stamp stamp, byte[] json, byte[] gzip) {
+            this.stamp = stamp;
+            this.json = json;
+            this.gzip = gzip;
+        }
+
+        /**
+         * @return Version of the catalogue the movies were read at
+         */
+        public CatalogueVersion.Stamp getStamp() {
+            return stamp;
+        }
+
+        /**
+         * @return The catalogue as JSON, in the same form as GET /movies
+         */
+        public byte[] getJson() {
+            return json;
+        }
+
+        /**
+         * @return The JSON compressed with gzip
+         */
+        public byte[] getGzip() {
+            return gzip;
+        }
+    }
+}
@@ -0,0 +1,605 @@
+package com.mr.moviecatalogue.service;
+
+import com.mr.moviecatalogue.domain.DirectorSuggestion;
+import com.mr.moviecatalogue.domain.Movie;
+import com.mr.moviecatalogue.inputobject.MovieIO;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * In-memory snapshot of the full catalogue, used to answer read queries without going to the database.
+ * The snapshot is loaded from the database on the first read, and is then kept up to date by the
+ * MovieCatalogueService applying each successful write to it as well as to the database. Writes that
+ * affect more rows than expected, or that cannot be matched against the snapshot, discard it so that
+ * it is reloaded on the next read. Read methods return an empty Optional when the snapshot is disabled or
+ * could not be loaded, in which case the caller should query the database instead.
+ *
+ * The movies and the indexes over them are held together in one State, which a load replaces as a whole, so
+ * readers always see indexes built from the same movies as the map they read. Writes made by other instances
+ * are not applied, so every catalogue.snapshot.refresh-interval milliseconds the snapshot is loaded again in the
+ * background. The reload is only swapped in if no write was applied to the snapshot while it was loading, as
+ * the load could have missed that write, and is otherwise tried again at the next interval. A reload that finds
+ * movies different from the snapshot's increments the CatalogueVersion, so that clients holding this instance's
+ * ETag or Last-Modified are sent the writes it has picked up.
+ */
+@Component
+public class CatalogueSnapshot {
+
+    @Autowired
+    MovieRepository movieRepository;
+
+    @Autowired
+    MeterRegistry meterRegistry;
+
+    @Autowired
+    WriteBehindQueue writeBehindQueue;
+
+    @Autowired
+    CatalogueVersion catalogueVersion;
+
+    @Value("${catalogue.snapshot.enabled:true}")
+    private boolean enabled;
+
+    //Time between background reloads of a loaded snapshot, or 0 to only reload it after it has been discarded
+    @Value("${catalogue.snapshot.refresh-interval:60000}")
+    private long refreshInterval;
+
+    //Floats cannot be stored as null in SQL, so ratings stored as -1.0 are held as empty in the snapshot
+    private static final float NULL_RATING = (float) -1.0;
+
+    //Guards loading the snapshot and applying writes to it. Reads do not take the lock.
+    private final Object lock = new Object();
+
+    //Null until the snapshot has been loaded, and after it has been invalidated
+    private volatile State state;
+
+    //Number of writes applied to or discarding the snapshot, so that a background reload can tell whether it
+    //missed one. Guarded by the lock.
+    private long generation;
+
+    private ScheduledExecutorService reloader;
+
+    private Counter hits;
+    private Counter misses;
+    private Counter reloadsReplaced;
+    private Counter reloadsSkipped;
+    private Counter reloadsFailed;
+    private Timer refreshTimer;
+
+    @PostConstruct
+    public void registerMetrics() {
+        hits = meterRegistry.counter("catalogue.snapshot.requests", "result", "hit");
+        misses = meterRegistry.counter("catalogue.snapshot.requests", "result", "miss");
+        reloadsReplaced = meterRegistry.counter("catalogue.snapshot.reloads", "result", "replaced");
+        reloadsSkipped = meterRegistry.counter("catalogue.snapshot.reloads", "result", "skipped");
+        reloadsFailed = meterRegistry.counter("catalogue.snapshot.reloads", "result", "failed");
+        refreshTimer = meterRegistry.timer("catalogue.snapshot.refresh");
+        meterRegistry.gauge("catalogue.snapshot.size", this, snapshot -> {
+            State current = snapshot.state;
+            return current == null ? 0 : current.movies.size();
+        });
+        if (enabled && refreshInterval > 0) {
+            reloader = Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("catalogue-snapshot-"));
+            reloader.scheduleWithFixedDelay(this::reloadQuietly, refreshInterval, refreshInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (reloader != null) {
+            reloader.shutdownNow();
+        }
+    }
+
+    /**
+     * @return true if reads should be served from the snapshot
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return A HashMap with all the movies in the catalogue keyed by title, or empty if the snapshot is unavailable
+     */
+    public Optional<Map<String, Movie>> getAllMovies() {
+        State current = current();
+        return current == null ? Optional.empty() : Optional.of(new HashMap<>(current.movies));
+    }
+
+    /**
+     * Looks up a movie by its title. The title is case sensitive, as in the database.
+     * @param title Title of the movie to look up
+     * @return A HashMap containing the movie if present, keyed by title, or empty if the snapshot is unavailable
+     */
+    public Optional<Map<String, Movie>> getMovieByTitle(String title) {
+        State current = current();
+        if (current == null) {
+            return Optional.empty();
+        }
+        Map<String, Movie> movieMap = new HashMap<>();
+        Movie movie = current.movies.get(title);
+        if (movie != null) {
+            movieMap.put(title, movie);
+        }
+        return Optional.of(movieMap);
+    }
+
+    /**
+     * Gets all the movies by the given director, matching the director the same way as the database does.
+     * @param director Director name to be searched for. Can contain wildcard characters * or %
+     * @return A HashMap containing the matching movies keyed by title, or empty if the snapshot is unavailable
+     */
+    public Optional<Map<String, Movie>> getMoviesByDirector(String director) {
+        return getMoviesByDirectorAboveRating(director, null);
+    }
+
+    /**
+     * Gets all the movies with a rating above or equal to the given rating.
+     * @param rating Rating to be searched for all movies above this rating
+     * @return A HashMap containing the matching movies keyed by title, or empty if the snapshot is unavailable
+     */
+    public Optional<Map<String, Movie>> getMoviesAboveRating(Float rating) {
+        return getMoviesByDirectorAboveRating(null, rating);
+    }
+
+    /**
+     * Gets all the movies by the given director with a rating above or equal to the given rating. Either
+     * filter can be null to not filter on it.
+     * @param director Director name to be searched for. Can contain wildcard characters * or %
+     * @param rating Rating to be searched for all movies above this rating
+     * @return A HashMap containing the matching movies keyed by title, or empty if the snapshot is unavailable
+     */
+    public Optional<Map<String, Movie>> getMoviesByDirectorAboveRating(String director, Float rating) {
+        State current = current();
+        if (current == null) {
+            return Optional.empty();
+        }
+        if (director != null) {
+            Map<String, Movie> movieMap = new HashMap<>();
+            current.directorIndex.forEachMatching(director.replaceAll("\\*", "%"), (title, movie) -> {
+                if (matches(movie, null, rating)) {
+                    movieMap.put(title, movie);
+                }
+            });
+            return Optional.of(movieMap);
+        }
+        int indexedMatches = rating == null ? -1 : current.ratingIndex.plan(rating);
+        if (indexedMatches >= 0) {
+            Map<String, Movie> movieMap = new HashMap<>(indexedMatches * 4 / 3 + 1);
+            current.ratingIndex.forEachAtLeast(rating, (title, movie) -> {
+                if (matches(movie, null, rating)) {
+                    movieMap.put(title, movie);
+                }
+            });
+            return Optional.of(movieMap);
+        }
+        Map<String, Movie> movieMap = new HashMap<>();
+        current.movies.forEach((title, movie) -> {
+            if (matches(movie, null, rating)) {
+                movieMap.put(title, movie);
+            }
+        });
+        return Optional.of(movieMap);
+    }
+
+    /**
+     * Gets the directors with the most movies whose name starts with the prefix, in the same way as
+     * DatabaseService.suggestDirectors
+     * @param prefix Start of the director's name, not case sensitive. Wildcard characters are taken literally.
+     * @param limit Maximum number of directors to return
+     * @return A List of the directors in order of most movies first, or empty if the snapshot is unavailable
+     */
+    public Optional<List<DirectorSuggestion>> suggestDirectors(String prefix, int limit) {
+        State current = current();
+        if (current == null) {
+            return Optional.empty();
+        }
+        return Optional.of(current.directorIndex.suggest(prefix, limit));
+    }
+
+    /**
+     * Gets the spelling of a director's name held in the snapshot, which is the one stored in the database
+     * @param director Director's name, not case sensitive
+     * @return The name as it is spelt in the snapshot, or empty if the snapshot is unavailable or has no movies by
+     * the director
+     */
+    public Optional<String> getDirectorName(String director) {
+        State current = current();
+        if (current == null) {
+            return Optional.empty();
+        }
+        return Optional.ofNullable(current.directorIndex.name(director));
+    }
+
+    /**
+     * Searches the titles for the query words, in the same way as TitleIndex.scan
+     * @param queryWords Words to be searched for, from TitleIndex.queryWords
+     * @param limit Maximum number of movies to return
+     * @return A LinkedHashMap containing the matching movies keyed by title, best match first, or empty if the
+     * snapshot is unavailable
+     */
+    public Optional<Map<String, Movie>> searchTitles(List<String> queryWords, int limit) {
+        State current = current();
+        if (current == null) {
+            return Optional.empty();
+        }
+        return Optional.of(current.titleIndex.search(queryWords, limit));
+    }
+
+    /**
+     * Gets one page of movies in title order, in the same way as DatabaseService.getMoviesPage
+     * @param director Optional director name to be searched for. Can contain wildcard characters * or %
+     * @param rating Optional rating to be searched for all movies above this rating
+     * @param afterTitle Optional title of the last movie on the previous page. The page starts after this title.
+     * @param limit Maximum number of movies to return
+     * @return A LinkedHashMap containing the page of movies in title order, or empty if the snapshot is unavailable
+     */
+    public Optional<Map<String, Movie>> getMoviesPage(String director, Float rating, String afterTitle, int limit) {
+        State current = current();
+        if (current == null) {
+            return Optional.empty();
+        }
+        Pattern directorPattern = director == null ? null : likePattern(director.replaceAll("\\*", "%"));
+        Map<String, Movie> movieMap = new LinkedHashMap<>();
+        for (Map.Entry<String, Movie> entry : (afterTitle == null ? current.movies : current.movies.tailMap(afterTitle, false)).entrySet()) {
+            if (movieMap.size() >= limit) {
+                break;
+            }
+            if (matches(entry.getValue(), directorPattern, rating)) {
+                movieMap.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return Optional.of(movieMap);
+    }
+
+    /**
+     * Passes every movie in the snapshot to the visitor in title order
+     * @param visitor MovieVisitor to be called for each movie
+     * @throws IOException if the visitor fails
+     * @return true if the movies were visited, or false if the snapshot is unavailable
+     */
+    public boolean forEachMovie(MovieVisitor visitor) throws IOException {
+        State current = current();
+        if (current == null) {
+            return false;
+        }
+        for (Map.Entry<String, Movie> entry : current.movies.entrySet()) {
+            visitor.visit(entry.getKey(), entry.getValue());
+        }
+        return true;
+    }
+
+    /**
+     * Applies an added movie to the snapshot
+     * @param movieIO MovieIO as stored in the database, with a rating of -1.0 for no rating
+     * @param rowsAffected Number of rows the database reported as inserted
+     */
+    public void movieAdded(MovieIO movieIO, int rowsAffected) {
+        synchronized (lock) {
+            generation++;
+            State current = state;
+            if (current == null || !applies(rowsAffected)) {
+                return;
+            }
+            store(current, movieIO.getTitle(), new Movie(movieIO.getDirector(), toSnapshotRating(movieIO.getRating())));
+        }
+    }
+
+    /**
+     * Applies an edited movie to the snapshot, replacing the movie held under its previous title. If there is no
+     * movie held under that title the snapshot has diverged from the database, so is discarded rather than the
+     * movie being added back.
+     * @param currentTitle Title of the movie before the update
+     * @param newTitle Title of the movie after the update
+     * @param movie The movie as returned by the database after the update, with no rating as empty
+     */
+    public void movieEdited(String currentTitle, String newTitle, Movie movie) {
+        synchronized (lock) {
+            generation++;
+            State current = state;
+            if (current == null) {
+                return;
+            }
+            if (!evict(current, currentTitle)) {
+                state = null;
+                return;
+            }
+            store(current, newTitle, new Movie(movie.getDirectorName(), movie.getRatingValue()));
+        }
+    }
+
+    /**
+     * Applies a director change to the snapshot
+     * @param title Title of the movie that was updated
+     * @param director New director, or null if the director was removed
+     * @param rowsAffected Number of rows the database reported as updated
+     */
+    public void directorUpdated(String title, String director, int rowsAffected) {
+        synchronized (lock) {
+            generation++;
+            State current = state;
+            if (current == null || !applies(rowsAffected)) {
+                return;
+            }
+            Movie movie = current.movies.get(title);
+            if (movie == null) {
+                state = null;
+                return;
+            }
+            store(current, title, new Movie(director, movie.getRatingValue()));
+        }
+    }
+
+    /**
+     * Applies a rating change to the snapshot
+     * @param title Title of the movie that was updated
+     * @param rating New rating as stored in the database, with -1.0 for no rating
+     * @param rowsAffected Number of rows the database reported as updated
+     */
+    public void ratingUpdated(String title, Float rating, int rowsAffected) {
+        synchronized (lock) {
+            generation++;
+            State current = state;
+            if (current == null || !applies(rowsAffected)) {
+                return;
+            }
+            Movie movie = current.movies.get(title);
+            if (movie == null) {
+                state = null;
+                return;
+            }
+            store(current, title, new Movie(movie.getDirectorName(), toSnapshotRating(rating)));
+        }
+    }
+
+    /**
+     * Removes a deleted movie from the snapshot
+     * @param title Title of the movie that was deleted
+     * @param rowsAffected Number of rows the database reported as deleted
+     */
+    public void movieDeleted(String title, int rowsAffected) {
+        synchronized (lock) {
+            generation++;
+            State current = state;
+            if (current == null || !applies(rowsAffected)) {
+                return;
+            }
+            if (!evict(current, title)) {
+                state = null;
+            }
+        }
+    }
+
+    /**
+     * Removes the director from all movies in the snapshot with the given director. Case insensitive.
+     * @param director Director that was deleted
+     */
+    public void directorDeleted(String director) {
+        synchronized (lock) {
+            generation++;
+            State current = state;
+            if (current == null) {
+                return;
+            }
+            current.directorIndex.moviesBy(director).forEach((title, movie) -> store(current, title, new Movie(null, movie.getRatingValue())));
+        }
+    }
+
+    /**
+     * Discards the snapshot so that it is reloaded from the database on the next read
+     */
+    public void invalidate() {
+        synchronized (lock) {
+            generation++;
+            state = null;
+        }
+    }
+
+    /**
+     * Loads the snapshot again from the database and swaps it in, unless a write was applied to the snapshot
+     * while it was loading. The database is read without holding the lock, so writes are not held up by the load.
+     * The catalogue version is incremented if the reloaded movies differ from the ones they replace.
+     * @return true if the reloaded snapshot replaced the loaded one
+     */
+    boolean reload() {
+        long loadedAt;
+        synchronized (lock) {
+            if (state == null) {
+                return false;
+            }
+            loadedAt = generation;
+        }
+        State loaded = load();
+        synchronized (lock) {
+            if (loaded == null || state == null || generation != loadedAt) {
+                reloadsSkipped.increment();
+                return false;
+            }
+            boolean changed = !loaded.movies.equals(state.movies);
+            state = loaded;
+            reloadsReplaced.increment();
+            if (changed) {
+                catalogueVersion.increment();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Returns the loaded snapshot, loading it from the database first if required
+     * @return The current snapshot, or null if it is disabled or could not be loaded
+     */
+    private State current() {
+        if (!enabled) {
+            return null;
+        }
+        State current = state;
+        if (current != null) {
+            hits.increment();
+            return current;
+        }
+        misses.increment();
+        synchronized (lock) {
+            if (state == null) {
+                state = load();
+            }
+            return state;
+        }
+    }
+
+    private void reloadQuietly() {
+        try {
+            reload();
+        } catch (RuntimeException e) {
+            reloadsFailed.increment();
+        }
+    }
+
+    /**
+     * Loads the full catalogue from the database into a new State, with new indexes built from it
+     * @return The loaded State, or null if the catalogue could not be read
+     */
+    private State load() {
+        long start = System.nanoTime();
+        //Edits accepted by the write-behind queue are applied to the snapshot, so have to be written before it is reloaded
+        if (!writeBehindQueue.flush()) {
+            return null;
+        }
+        //Read from the primary, as a replica behind it would leave out writes already applied to the last snapshot
+        Map<String, Movie> movieMap = ReadRouting.onPrimary(movieRepository::getAllMovies);
+        if (movieMap == null) {
+            return null;
+        }
+        State loaded = new State();
+        //The repository returns new movies, so they are held as they are once their ratings have been handled
+        movieMap.forEach((title, movie) -> {
+            movie.setRatingValue(toSnapshotRating(movie.getRatingValue()));
+            loaded.movies.put(title, movie);
+            loaded.ratingIndex.put(title, movie.getRatingValue(), movie);
+            loaded.directorIndex.put(title, movie.getDirectorName(), movie);
+            loaded.titleIndex.put(title, movie);
+        });
+        refreshTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        return loaded;
+    }
+
+    /**
+     * Puts a movie into the snapshot and the indexes. Must be called holding the lock.
+     */
+    private void store(State current, String title, Movie movie) {
+        Movie previous = current.movies.put(title, movie);
+        if (previous != null) {
+            current.directorIndex.remove(title, previous.getDirectorName());
+        }
+        current.ratingIndex.put(title, movie.getRatingValue(), movie);
+        current.directorIndex.put(title, movie.getDirectorName(), movie);
+        current.titleIndex.put(title, movie);
+    }
+
+    /**
+     * Removes a movie from the snapshot and the indexes. Must be called holding the lock.
+     * @return true if the movie was in the snapshot
+     */
+    private boolean evict(State current, String title) {
+        current.ratingIndex.remove(title);
+        current.titleIndex.remove(title);
+        Movie previous = current.movies.remove(title);
+        if (previous == null) {
+            return false;
+        }
+        current.directorIndex.remove(title, previous.getDirectorName());
+        return true;
+    }
+
+    /**
+     * Checks whether a write can be applied to the snapshot directly. Updates in the database match titles
+     * case insensitively, so a write affecting more than one row cannot be mirrored and the snapshot is
+     * discarded instead. Must be called holding the lock.
+     * @param rowsAffected Number of rows the database reported as changed
+     * @return true if exactly one row was changed
+     */
+    private boolean applies(int rowsAffected) {
+        if (rowsAffected > 1) {
+            state = null;
+        }
+        return rowsAffected == 1;
+    }
+
+    private boolean matches(Movie movie, Pattern directorPattern, Float rating) {
+        if (directorPattern != null && (movie.getDirectorName() == null || !directorPattern.matcher(movie.getDirectorName()).matches())) {
+            return false;
+        }
+        return rating == null || movie.getRatingValue() >= rating;
+    }
+
+    private float toSnapshotRating(Float rating) {
+        return rating == null ? Movie.NO_RATING : toSnapshotRating(rating.floatValue());
+    }
+
+    private float toSnapshotRating(float rating) {
+        return rating == NULL_RATING ? Movie.NO_RATING : rating;
+    }
+
+    /**
+     * Converts a SQL LIKE pattern into a case insensitive regular expression. % matches any sequence of
+     * characters, _ matches any single character and \ escapes the following character.
+     * @param like LIKE pattern to convert
+     * @return The equivalent Pattern
+     */
+    static Pattern likePattern(String like) {
+        StringBuilder regex = new StringBuilder();
+        StringBuilder literal = new StringBuilder();
+        for (int i = 0; i < like.length(); i++) {
+            char c = like.charAt(i);
+            if (c == '\\' && i + 1 < like.length()) {
+                literal.append(like.charAt(++i));
+            } else if (c == '%' || c == '_') {
+                if (literal.length() > 0) {
+                    regex.append(Pattern.quote(literal.toString()));
+                    literal.setLength(0);
+                }
+                regex.append(c == '%' ? ".*" : ".");
+            } else {
+                literal.append(c);
+            }
+        }
+        if (literal.length() > 0) {
+            regex.append(Pattern.quote(literal.toString()));
+        }
+        return Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE | Pattern.DOTALL);
+    }
+
+    /**
+     * The movies in a loaded snapshot, sorted by title for paging, and the indexes over them. Writes update the
+     * movies and indexes in place while holding the lock, and a load replaces the whole State.
+     */
+    private static final class State {
+        private final ConcurrentNavigableMap<String, Movie> movies = new ConcurrentSkipListMap<>();
+        //Movies by rating
+        private final RatingIndex<Movie> ratingIndex = new RatingIndex<>();
+        //Movies by case folded director
+        private final DirectorIndex<Movie> directorIndex = new DirectorIndex<>();
+        //Words and trigrams of titles for full-text search
+        private final TitleIndex<Movie> titleIndex = new TitleIndex<>();
+    }
+}
@@ -0,0 +1,76 @@
+package com.mr.moviecatalogue.service;
+
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Version of the catalogue, incremented by every change made to it, which the controller uses to answer
+ * conditional requests without reading the catalogue. The version is only incremented once a change has been
+ * made to both the database and the snapshot, so a response labelled with a version never holds older data
+ * than that version.
+ *
+ * The version starts again from zero when the application restarts, so the ETag also holds the time the
+ * application started, to stop a client's ETag from before the restart matching a different catalogue.
+ *
+ * The version is held by each instance rather than stored with the catalogue, so ETags and Last-Modified times are
+ * only meaningful to the instance that gave them. An ETag sent to another instance never matches, as it names the
+ * instance, so the client is sent the catalogue again. Writes made through other instances are only counted once
+ * this instance's snapshot reload picks them up, so an instance answers conditional requests for the catalogue as
+ * it serves it. With the snapshot disabled, nothing counts those writes, so conditional requests should only be
+ * relied on when a single instance writes to the database.
+ */
+@Component
+public class CatalogueVersion {
+
+    private final String instance = Long.toString(System.currentTimeMillis(), 36);
+
+    private final AtomicReference<Stamp> current = new AtomicReference<>(new Stamp(0, System.currentTimeMillis()));
+
+    /**
+     * @return The current version of the catalogue
+     */
+    public Stamp current() {
+        return current.get();
+    }
+
+    /**
+     * Increments the version after a change has been made to the catalogue
+     */
+    public void increment() {
+        long now = System.currentTimeMillis();
+        current.updateAndGet(stamp -> new Stamp(stamp.version + 1, Math.max(now, stamp.lastModified)));
+    }
+
+    /**
+     * One version of the catalogue, with the ETag and Last-Modified time it is given in responses
+     */
+    public class Stamp {
+
+        private final long version;
+        private final long lastModified;
+        private final String eTag;
+
+        private Stamp(long version, long lastModified) {
+            this.version = version;
+            this.lastModified = lastModified;
+            //Weak, as responses for the same version hold the same movies but are not promised to be byte for byte identical
+            this.eTag = "W/\"" + instance + "-" + version + "\"";
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * @return Time of the change that created this version, or the time the application started
+         */
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public String getETag() {
+            return eTag;
+        }
+    }
+}
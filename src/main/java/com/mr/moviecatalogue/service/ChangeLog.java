@@ -0,0 +1,135 @@
+package com.mr.moviecatalogue.service;
+
+import com.mr.moviecatalogue.domain.ChangeFeed;
+import com.mr.moviecatalogue.domain.MovieChange;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Holds the most recent changes made to the catalogue, so that clients can fetch what has changed since they last
+ * looked rather than the whole catalogue. Each change is given the next number in the sequence, and the last
+ * catalogue.changes.capacity changes are kept in a ring buffer, with the oldest overwritten as new changes are made.
+ * A client asking for changes from before the oldest one held is told to resync by fetching the whole catalogue.
+ *
+ * The changes are only held in memory, so the sequence starts from the time the application started, scaled up so
+ * that it is ahead of any sequence given out before a restart, which makes clients from before the restart resync.
+ *
+ * Each instance of the application has its own log and sequence, which a change made on another instance never
+ * reaches, so a sequence is only meaningful to the instance that gave it out. Every feed names the instance it came
+ * from, and a client that passes that name back is told to resync if its request reaches a different instance.
+ * Changes are recorded by MovieCatalogueService while it holds locks on the titles changed, so the sequence follows
+ * the order in which the database made the changes to each movie.
+ */
+@Component
+public class ChangeLog {
+
+    @Value("${catalogue.changes.capacity:10000}")
+    private int capacity;
+
+    private MovieChange[] changes;
+
+    //Names this log in the feeds it returns, so that sequences from another instance's log can be recognised
+    private final String instance = UUID.randomUUID().toString();
+
+    //Called after each change is recorded, such as to push it to subscribers
+    private final List<Runnable> listeners = new CopyOnWriteArrayList<>();
+
+    //Sequence of the latest change, and of the last change before the oldest one still held
+    private long sequence;
+    private long firstSequence;
+
+    @PostConstruct
+    public void initialise() {
+        changes = new MovieChange[capacity];
+        sequence = System.currentTimeMillis() * 1000;
+        firstSequence = sequence;
+    }
+
+    /**
+     * Gives the change the next sequence and adds it to the log
+     * @param change Change that has been made to the catalogue
+     */
+    public synchronized void record(MovieChange change) {
+        change.setSequence(++sequence);
+        changes[(int) (sequence % capacity)] = change;
+        firstSequence = Math.max(firstSequence, sequence - capacity);
+        listeners.forEach(Runnable::run);
+    }
+
+    /**
+     * Gives each change the next sequence and adds them to the log in order
+     * @param changes Changes that have been made to the catalogue
+     */
+    public synchronized void record(List<MovieChange> changes) {
+        changes.forEach(this::record);
+    }
+
+    /**
+     * Adds a listener to be called after each change is recorded. Listeners are called on the thread making the
+     * change while it holds the log's lock, so must not block and should read the changes on another thread.
+     * @param listener Listener to call
+     */
+    public void addListener(Runnable listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * @return Sequence of the latest change
+     */
+    public synchronized long latest() {
+        return sequence;
+    }
+
+    /**
+     * Makes every client resync, for a change to the catalogue that cannot be described in the log
+     */
+    public synchronized void invalidate() {
+        firstSequence = ++sequence;
+        listeners.forEach(Runnable::run);
+    }
+
+    /**
+     * Returns the changes made after the given sequence, oldest first, without checking which instance it came from
+     * @param since Sequence of the last change the client has seen
+     * @param limit Maximum number of changes to return
+     * @return A ChangeFeed holding the changes, or telling the client to resync if they are no longer all held
+     */
+    public ChangeFeed since(long since, int limit) {
+        return since(since, null, limit);
+    }
+
+    /**
+     * Returns the changes made after the given sequence, oldest first, if the sequence was given out by this log
+     * @param since Sequence of the last change the client has seen
+     * @param instance Instance named by the feed the sequence came from, or null if the client did not give one
+     * @param limit Maximum number of changes to return
+     * @return A ChangeFeed holding the changes, or telling the client to resync if they are no longer all held or
+     * the sequence came from another instance
+     */
+    public synchronized ChangeFeed since(long since, String instance, int limit) {
+        ChangeFeed feed = new ChangeFeed();
+        feed.setInstance(this.instance);
+        if (since < firstSequence || since > sequence || (instance != null && !instance.equals(this.instance))) {
+            feed.setChanges(Collections.emptyList());
+            feed.setLatest(sequence);
+            feed.setResync(true);
+            return feed;
+        }
+        long last = Math.min(sequence, since + limit);
+        List<MovieChange> changesSince = new ArrayList<>((int) (last - since));
+        for (long next = since + 1; next <= last; next++) {
+            changesSince.add(changes[(int) (next % capacity)]);
+        }
+        feed.setChanges(changesSince);
+        feed.setLatest(last);
+        feed.setMore(last < sequence);
+        return feed;
+    }
+}
@@ -1,92 +1,238 @@
 package com.mr.moviecatalogue.service;
 
+import com.mr.moviecatalogue.domain.DirectorSuggestion;
 import com.mr.moviecatalogue.domain.Movie;
 import com.mr.moviecatalogue.inputobject.MovieIO;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import javax.sql.DataSource;
+import java.io.IOException;
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 /**
- * This service class handles all of the application's interactions with the database
+ * This service class handles all of the application's interactions with the database. It is the movie
+ * repository used unless catalogue.repository is set to another backend.
+ *
+ * Each director is stored once in director_table, and movie_table refers to it by DIRECTOR_ID. Movies are read
+ * through movie_view, which joins the director's name back in as the DIRECTOR column, and are written with the
+ * director_id function, which finds or adds the director for a name.
+ *
+ * Reads of the catalogue are sent to the ReplicaDataSources when any are configured, unless ReadRouting has
+ * pinned the thread to the primary so that it sees writes the replicas may not have yet. Writes, and reads made
+ * while writing, always go to the primary.
  */
 @Component
-public class DatabaseService {
+@ConditionalOnProperty(name = "catalogue.repository", havingValue = "jdbc", matchIfMissing = true)
+public class DatabaseService implements MovieRepository {
 
-    private static final String DB_USER = "postgres";
-    private static final String DB_PW = "postgrespw";
+    //Number of statements sent to the database in each JDBC batch when adding or updating several movies
+    private static final int STATEMENT_BATCH_SIZE = 500;
+
+    //Name of the director of the movie_table row, for the statements that return a movie they have updated
+    private static final String DIRECTOR_NAME = "(SELECT NAME FROM director_table WHERE director_table.DIRECTOR_ID = movie_table.DIRECTOR_ID)";
+
+    //A director added by director_id is not seen by the statement's own subquery, so its name is the one given as the
+    //next parameter, which is the name stored as the director is new
+    private static final String STORED_DIRECTOR_NAME = "COALESCE(" + DIRECTOR_NAME + ", ?)";
+
+    //Identifiers cannot be bound as parameters, so the database name is checked before it is written into SQL
+    private static final Pattern DATABASE_NAME = Pattern.compile("[A-Za-z0-9_]+");
+
+    //Counts the databases created on startup, and the startups that could not reach the database server
+    static final String SCHEMA_DATABASE = "catalogue.schema.database";
+
+    @Autowired
+    DataSource dataSource;
+
+    @Autowired
+    SchemaMigrator schemaMigrator;
+
+    @Autowired
+    MeterRegistry meterRegistry;
+
+    @Autowired
+    CatalogueVersion catalogueVersion;
+
+    @Autowired
+    ReplicaDataSources replicaDataSources;
+
+    @Value("${spring.datasource.url}")
+    private String databaseUrl;
+
+    @Value("${spring.datasource.username}")
+    private String databaseUser;
+
+    @Value("${spring.datasource.password}")
+    private String databasePassword;
+
+    //Number of rows fetched from the server at a time when streaming the catalogue
+    @Value("${catalogue.streaming.fetch-size:500}")
+    private int streamFetchSize;
+
+    //Time taken to borrow a connection from the pool, which includes opening one if none are idle, tagged with
+    //whether the connection is to the primary or a replica
+    private Timer primaryConnectionTimer;
+    private Timer replicaConnectionTimer;
+
+    public DatabaseService() {
+    }
 
     /**
-     * This method attempts to connect to the database for the project, and if it is not already present,
-     * creates the database and tables in the PostgreSQL instance
-     * @return Returns the Connection to the database
+     * Creates the repository for one shard of a ShardedMovieRepository, outside of the application context. Each
+     * shard has its own pool and schema, and no replicas. initialiseSchema has to be called before it is used.
      */
-    public Connection connectToDatabase(){
-        Connection c = null;
-        Statement statement = null;
-        Statement createTables = null;
+    DatabaseService(DataSource dataSource, SchemaMigrator schemaMigrator, String databaseUrl, String databaseUser,
+                    String databasePassword, int streamFetchSize, MeterRegistry meterRegistry, CatalogueVersion catalogueVersion) {
+        this.dataSource = dataSource;
+        this.schemaMigrator = schemaMigrator;
+        this.databaseUrl = databaseUrl;
+        this.databaseUser = databaseUser;
+        this.databasePassword = databasePassword;
+        this.streamFetchSize = streamFetchSize;
+        this.meterRegistry = meterRegistry;
+        this.catalogueVersion = catalogueVersion;
+        this.replicaDataSources = new ReplicaDataSources();
+        registerMetrics();
+    }
+
+    @PostConstruct
+    public void registerMetrics() {
+        primaryConnectionTimer = meterRegistry.timer("catalogue.repository.connection.open", "target", "primary");
+        replicaConnectionTimer = meterRegistry.timer("catalogue.repository.connection.open", "target", "replica");
+    }
+
+    /**
+     * Runs once on startup to create the database in the PostgreSQL instance if it is not already present,
+     * and then to apply any schema migrations that have not yet been run against it. The database itself has
+     * to be created through a connection to the server rather than the pool, as the pool's connections are all
+     * opened against the (possibly missing) database. If the server cannot be reached the application still
+     * starts, and requests will fail until it is available.
+     * @throws IllegalStateException if the database name in spring.datasource.url is not made of letters, digits
+     * and underscores, as it is written into the CREATE DATABASE statement
+     */
+    @PostConstruct
+    public void initialiseSchema() {
+        String serverUrl = databaseUrl.substring(0, databaseUrl.lastIndexOf('/') + 1);
+        String databaseName = databaseUrl.substring(databaseUrl.lastIndexOf('/') + 1).split("\\?")[0];
+        if (!DATABASE_NAME.matcher(databaseName).matches()) {
+            throw new IllegalStateException("The database name in spring.datasource.url must only contain letters, digits and underscores");
+        }
+        Connection connection = null;
+        PreparedStatement statement = null;
+        Statement createStatement = null;
+        ResultSet resultSet = null;
         try {
-            c = DriverManager
-                    .getConnection("jdbc:postgresql://localhost:5432/moviedb",
-                            DB_USER, DB_PW);
-        } catch (Exception e) {
-            System.err.println(e.getClass().getName()+": "+e.getMessage());
-            try {
-                c = DriverManager
-                        .getConnection("jdbc:postgresql://localhost:5432/",
-                                DB_USER, DB_PW);
-                statement = c.createStatement();
-                statement.executeUpdate("CREATE DATABASE moviedb");
-                statement.close();
-                c.close();
-
-                c = DriverManager
-                        .getConnection("jdbc:postgresql://localhost:5432/moviedb",
-                                DB_USER, DB_PW);
-
-                createTables = c.createStatement();
-                createTables.executeUpdate("CREATE TABLE movie_table (TITLE TEXT PRIMARY KEY NOT NULL, DIRECTOR TEXT, RATING FLOAT)");
-                createTables.close();
-                System.out.println("Table created");
-            } catch (Exception exception) {
-                exception.printStackTrace();
-                System.err.println(exception.getClass().getName()+": "+exception.getMessage());
-                System.out.println("Database could not be accessed, exiting application");
-                System.exit(0);
+            connection = DriverManager.getConnection(serverUrl, databaseUser, databasePassword);
+            statement = connection.prepareStatement("SELECT 1 FROM pg_database WHERE datname = ?;");
+            statement.setString(1, databaseName);
+            resultSet = statement.executeQuery();
+            if (!resultSet.next()) {
+                createStatement = connection.createStatement();
+                //Quoted so that the database is created with the name checked for above, rather than in lower case
+                createStatement.executeUpdate("CREATE DATABASE \"" + databaseName + "\"");
+                meterRegistry.counter(SCHEMA_DATABASE, "result", "created").increment();
             }
+        } catch (SQLException sqle) {
+            countError(sqle);
+            meterRegistry.counter(SCHEMA_DATABASE, "result", "unreachable").increment();
+            return;
         } finally {
             try {
-                if (statement != null && !statement.isClosed()) {
+                if (resultSet != null) {
+                    resultSet.close();
+                }
+                if (statement != null) {
                     statement.close();
                 }
-                if (createTables != null && !createTables.isClosed()) {
-                    createTables.close();
+                if (createStatement != null) {
+                    createStatement.close();
+                }
+                if (connection != null) {
+                    connection.close();
                 }
             } catch (Exception e) {
-                e.printStackTrace();
-                System.out.println(e.getClass().getName()+": "+e.getMessage());
+                countError(e);
             }
         }
 
-        System.out.println("Opened database successfully");
-        return c;
+        try {
+            schemaMigrator.migrate();
+        } catch (SQLException sqle) {
+            countError(sqle);
+        }
+    }
+
+    /**
+     * Borrows a connection to the database from the connection pool. The connection must be closed once
+     * it is finished with, which returns it to the pool rather than closing the underlying connection.
+     * @return Returns a pooled Connection to the database
+     * @throws SQLException if no connection becomes available within the pool's connection timeout
+     */
+    public Connection connectToDatabase() throws SQLException {
+        return borrowFromPrimary(System.nanoTime());
+    }
+
+    /**
+     * Borrows a connection for a read from the next replica, or from the primary if there are no replicas, the
+     * thread is pinned to the primary, or no connection could be borrowed from the replica in time. The time
+     * taken is recorded once, against the database the connection is to, and includes any wait for the replica
+     * before falling back to the primary.
+     * @return Returns a pooled Connection to a replica or the primary
+     * @throws SQLException if no connection becomes available from the primary either
+     */
+    public Connection connectToReplica() throws SQLException {
+        DataSource replica = ReadRouting.isPinnedToPrimary() ? null : replicaDataSources.next();
+        if (replica == null) {
+            return connectToDatabase();
+        }
+        long start = System.nanoTime();
+        try {
+            Connection connection = replica.getConnection();
+            replicaConnectionTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            return connection;
+        } catch (SQLException sqle) {
+            replicaDataSources.countFallback();
+        }
+        return borrowFromPrimary(start);
     }
 
     /**
-     * Drops the database from the SQL server, clearing any data.
+     * Borrows a connection from the primary's pool, recording the time taken since the given start
      */
+    private Connection borrowFromPrimary(long start) throws SQLException {
+        try {
+            return dataSource.getConnection();
+        } finally {
+            primaryConnectionTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Clears all of the movies from the database. The table is truncated rather than the database being
+     * dropped, as the database cannot be dropped while the pool holds connections open to it. The catalogue
+     * version is incremented once the table has been truncated.
+     */
+    @Override
     public void dropDatabase(){
         Connection connection = null;
         Statement statement = null;
         try {
-            connection = DriverManager
-                    .getConnection("jdbc:postgresql://localhost:5432/",
-                            DB_USER, DB_PW);
+            connection = connectToDatabase();
             statement = connection.createStatement();
-            statement.executeUpdate("DROP DATABASE IF EXISTS moviedb");
-        } catch (Exception e) {
-            e.printStackTrace();
-            System.out.println(e.getClass().getName()+": "+e.getMessage());
+            statement.executeUpdate("TRUNCATE TABLE movie_table, director_table");
+            catalogueVersion.increment();
+        } catch (SQLException sqle) {
+            countError(sqle);
         }  finally {
             try {
                 if (statement != null) {
@@ -96,8 +242,7 @@ public class DatabaseService {
                     connection.close();
                 }
             } catch (Exception e) {
-                e.printStackTrace();
-                System.out.println(e.getClass().getName()+": "+e.getMessage());
+                countError(e);
             }
         }
     }
@@ -106,17 +251,18 @@ public class DatabaseService {
      * Returns all movies in the database in a Map
      * @return A HashMap with all the movies in the database, keyed by their title
      */
+    @Override
     public Map<String, Movie> getAllMovies() {
-        Connection connection = connectToDatabase();
+        Connection connection = null;
         PreparedStatement statement = null;
         ResultSet resultSet = null;
         try {
-            statement = connection.prepareStatement("SELECT * FROM movie_table;");
+            connection = connectToReplica();
+            statement = connection.prepareStatement("SELECT * FROM movie_view;");
             resultSet = statement.executeQuery();
             return getMovieMapFromResultSet(resultSet);
         } catch (SQLException sqle) {
-            sqle.printStackTrace();
-            System.out.println(sqle.getClass().getName()+": "+sqle.getMessage());
+            countError(sqle);
             return null;
         } finally {
             try {
@@ -126,40 +272,165 @@ public class DatabaseService {
                 if (statement != null) {
                     statement.close();
                 }
-                connection.close();
+                if (connection != null) {
+                    connection.close();
+                }
+
+            } catch (Exception e) {
+                countError(e);
+            }
+        }
+    }
 
+    /**
+     * Reads every movie in the database in title order and passes each one to the visitor as it is read.
+     * The query runs with auto-commit off and a bounded fetch size, so PostgreSQL uses a server side cursor
+     * and only one batch of rows is held in memory at a time, however many movies there are.
+     * @param visitor MovieVisitor to be called for each movie
+     * @throws IOException if the visitor fails, or the movies cannot be read from the database. As the visitor
+     * may already have been called for some movies, a database failure cannot be reported any other way.
+     */
+    @Override
+    public void streamAllMovies(MovieVisitor visitor) throws IOException {
+        Connection connection = null;
+        PreparedStatement statement = null;
+        ResultSet resultSet = null;
+        try {
+            connection = connectToReplica();
+            connection.setAutoCommit(false);
+            statement = connection.prepareStatement("SELECT * FROM movie_view ORDER BY TITLE COLLATE \"C\";");
+            statement.setFetchSize(streamFetchSize);
+            resultSet = statement.executeQuery();
+            while (resultSet.next()) {
+                Movie movie = new Movie(resultSet.getString("DIRECTOR"), resultSet.getFloat("RATING"));
+                visitor.visit(resultSet.getString("TITLE"), movie);
+            }
+            connection.commit();
+        } catch (SQLException sqle) {
+            countError(sqle);
+            throw new IOException("Movies could not be read from the database", sqle);
+        } finally {
+            try {
+                if (resultSet != null) {
+                    resultSet.close();
+                }
+                if (statement != null) {
+                    statement.close();
+                }
+                if (connection != null) {
+                    connection.close();
+                }
             } catch (Exception e) {
-                e.printStackTrace();
-                System.out.println(e.getClass().getName()+": "+e.getMessage());
+                countError(e);
             }
         }
     }
 
     /**
-     * Adds the given movie to the database
+     * Adds the given movie to the database, and sets the director of the MovieIO to the name stored for it
      * @param movieIO MovieIO containing the mandatory title primary key and optional director and rating values
+     * @return The number of rows inserted, or 0 if the movie could not be added
      */
-    public void addMovie(MovieIO movieIO){
-        Connection connection = connectToDatabase();
+    @Override
+    public int addMovie(MovieIO movieIO){
+        Connection connection = null;
         PreparedStatement statement = null;
+        ResultSet resultSet = null;
         try {
-            statement = connection.prepareStatement("INSERT INTO movie_table (TITLE,DIRECTOR,RATING) VALUES (?,?,?);");
+            connection = connectToDatabase();
+            statement = connection.prepareStatement("INSERT INTO movie_table (TITLE,DIRECTOR_ID,RATING) VALUES (?,director_id(?),?) "
+                    + "RETURNING " + STORED_DIRECTOR_NAME + " AS DIRECTOR;");
             statement.setString(1, movieIO.getTitle());
             statement.setString(2, movieIO.getDirector());
             statement.setFloat(3, movieIO.getRating());
-            statement.executeUpdate();
+            statement.setString(4, movieIO.getDirector());
+            resultSet = statement.executeQuery();
+            if (!resultSet.next()) {
+                return 0;
+            }
+            movieIO.setDirector(resultSet.getString("DIRECTOR"));
+            return 1;
         } catch (SQLException sqle) {
-            sqle.printStackTrace();
-            System.out.println(sqle.getClass().getName()+": "+sqle.getMessage());
+            countError(sqle);
+            return 0;
+        } finally {
+            try {
+                if (resultSet != null) {
+                    resultSet.close();
+                }
+                if (statement != null) {
+                    statement.close();
+                }
+                if (connection != null) {
+                    connection.close();
+                }
+            } catch (Exception e) {
+                countError(e);
+            }
+        }
+    }
+
+    /**
+     * Adds all of the given movies to the database in a single transaction, sending the inserts as JDBC
+     * batches. Movies whose title is already in the database are skipped rather than failing the batch. The
+     * director of each MovieIO added is set to the name stored for it.
+     * @param movies MovieIOs containing the mandatory title primary key and director and rating values
+     * @return An array with one entry per movie, in order, holding 1 if the movie was added or 0 if its title
+     * was already present. Returns null if the batch could not be written, in which case no movies were added.
+     */
+    @Override
+    public int[] addMovies(List<MovieIO> movies){
+        Connection connection = null;
+        PreparedStatement statement = null;
+        try {
+            connection = connectToDatabase();
+            connection.setAutoCommit(false);
+            //The rows each batch returns are read as generated keys, one for each movie added, in order
+            statement = connection.prepareStatement("INSERT INTO movie_table (TITLE,DIRECTOR_ID,RATING) VALUES (?,director_id(?),?) "
+                    + "ON CONFLICT (TITLE) DO NOTHING RETURNING " + STORED_DIRECTOR_NAME + " AS DIRECTOR;", Statement.RETURN_GENERATED_KEYS);
+            int[] rowsAdded = new int[movies.size()];
+            int batchStart = 0;
+            for (int i = 0; i < movies.size(); i++) {
+                statement.setString(1, movies.get(i).getTitle());
+                statement.setString(2, movies.get(i).getDirector());
+                statement.setFloat(3, movies.get(i).getRating());
+                statement.setString(4, movies.get(i).getDirector());
+                statement.addBatch();
+                if (i + 1 - batchStart == STATEMENT_BATCH_SIZE || i == movies.size() - 1) {
+                    int[] batchRows = statement.executeBatch();
+                    System.arraycopy(batchRows, 0, rowsAdded, batchStart, batchRows.length);
+                    try (ResultSet directors = statement.getGeneratedKeys()) {
+                        for (int j = batchStart; j <= i; j++) {
+                            if (rowsAdded[j] > 0 && directors.next()) {
+                                movies.get(j).setDirector(directors.getString("DIRECTOR"));
+                            }
+                        }
+                    }
+                    batchStart = i + 1;
+                }
+            }
+            connection.commit();
+            return rowsAdded;
+        } catch (SQLException sqle) {
+            countError(sqle);
+            try {
+                if (connection != null) {
+                    connection.rollback();
+                }
+            } catch (SQLException rollbackException) {
+                countError(rollbackException);
+            }
+            return null;
         } finally {
             try {
                 if (statement != null) {
                     statement.close();
                 }
-                connection.close();
+                if (connection != null) {
+                    connection.close();
+                }
             } catch (Exception e) {
-                e.printStackTrace();
-                System.out.println(e.getClass().getName()+": "+e.getMessage());
+                countError(e);
             }
         }
     }
@@ -169,24 +440,23 @@ public class DatabaseService {
      * @param title Title to search the database for
      * @return Returns a Movie object for the provided title
      */
+    @Override
     public Movie getMovieByTitle(String title){
-        Connection connection = connectToDatabase();
+        Connection connection = null;
         PreparedStatement statement = null;
         ResultSet resultSet = null;
         try {
-            statement = connection.prepareStatement("SELECT * FROM movie_table WHERE TITLE = ?;");
+            connection = connectToReplica();
+            statement = connection.prepareStatement("SELECT * FROM movie_view WHERE TITLE = ?;");
             statement.setString(1, title);
             resultSet = statement.executeQuery();
             Movie movie = null;
             while (resultSet.next()) {
-                movie = new Movie();
-                movie.setDirector(Optional.ofNullable(resultSet.getString("DIRECTOR")));
-                movie.setRating(Optional.ofNullable(resultSet.getFloat("RATING")));
+                movie = new Movie(resultSet.getString("DIRECTOR"), resultSet.getFloat("RATING"));
             }
             return movie;
         } catch (SQLException sqle) {
-            sqle.printStackTrace();
-            System.out.println(sqle.getClass().getName()+": "+sqle.getMessage());
+            countError(sqle);
             return null;
         } finally {
             try {
@@ -196,10 +466,11 @@ public class DatabaseService {
                 if (statement != null) {
                     statement.close();
                 }
-                connection.close();
+                if (connection != null) {
+                    connection.close();
+                }
             } catch (Exception e) {
-                e.printStackTrace();
-                System.out.println(e.getClass().getName()+": "+e.getMessage());
+                countError(e);
             }
         }
     }
@@ -211,19 +482,20 @@ public class DatabaseService {
      * @param director Director name to be searched for. Can contain wildcard characters * or % e.g. Ben* or Ben% will return all movies for all directors starting with Ben
      * @return A HashMap containing all the movies by the given director, keyed by title
      */
+    @Override
     public Map<String, Movie> getMoviesByDirector(String director){
-        Connection connection = connectToDatabase();
+        Connection connection = null;
         PreparedStatement statement = null;
         ResultSet resultSet = null;
         try {
+            connection = connectToReplica();
             director = director.replaceAll("\\*","%");
-            statement = connection.prepareStatement("SELECT * FROM movie_table WHERE LOWER(DIRECTOR) LIKE LOWER(?);");
+            statement = connection.prepareStatement("SELECT * FROM movie_view WHERE LOWER(DIRECTOR) LIKE LOWER(?);");
             statement.setString(1, director);
             resultSet = statement.executeQuery();
             return getMovieMapFromResultSet(resultSet);
         } catch (SQLException sqle) {
-            sqle.printStackTrace();
-            System.out.println(sqle.getClass().getName()+": "+sqle.getMessage());
+            countError(sqle);
             return null;
         }  finally {
             try {
@@ -233,10 +505,11 @@ public class DatabaseService {
                 if (statement != null) {
                     statement.close();
                 }
-                connection.close();
+                if (connection != null) {
+                    connection.close();
+                }
             } catch (Exception e) {
-                e.printStackTrace();
-                System.out.println(e.getClass().getName()+": "+e.getMessage());
+                countError(e);
             }
         }
     }
@@ -247,18 +520,19 @@ public class DatabaseService {
      * @param rating Rating to be searched for all movies above this rating.
      * @return A HashMap containing all the movies above the given rating, keyed by title
      */
+    @Override
     public Map<String, Movie> getMoviesAboveRating(Float rating){
-        Connection connection = connectToDatabase();
+        Connection connection = null;
         PreparedStatement statement = null;
         ResultSet resultSet = null;
         try {
-            statement = connection.prepareStatement("SELECT * FROM movie_table WHERE RATING >= ?;");
+            connection = connectToReplica();
+            statement = connection.prepareStatement("SELECT * FROM movie_view WHERE RATING >= ?;");
             statement.setFloat(1, rating);
             resultSet = statement.executeQuery();
             return getMovieMapFromResultSet(resultSet);
         } catch (SQLException sqle) {
-            sqle.printStackTrace();
-            System.out.println(sqle.getClass().getName()+": "+sqle.getMessage());
+            countError(sqle);
             return null;
         } finally {
             try {
@@ -268,10 +542,11 @@ public class DatabaseService {
                 if (statement != null) {
                     statement.close();
                 }
-                connection.close();
+                if (connection != null) {
+                    connection.close();
+                }
             } catch (Exception e) {
-                e.printStackTrace();
-                System.out.println(e.getClass().getName()+": "+e.getMessage());
+                countError(e);
             }
         }
     }
@@ -285,20 +560,84 @@ public class DatabaseService {
      * @param director Director name to be searched for. Can contain wildcard characters * or % e.g. Ben* or Ben% will return all movies for all directors starting with Ben
      * @return A HashMap containing all the movies in the database by the given director and above the given rating, keyed by title.
      */
+    @Override
     public Map<String, Movie> getMoviesByDirectorAboveRating(String director, Float rating){
-        Connection connection = connectToDatabase();
+        Connection connection = null;
         PreparedStatement statement = null;
         ResultSet resultSet = null;
         try {
+            connection = connectToReplica();
             director = director.replaceAll("\\*","%");
-            statement = connection.prepareStatement("SELECT * FROM movie_table WHERE LOWER(DIRECTOR) LIKE LOWER(?) AND RATING >= ?;");
+            statement = connection.prepareStatement("SELECT * FROM movie_view WHERE LOWER(DIRECTOR) LIKE LOWER(?) AND RATING >= ?;");
             statement.setString(1, director);
             statement.setFloat(2, rating);
             resultSet = statement.executeQuery();
             return getMovieMapFromResultSet(resultSet);
         } catch (SQLException sqle) {
-            sqle.printStackTrace();
-            System.out.println(sqle.getClass().getName()+": "+sqle.getMessage());
+            countError(sqle);
+            return null;
+        } finally {
+            try {
+                if (resultSet != null) {
+                    resultSet.close();
+                }
+                if (statement != null) {
+                    statement.close();
+                }
+                if (connection != null) {
+                    connection.close();
+                }
+            } catch (Exception e) {
+                countError(e);
+            }
+        }
+    }
+
+    /**
+     * Gets one page of movies from the database in title order, using the title primary key as the keyset
+     * so that later pages cost the same as the first. Titles are ordered by their code points (the "C"
+     * collation) so that the order matches Java's String ordering. The director and rating filters are
+     * applied as in getMoviesByDirector and getMoviesAboveRating, and are not applied if null.
+     * @param director Optional director name to be searched for. Can contain wildcard characters * or %
+     * @param rating Optional rating to be searched for all movies above this rating
+     * @param afterTitle Optional title of the last movie on the previous page. The page starts after this title.
+     * @param limit Maximum number of movies to return
+     * @return A LinkedHashMap containing the page of movies in title order, keyed by title
+     */
+    @Override
+    public Map<String, Movie> getMoviesPage(String director, Float rating, String afterTitle, int limit){
+        Connection connection = null;
+        PreparedStatement statement = null;
+        ResultSet resultSet = null;
+        try {
+            connection = connectToReplica();
+            StringBuilder query = new StringBuilder("SELECT * FROM movie_view WHERE TRUE");
+            if (afterTitle != null) {
+                query.append(" AND TITLE COLLATE \"C\" > ?");
+            }
+            if (director != null) {
+                query.append(" AND LOWER(DIRECTOR) LIKE LOWER(?)");
+            }
+            if (rating != null) {
+                query.append(" AND RATING >= ?");
+            }
+            query.append(" ORDER BY TITLE COLLATE \"C\" LIMIT ?;");
+            statement = connection.prepareStatement(query.toString());
+            int parameterIndex = 1;
+            if (afterTitle != null) {
+                statement.setString(parameterIndex++, afterTitle);
+            }
+            if (director != null) {
+                statement.setString(parameterIndex++, director.replaceAll("\\*","%"));
+            }
+            if (rating != null) {
+                statement.setFloat(parameterIndex++, rating);
+            }
+            statement.setInt(parameterIndex, limit);
+            resultSet = statement.executeQuery();
+            return getMovieMapFromResultSet(resultSet);
+        } catch (SQLException sqle) {
+            countError(sqle);
             return null;
         } finally {
             try {
@@ -308,68 +647,258 @@ public class DatabaseService {
                 if (statement != null) {
                     statement.close();
                 }
-                connection.close();
+                if (connection != null) {
+                    connection.close();
+                }
             } catch (Exception e) {
-                e.printStackTrace();
-                System.out.println(e.getClass().getName()+": "+e.getMessage());
+                countError(e);
             }
         }
     }
 
     /**
-     * Updates the title of the movie in the database.
-     * @param currentTitle current title of movie to be updated
-     * @param newTitle new title to be set
+     * Gets the directors with the most movies whose name starts with the prefix. The prefix is matched with
+     * LIKE against the case folded name in director_table so that its unique key can be used, with any wildcard
+     * characters in it escaped.
+     * @param prefix Start of the director's name, not case sensitive
+     * @param limit Maximum number of directors to return
+     * @return A List of the directors in order of most movies first, or null if they could not be read
      */
-    public void updateTitle(String currentTitle, String newTitle){
-        Connection connection = connectToDatabase();
+    @Override
+    public List<DirectorSuggestion> suggestDirectors(String prefix, int limit){
+        Connection connection = null;
         PreparedStatement statement = null;
+        ResultSet resultSet = null;
         try {
-            statement = connection.prepareStatement("UPDATE movie_table SET TITLE = ? WHERE lower(TITLE) = lower(?)");
-            statement.setString(1, newTitle);
-            statement.setString(2, currentTitle);
-            statement.executeUpdate();
+            connection = connectToReplica();
+            statement = connection.prepareStatement("SELECT director_table.NAME, COUNT(*) FROM director_table " +
+                    "JOIN movie_table ON movie_table.DIRECTOR_ID = director_table.DIRECTOR_ID " +
+                    "WHERE LOWER(director_table.NAME) LIKE LOWER(?) GROUP BY director_table.DIRECTOR_ID " +
+                    "ORDER BY COUNT(*) DESC, director_table.NAME LIMIT ?;");
+            statement.setString(1, prefix.replaceAll("([\\\\%_])", "\\\\$1") + "%");
+            statement.setInt(2, limit);
+            resultSet = statement.executeQuery();
+            List<DirectorSuggestion> suggestions = new ArrayList<>();
+            while (resultSet.next()) {
+                suggestions.add(new DirectorSuggestion(resultSet.getString(1), resultSet.getInt(2)));
+            }
+            return suggestions;
         } catch (SQLException sqle) {
-            sqle.printStackTrace();
-            System.out.println(sqle.getClass().getName()+": "+sqle.getMessage());
+            countError(sqle);
+            return null;
         }  finally {
             try {
+                if (resultSet != null) {
+                    resultSet.close();
+                }
+                if (statement != null) {
+                    statement.close();
+                }
+                if (connection != null) {
+                    connection.close();
+                }
+            } catch (Exception e) {
+                countError(e);
+            }
+        }
+    }
+
+    /**
+     * Edits the movie in the database for the given title in a single UPDATE, setting only the fields
+     * that are given and leaving the others unchanged, and returns the movie as it is after the update. The row
+     * is not updated if every field given already holds the value given, with directors matched case insensitively.
+     * @param title Current title of movie to be edited
+     * @param newTitle New title to be set, or null to keep the current title
+     * @param director Director name to be set, or null to keep the current director
+     * @param rating Rating to be set, or null to keep the current rating
+     * @return Map containing the edited movie keyed by its title after the update, or an empty map if there is
+     * no movie with the given title or it already has the values given. Returns null if the movie could not be updated.
+     */
+    @Override
+    public Map<String, Movie> editMovie(String title, String newTitle, String director, Float rating){
+        Connection connection = null;
+        PreparedStatement statement = null;
+        ResultSet resultSet = null;
+        try {
+            connection = connectToDatabase();
+            List<String> setClauses = new ArrayList<>();
+            //The row is only updated if one of the fields given differs from the one stored
+            List<String> changedClauses = new ArrayList<>();
+            if (newTitle != null) {
+                setClauses.add("TITLE = ?");
+                changedClauses.add("TITLE IS DISTINCT FROM ?");
+            }
+            if (director != null) {
+                setClauses.add("DIRECTOR_ID = director_id(?)");
+                changedClauses.add("NOT EXISTS (SELECT 1 FROM director_table WHERE director_table.DIRECTOR_ID = movie_table.DIRECTOR_ID"
+                        + " AND lower(director_table.NAME) = lower(?))");
+            }
+            if (rating != null) {
+                setClauses.add("RATING = ?");
+                //Ratings are read and written as floats, so are compared at that precision
+                changedClauses.add("CAST(RATING AS real) IS DISTINCT FROM ?");
+            }
+            if (setClauses.isEmpty()) {
+                statement = connection.prepareStatement("SELECT TITLE, DIRECTOR, RATING FROM movie_view WHERE TITLE = ?;");
+            } else {
+                String directorName = director != null ? STORED_DIRECTOR_NAME : DIRECTOR_NAME;
+                statement = connection.prepareStatement("UPDATE movie_table SET " + String.join(", ", setClauses)
+                        + " WHERE TITLE = ? AND (" + String.join(" OR ", changedClauses) + ") RETURNING TITLE, "
+                        + directorName + " AS DIRECTOR, RATING;");
+            }
+            int index = setEditedFields(statement, 1, newTitle, director, rating);
+            statement.setString(index++, title);
+            index = setEditedFields(statement, index, newTitle, director, rating);
+            if (director != null) {
+                statement.setString(index, director);
+            }
+            resultSet = statement.executeQuery();
+            return getMovieMapFromResultSet(resultSet);
+        } catch (SQLException sqle) {
+            countError(sqle);
+            return null;
+        } finally {
+            try {
+                if (resultSet != null) {
+                    resultSet.close();
+                }
                 if (statement != null) {
                     statement.close();
                 }
-                connection.close();
+                if (connection != null) {
+                    connection.close();
+                }
             } catch (Exception e) {
-                e.printStackTrace();
-                System.out.println(e.getClass().getName()+": "+e.getMessage());
+                countError(e);
             }
         }
     }
 
+    /**
+     * Sets the parameters for the fields of an edit that are given, in the order they appear in the statement
+     * @param index Index of the first parameter to set
+     * @return The index of the parameter after the ones set
+     */
+    private int setEditedFields(PreparedStatement statement, int index, String newTitle, String director, Float rating) throws SQLException {
+        if (newTitle != null) {
+            statement.setString(index++, newTitle);
+        }
+        if (director != null) {
+            statement.setString(index++, director);
+        }
+        if (rating != null) {
+            statement.setFloat(index++, rating);
+        }
+        return index;
+    }
+
     /**
      * Updates the director of the movie in the database for the given title.
      * @param title title of movie to be updated
      * @param director Director name to be set
+     * @return The number of rows updated
      */
-    public void updateDirector(String title, String director){
-        Connection connection = connectToDatabase();
+    @Override
+    public int updateDirector(String title, String director){
+        Connection connection = null;
         PreparedStatement statement = null;
         try {
-            statement = connection.prepareStatement("UPDATE movie_table SET DIRECTOR = ? WHERE lower(TITLE) = lower(?)");
+            connection = connectToDatabase();
+            statement = connection.prepareStatement("UPDATE movie_table SET DIRECTOR_ID = director_id(?) WHERE lower(TITLE) = lower(?)");
             statement.setString(1, director);
             statement.setString(2, title);
-            statement.executeUpdate();
+            return statement.executeUpdate();
         } catch (SQLException sqle) {
-            sqle.printStackTrace();
-            System.out.println(sqle.getClass().getName()+": "+sqle.getMessage());
+            countError(sqle);
+            return 0;
         } finally {
             try {
                 if (statement != null) {
                     statement.close();
                 }
-                connection.close();
+                if (connection != null) {
+                    connection.close();
+                }
+            } catch (Exception e) {
+                countError(e);
+            }
+        }
+    }
+
+    /**
+     * Sets the director of all the movies with the given titles in a single transaction. The titles are first
+     * checked and locked with one query, and the director is only set if every title is present in the database.
+     * @param titles titles of movies to be updated
+     * @param director Director name to be set
+     * @return The movies as they are after the update, keyed by title, with the name stored for the director. If
+     * any titles are not in the database no movies are updated, and the map holds each missing title mapped to
+     * null. Returns null if the update could not be made.
+     */
+    @Override
+    public Map<String, Movie> updateDirectorForMovies(List<String> titles, String director){
+        Connection connection = null;
+        PreparedStatement selectStatement = null;
+        PreparedStatement updateStatement = null;
+        ResultSet resultSet = null;
+        try {
+            connection = connectToDatabase();
+            connection.setAutoCommit(false);
+            Array titleArray = connection.createArrayOf("text", titles.toArray());
+
+            selectStatement = connection.prepareStatement("SELECT TITLE FROM movie_table WHERE TITLE = ANY(?) FOR UPDATE;");
+            selectStatement.setArray(1, titleArray);
+            resultSet = selectStatement.executeQuery();
+            Set<String> foundTitles = new HashSet<>();
+            while (resultSet.next()) {
+                foundTitles.add(resultSet.getString("TITLE"));
+            }
+            List<String> missingTitles = titles.stream()
+                    .filter(title -> !foundTitles.contains(title))
+                    .distinct()
+                    .collect(Collectors.toList());
+            if (!missingTitles.isEmpty()) {
+                connection.rollback();
+                Map<String, Movie> missingMovies = new LinkedHashMap<>();
+                missingTitles.forEach(title -> missingMovies.put(title, null));
+                return missingMovies;
+            }
+
+            resultSet.close();
+            updateStatement = connection.prepareStatement("UPDATE movie_table SET DIRECTOR_ID = (SELECT director_id(?)) WHERE TITLE = ANY(?) "
+                    + "RETURNING TITLE, " + STORED_DIRECTOR_NAME + " AS DIRECTOR, RATING;");
+            updateStatement.setString(1, director);
+            updateStatement.setArray(2, titleArray);
+            updateStatement.setString(3, director);
+            resultSet = updateStatement.executeQuery();
+            Map<String, Movie> updatedMovies = getMovieMapFromResultSet(resultSet);
+            connection.commit();
+            return updatedMovies;
+        } catch (SQLException sqle) {
+            countError(sqle);
+            try {
+                if (connection != null) {
+                    connection.rollback();
+                }
+            } catch (SQLException rollbackException) {
+                countError(rollbackException);
+            }
+            return null;
+        } finally {
+            try {
+                if (resultSet != null) {
+                    resultSet.close();
+                }
+                if (selectStatement != null) {
+                    selectStatement.close();
+                }
+                if (updateStatement != null) {
+                    updateStatement.close();
+                }
+                if (connection != null) {
+                    connection.close();
+                }
             } catch (Exception e) {
-                e.printStackTrace();
-                System.out.println(e.getClass().getName()+": "+e.getMessage());
+                countError(e);
             }
         }
     }
@@ -378,27 +907,92 @@ public class DatabaseService {
      * Updates the rating of the movie in the database for the given title.
      * @param title title of movie to be updated
      * @param rating rating to be set
+     * @return The number of rows updated
      */
-    public void updateRating(String title, Float rating){
-        Connection connection = connectToDatabase();
+    @Override
+    public int updateRating(String title, Float rating){
+        Connection connection = null;
         PreparedStatement statement = null;
         try {
+            connection = connectToDatabase();
             statement = connection.prepareStatement("UPDATE movie_table SET RATING = ? WHERE lower(TITLE) = lower(?)");
             statement.setFloat(1, rating);
             statement.setString(2, title);
-            statement.executeUpdate();
+            return statement.executeUpdate();
         } catch (SQLException sqle) {
-            sqle.printStackTrace();
-            System.out.println(sqle.getClass().getName()+": "+sqle.getMessage());
+            countError(sqle);
+            return 0;
         }  finally {
             try {
                 if (statement != null) {
                     statement.close();
                 }
-                connection.close();
+                if (connection != null) {
+                    connection.close();
+                }
+            } catch (Exception e) {
+                countError(e);
+            }
+        }
+    }
+
+    /**
+     * Makes the director and rating changes of each edit in a single transaction, sending the updates as JDBC
+     * batches of one statement that leaves unset fields unchanged. Titles are case sensitive.
+     * @param edits Edits to be made, at most one for each title
+     * @return An array with one entry per edit, in order, holding 1 if the movie was updated or 0 if its title
+     * is not in the database. Returns null if the edits could not be written, in which case none were made.
+     */
+    @Override
+    public int[] updateMovies(List<PendingEdit> edits){
+        Connection connection = null;
+        PreparedStatement statement = null;
+        try {
+            connection = connectToDatabase();
+            connection.setAutoCommit(false);
+            statement = connection.prepareStatement("UPDATE movie_table SET " +
+                    "DIRECTOR_ID = CASE WHEN ? THEN director_id(?) ELSE DIRECTOR_ID END, RATING = COALESCE(?, RATING) WHERE TITLE = ?;");
+            int[] rowsUpdated = new int[edits.size()];
+            int batchStart = 0;
+            for (int i = 0; i < edits.size(); i++) {
+                PendingEdit edit = edits.get(i);
+                statement.setBoolean(1, edit.isDirectorSet());
+                statement.setString(2, edit.getDirector());
+                if (edit.getRating() == null) {
+                    statement.setNull(3, Types.REAL);
+                } else {
+                    statement.setFloat(3, edit.getRating());
+                }
+                statement.setString(4, edit.getTitle());
+                statement.addBatch();
+                if (i + 1 - batchStart == STATEMENT_BATCH_SIZE || i == edits.size() - 1) {
+                    int[] batchRows = statement.executeBatch();
+                    System.arraycopy(batchRows, 0, rowsUpdated, batchStart, batchRows.length);
+                    batchStart = i + 1;
+                }
+            }
+            connection.commit();
+            return rowsUpdated;
+        } catch (SQLException sqle) {
+            countError(sqle);
+            try {
+                if (connection != null) {
+                    connection.rollback();
+                }
+            } catch (SQLException rollbackException) {
+                countError(rollbackException);
+            }
+            return null;
+        } finally {
+            try {
+                if (statement != null) {
+                    statement.close();
+                }
+                if (connection != null) {
+                    connection.close();
+                }
             } catch (Exception e) {
-                e.printStackTrace();
-                System.out.println(e.getClass().getName()+": "+e.getMessage());
+                countError(e);
             }
         }
     }
@@ -406,64 +1000,128 @@ public class DatabaseService {
     /**
      * Deletes the movie from the database for the given title. Title is case insensitive.
      * @param title title of movie to be deleted
+     * @return The number of rows deleted
      */
-    public void deleteMovie(String title){
-        Connection connection = connectToDatabase();
+    @Override
+    public int deleteMovie(String title){
+        Connection connection = null;
         PreparedStatement statement = null;
         try {
+            connection = connectToDatabase();
             statement = connection.prepareStatement("DELETE FROM movie_table WHERE LOWER(TITLE) = LOWER(?)");
             statement.setString(1, title);
-            statement.executeUpdate();
+            return statement.executeUpdate();
         } catch (SQLException sqle) {
-            sqle.printStackTrace();
-            System.out.println(sqle.getClass().getName()+": "+sqle.getMessage());
+            countError(sqle);
+            return 0;
         }  finally {
             try {
                 if (statement != null) {
                     statement.close();
                 }
-                connection.close();
+                if (connection != null) {
+                    connection.close();
+                }
             } catch (Exception e) {
-                e.printStackTrace();
-                System.out.println(e.getClass().getName()+": "+e.getMessage());
+                countError(e);
             }
         }
     }
 
     /**
-     * Sets the director column to null for all movies with the given director. Case insensitive.
-     * @param director director to be deleted from all movies they are currently set in
+     * Deletes the movies with exactly the given titles, unlike deleteMovie which also deletes titles differing in
+     * case. Used to remove movies from a shard once they have been copied to another.
+     * @param titles Case sensitive titles of the movies to be deleted
+     * @return The number of rows deleted, or -1 if they could not be deleted
      */
-    public void deleteDirector(String director){
-        Connection connection = connectToDatabase();
+    int deleteMovies(Collection<String> titles){
+        Connection connection = null;
         PreparedStatement statement = null;
         try {
-            statement = connection.prepareStatement("UPDATE movie_table SET DIRECTOR = ? WHERE lower(DIRECTOR) = lower(?)");
-            statement.setString(1, null);
-            statement.setString(2, director);
-            statement.executeUpdate();
+            connection = connectToDatabase();
+            statement = connection.prepareStatement("DELETE FROM movie_table WHERE TITLE = ANY(?)");
+            statement.setArray(1, connection.createArrayOf("text", titles.toArray()));
+            return statement.executeUpdate();
         } catch (SQLException sqle) {
-            sqle.printStackTrace();
-            System.out.println(sqle.getClass().getName()+": "+sqle.getMessage());
-        } finally {
+            countError(sqle);
+            return -1;
+        }  finally {
             try {
                 if (statement != null) {
                     statement.close();
                 }
-                connection.close();
+                if (connection != null) {
+                    connection.close();
+                }
             } catch (Exception e) {
-                e.printStackTrace();
-                System.out.println(e.getClass().getName()+": "+e.getMessage());
+                countError(e);
             }
         }
     }
 
+    /**
+     * Sets the director to null for all movies with the given director, and removes the director. Case insensitive.
+     * The director is found by its case folded name and its movies by its id, so both are index lookups.
+     * @param director director to be deleted from all movies they are currently set in
+     * @return The number of rows updated
+     */
+    @Override
+    public int deleteDirector(String director){
+        Connection connection = null;
+        PreparedStatement updateStatement = null;
+        PreparedStatement deleteStatement = null;
+        try {
+            connection = connectToDatabase();
+            connection.setAutoCommit(false);
+            updateStatement = connection.prepareStatement("UPDATE movie_table SET DIRECTOR_ID = NULL WHERE DIRECTOR_ID = " +
+                    "(SELECT DIRECTOR_ID FROM director_table WHERE lower(NAME) = lower(?))");
+            updateStatement.setString(1, director);
+            int rowsUpdated = updateStatement.executeUpdate();
+            deleteStatement = connection.prepareStatement("DELETE FROM director_table WHERE lower(NAME) = lower(?)");
+            deleteStatement.setString(1, director);
+            deleteStatement.executeUpdate();
+            connection.commit();
+            return rowsUpdated;
+        } catch (SQLException sqle) {
+            countError(sqle);
+            try {
+                if (connection != null) {
+                    connection.rollback();
+                }
+            } catch (SQLException rollbackException) {
+                countError(rollbackException);
+            }
+            return 0;
+        } finally {
+            try {
+                if (updateStatement != null) {
+                    updateStatement.close();
+                }
+                if (deleteStatement != null) {
+                    deleteStatement.close();
+                }
+                if (connection != null) {
+                    connection.close();
+                }
+            } catch (Exception e) {
+                countError(e);
+            }
+        }
+    }
+
+    /**
+     * Counts a failed database call, rollback or close under catalogue.repository.errors, tagged with the type of
+     * exception
+     */
+    private void countError(Exception e) {
+        meterRegistry.counter(InstrumentedMovieRepository.ERRORS, "exception", e.getClass().getSimpleName()).increment();
+    }
+
     Map<String, Movie> getMovieMapFromResultSet(ResultSet resultSet) throws SQLException {
-        Map<String, Movie> movieMap = new HashMap<>();
+        //Linked so that the order of ordered queries is kept
+        Map<String, Movie> movieMap = new LinkedHashMap<>();
         while (resultSet.next()) {
-            Movie movie = new Movie();
-            movie.setDirector(Optional.ofNullable(resultSet.getString("DIRECTOR")));
-            movie.setRating(Optional.ofNullable(resultSet.getFloat("RATING")));
+            Movie movie = new Movie(resultSet.getString("DIRECTOR"), resultSet.getFloat("RATING"));
             movieMap.put(resultSet.getString("TITLE"), movie);
         }
         return movieMap;
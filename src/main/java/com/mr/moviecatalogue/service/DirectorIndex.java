@@ -0,0 +1,183 @@
+package com.mr.moviecatalogue.service;
+
+import com.mr.moviecatalogue.domain.DirectorSuggestion;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.BiConsumer;
+import java.util.regex.Pattern;
+
+/**
+ * Index of movies by director, with the directors case folded and sorted so that the director searches can be
+ * answered without scanning every movie. An exact name is a single lookup and a prefix such as Ben* or Ben% is
+ * a range of the sorted directors. Any other wildcard pattern is matched against each distinct director rather
+ * than each movie. The sorted directors also give the autocomplete suggestions for a prefix.
+ *
+ * Reads do not lock. Updates must be made by one thread at a time, which the owners of the index ensure by
+ * holding their write lock, and every change to a movie must be put so that the movies held here stay the
+ * same as the ones in the catalogue.
+ * @param <V> Type of the movies held in the index
+ */
+class DirectorIndex<V> {
+
+    private final ConcurrentNavigableMap<String, Director<V>> directors = new ConcurrentSkipListMap<>();
+
+    /**
+     * Indexes a movie under its director, replacing the movie held for the title. The director keeps the spelling
+     * of its name it was first indexed with until it has no movies, as the database keeps the first spelling.
+     * @param title Title of the movie
+     * @param director Director of the movie, or null if it has none, in which case nothing is indexed
+     * @param value The movie
+     */
+    void put(String title, String director, V value) {
+        if (director == null) {
+            return;
+        }
+        directors.computeIfAbsent(fold(director), key -> new Director<>(director)).movies.put(title, value);
+    }
+
+    /**
+     * Returns the spelling of a director's name held in the index
+     * @param director Director's name, not case sensitive and with no wildcards
+     * @return The name as it is spelt in the index, or null if the director has no movies
+     */
+    String name(String director) {
+        Director<V> entry = directors.get(fold(director));
+        return entry == null ? null : entry.name;
+    }
+
+    /**
+     * Removes a movie from the index
+     * @param title Title of the movie
+     * @param director Director the movie was indexed under, or null if it had none
+     */
+    void remove(String title, String director) {
+        if (director == null) {
+            return;
+        }
+        String key = fold(director);
+        Director<V> entry = directors.get(key);
+        if (entry != null) {
+            entry.movies.remove(title);
+            if (entry.movies.isEmpty()) {
+                directors.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Gets the movies by a director
+     * @param director Director's name, not case sensitive and with no wildcards
+     * @return A copy of the movies by the director keyed by title, which can be used while updating the index
+     */
+    Map<String, V> moviesBy(String director) {
+        Director<V> entry = directors.get(fold(director));
+        return entry == null ? new HashMap<>() : new HashMap<>(entry.movies);
+    }
+
+    /**
+     * Removes every movie from the index
+     */
+    void clear() {
+        directors.clear();
+    }
+
+    /**
+     * Passes every movie whose director matches the pattern to the consumer, matching in the same way as
+     * LOWER(DIRECTOR) LIKE LOWER(pattern)
+     * @param like LIKE pattern for the director, in which % matches any sequence of characters, _ matches any
+     * single character and \ escapes the following character
+     * @param consumer Called with the title and movie of each match
+     */
+    void forEachMatching(String like, BiConsumer<String, V> consumer) {
+        String folded = fold(like);
+        int firstWildcard = firstWildcard(folded);
+        if (firstWildcard < 0) {
+            Director<V> entry = directors.get(folded);
+            if (entry != null) {
+                entry.movies.forEach(consumer);
+            }
+        } else if (isPrefixPattern(folded, firstWildcard)) {
+            prefixRange(folded.substring(0, firstWildcard)).values().forEach(entry -> entry.movies.forEach(consumer));
+        } else {
+            Pattern pattern = CatalogueSnapshot.likePattern(folded);
+            directors.forEach((key, entry) -> {
+                if (pattern.matcher(key).matches()) {
+                    entry.movies.forEach(consumer);
+                }
+            });
+        }
+    }
+
+    /**
+     * Gets the directors with the most movies among those whose name starts with the prefix. Not case sensitive.
+     * @param prefix Start of the director's name, taken literally
+     * @param limit Maximum number of directors to return
+     * @return The directors in order of most movies first, then by name
+     */
+    List<DirectorSuggestion> suggest(String prefix, int limit) {
+        Comparator<DirectorSuggestion> mostMovies = Comparator.comparingInt(DirectorSuggestion::getMovies).reversed()
+                .thenComparing(DirectorSuggestion::getDirector);
+        //Holds the best suggestions seen so far, with the worst of them at the head
+        PriorityQueue<DirectorSuggestion> best = new PriorityQueue<>(limit + 1, mostMovies.reversed());
+        for (Director<V> entry : prefixRange(fold(prefix)).values()) {
+            int movies = entry.movies.size();
+            if (movies == 0) {
+                continue;
+            }
+            best.add(new DirectorSuggestion(entry.name, movies));
+            if (best.size() > limit) {
+                best.poll();
+            }
+        }
+        List<DirectorSuggestion> suggestions = new ArrayList<>(best);
+        suggestions.sort(mostMovies);
+        return suggestions;
+    }
+
+    private Map<String, Director<V>> prefixRange(String prefix) {
+        return prefix.isEmpty() ? directors : directors.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+    }
+
+    private static int firstWildcard(String like) {
+        for (int i = 0; i < like.length(); i++) {
+            char c = like.charAt(i);
+            if (c == '%' || c == '_' || c == '\\') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    //True if everything from the first wildcard on is %, as in Ben%
+    private static boolean isPrefixPattern(String like, int firstWildcard) {
+        for (int i = firstWildcard; i < like.length(); i++) {
+            if (like.charAt(i) != '%') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String fold(String director) {
+        return director.toLowerCase(Locale.ROOT);
+    }
+
+    private static class Director<V> {
+        //Spelling of the director's name from the first movie indexed under it
+        private final String name;
+        private final Map<String, V> movies = new ConcurrentHashMap<>();
+
+        private Director(String name) {
+            this.name = name;
+        }
+    }
+}
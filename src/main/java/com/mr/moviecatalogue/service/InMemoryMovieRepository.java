@@ -0,0 +1,364 @@
+package com.mr.moviecatalogue.service;
+
+import com.mr.moviecatalogue.domain.DirectorSuggestion;
+import com.mr.moviecatalogue.domain.Movie;
+import com.mr.moviecatalogue.inputobject.MovieIO;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+import java.util.regex.Pattern;
+
+/**
+ * Movie repository that holds the catalogue in memory, for running the application without a database.
+ * Selected by setting catalogue.repository=memory. The movies are lost when the application stops.
+ *
+ * Reads never lock: movies are held in a ConcurrentSkipListMap ordered by title, and the Movie objects in it
+ * are never modified, only replaced. Writes are serialised so that multi-movie writes are applied as a unit
+ * and the lower case title index stays in step with the movies. A reader running alongside a write that
+ * changes several movies may see some of the changes but not others, as with a read committed database.
+ */
+@Component
+@ConditionalOnProperty(name = "catalogue.repository", havingValue = "memory")
+public class InMemoryMovieRepository implements MovieRepository {
+
+    private static final float NULL_RATING = (float) -1.0;
+
+    private final ConcurrentNavigableMap<String, Movie> movies = new ConcurrentSkipListMap<>();
+
+    //Titles keyed by their lower case form, for the case insensitive updates and deletes
+    private final Map<String, Set<String>> titlesByLowerTitle = new ConcurrentHashMap<>();
+
+    //Movies by rating. Every write to a movie is also put here, so rating queries need no lookups.
+    private final RatingIndex<Movie> ratingIndex = new RatingIndex<>();
+
+    //Movies by case folded director, kept up to date in the same way as the rating index
+    private final DirectorIndex<Movie> directorIndex = new DirectorIndex<>();
+
+    //Name each director was first stored with, keyed by its lower case form. Kept until the director is deleted,
+    //as the database keeps directors without movies. Only used holding the write lock.
+    private final Map<String, String> directorNames = new HashMap<>();
+
+    private final Object writeLock = new Object();
+
+    @Override
+    public void dropDatabase() {
+        synchronized (writeLock) {
+            movies.clear();
+            titlesByLowerTitle.clear();
+            ratingIndex.clear();
+            directorIndex.clear();
+            directorNames.clear();
+        }
+    }
+
+    @Override
+    public Map<String, Movie> getAllMovies() {
+        return collect(movies, movie -> true, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public void streamAllMovies(MovieVisitor visitor) throws IOException {
+        for (Map.Entry<String, Movie> entry : movies.entrySet()) {
+            visitor.visit(entry.getKey(), copy(entry.getValue()));
+        }
+    }
+
+    @Override
+    public int addMovie(MovieIO movieIO) {
+        synchronized (writeLock) {
+            return put(movieIO);
+        }
+    }
+
+    @Override
+    public int[] addMovies(List<MovieIO> movieIOs) {
+        synchronized (writeLock) {
+            int[] rowsAdded = new int[movieIOs.size()];
+            for (int i = 0; i < movieIOs.size(); i++) {
+                rowsAdded[i] = put(movieIOs.get(i));
+            }
+            return rowsAdded;
+        }
+    }
+
+    @Override
+    public Movie getMovieByTitle(String title) {
+        Movie movie = movies.get(title);
+        return movie == null ? null : copy(movie);
+    }
+
+    @Override
+    public Map<String, Movie> getMoviesByDirector(String director) {
+        return collectDirected(director, movie -> true);
+    }
+
+    @Override
+    public Map<String, Movie> getMoviesAboveRating(Float rating) {
+        return collectRated(rating, movie -> true);
+    }
+
+    @Override
+    public Map<String, Movie> getMoviesByDirectorAboveRating(String director, Float rating) {
+        return collectDirected(director, ratingMatches(rating));
+    }
+
+    @Override
+    public Map<String, Movie> getMoviesPage(String director, Float rating, String afterTitle, int limit) {
+        Predicate<Movie> filter = movie -> true;
+        if (director != null) {
+            filter = filter.and(directorMatches(director));
+        }
+        if (rating != null) {
+            filter = filter.and(ratingMatches(rating));
+        }
+        return collect(afterTitle == null ? movies : movies.tailMap(afterTitle, false), filter, limit);
+    }
+
+    @Override
+    public Map<String, Movie> editMovie(String title, String newTitle, String director, Float rating) {
+        synchronized (writeLock) {
+            Map<String, Movie> editedMovie = new LinkedHashMap<>();
+            Movie movie = movies.get(title);
+            if (movie == null || ((newTitle == null || newTitle.equals(title))
+                    && (director == null || director.equalsIgnoreCase(movie.getDirectorName()))
+                    && (rating == null || rating == movie.getRatingValue()))) {
+                return editedMovie;
+            }
+            if (newTitle != null && !newTitle.equals(title) && movies.containsKey(newTitle)) {
+                return null;
+            }
+            Movie edited = new Movie(director != null ? director : movie.getDirectorName(),
+                    rating != null ? rating : movie.getRatingValue());
+            String editedTitle = newTitle != null ? newTitle : title;
+            if (!editedTitle.equals(title)) {
+                remove(title);
+            }
+            Movie stored = store(editedTitle, edited);
+            index(editedTitle);
+            editedMovie.put(editedTitle, copy(stored));
+            return editedMovie;
+        }
+    }
+
+    @Override
+    public int updateDirector(String title, String director) {
+        synchronized (writeLock) {
+            Set<String> titles = titlesByLowerTitle.getOrDefault(lower(title), Collections.emptySet());
+            titles.forEach(matchingTitle -> replace(matchingTitle, movie -> new Movie(director, movie.getRatingValue())));
+            return titles.size();
+        }
+    }
+
+    @Override
+    public Map<String, Movie> updateDirectorForMovies(List<String> titles, String director) {
+        synchronized (writeLock) {
+            Map<String, Movie> updatedMovies = new LinkedHashMap<>();
+            titles.stream().filter(title -> !movies.containsKey(title)).forEach(title -> updatedMovies.put(title, null));
+            if (updatedMovies.isEmpty()) {
+                titles.forEach(title -> updatedMovies.put(title, copy(store(title, new Movie(director, movies.get(title).getRatingValue())))));
+            }
+            return updatedMovies;
+        }
+    }
+
+    @Override
+    public int updateRating(String title, Float rating) {
+        synchronized (writeLock) {
+            Set<String> titles = titlesByLowerTitle.getOrDefault(lower(title), Collections.emptySet());
+            titles.forEach(matchingTitle -> replace(matchingTitle, movie -> new Movie(movie.getDirectorName(), rating)));
+            return titles.size();
+        }
+    }
+
+    @Override
+    public int[] updateMovies(List<PendingEdit> edits) {
+        synchronized (writeLock) {
+            int[] rowsUpdated = new int[edits.size()];
+            for (int i = 0; i < edits.size(); i++) {
+                PendingEdit edit = edits.get(i);
+                Movie movie = movies.get(edit.getTitle());
+                if (movie != null) {
+                    store(edit.getTitle(), new Movie(edit.isDirectorSet() ? edit.getDirector() : movie.getDirectorName(),
+                            edit.getRating() != null ? edit.getRating() : movie.getRatingValue()));
+                    rowsUpdated[i] = 1;
+                }
+            }
+            return rowsUpdated;
+        }
+    }
+
+    @Override
+    public int deleteMovie(String title) {
+        synchronized (writeLock) {
+            Set<String> titles = titlesByLowerTitle.remove(lower(title));
+            if (titles == null) {
+                return 0;
+            }
+            titles.forEach(matchingTitle -> {
+                Movie movie = movies.remove(matchingTitle);
+                ratingIndex.remove(matchingTitle);
+                directorIndex.remove(matchingTitle, movie.getDirectorName());
+            });
+            return titles.size();
+        }
+    }
+
+    @Override
+    public int deleteDirector(String director) {
+        synchronized (writeLock) {
+            Map<String, Movie> directed = directorIndex.moviesBy(director);
+            directed.forEach((title, movie) -> store(title, new Movie(null, movie.getRatingValue())));
+            directorNames.remove(lower(director));
+            return directed.size();
+        }
+    }
+
+    @Override
+    public List<DirectorSuggestion> suggestDirectors(String prefix, int limit) {
+        return directorIndex.suggest(prefix, limit);
+    }
+
+    /**
+     * Adds a movie if its title is not already present. Must be called holding the write lock.
+     */
+    private int put(MovieIO movieIO) {
+        if (movies.containsKey(movieIO.getTitle())) {
+            return 0;
+        }
+        Movie movie = new Movie(directorName(movieIO.getDirector()), movieIO.getRating() != null ? movieIO.getRating() : NULL_RATING);
+        movies.put(movieIO.getTitle(), movie);
+        ratingIndex.put(movieIO.getTitle(), movie.getRatingValue(), movie);
+        directorIndex.put(movieIO.getTitle(), movie.getDirectorName(), movie);
+        index(movieIO.getTitle());
+        movieIO.setDirector(movie.getDirectorName());
+        return 1;
+    }
+
+    /**
+     * Puts a movie into the catalogue, the rating index and the director index, with its director spelt as the
+     * director was first stored. Must be called holding the write lock.
+     * @return The movie as it was stored
+     */
+    private Movie store(String title, Movie movie) {
+        String director = directorName(movie.getDirectorName());
+        if (director != null && !director.equals(movie.getDirectorName())) {
+            movie = new Movie(director, movie.getRatingValue());
+        }
+        Movie previous = movies.put(title, movie);
+        if (previous != null) {
+            directorIndex.remove(title, previous.getDirectorName());
+        }
+        ratingIndex.put(title, movie.getRatingValue(), movie);
+        directorIndex.put(title, movie.getDirectorName(), movie);
+        return movie;
+    }
+
+    /**
+     * Returns the name a director was first stored with, storing the given name if the director is new. Must be
+     * called holding the write lock.
+     * @param director Name of the director, or null
+     * @return The stored name, or null if the director is null
+     */
+    private String directorName(String director) {
+        return director == null ? null : directorNames.computeIfAbsent(lower(director), key -> director);
+    }
+
+    /**
+     * Replaces a movie if it is present. Must be called holding the write lock.
+     */
+    private void replace(String title, UnaryOperator<Movie> change) {
+        Movie movie = movies.get(title);
+        if (movie != null) {
+            store(title, change.apply(movie));
+        }
+    }
+
+    /**
+     * Removes a movie and its entries in the indexes. Must be called holding the write lock.
+     */
+    private void remove(String title) {
+        Movie movie = movies.remove(title);
+        if (movie != null) {
+            directorIndex.remove(title, movie.getDirectorName());
+        }
+        ratingIndex.remove(title);
+        Set<String> titles = titlesByLowerTitle.get(lower(title));
+        if (titles != null) {
+            titles.remove(title);
+            if (titles.isEmpty()) {
+                titlesByLowerTitle.remove(lower(title));
+            }
+        }
+    }
+
+    /**
+     * Adds a title to the lower case title index. Must be called holding the write lock.
+     */
+    private void index(String title) {
+        titlesByLowerTitle.computeIfAbsent(lower(title), key -> ConcurrentHashMap.newKeySet()).add(title);
+    }
+
+    private Map<String, Movie> collect(Map<String, Movie> source, Predicate<Movie> filter, int limit) {
+        Map<String, Movie> movieMap = new LinkedHashMap<>();
+        for (Map.Entry<String, Movie> entry : source.entrySet()) {
+            if (movieMap.size() >= limit) {
+                break;
+            }
+            if (filter.test(entry.getValue())) {
+                movieMap.put(entry.getKey(), copy(entry.getValue()));
+            }
+        }
+        return movieMap;
+    }
+
+    //Reads only the movies the rating index holds at or above the rating, unless so many match that a scan is cheaper
+    private Map<String, Movie> collectRated(Float rating, Predicate<Movie> filter) {
+        Predicate<Movie> ratingFilter = ratingMatches(rating).and(filter);
+        int matches = ratingIndex.plan(rating);
+        if (matches < 0) {
+            return collect(movies, ratingFilter, Integer.MAX_VALUE);
+        }
+        Map<String, Movie> movieMap = new HashMap<>(matches * 4 / 3 + 1);
+        ratingIndex.forEachAtLeast(rating, (title, movie) -> {
+            if (ratingFilter.test(movie)) {
+                movieMap.put(title, copy(movie));
+            }
+        });
+        return movieMap;
+    }
+
+    //Reads only the movies the director index holds under matching directors
+    private Map<String, Movie> collectDirected(String director, Predicate<Movie> filter) {
+        Map<String, Movie> movieMap = new HashMap<>();
+        directorIndex.forEachMatching(director.replaceAll("\\*", "%"), (title, movie) -> {
+            if (filter.test(movie)) {
+                movieMap.put(title, copy(movie));
+            }
+        });
+        return movieMap;
+    }
+
+    private Predicate<Movie> directorMatches(String director) {
+        Pattern directorPattern = CatalogueSnapshot.likePattern(director.replaceAll("\\*", "%"));
+        return movie -> movie.getDirectorName() != null && directorPattern.matcher(movie.getDirectorName()).matches();
+    }
+
+    private Predicate<Movie> ratingMatches(Float rating) {
+        return movie -> movie.getRatingValue() >= rating;
+    }
+
+    private Movie copy(Movie movie) {
+        return new Movie(movie.getDirectorName(), movie.getRatingValue());
+    }
+
+    private String lower(String title) {
+        return title.toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,357 @@
+package com.mr.moviecatalogue.service;
+
+import com.mr.moviecatalogue.domain.DirectorSuggestion;
+import com.mr.moviecatalogue.domain.Movie;
+import com.mr.moviecatalogue.inputobject.MovieIO;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Movie repository that records metrics for each call to the repository it wraps, which MetricsContext puts in
+ * place of whichever backend is configured. Each method has a timer, catalogue.repository.requests, and a
+ * summary of the movies it returned or changed, catalogue.repository.rows, both tagged with the method name.
+ * Exceptions thrown by the backend are counted in catalogue.repository.errors by type, alongside the errors
+ * DatabaseService counts itself for the exceptions it handles.
+ *
+ * The meters are registered when the repository is created, so recording a call only updates their counters
+ * and takes no locks.
+ */
+public class InstrumentedMovieRepository implements MovieRepository {
+
+    static final String REQUESTS = "catalogue.repository.requests";
+    static final String ROWS = "catalogue.repository.rows";
+    static final String ERRORS = "catalogue.repository.errors";
+
+    private final MovieRepository delegate;
+    private final MeterRegistry meterRegistry;
+
+    private final Operation dropDatabase;
+    private final Operation getAllMovies;
+    private final Operation streamAllMovies;
+    private final Operation addMovie;
+    private final Operation addMovies;
+    private final Operation getMovieByTitle;
+    private final Operation getMoviesByDirector;
+    private final Operation getMoviesAboveRating;
+    private final Operation getMoviesByDirectorAboveRating;
+    private final Operation getMoviesPage;
+    private final Operation suggestDirectors;
+    private final Operation editMovie;
+    private final Operation updateDirector;
+    private final Operation updateDirectorForMovies;
+    private final Operation updateRating;
+    private final Operation updateMovies;
+    private final Operation deleteMovie;
+    private final Operation deleteDirector;
+
+    public InstrumentedMovieRepository(MovieRepository delegate, MeterRegistry meterRegistry) {
+        this.delegate = delegate;
+        this.meterRegistry = meterRegistry;
+        dropDatabase = new Operation("dropDatabase");
+        getAllMovies = new Operation("getAllMovies");
+        streamAllMovies = new Operation("streamAllMovies");
+        addMovie = new Operation("addMovie");
+        addMovies = new Operation("addMovies");
+        getMovieByTitle = new Operation("getMovieByTitle");
+        getMoviesByDirector = new Operation("getMoviesByDirector");
+        getMoviesAboveRating = new Operation("getMoviesAboveRating");
+        getMoviesByDirectorAboveRating = new Operation("getMoviesByDirectorAboveRating");
+        getMoviesPage = new Operation("getMoviesPage");
+        suggestDirectors = new Operation("suggestDirectors");
+        editMovie = new Operation("editMovie");
+        updateDirector = new Operation("updateDirector");
+        updateDirectorForMovies = new Operation("updateDirectorForMovies");
+        updateRating = new Operation("updateRating");
+        updateMovies = new Operation("updateMovies");
+        deleteMovie = new Operation("deleteMovie");
+        deleteDirector = new Operation("deleteDirector");
+    }
+
+    @Override
+    public void dropDatabase() {
+        long start = System.nanoTime();
+        try {
+            delegate.dropDatabase();
+        } catch (RuntimeException e) {
+            throw error(e);
+        } finally {
+            dropDatabase.stop(start);
+        }
+    }
+
+    @Override
+    public Map<String, Movie> getAllMovies() {
+        long start = System.nanoTime();
+        try {
+            return getAllMovies.rows(delegate.getAllMovies());
+        } catch (RuntimeException e) {
+            throw error(e);
+        } finally {
+            getAllMovies.stop(start);
+        }
+    }
+
+    @Override
+    public void streamAllMovies(MovieVisitor visitor) throws IOException {
+        long start = System.nanoTime();
+        int[] rows = new int[1];
+        try {
+            delegate.streamAllMovies((title, movie) -> {
+                rows[0]++;
+                visitor.visit(title, movie);
+            });
+            streamAllMovies.rows(rows[0]);
+        } catch (RuntimeException e) {
+            throw error(e);
+        } finally {
+            streamAllMovies.stop(start);
+        }
+    }
+
+    @Override
+    public int addMovie(MovieIO movieIO) {
+        long start = System.nanoTime();
+        try {
+            return addMovie.rows(delegate.addMovie(movieIO));
+        } catch (RuntimeException e) {
+            throw error(e);
+        } finally {
+            addMovie.stop(start);
+        }
+    }
+
+    @Override
+    public int[] addMovies(List<MovieIO> movies) {
+        long start = System.nanoTime();
+        try {
+            int[] rowsAdded = delegate.addMovies(movies);
+            if (rowsAdded != null) {
+                int total = 0;
+                for (int rows : rowsAdded) {
+                    total += Math.max(rows, 0);
+                }
+                addMovies.rows(total);
+            }
+            return rowsAdded;
+        } catch (RuntimeException e) {
+            throw error(e);
+        } finally {
+            addMovies.stop(start);
+        }
+    }
+
+    @Override
+    public Movie getMovieByTitle(String title) {
+        long start = System.nanoTime();
+        try {
+            Movie movie = delegate.getMovieByTitle(title);
+            getMovieByTitle.rows(movie == null ? 0 : 1);
+            return movie;
+        } catch (RuntimeException e) {
+            throw error(e);
+        } finally {
+            getMovieByTitle.stop(start);
+        }
+    }
+
+    @Override
+    public Map<String, Movie> getMoviesByDirector(String director) {
+        long start = System.nanoTime();
+        try {
+            return getMoviesByDirector.rows(delegate.getMoviesByDirector(director));
+        } catch (RuntimeException e) {
+            throw error(e);
+        } finally {
+            getMoviesByDirector.stop(start);
+        }
+    }
+
+    @Override
+    public Map<String, Movie> getMoviesAboveRating(Float rating) {
+        long start = System.nanoTime();
+        try {
+            return getMoviesAboveRating.rows(delegate.getMoviesAboveRating(rating));
+        } catch (RuntimeException e) {
+            throw error(e);
+        } finally {
+            getMoviesAboveRating.stop(start);
+        }
+    }
+
+    @Override
+    public Map<String, Movie> getMoviesByDirectorAboveRating(String director, Float rating) {
+        long start = System.nanoTime();
+        try {
+            return getMoviesByDirectorAboveRating.rows(delegate.getMoviesByDirectorAboveRating(director, rating));
+        } catch (RuntimeException e) {
+            throw error(e);
+        } finally {
+            getMoviesByDirectorAboveRating.stop(start);
+        }
+    }
+
+    @Override
+    public Map<String, Movie> getMoviesPage(String director, Float rating, String afterTitle, int limit) {
+        long start = System.nanoTime();
+        try {
+            return getMoviesPage.rows(delegate.getMoviesPage(director, rating, afterTitle, limit));
+        } catch (RuntimeException e) {
+            throw error(e);
+        } finally {
+            getMoviesPage.stop(start);
+        }
+    }
+
+    @Override
+    public List<DirectorSuggestion> suggestDirectors(String prefix, int limit) {
+        long start = System.nanoTime();
+        try {
+            List<DirectorSuggestion> suggestions = delegate.suggestDirectors(prefix, limit);
+            if (suggestions != null) {
+                suggestDirectors.rows(suggestions.size());
+            }
+            return suggestions;
+        } catch (RuntimeException e) {
+            throw error(e);
+        } finally {
+            suggestDirectors.stop(start);
+        }
+    }
+
+    @Override
+    public Map<String, Movie> editMovie(String title, String newTitle, String director, Float rating) {
+        long start = System.nanoTime();
+        try {
+            return editMovie.rows(delegate.editMovie(title, newTitle, director, rating));
+        } catch (RuntimeException e) {
+            throw error(e);
+        } finally {
+            editMovie.stop(start);
+        }
+    }
+
+    @Override
+    public int updateDirector(String title, String director) {
+        long start = System.nanoTime();
+        try {
+            return updateDirector.rows(delegate.updateDirector(title, director));
+        } catch (RuntimeException e) {
+            throw error(e);
+        } finally {
+            updateDirector.stop(start);
+        }
+    }
+
+    @Override
+    public Map<String, Movie> updateDirectorForMovies(List<String> titles, String director) {
+        long start = System.nanoTime();
+        try {
+            Map<String, Movie> updatedMovies = delegate.updateDirectorForMovies(titles, director);
+            if (updatedMovies != null) {
+                updateDirectorForMovies.rows(updatedMovies.containsValue(null) ? 0 : updatedMovies.size());
+            }
+            return updatedMovies;
+        } catch (RuntimeException e) {
+            throw error(e);
+        } finally {
+            updateDirectorForMovies.stop(start);
+        }
+    }
+
+    @Override
+    public int updateRating(String title, Float rating) {
+        long start = System.nanoTime();
+        try {
+            return updateRating.rows(delegate.updateRating(title, rating));
+        } catch (RuntimeException e) {
+            throw error(e);
+        } finally {
+            updateRating.stop(start);
+        }
+    }
+
+    @Override
+    public int[] updateMovies(List<PendingEdit> edits) {
+        long start = System.nanoTime();
+        try {
+            int[] rowsUpdated = delegate.updateMovies(edits);
+            if (rowsUpdated != null) {
+                int total = 0;
+                for (int rows : rowsUpdated) {
+                    total += Math.max(rows, 0);
+                }
+                updateMovies.rows(total);
+            }
+            return rowsUpdated;
+        } catch (RuntimeException e) {
+            throw error(e);
+        } finally {
+            updateMovies.stop(start);
+        }
+    }
+
+    @Override
+    public int deleteMovie(String title) {
+        long start = System.nanoTime();
+        try {
+            return deleteMovie.rows(delegate.deleteMovie(title));
+        } catch (RuntimeException e) {
+            throw error(e);
+        } finally {
+            deleteMovie.stop(start);
+        }
+    }
+
+    @Override
+    public int deleteDirector(String director) {
+        long start = System.nanoTime();
+        try {
+            return deleteDirector.rows(delegate.deleteDirector(director));
+        } catch (RuntimeException e) {
+            throw error(e);
+        } finally {
+            deleteDirector.stop(start);
+        }
+    }
+
+    private RuntimeException error(RuntimeException e) {
+        meterRegistry.counter(ERRORS, "exception", e.getClass().getSimpleName()).increment();
+        return e;
+    }
+
+    /**
+     * The meters for one repository method
+     */
+    private class Operation {
+
+        private final Timer timer;
+        private final DistributionSummary rows;
+
+        private Operation(String method) {
+            timer = Timer.builder(REQUESTS).tag("method", method).register(meterRegistry);
+            rows = DistributionSummary.builder(ROWS).tag("method", method).baseUnit("rows").register(meterRegistry);
+        }
+
+        private void stop(long start) {
+            timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+
+        private int rows(int count) {
+            rows.record(count);
+            return count;
+        }
+
+        private Map<String, Movie> rows(Map<String, Movie> movies) {
+            if (movies != null) {
+                rows.record(movies.size());
+            }
+            return movies;
+        }
+    }
+}
@@ -1,52 +1,169 @@
 package com.mr.moviecatalogue.service;
 
+import com.mr.moviecatalogue.domain.BatchItemResult;
+import com.mr.moviecatalogue.domain.BatchItemStatus;
 import com.mr.moviecatalogue.domain.Catalogue;
+import com.mr.moviecatalogue.domain.ChangeFeed;
+import com.mr.moviecatalogue.domain.ChangeType;
+import com.mr.moviecatalogue.domain.DirectorSuggestion;
 import com.mr.moviecatalogue.domain.Movie;
+import com.mr.moviecatalogue.domain.MovieChange;
 import com.mr.moviecatalogue.inputobject.DirectorIO;
 import com.mr.moviecatalogue.inputobject.MovieIO;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+
+import java.io.IOException;
 import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.function.BiConsumer;
 
 /**
  * This Service class handles the logic of the catalogue application, ensuring
  * ratings stored in the database are valid and processing null ratings which
  * cannot be stored in the SQL database, and also rounding all ratings to one
- * decimal place (always rounding down).
+ * decimal place (always rounding down). Reads are answered from the in-memory
+ * CatalogueSnapshot when it is enabled, and writes are applied to it after they
+ * have been made in the database. The database is whichever MovieRepository is
+ * configured, which is PostgreSQL unless catalogue.repository=memory is set.
+ * Every method that changes the catalogue records the change in the ChangeLog
+ * and increments the CatalogueVersion once the change has been made.
+ *
+ * When the WriteBehindQueue is enabled, edits that only change a movie's director
+ * or rating are made once they are in the queue, and are written to the database
+ * later. The queue is flushed before anything else is written to the repository,
+ * and a write is refused if it cannot be. Reads from the database have the pending
+ * edits applied to the movies they return rather than waiting for a flush, except
+ * for reads selecting movies by director or rating, which flush the queue first if
+ * edits are pending. Edits the queue discards as they could not be written make the
+ * snapshot reload and the change log's clients resync.
+ *
+ * Each change is written to the database, applied to the CatalogueSnapshot and recorded in the ChangeLog while
+ * holding locks on the titles it changes, so the snapshot and the change log see the changes to each movie in the
+ * order the database made them, while changes to different movies are written alongside each other. Deleting a
+ * director and clearing the catalogue can change any movie, so lock every title.
  */
 @Component
 public class MovieCatalogueService {
 
     @Autowired
-    DatabaseService databaseService;
+    MovieRepository movieRepository;
+
+    @Autowired
+    CatalogueSnapshot catalogueSnapshot;
+
+    @Autowired
+    CatalogueVersion catalogueVersion;
+
+    @Autowired
+    ChangeLog changeLog;
+
+    @Autowired
+    WriteBehindQueue writeBehindQueue;
 
     private static final int RATING_DECIMAL_PLACES = 1;
 
+    //Held on the titles being changed from writing the change to the database until it has been applied to the snapshot and recorded
+    private final TitleLocks titleLocks = new TitleLocks();
+
+    //Largest page that can be requested, also used when a paged request does not give a limit
+    @Value("${catalogue.paging.max-limit:1000}")
+    private int maxPageLimit;
+
+    //Number of directors suggested when the request does not give a limit, and the most that can be requested
+    @Value("${catalogue.suggest.default-limit:10}")
+    private int defaultSuggestLimit;
+
+    @Value("${catalogue.suggest.max-limit:50}")
+    private int maxSuggestLimit;
+
+    //Number of movies found by a title search when the request does not give a limit, and the most that can be requested
+    @Value("${catalogue.search.default-limit:20}")
+    private int defaultSearchLimit;
+
+    @Value("${catalogue.search.max-limit:100}")
+    private int maxSearchLimit;
+
+    //Most changes returned by one request to the change feed
+    @Value("${catalogue.changes.max-limit:1000}")
+    private int maxChangesLimit;
+
     //Floats cannot be stored as null in SQL, so stored as -1.0 if rating is
     //not present after eliminating ratings outside the acceptable range.
-    private BiConsumer<String,Movie> handleNullRatings = (str,mov) -> {
-        if (Float.valueOf((float) -1.0).equals(mov.getRating().get())) {
-            mov.setRating(Optional.empty());
+    BiConsumer<String,Movie> handleNullRatings = (str,mov) -> {
+        if (mov.getRatingValue() == (float) -1.0) {
+            mov.setRatingValue(Movie.NO_RATING);
         }
     };
 
+    @PostConstruct
+    public void start() {
+        writeBehindQueue.addDiscardListener(this::editsDiscarded);
+    }
+
     /**
      * Calls the database and returns a Catalogue containing all the movies stored in the database
      * @return Returns the full current catalogue of movies
      */
     public Catalogue getCurrentCatalogue(){
         Catalogue catalogue = new Catalogue();
-        Map<String,Movie> movieMap = databaseService.getAllMovies();
-        movieMap.forEach(handleNullRatings);
+        Map<String,Movie> movieMap = catalogueSnapshot.getAllMovies().orElseGet(() -> {
+            Map<String, PendingEdit> edits = writeBehindQueue.pendingEdits();
+            Map<String, Movie> databaseMovies = withPendingEdits(edits, movieRepository.getAllMovies());
+            databaseMovies.forEach(handleNullRatings);
+            return databaseMovies;
+        });
         catalogue.setMovies(movieMap);
         return catalogue;
     }
 
+    /**
+     * Returns one page of the current catalogue of movies, in title order
+     * @param limit Maximum number of movies in the page. Capped at the configured maximum, which is also used if null.
+     * @param after Optional cursor from the previous page, to get the page following it
+     * @throws IllegalArgumentException if the limit is not positive or the cursor is invalid
+     * @return A Catalogue containing the page of movies, and the cursor for the next page if there is one
+     */
+    public Catalogue getCurrentCatalogue(Integer limit, String after){
+        return getMoviesPage(null, null, limit, after);
+    }
+
+    /**
+     * Passes every movie in the current catalogue to the visitor in title order, without collecting them
+     * into a Catalogue first. Movies come from the snapshot if it is available, and are otherwise streamed
+     * from the database.
+     * @param visitor MovieVisitor to be called for each movie
+     * @throws IOException if the visitor fails or the movies cannot be read
+     */
+    public void streamCurrentCatalogue(MovieVisitor visitor) throws IOException {
+        if (!catalogueSnapshot.forEachMovie(visitor)) {
+            Map<String, PendingEdit> edits = writeBehindQueue.pendingEdits();
+            movieRepository.streamAllMovies((title, movie) -> {
+                PendingEdit edit = edits.get(title);
+                if (edit != null) {
+                    edit.applyTo(movie);
+                }
+                handleNullRatings.accept(title, movie);
+                visitor.visit(title, movie);
+            });
+        }
+    }
+
     /**
      * Throws an IllegalArgumentException for ratings outside the range of 0.0 - 5.0 and
      * rounds the given rating to one decimal place, or sets the rating to -1.0 if the rating
@@ -62,60 +179,169 @@ public class MovieCatalogueService {
         } else {
             movieIO.setRating(Float.valueOf((float) -1.0));
         }
-        databaseService.addMovie(movieIO);
+        try (TitleLocks.Held held = titleLocks.lock(movieIO.getTitle())) {
+            int rowsAdded = repository().addMovie(movieIO);
+            catalogueSnapshot.movieAdded(movieIO, rowsAdded);
+            recordChange(rowsAdded, new MovieChange(0, ChangeType.ADDED, movieIO.getTitle(), null, null, movieFrom(movieIO)));
+        }
+    }
+
+    /**
+     * Validates and adds all of the given movies in one pass. Each movie's rating is checked and rounded in the
+     * same way as addMovie, and movies without a title, with a rating outside the acceptable range, or with the
+     * same title as an earlier movie in the list are not added. The remaining movies are added to the database in
+     * a single transaction, and any whose title is already in the catalogue are reported as duplicates.
+     * @param movieIOs MovieIOs containing mandatory title fields and optional director and rating fields
+     * @return A BatchItemResult for each movie, in the same order as the given movies
+     */
+    public List<BatchItemResult> addMovies(List<MovieIO> movieIOs){
+        List<BatchItemResult> results = new ArrayList<>(movieIOs.size());
+        List<MovieIO> validMovies = new ArrayList<>(movieIOs.size());
+        List<BatchItemResult> validResults = new ArrayList<>(movieIOs.size());
+        Set<String> titles = new HashSet<>();
+        for (MovieIO movieIO : movieIOs) {
+            BatchItemResult result = new BatchItemResult(movieIO == null ? null : movieIO.getTitle(), null);
+            results.add(result);
+            if (movieIO == null || movieIO.getTitle() == null || movieIO.getTitle().isEmpty()) {
+                result.setStatus(BatchItemStatus.MISSING_TITLE);
+                continue;
+            }
+            Float rating = movieIO.getRating();
+            if (rating != null && (rating < 0.0 || rating > 5.0)) {
+                result.setStatus(BatchItemStatus.RATING_OUT_OF_RANGE);
+                continue;
+            }
+            if (!titles.add(movieIO.getTitle())) {
+                result.setStatus(BatchItemStatus.DUPLICATE_IN_BATCH);
+                continue;
+            }
+            movieIO.setRating(rating != null ? roundRating(rating, RATING_DECIMAL_PLACES) : Float.valueOf((float) -1.0));
+            validMovies.add(movieIO);
+            validResults.add(result);
+        }
+        if (validMovies.isEmpty()) {
+            return results;
+        }
+
+        try (TitleLocks.Held held = titleLocks.lock(titles)) {
+            int[] rowsAdded = repository().addMovies(validMovies);
+            List<MovieChange> changes = new ArrayList<>(validMovies.size());
+            for (int i = 0; i < validMovies.size(); i++) {
+                if (rowsAdded == null) {
+                    validResults.get(i).setStatus(BatchItemStatus.FAILED);
+                } else if (rowsAdded[i] == 0) {
+                    validResults.get(i).setStatus(BatchItemStatus.DUPLICATE_TITLE);
+                } else {
+                    validResults.get(i).setStatus(BatchItemStatus.CREATED);
+                    catalogueSnapshot.movieAdded(validMovies.get(i), rowsAdded[i]);
+                    changes.add(new MovieChange(0, ChangeType.ADDED, validMovies.get(i).getTitle(), null, null, movieFrom(validMovies.get(i))));
+                }
+            }
+            if (!changes.isEmpty()) {
+                changeLog.record(changes);
+                catalogueVersion.increment();
+            }
+        }
+        return results;
     }
 
     /**
-     * Adds the director to all the given movies in the DirectorIO argument. First checks
-     * the full list of titles to ensure they are all in the database, throwing an
-     * IllegalArgumentException if one is not, and then calls the database service to update
-     * the director for each movie in the database
+     * Adds the director to all the given movies in the DirectorIO argument. The database service
+     * checks the full list of titles and sets the director in a single transaction, so if any of the
+     * movies are not in the database then none of them are updated and an IllegalArgumentException is thrown
      * @param directorIO DirectorIO containing the name of the director to add and a list of movie titles to add the director to
-     * @throws IllegalArgumentException Thrown if any of the movies in the DirectorIO are not present in the database
+     * @throws IllegalArgumentException Thrown if any of the movies in the DirectorIO are not present in the database,
+     * or if the database could not update them
      */
     public void addDirector(DirectorIO directorIO){
-        directorIO.getMovies().forEach(title -> {
-            Movie movie = databaseService.getMovieByTitle(title);
-            if (movie == null) {
-                throw new IllegalArgumentException(String.format("No movie found to edit for the title given: %s", title));
+        try (TitleLocks.Held held = titleLocks.lock(directorIO.getMovies())) {
+            Map<String, Movie> updatedMovies = repository().updateDirectorForMovies(directorIO.getMovies(), directorIO.getName());
+            if (updatedMovies == null) {
+                throw new IllegalArgumentException("The director could not be added to the movies given");
             }
-        });
-
-        //In separate forEach block to avoid some movies having director set and then
-        //IllegalArgumentException being thrown partway through the list
-        directorIO.getMovies().forEach(title -> databaseService.updateDirector(title, directorIO.getName()));
+            for (Map.Entry<String, Movie> updated : updatedMovies.entrySet()) {
+                if (updated.getValue() == null) {
+                    throw new IllegalArgumentException(String.format("No movie found to edit for the title given: %s", updated.getKey()));
+                }
+            }
+            List<MovieChange> changes = new ArrayList<>(updatedMovies.size());
+            updatedMovies.forEach((title, movie) -> {
+                catalogueSnapshot.directorUpdated(title, movie.getDirectorName(), 1);
+                changes.add(new MovieChange(0, ChangeType.DIRECTOR_ADDED, title, null, movie.getDirectorName(), null));
+            });
+            changeLog.record(changes);
+            catalogueVersion.increment();
+        }
     }
 
     /**
-     * Verifies that there is a movie in the database with the given title to edit. Then conditionally
-     * updates the movie in the database based on which fields are set in the MovieIO and whether they
-     * already match the values stored in the database for the given movie. Throws an IllegalArgumentException
-     * for ratings outside the range of 0.0 - 5.0, and rounds the given rating to one decimal place. Also
-     * throws an IllegalArgumentException if there is no movie present in the database with the given title.
+     * Edits a pre-existing movie in the database. Throws an IllegalArgumentException for ratings outside the
+     * range of 0.0 - 5.0, and rounds the given rating to one decimal place. Fields that are not set in the MovieIO,
+     * or that already match the values held for the movie, are left unchanged, and the movie is returned without
+     * writing anything if no field would change. The values held are read from the snapshot if it is available, or
+     * from the database if no field is set or the edit is made through the write-behind queue. Otherwise the fields
+     * set are given to the database service in a single update, which leaves the movie alone if they all match and
+     * returns the edited movie. A change is only recorded if the movie was changed, and an IllegalArgumentException
+     * is thrown if there is no movie present in the database with the given title.
      * @param title Current title of movie to be edited
      * @param movieIO MovieIO containing optional fields, which if set, will be updated in the given movie
+     * @return A Catalogue containing the movie after it has been edited
      * @throws IllegalArgumentException if rating is outside of acceptable range, or if movie is not present in database for given title
      */
-    public void editMovie(String title, MovieIO movieIO)  {
-        Movie movie = databaseService.getMovieByTitle(title);
-        if (movie == null) {
-            throw new IllegalArgumentException("No movie found to edit for the title given");
-        }
-
+    public Catalogue editMovie(String title, MovieIO movieIO)  {
         Float rating = movieIO.getRating();
         if (rating != null) {
             checkRatingIsWithinRange(rating);
-            if (!movie.getRating().isPresent() || !rating.equals(movie.getRating().get())) {
-                databaseService.updateRating(title, roundRating(movieIO.getRating(), RATING_DECIMAL_PLACES));
-            }
+            rating = roundRating(rating, RATING_DECIMAL_PLACES);
         }
+        String director = movieIO.getDirector();
+        String newTitle = movieIO.getTitle() != null && !movieIO.getTitle().equals(title) ? movieIO.getTitle() : null;
 
-        if (movieIO.getDirector() != null && (!movie.getDirector().isPresent() || !movieIO.getDirector().equals(movie.getDirector().get()))) {
-            databaseService.updateDirector(title, movieIO.getDirector());
-        }
+        try (TitleLocks.Held held = titleLocks.lock(Arrays.asList(title, newTitle))) {
+            Map<String, Movie> cachedMovie = catalogueSnapshot.getMovieByTitle(title).orElse(null);
+            boolean queued = newTitle == null && writeBehindQueue.isEnabled();
+            Movie movie = null;
+            if (cachedMovie != null || queued || newTitle == null && director == null && rating == null) {
+                movie = cachedMovie != null ? cachedMovie.get(title) : repository().getMovieByTitle(title);
+                if (movie == null) {
+                    throw new IllegalArgumentException("No movie found to edit for the title given");
+                }
+                if (rating != null && rating == movie.getRatingValue()) {
+                    rating = null;
+                }
+                if (director != null && director.equalsIgnoreCase(movie.getDirectorName())) {
+                    director = null;
+                }
+                if (newTitle == null && director == null && rating == null) {
+                    return unchanged(title, movie);
+                }
+            }
+
+            if (queued) {
+                return queueEdit(title, movie, director, rating);
+            }
 
-        if (movieIO.getTitle() != null && !movieIO.getTitle().equals(title)){
-            databaseService.updateTitle(title, movieIO.getTitle());
+            Map<String, Movie> editedMovie = repository().editMovie(title, newTitle, director, rating);
+            if (editedMovie == null) {
+                throw new IllegalArgumentException("The movie could not be edited with the values given");
+            }
+            if (editedMovie.isEmpty()) {
+                //The movie is either missing or already has the values given, which a rename never does
+                Movie current = newTitle == null ? movieRepository.getMovieByTitle(title) : null;
+                if (current == null) {
+                    throw new IllegalArgumentException("No movie found to edit for the title given");
+                }
+                return unchanged(title, current);
+            }
+            editedMovie.forEach(handleNullRatings);
+            editedMovie.forEach((editedTitle, edited) -> {
+                catalogueSnapshot.movieEdited(title, editedTitle, edited);
+                changeLog.record(new MovieChange(0, ChangeType.EDITED, editedTitle, editedTitle.equals(title) ? null : title, null, edited));
+            });
+            catalogueVersion.increment();
+            Catalogue catalogue = new Catalogue();
+            catalogue.setMovies(editedMovie);
+            return catalogue;
         }
     }
 
@@ -126,12 +352,76 @@ public class MovieCatalogueService {
      */
     public Catalogue getMoviesByDirector(String director){
         Catalogue returnCatalogue = new Catalogue();
-        Map<String, Movie> movieMap = databaseService.getMoviesByDirector(director);
-        movieMap.forEach(handleNullRatings);
+        Map<String, Movie> movieMap = catalogueSnapshot.getMoviesByDirector(director).orElseGet(() -> {
+            Map<String, Movie> databaseMovies = filteringRepository().getMoviesByDirector(director);
+            databaseMovies.forEach(handleNullRatings);
+            return databaseMovies;
+        });
         returnCatalogue.setMovies(movieMap);
         return returnCatalogue;
     }
 
+    /**
+     * Suggests directors for autocomplete, returning the directors whose names start with the prefix that have
+     * the most movies in the catalogue
+     * @param prefix Start of the director's name, not case sensitive. Wildcard characters are taken literally.
+     * @param limit Maximum number of directors to return. Capped at the configured maximum, and the configured
+     * default is used if null.
+     * @throws IllegalArgumentException if the limit is not positive
+     * @return A List of the directors with their number of movies, most movies first
+     */
+    public List<DirectorSuggestion> suggestDirectors(String prefix, Integer limit){
+        if (limit != null && limit < 1) {
+            throw new IllegalArgumentException("The limit must be a positive number");
+        }
+        String searchPrefix = prefix == null ? "" : prefix;
+        int suggestLimit = Math.min(limit == null ? defaultSuggestLimit : limit, maxSuggestLimit);
+        return catalogueSnapshot.suggestDirectors(searchPrefix, suggestLimit).orElseGet(() -> {
+            List<DirectorSuggestion> suggestions = filteringRepository().suggestDirectors(searchPrefix, suggestLimit);
+            return suggestions == null ? new ArrayList<>() : suggestions;
+        });
+    }
+
+    /**
+     * Searches the titles of the catalogue for the words of the query, tolerating typos. Titles containing a
+     * word of the query rank above titles with a word starting with it, which rank above titles with a word
+     * spelt similarly. The search is answered from the snapshot's title index, so is refused while the snapshot
+     * is disabled or could not be loaded.
+     * @param query Words to be searched for, not case sensitive. Punctuation is ignored.
+     * @param limit Maximum number of movies to return. Capped at the configured maximum, and the configured
+     * default is used if null.
+     * @throws IllegalArgumentException if the query has no letters or numbers or the limit is not positive
+     * @throws RejectedExecutionException if the snapshot is unavailable
+     * @return A Catalogue containing the matching movies, best match first
+     */
+    public Catalogue searchMovies(String query, Integer limit){
+        if (limit != null && limit < 1) {
+            throw new IllegalArgumentException("The limit must be a positive number");
+        }
+        List<String> queryWords = TitleIndex.queryWords(query == null ? "" : query);
+        if (queryWords.isEmpty()) {
+            throw new IllegalArgumentException("The search query must contain a letter or number");
+        }
+        int searchLimit = Math.min(limit == null ? defaultSearchLimit : limit, maxSearchLimit);
+        Catalogue catalogue = new Catalogue();
+        //Ranking titles without the index would read and score every movie for each search, so it is refused instead
+        catalogue.setMovies(catalogueSnapshot.searchTitles(queryWords, searchLimit).orElseThrow(() ->
+                new RejectedExecutionException("Title search is unavailable while the snapshot is not loaded")));
+        return catalogue;
+    }
+
+    /**
+     * Returns one page of the movies with the given director, in title order
+     * @param director Name of director to be searched for
+     * @param limit Maximum number of movies in the page. Capped at the configured maximum, which is also used if null.
+     * @param after Optional cursor from the previous page, to get the page following it
+     * @throws IllegalArgumentException if the limit is not positive or the cursor is invalid
+     * @return A Catalogue containing the page of movies, and the cursor for the next page if there is one
+     */
+    public Catalogue getMoviesByDirector(String director, Integer limit, String after){
+        return getMoviesPage(director, null, limit, after);
+    }
+
     /**
      * Checks the given rating is within the acceptable range of 0.0-5.0 and throws an IllegalArgumentException
      * if not. Then rounds the rating to 1 decimal place, and calls the database service to search for movies
@@ -145,10 +435,24 @@ public class MovieCatalogueService {
         Float roundedRating = roundRating(rating, RATING_DECIMAL_PLACES);
         Catalogue returnCatalogue = new Catalogue();
 
-        returnCatalogue.setMovies(databaseService.getMoviesAboveRating(roundedRating));
+        returnCatalogue.setMovies(catalogueSnapshot.getMoviesAboveRating(roundedRating)
+                .orElseGet(() -> filteringRepository().getMoviesAboveRating(roundedRating)));
         return returnCatalogue;
     }
 
+    /**
+     * Returns one page of the movies with a rating equal to or above the given rating, in title order
+     * @param rating Rating above which movies will be searched for. Must be within range 0.0-5.0 and will be rounded down to 1 decimal place
+     * @param limit Maximum number of movies in the page. Capped at the configured maximum, which is also used if null.
+     * @param after Optional cursor from the previous page, to get the page following it
+     * @throws IllegalArgumentException if rating is outside of acceptable range, the limit is not positive or the cursor is invalid
+     * @return A Catalogue containing the page of movies, and the cursor for the next page if there is one
+     */
+    public Catalogue getMoviesAboveRating(Float rating, Integer limit, String after)  {
+        checkRatingIsWithinRange(rating);
+        return getMoviesPage(null, roundRating(rating, RATING_DECIMAL_PLACES), limit, after);
+    }
+
     /**
      * Calls the database service to get the movie with the given title from the database
      * and sets it in the Catalogue if there is a movie with the title. Otherwise, sets an
@@ -157,10 +461,21 @@ public class MovieCatalogueService {
      * @return A Catalogue containing the movie with the given title
      */
     public Catalogue getMovieByTitle(String title) {
-        Movie movie = databaseService.getMovieByTitle(title);
+        Optional<Map<String, Movie>> snapshotMovies = catalogueSnapshot.getMovieByTitle(title);
+        if (snapshotMovies.isPresent()) {
+            Catalogue catalogue = new Catalogue();
+            catalogue.setMovies(snapshotMovies.get());
+            return catalogue;
+        }
+
+        PendingEdit edit = writeBehindQueue.pendingEdit(title);
+        Movie movie = movieRepository.getMovieByTitle(title);
         Catalogue catalogue = new Catalogue();
         catalogue.setMovies(new HashMap<>());
         if (movie != null) {
+            if (edit != null) {
+                edit.applyTo(movie);
+            }
             catalogue.getMovies().put(title, movie);
             catalogue.getMovies().forEach(handleNullRatings);
         }
@@ -181,10 +496,25 @@ public class MovieCatalogueService {
         Float roundedRating = roundRating(rating, RATING_DECIMAL_PLACES);
         Catalogue returnCatalogue = new Catalogue();
 
-        returnCatalogue.setMovies(databaseService.getMoviesByDirectorAboveRating(director, roundedRating));
+        returnCatalogue.setMovies(catalogueSnapshot.getMoviesByDirectorAboveRating(director, roundedRating)
+                .orElseGet(() -> filteringRepository().getMoviesByDirectorAboveRating(director, roundedRating)));
         return returnCatalogue;
     }
 
+    /**
+     * Returns one page of the movies by the given director with a rating equal to or above the given rating, in title order
+     * @param director Name of director to be filtered by
+     * @param rating Rating to filter for movies above. Must be between 0.0-5.0 and will be rounded down to 1 decimal place
+     * @param limit Maximum number of movies in the page. Capped at the configured maximum, which is also used if null.
+     * @param after Optional cursor from the previous page, to get the page following it
+     * @throws IllegalArgumentException if rating is outside of acceptable range, the limit is not positive or the cursor is invalid
+     * @return A Catalogue containing the page of movies, and the cursor for the next page if there is one
+     */
+    public Catalogue getMoviesByDirectorAboveRating(String director, Float rating, Integer limit, String after)  {
+        checkRatingIsWithinRange(rating);
+        return getMoviesPage(director, roundRating(rating, RATING_DECIMAL_PLACES), limit, after);
+    }
+
     /**
      * Calls the database service to see if there is a movie stored for the given title,
      * and if so, calls the database service to delete the director for it
@@ -192,13 +522,17 @@ public class MovieCatalogueService {
      * @throws IllegalArgumentException if movie is not returned from database for given title
      */
     public void deleteDirectorFromMovie(String title){
-        Movie movie = databaseService.getMovieByTitle(title);
-        if (movie == null) {
-            throw new IllegalArgumentException("No movie found to edit for the title given");
-        }
+        try (TitleLocks.Held held = titleLocks.lock(title)) {
+            Movie movie = findMovie(title);
+            if (movie == null) {
+                throw new IllegalArgumentException("No movie found to edit for the title given");
+            }
 
-        if (movie.getDirector().isPresent()) {
-            databaseService.updateDirector(title, null);
+            if (movie.getDirectorName() != null) {
+                int rowsUpdated = updateDirector(title, null);
+                catalogueSnapshot.directorUpdated(title, null, rowsUpdated);
+                recordChange(rowsUpdated, new MovieChange(0, ChangeType.DIRECTOR_REMOVED, title, null, null, null));
+            }
         }
     }
 
@@ -210,13 +544,17 @@ public class MovieCatalogueService {
      * @throws IllegalArgumentException if movie is not returned from database for given title
      */
     public void deleteRatingFromMovie(String title){
-        Movie movie = databaseService.getMovieByTitle(title);
-        if (movie == null) {
-            throw new IllegalArgumentException("No movie found to edit for the title given");
-        }
+        try (TitleLocks.Held held = titleLocks.lock(title)) {
+            Movie movie = findMovie(title);
+            if (movie == null) {
+                throw new IllegalArgumentException("No movie found to edit for the title given");
+            }
 
-        if (movie.getRating().isPresent() && !movie.getRating().get().equals(Float.valueOf((float) -1.0))) {
-            databaseService.updateRating(title, Float.valueOf((float) -1.0));
+            if (movie.hasRating() && movie.getRatingValue() != (float) -1.0) {
+                int rowsUpdated = updateRating(title, Float.valueOf((float) -1.0));
+                catalogueSnapshot.ratingUpdated(title, Float.valueOf((float) -1.0), rowsUpdated);
+                recordChange(rowsUpdated, new MovieChange(0, ChangeType.RATING_REMOVED, title, null, null, null));
+            }
         }
     }
 
@@ -227,12 +565,16 @@ public class MovieCatalogueService {
      * @throws IllegalArgumentException if movie is not returned from database for given title
      */
     public void deleteMovie(String title){
-        Movie movie = databaseService.getMovieByTitle(title);
-        if (movie == null) {
-            throw new IllegalArgumentException("No movie found to edit for the title given");
-        }
+        try (TitleLocks.Held held = titleLocks.lock(title)) {
+            Movie movie = findMovie(title);
+            if (movie == null) {
+                throw new IllegalArgumentException("No movie found to edit for the title given");
+            }
 
-        databaseService.deleteMovie(title);
+            int rowsDeleted = repository().deleteMovie(title);
+            catalogueSnapshot.movieDeleted(title, rowsDeleted);
+            recordChange(rowsDeleted, new MovieChange(0, ChangeType.DELETED, title, null, null, null));
+        }
     }
 
     /**
@@ -240,7 +582,267 @@ public class MovieCatalogueService {
      * @param director Name of database to be deleted from database
      */
     public void deleteDirector(String director){
-        databaseService.deleteDirector(director);
+        try (TitleLocks.Held held = titleLocks.lockAll()) {
+            int rowsUpdated = repository().deleteDirector(director);
+            catalogueSnapshot.directorDeleted(director);
+            if (rowsUpdated > 0) {
+                changeLog.record(new MovieChange(0, ChangeType.DIRECTOR_DELETED, null, null, director, null));
+                catalogueVersion.increment();
+            }
+        }
+    }
+
+    /**
+     * Calls the database service to clear all of the movies from the database, and discards the
+     * in-memory snapshot of the catalogue
+     */
+    public void clearCatalogue(){
+        try (TitleLocks.Held held = titleLocks.lockAll()) {
+            repository().dropDatabase();
+            catalogueSnapshot.invalidate();
+            changeLog.record(new MovieChange(0, ChangeType.CLEARED, null, null, null, null));
+            catalogueVersion.increment();
+        }
+    }
+
+    /**
+     * Returns the changes made to the catalogue after the given sequence, for clients keeping their own copy of
+     * the catalogue up to date. If the changes since then are no longer held the client is told to resync, in
+     * which case it should fetch the whole catalogue and then ask for the changes since the latest sequence given.
+     * @param since Sequence of the last change the client has seen, the latest from its previous request
+     * @param instance Instance named by the client's previous feed, or null, in which case the sequence is
+     *                 assumed to have come from this instance
+     * @return A ChangeFeed holding up to the configured maximum number of changes, oldest first
+     */
+    public ChangeFeed getChanges(long since, String instance){
+        return changeLog.since(since, instance, maxChangesLimit);
+    }
+
+    /**
+     * Makes an edit that does not change the title through the write-behind queue, returning the movie as it will
+     * be once the edit has been written
+     * @param title Title of the movie to be edited
+     * @param movie The movie before it is edited
+     * @param director Director name to be set, or null to keep the current director
+     * @param rating Rounded rating to be set, or null to keep the current rating
+     * @return A Catalogue containing the movie after it has been edited
+     */
+    private Catalogue queueEdit(String title, Movie movie, String director, Float rating) {
+        if (director != null) {
+            //The database keeps the spelling a director was first stored with, which the snapshot holds if it has
+            //movies by the director. Otherwise the director is taken to be new, so stored as it is given.
+            director = catalogueSnapshot.getDirectorName(director).orElse(director);
+        }
+        writeBehindQueue.enqueue(new PendingEdit(title, director != null, director, rating));
+        Movie edited = new Movie(director != null ? director : movie.getDirectorName(),
+                rating != null ? rating : movie.getRatingValue());
+        handleNullRatings.accept(title, edited);
+        catalogueSnapshot.movieEdited(title, title, edited);
+        changeLog.record(new MovieChange(0, ChangeType.EDITED, title, null, null, edited));
+        catalogueVersion.increment();
+        Map<String, Movie> editedMovie = new HashMap<>();
+        editedMovie.put(title, edited);
+        Catalogue catalogue = new Catalogue();
+        catalogue.setMovies(editedMovie);
+        return catalogue;
+    }
+
+    /**
+     * Returns a movie that an edit has left as it was
+     * @param title Title of the movie
+     * @param movie The movie as it is held
+     * @return A Catalogue containing the movie
+     */
+    private Catalogue unchanged(String title, Movie movie) {
+        Map<String, Movie> movieMap = new HashMap<>();
+        movieMap.put(title, movie);
+        movieMap.forEach(handleNullRatings);
+        Catalogue catalogue = new Catalogue();
+        catalogue.setMovies(movieMap);
+        return catalogue;
+    }
+
+    /**
+     * Sets the director of a movie, through the write-behind queue if it is enabled, in which case the title
+     * is matched case sensitively
+     * @return The number of movies updated
+     */
+    private int updateDirector(String title, String director) {
+        if (writeBehindQueue.isEnabled()) {
+            writeBehindQueue.enqueue(PendingEdit.director(title, director));
+            return 1;
+        }
+        return repository().updateDirector(title, director);
+    }
+
+    /**
+     * Sets the rating of a movie, through the write-behind queue if it is enabled, in which case the title
+     * is matched case sensitively
+     * @return The number of movies updated
+     */
+    private int updateRating(String title, Float rating) {
+        if (writeBehindQueue.isEnabled()) {
+            writeBehindQueue.enqueue(PendingEdit.rating(title, rating));
+            return 1;
+        }
+        return repository().updateRating(title, rating);
+    }
+
+    /**
+     * Returns the repository once the edits pending in the write-behind queue have been written to it, so that
+     * they are never written after a later change to the same movie
+     * @throws RejectedExecutionException if the pending edits could not be written
+     */
+    private MovieRepository repository() {
+        if (!writeBehindQueue.flush()) {
+            throw new RejectedExecutionException("Edits pending in the write-behind queue could not be written to the database");
+        }
+        return movieRepository;
+    }
+
+    /**
+     * Returns the repository for a read selecting movies by director or rating, which a pending edit could change,
+     * so the write-behind queue is flushed first if it has edits pending
+     * @throws RejectedExecutionException if the pending edits could not be written
+     */
+    private MovieRepository filteringRepository() {
+        return writeBehindQueue.hasPending() ? repository() : movieRepository;
+    }
+
+    /**
+     * Applies the edits that were pending in the write-behind queue before the movies were read from the database,
+     * so that they are seen without waiting for them to be written. The edits only set directors and ratings, so do
+     * not change which movies a read that is not filtered by them returns. An edit written while the movies were
+     * being read is applied again, which leaves the movie the same.
+     * @param edits Edits from the queue, taken before the movies were read
+     * @param movies Movies read from the database, or null if they could not be read
+     * @return The movies with the edits applied
+     */
+    private Map<String, Movie> withPendingEdits(Map<String, PendingEdit> edits, Map<String, Movie> movies) {
+        if (movies != null && !edits.isEmpty()) {
+            movies.forEach((title, movie) -> {
+                PendingEdit edit = edits.get(title);
+                if (edit != null) {
+                    edit.applyTo(movie);
+                }
+            });
+        }
+        return movies;
+    }
+
+    /**
+     * Called when the write-behind queue has discarded edits that were already applied to the snapshot and
+     * recorded as changes, to reload the snapshot from the database and make the change log's clients resync
+     */
+    private void editsDiscarded() {
+        catalogueSnapshot.invalidate();
+        changeLog.invalidate();
+        catalogueVersion.increment();
+    }
+
+    /**
+     * Records a change to one movie in the change log and increments the catalogue version, unless no movie was
+     * changed. Writes in the database match titles case insensitively, so if more than one movie was changed the
+     * change cannot be described, and clients are made to resync instead.
+     * @param rowsAffected Number of rows the database reported as changed
+     * @param change Change made to the movie
+     */
+    private void recordChange(int rowsAffected, MovieChange change) {
+        if (rowsAffected == 1) {
+            changeLog.record(change);
+        } else if (rowsAffected > 1) {
+            changeLog.invalidate();
+        }
+        if (rowsAffected > 0) {
+            catalogueVersion.increment();
+        }
+    }
+
+    /**
+     * Creates the movie that was added to the catalogue from a validated MovieIO
+     * @param movieIO MovieIO with its rating rounded, or -1.0 if it has none
+     * @return The movie as it is returned when read from the catalogue
+     */
+    private Movie movieFrom(MovieIO movieIO) {
+        Float rating = movieIO.getRating();
+        return new Movie(movieIO.getDirector(), rating == null || rating == (float) -1.0 ? Movie.NO_RATING : rating);
+    }
+
+    /**
+     * Looks up the movie with the given title, from the in-memory snapshot if it is available
+     * and otherwise from the database
+     * @param title Title of the movie to look up. Case sensitive.
+     * @return The movie with the given title, or null if there is none
+     */
+    private Movie findMovie(String title) {
+        return catalogueSnapshot.getMovieByTitle(title)
+                .map(movieMap -> movieMap.get(title))
+                .orElseGet(() -> repository().getMovieByTitle(title));
+    }
+
+    /**
+     * Gets a page of movies from the snapshot or the database. One more movie than the limit is fetched to
+     * find out whether there is a next page, in which case the cursor for it is set in the Catalogue. The
+     * cursor is the URL safe Base64 encoding of the last title in the page.
+     * @param director Optional director name to filter by
+     * @param rating Optional rounded rating to filter by
+     * @param limit Maximum number of movies in the page, or null for the maximum
+     * @param after Optional cursor from the previous page
+     * @throws IllegalArgumentException if the limit is not positive or the cursor is invalid
+     * @return A Catalogue containing the page of movies
+     */
+    private Catalogue getMoviesPage(String director, Float rating, Integer limit, String after) {
+        if (limit != null && limit <= 0) {
+            throw new IllegalArgumentException("The limit given must be a positive number");
+        }
+        int pageLimit = limit == null ? maxPageLimit : Math.min(limit, maxPageLimit);
+        String afterTitle = decodeCursor(after);
+
+        Map<String, Movie> movieMap = catalogueSnapshot.getMoviesPage(director, rating, afterTitle, pageLimit + 1).orElseGet(() -> {
+            Map<String, Movie> databaseMovies;
+            if (director == null && rating == null) {
+                Map<String, PendingEdit> edits = writeBehindQueue.pendingEdits();
+                databaseMovies = withPendingEdits(edits, movieRepository.getMoviesPage(null, null, afterTitle, pageLimit + 1));
+            } else {
+                databaseMovies = filteringRepository().getMoviesPage(director, rating, afterTitle, pageLimit + 1);
+            }
+            databaseMovies.forEach(handleNullRatings);
+            return databaseMovies;
+        });
+
+        Catalogue catalogue = new Catalogue();
+        if (movieMap.size() <= pageLimit) {
+            catalogue.setMovies(movieMap);
+            return catalogue;
+        }
+        Map<String, Movie> page = new LinkedHashMap<>();
+        Iterator<Map.Entry<String, Movie>> iterator = movieMap.entrySet().iterator();
+        String lastTitle = null;
+        while (page.size() < pageLimit) {
+            Map.Entry<String, Movie> entry = iterator.next();
+            page.put(entry.getKey(), entry.getValue());
+            lastTitle = entry.getKey();
+        }
+        catalogue.setMovies(page);
+        catalogue.setNext(Base64.getUrlEncoder().withoutPadding().encodeToString(lastTitle.getBytes(StandardCharsets.UTF_8)));
+        return catalogue;
+    }
+
+    /**
+     * Decodes a paging cursor back into the title it was created from
+     * @param cursor Cursor to decode, may be null
+     * @throws IllegalArgumentException if the cursor is not valid
+     * @return The title in the cursor, or null if the cursor is null
+     */
+    private String decodeCursor(String cursor) {
+        if (cursor == null || cursor.isEmpty()) {
+            return null;
+        }
+        try {
+            return new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("The cursor given for the after parameter is not valid");
+        }
     }
 
     /**
@@ -260,7 +862,7 @@ public class MovieCatalogueService {
      * @param decimalPlace number of decimal places to round to
      * @return d rounded to specified number of decimal places
      */
-    private Float roundRating(Float d, int decimalPlace) {
+    Float roundRating(Float d, int decimalPlace) {
         BigDecimal bd = new BigDecimal(Float.toString(d));
         bd = bd.setScale(decimalPlace, BigDecimal.ROUND_DOWN);
         return bd.floatValue();
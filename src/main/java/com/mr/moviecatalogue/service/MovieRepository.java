@@ -0,0 +1,165 @@
+package com.mr.moviecatalogue.service;
+
+import com.mr.moviecatalogue.domain.DirectorSuggestion;
+import com.mr.moviecatalogue.domain.Movie;
+import com.mr.moviecatalogue.inputobject.MovieIO;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Storage for the movies in the catalogue. The backend is chosen with the catalogue.repository property,
+ * either jdbc (the default, DatabaseService), sharded (ShardedMovieRepository) or memory (InMemoryMovieRepository).
+ *
+ * Movies without a rating are stored and returned with a rating of -1.0, and every Movie returned is a new
+ * object that the caller is free to modify. Title lookups are case sensitive unless stated otherwise.
+ *
+ * Directors whose names differ only in case are the same director, whose name is stored as it was spelt when the
+ * director was first stored, and movies are returned with that spelling whichever one they were given with.
+ */
+public interface MovieRepository {
+
+    /**
+     * Clears all of the movies from the catalogue
+     */
+    void dropDatabase();
+
+    /**
+     * Returns all of the movies in the catalogue
+     * @return A Map with all of the movies, keyed by their title, or null if the movies could not be read
+     */
+    Map<String, Movie> getAllMovies();
+
+    /**
+     * Reads every movie in title order and passes each one to the visitor as it is read
+     * @param visitor MovieVisitor to be called for each movie
+     * @throws IOException if the visitor fails, or the movies cannot be read
+     */
+    void streamAllMovies(MovieVisitor visitor) throws IOException;
+
+    /**
+     * Adds a movie to the catalogue. If it is added, the director of the MovieIO is set to the name stored for it.
+     * @param movieIO MovieIO containing the mandatory title and the director and rating values
+     * @return The number of movies added, which is 0 if the title is already in the catalogue
+     */
+    int addMovie(MovieIO movieIO);
+
+    /**
+     * Adds all of the given movies as one unit of work, skipping movies whose title is already present. The
+     * director of each MovieIO added is set to the name stored for it.
+     * @param movies MovieIOs containing the mandatory title and the director and rating values
+     * @return An array with one entry per movie, in order, holding 1 if the movie was added or 0 if its title
+     * was already present, or null if none of the movies could be added
+     */
+    int[] addMovies(List<MovieIO> movies);
+
+    /**
+     * Gets a movie by its title
+     * @param title Title to search for
+     * @return The movie, or null if there is no movie with the title
+     */
+    Movie getMovieByTitle(String title);
+
+    /**
+     * Gets all the movies by the given director. Not case sensitive.
+     * @param director Director name to be searched for. Can contain wildcard characters * or %
+     * @return A Map containing the matching movies, keyed by title
+     */
+    Map<String, Movie> getMoviesByDirector(String director);
+
+    /**
+     * Gets all the movies with a rating equal to or above the given rating
+     * @param rating Rating to be searched for
+     * @return A Map containing the matching movies, keyed by title
+     */
+    Map<String, Movie> getMoviesAboveRating(Float rating);
+
+    /**
+     * Gets all the movies by the given director with a rating equal to or above the given rating
+     * @param director Director name to be searched for. Can contain wildcard characters * or %
+     * @param rating Rating to be searched for
+     * @return A Map containing the matching movies, keyed by title
+     */
+    Map<String, Movie> getMoviesByDirectorAboveRating(String director, Float rating);
+
+    /**
+     * Gets one page of movies in title code point order, filtered as in getMoviesByDirector and
+     * getMoviesAboveRating when the filters are not null
+     * @param director Optional director name to be searched for. Can contain wildcard characters * or %
+     * @param rating Optional rating to be searched for
+     * @param afterTitle Optional title of the last movie on the previous page
+     * @param limit Maximum number of movies to return
+     * @return A LinkedHashMap containing the page of movies in title order, keyed by title
+     */
+    Map<String, Movie> getMoviesPage(String director, Float rating, String afterTitle, int limit);
+
+    /**
+     * Gets the directors with the most movies whose name starts with the prefix. Directors whose names differ
+     * only in case are counted together.
+     * @param prefix Start of the director's name, not case sensitive. Wildcard characters are taken literally.
+     * @param limit Maximum number of directors to return
+     * @return A List of the directors in order of most movies first then by name, or null if they could not be read
+     */
+    List<DirectorSuggestion> suggestDirectors(String prefix, int limit);
+
+    /**
+     * Edits a movie as one unit of work, setting only the fields that are not null. The movie is left as it is if
+     * it already has all of the values given.
+     * @param title Current title of movie to be edited
+     * @param newTitle New title to be set, or null to keep the current title
+     * @param director Director name to be set, or null to keep the current director
+     * @param rating Rating to be set, or null to keep the current rating
+     * @return Map containing the edited movie keyed by its title after the update, an empty map if there is
+     * no movie with the given title or it was left as it is, or null if the movie could not be updated
+     */
+    Map<String, Movie> editMovie(String title, String newTitle, String director, Float rating);
+
+    /**
+     * Sets the director of the movies with the given title. Not case sensitive.
+     * @param title title of movie to be updated
+     * @param director Director name to be set, or null to remove the director
+     * @return The number of movies updated
+     */
+    int updateDirector(String title, String director);
+
+    /**
+     * Sets the director of all the movies with the given titles as one unit of work, only if every title is present
+     * @param titles titles of movies to be updated
+     * @param director Director name to be set
+     * @return The movies as they are after the update keyed by title, with the name stored for the director. If
+     * any titles are not present no movies are updated, and the map holds each missing title mapped to null.
+     * Returns null if the update could not be made.
+     */
+    Map<String, Movie> updateDirectorForMovies(List<String> titles, String director);
+
+    /**
+     * Sets the rating of the movies with the given title. Not case sensitive.
+     * @param title title of movie to be updated
+     * @param rating Rating to be set, with -1.0 for no rating
+     * @return The number of movies updated
+     */
+    int updateRating(String title, Float rating);
+
+    /**
+     * Makes the director and rating changes of each edit as one unit of work. Titles are case sensitive.
+     * @param edits Edits to be made, at most one for each title
+     * @return An array with one entry per edit, in order, holding 1 if the movie was updated or 0 if its title is
+     * not present, or null if none of the edits could be made
+     */
+    int[] updateMovies(List<PendingEdit> edits);
+
+    /**
+     * Deletes the movies with the given title. Not case sensitive.
+     * @param title title of movie to be deleted
+     * @return The number of movies deleted
+     */
+    int deleteMovie(String title);
+
+    /**
+     * Removes the director from all movies with the given director. Not case sensitive.
+     * @param director director to be deleted from all movies they are currently set in
+     * @return The number of movies updated
+     */
+    int deleteDirector(String director);
+}
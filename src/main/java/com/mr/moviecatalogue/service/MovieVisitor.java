@@ -0,0 +1,21 @@
+package com.mr.moviecatalogue.service;
+
+import com.mr.moviecatalogue.domain.Movie;
+
+import java.io.IOException;
+
+/**
+ * Callback for handling movies one at a time as they are read, rather than collecting them into a Map first.
+ * Used to stream the catalogue straight to the response.
+ */
+@FunctionalInterface
+public interface MovieVisitor {
+
+    /**
+     * Handles a single movie
+     * @param title Title of the movie
+     * @param movie The movie's director and rating
+     * @throws IOException if the movie cannot be written out
+     */
+    void visit(String title, Movie movie) throws IOException;
+}
@@ -0,0 +1,63 @@
+package com.mr.moviecatalogue.service;
+
+import com.mr.moviecatalogue.domain.Movie;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Director and rating changes to one movie that have been accepted by the WriteBehindQueue and not yet written
+ * to the database. Fields that are not being changed are left unset, so that several edits to the same movie
+ * can be combined into one.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class PendingEdit {
+    //Title of the movie, matched case sensitively
+    private String title;
+    //True if the director is to be set, in which case a null director removes it
+    private boolean directorSet;
+    private String director;
+    //Rating to be set as stored in the database, with -1.0 for no rating, or null to leave the rating unchanged
+    private Float rating;
+
+    /**
+     * @return An edit setting the director of the movie, or removing it if the director is null
+     */
+    public static PendingEdit director(String title, String director) {
+        return new PendingEdit(title, true, director, null);
+    }
+
+    /**
+     * @return An edit setting the rating of the movie, with -1.0 to remove it
+     */
+    public static PendingEdit rating(String title, Float rating) {
+        return new PendingEdit(title, false, null, rating);
+    }
+
+    /**
+     * Combines this edit with one made after it to the same movie, with the later edit's fields taking precedence
+     * @param later Edit made after this one
+     * @return A new edit making both changes
+     */
+    public PendingEdit then(PendingEdit later) {
+        return new PendingEdit(title,
+                directorSet || later.directorSet,
+                later.directorSet ? later.director : director,
+                later.rating != null ? later.rating : rating);
+    }
+
+    /**
+     * Makes this edit's changes to a movie read from the database, before its rating has been handled
+     * @param movie Movie to be changed
+     */
+    public void applyTo(Movie movie) {
+        if (directorSet) {
+            movie.setDirectorName(director);
+        }
+        if (rating != null) {
+            movie.setRatingValue(rating);
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package com.mr.moviecatalogue.service;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BiConsumer;
+
+/**
+ * Index of movies by rating, so that "rating at least x" queries read only the matching movies rather than
+ * scanning the whole catalogue. Ratings are held to one decimal place between 0.0 and 5.0, so there is one
+ * bucket per tenth. Each bucket holds its titles and movies in chunks of a fixed size, so a query does not have to
+ * look every title up again in the catalogue. Movies without a rating are not indexed.
+ *
+ * Reads do not lock. A bucket is never changed once it has been published: an update publishes a new bucket in
+ * its place, copying only the chunks it changes and the list of chunks, so a query reads each bucket as it was when
+ * the query reached it. The position of each title is kept, and a removed movie is replaced by the bucket's last
+ * one, so an update does not search or copy the whole bucket. A query running alongside an update that moves a
+ * movie between buckets may see the movie in both or in neither. Updates must be made by one thread at a time,
+ * which the owners of the index ensure by holding their write lock, and every change to a movie must be put so
+ * that the movies held here stay the same as the ones in the catalogue.
+ * @param <V> Type of the movies held in the index
+ */
+class RatingIndex<V> {
+
+    //Above this share of the indexed movies matching, reading the matches through the index costs more than a scan
+    private static final double MAX_INDEXED_SHARE = 1.0 / 3;
+
+    private static final int BUCKETS = 51;
+
+    private final AtomicReferenceArray<Bucket> buckets = new AtomicReferenceArray<>(BUCKETS);
+
+    //Bucket and position each title is in. Only read by updates.
+    private final Map<String, Position> positions = new HashMap<>();
+
+    private volatile int size;
+
+    RatingIndex() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets.set(i, Bucket.EMPTY);
+        }
+    }
+
+    /**
+     * Indexes a movie under the given rating, replacing the movie held for the title and any rating it is
+     * already indexed under
+     * @param title Title of the movie
+     * @param rating Rating of the movie, or NaN or a negative rating if the movie has no rating
+     * @param value The movie
+     */
+    void put(String title, float rating, V value) {
+        if (!(rating >= 0)) {
+            remove(title);
+            return;
+        }
+        int bucket = bucketFor(rating);
+        Position position = positions.get(title);
+        if (position != null && position.bucket == bucket) {
+            buckets.set(bucket, buckets.get(bucket).replace(position.index, value));
+            return;
+        }
+        //Added to the new bucket before it is removed from the old one, so that a query sees at least one of them
+        Bucket added = buckets.get(bucket).add(title, value);
+        buckets.set(bucket, added);
+        if (position != null) {
+            removeAt(position);
+            position.bucket = bucket;
+            position.index = added.size - 1;
+        } else {
+            positions.put(title, new Position(bucket, added.size - 1));
+            size = positions.size();
+        }
+    }
+
+    /**
+     * Removes a title from the index
+     * @param title Title of the movie
+     */
+    void remove(String title) {
+        Position position = positions.remove(title);
+        if (position == null) {
+            return;
+        }
+        removeAt(position);
+        size = positions.size();
+    }
+
+    /**
+     * Removes every title from the index
+     */
+    void clear() {
+        positions.clear();
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets.set(i, Bucket.EMPTY);
+        }
+        size = 0;
+    }
+
+    /**
+     * Passes every movie with a rating equal to or above the given rating to the consumer, by reading the
+     * buckets from that rating upwards
+     * @param rating Rating to be searched for
+     * @param consumer Called with the title and movie of each match, in no particular order
+     * @return The number of matches
+     */
+    @SuppressWarnings("unchecked")
+    int forEachAtLeast(float rating, BiConsumer<String, V> consumer) {
+        int count = 0;
+        for (int i = firstBucketFor(rating); i < BUCKETS; i++) {
+            Bucket bucket = buckets.get(i);
+            for (int j = 0; j < bucket.size; j++) {
+                Chunk chunk = bucket.chunks[j / Chunk.SIZE];
+                consumer.accept(chunk.titles[j % Chunk.SIZE], (V) chunk.values[j % Chunk.SIZE]);
+            }
+            count += bucket.size;
+        }
+        return count;
+    }
+
+    /**
+     * Counts the movies with a rating equal to or above the given rating, without reading them. This
+     * lets callers decide whether reading the matches through the index is cheaper than a full scan.
+     * @param rating Rating to be searched for
+     * @return The number of matches
+     */
+    int countAtLeast(float rating) {
+        int count = 0;
+        for (int i = firstBucketFor(rating); i < BUCKETS; i++) {
+            count += buckets.get(i).size;
+        }
+        return count;
+    }
+
+    /**
+     * Checks whether a rating query is selective enough to be answered through the index
+     * @param rating Rating to be searched for
+     * @return The number of matches if the index should be used, or -1 if a scan would be cheaper
+     */
+    int plan(float rating) {
+        int matches = countAtLeast(rating);
+        return matches <= size() * MAX_INDEXED_SHARE ? matches : -1;
+    }
+
+    /**
+     * @return The number of titles in the index
+     */
+    int size() {
+        return size;
+    }
+
+    //Ratings are stored rounded to a tenth, so the first bucket is the first tenth at or above the rating
+    private static int firstBucketFor(float rating) {
+        return Math.max(0, (int) Math.ceil(rating * 10 - 0.001));
+    }
+
+    private static int bucketFor(float rating) {
+        return Math.min(BUCKETS - 1, Math.round(rating * 10));
+    }
+
+    //Moves the bucket's last title into the removed title's position
+    private void removeAt(Position position) {
+        Bucket current = buckets.get(position.bucket);
+        String last = current.title(current.size - 1);
+        buckets.set(position.bucket, current.remove(position.index));
+        Position moved = positions.get(last);
+        if (moved != null && moved != position) {
+            moved.index = position.index;
+        }
+    }
+
+    private static final class Position {
+        private int bucket;
+        private int index;
+
+        private Position(int bucket, int index) {
+            this.bucket = bucket;
+            this.index = index;
+        }
+    }
+
+    /**
+     * The titles and movies in one bucket, read up to size. An update that adds a movie to the end writes it into
+     * the same chunk when it has room, past the size of every bucket already published with it, so that it only
+     * has to add a chunk when the last one is full. Replacing or removing a movie copies the chunks it changes.
+     */
+    private static final class Bucket {
+
+        private static final Bucket EMPTY = new Bucket(new Chunk[0], 0);
+
+        private final Chunk[] chunks;
+        private final int size;
+
+        private Bucket(Chunk[] chunks, int size) {
+            this.chunks = chunks;
+            this.size = size;
+        }
+
+        private String title(int position) {
+            return chunks[position / Chunk.SIZE].titles[position % Chunk.SIZE];
+        }
+
+        private Bucket add(String title, Object value) {
+            Chunk[] newChunks = chunks;
+            int chunk = size / Chunk.SIZE;
+            if (size % Chunk.SIZE == 0) {
+                if (chunk == chunks.length) {
+                    newChunks = Arrays.copyOf(chunks, Math.max(4, chunk * 2));
+                }
+                newChunks[chunk] = new Chunk(new String[Chunk.SIZE], new Object[Chunk.SIZE]);
+            }
+            newChunks[chunk].titles[size % Chunk.SIZE] = title;
+            newChunks[chunk].values[size % Chunk.SIZE] = value;
+            return new Bucket(newChunks, size + 1);
+        }
+
+        private Bucket replace(int position, Object value) {
+            Chunk[] newChunks = chunks.clone();
+            Chunk chunk = chunks[position / Chunk.SIZE];
+            Chunk replaced = new Chunk(chunk.titles, chunk.values.clone());
+            replaced.values[position % Chunk.SIZE] = value;
+            newChunks[position / Chunk.SIZE] = replaced;
+            return new Bucket(newChunks, size);
+        }
+
+        //Moves the last movie into the removed movie's position
+        private Bucket remove(int position) {
+            Chunk[] newChunks = chunks.clone();
+            int last = size - 1;
+            Chunk lastChunk = copy(newChunks, last);
+            Chunk chunk = copy(newChunks, position);
+            chunk.titles[position % Chunk.SIZE] = lastChunk.titles[last % Chunk.SIZE];
+            chunk.values[position % Chunk.SIZE] = lastChunk.values[last % Chunk.SIZE];
+            lastChunk.titles[last % Chunk.SIZE] = null;
+            lastChunk.values[last % Chunk.SIZE] = null;
+            return new Bucket(newChunks, last);
+        }
+
+        //Copies the chunk holding the position into the new chunks, unless it has already been copied into them
+        private Chunk copy(Chunk[] newChunks, int position) {
+            Chunk chunk = newChunks[position / Chunk.SIZE];
+            if (chunk == chunks[position / Chunk.SIZE]) {
+                chunk = new Chunk(chunk.titles.clone(), chunk.values.clone());
+                newChunks[position / Chunk.SIZE] = chunk;
+            }
+            return chunk;
+        }
+    }
+
+    /**
+     * A fixed number of the titles and movies of a bucket
+     */
+    private static final class Chunk {
+
+        private static final int SIZE = 64;
+
+        private final String[] titles;
+        private final Object[] values;
+
+        private Chunk(String[] titles, Object[] values) {
+            this.titles = titles;
+            this.values = values;
+        }
+    }
+}
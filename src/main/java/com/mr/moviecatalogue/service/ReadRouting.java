@@ -0,0 +1,61 @@
+package com.mr.moviecatalogue.service;
+
+import java.util.function.Supplier;
+
+/**
+ * Records whether reads on the current thread have to go to the primary database rather than a replica, because
+ * they must see writes that the replicas may not have received yet. Set for each request by the
+ * ReadYourWritesFilter, and carried over to the threads that handle the request by propagate, which is registered
+ * as the TaskDecorator for the application's executors.
+ */
+public final class ReadRouting {
+
+    private static final ThreadLocal<Boolean> pinnedToPrimary = ThreadLocal.withInitial(() -> Boolean.FALSE);
+
+    private ReadRouting() {
+    }
+
+    /**
+     * @return true if reads on this thread must go to the primary
+     */
+    public static boolean isPinnedToPrimary() {
+        return pinnedToPrimary.get();
+    }
+
+    public static void setPinnedToPrimary(boolean pinned) {
+        pinnedToPrimary.set(pinned);
+    }
+
+    /**
+     * Runs a read against the primary, whatever the current thread is pinned to
+     * @param read Reads from the repository
+     * @return The result of the read
+     */
+    public static <T> T onPrimary(Supplier<T> read) {
+        boolean previous = isPinnedToPrimary();
+        setPinnedToPrimary(true);
+        try {
+            return read.get();
+        } finally {
+            setPinnedToPrimary(previous);
+        }
+    }
+
+    /**
+     * Wraps a task so that it runs pinned to the primary if the thread submitting it is
+     * @param task Task being handed to another thread
+     * @return The task to run in its place
+     */
+    public static Runnable propagate(Runnable task) {
+        boolean pinned = isPinnedToPrimary();
+        return () -> {
+            boolean previous = isPinnedToPrimary();
+            setPinnedToPrimary(pinned);
+            try {
+                task.run();
+            } finally {
+                setPinnedToPrimary(previous);
+            }
+        };
+    }
+}
@@ -0,0 +1,114 @@
+package com.mr.moviecatalogue.service;
+
+import com.zaxxer.hikari.HikariDataSource;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Connection pools for the read replicas of the database listed in catalogue.replicas.urls, which the
+ * DatabaseService sends its catalogue reads to in turn. Each replica has its own pool, named moviedb-replica-n,
+ * opened with the same credentials and session settings as the primary's. With no replicas listed every read
+ * goes to the primary.
+ *
+ * The replicas are expected to be streaming replicas of the primary, so the schema is only ever migrated on the
+ * primary, and the pools' connections are read only.
+ */
+@Component
+@ConditionalOnProperty(name = "catalogue.repository", havingValue = "jdbc", matchIfMissing = true)
+public class ReplicaDataSources {
+
+    @Autowired(required = false)
+    MeterRegistry meterRegistry;
+
+    @Value("${catalogue.replicas.urls:}")
+    private String[] urls;
+
+    @Value("${spring.datasource.username}")
+    private String databaseUser;
+
+    @Value("${spring.datasource.password}")
+    private String databasePassword;
+
+    @Value("${catalogue.replicas.maximum-pool-size:20}")
+    private int maximumPoolSize;
+
+    //Time to wait for a replica connection before the read is sent to the primary instead
+    @Value("${catalogue.replicas.connection-timeout:1000}")
+    private long connectionTimeout;
+
+    @Value("${spring.datasource.hikari.connection-init-sql:}")
+    private String connectionInitSql;
+
+    private final List<HikariDataSource> replicas = new ArrayList<>();
+
+    private final AtomicInteger nextReplica = new AtomicInteger();
+
+    //Reads sent to the primary because a replica connection could not be borrowed
+    private Counter fallbacks;
+
+    @PostConstruct
+    public void start() {
+        for (String url : urls) {
+            if (url.trim().isEmpty()) {
+                continue;
+            }
+            HikariDataSource replica = new HikariDataSource();
+            replica.setPoolName("moviedb-replica-" + (replicas.size() + 1));
+            replica.setJdbcUrl(url.trim());
+            replica.setUsername(databaseUser);
+            replica.setPassword(databasePassword);
+            replica.setMaximumPoolSize(maximumPoolSize);
+            replica.setMinimumIdle(Math.min(5, maximumPoolSize));
+            replica.setConnectionTimeout(connectionTimeout);
+            replica.setReadOnly(true);
+            //Start even if the replica is down, as reads fall back to the primary until it is up
+            replica.setInitializationFailTimeout(-1);
+            if (!connectionInitSql.isEmpty()) {
+                replica.setConnectionInitSql(connectionInitSql);
+            }
+            if (meterRegistry != null) {
+                replica.setMetricRegistry(meterRegistry);
+            }
+            replicas.add(replica);
+        }
+        if (meterRegistry != null) {
+            fallbacks = meterRegistry.counter("catalogue.replicas.fallbacks");
+            meterRegistry.gauge("catalogue.replicas", replicas, List::size);
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        replicas.forEach(HikariDataSource::close);
+    }
+
+    /**
+     * @return The replica to send the next read to, taking each in turn, or null if there are none
+     */
+    public DataSource next() {
+        if (replicas.isEmpty()) {
+            return null;
+        }
+        return replicas.get(Math.floorMod(nextReplica.getAndIncrement(), replicas.size()));
+    }
+
+    /**
+     * Counts a read that was sent to the primary because no replica connection was available
+     */
+    public void countFallback() {
+        if (fallbacks != null) {
+            fallbacks.increment();
+        }
+    }
+}
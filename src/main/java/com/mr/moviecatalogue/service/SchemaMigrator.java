@@ -0,0 +1,217 @@
+package com.mr.moviecatalogue.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+import org.springframework.core.io.support.ResourcePatternResolver;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StreamUtils;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Brings the database schema up to date by applying versioned SQL migration scripts. Scripts are read from
+ * the classpath and named V{version}__{description}.sql, and each one that has not yet been recorded in the
+ * schema_version table is run in its own transaction, in version order. A transaction scoped advisory lock
+ * is held while migrating so that several instances starting at once do not apply the same script twice.
+ *
+ * Scripts newer than catalogue.migration.target are not applied, so that a script removing what the previous
+ * release still uses can be shipped with a release and only applied by a later one. A script whose first line
+ * is "-- no-transaction" is run outside a transaction, holding a session advisory lock instead, so that it can
+ * commit as it goes, such as to backfill a large table in batches. It must be a single statement, and must be
+ * safe to run again if it is stopped part way through.
+ *
+ * The application's migrator is for the database at spring.datasource.url. Shards of a ShardedMovieRepository each
+ * have their own.
+ */
+@Component
+@ConditionalOnProperty(name = "catalogue.repository", havingValue = "jdbc", matchIfMissing = true)
+public class SchemaMigrator {
+
+    private static final Pattern MIGRATION_NAME = Pattern.compile("V(\\d+)__(.+)\\.sql");
+
+    //Arbitrary key for the advisory lock held while migrating
+    private static final long MIGRATION_LOCK_KEY = 7_011_355_201L;
+
+    private static final String NO_TRANSACTION = "-- no-transaction";
+
+    @Autowired
+    DataSource dataSource;
+
+    @Autowired(required = false)
+    MeterRegistry meterRegistry;
+
+    @Value("${catalogue.migration.location:classpath:db/migration}")
+    private String migrationLocation;
+
+    //Newest migration to apply
+    @Value("${catalogue.migration.target:2147483647}")
+    private int target = Integer.MAX_VALUE;
+
+    public SchemaMigrator() {
+    }
+
+    /**
+     * Creates a migrator for a database other than the application's own, such as a shard of a ShardedMovieRepository
+     */
+    SchemaMigrator(DataSource dataSource, String migrationLocation, int target) {
+        this.dataSource = dataSource;
+        this.migrationLocation = migrationLocation;
+        this.target = target;
+    }
+
+    /**
+     * Applies all of the migration scripts up to the target version that have not yet been applied to the database
+     * @return The number of migration scripts applied
+     * @throws SQLException if the database cannot be reached or a migration fails, in which case that
+     * migration is rolled back and no later migrations are applied
+     */
+    public int migrate() throws SQLException {
+        TreeMap<Integer, Resource> migrations = findMigrations();
+        Connection connection = null;
+        Statement statement = null;
+        PreparedStatement recordStatement = null;
+        ResultSet resultSet = null;
+        try {
+            connection = dataSource.getConnection();
+            statement = connection.createStatement();
+            statement.executeUpdate("CREATE TABLE IF NOT EXISTS schema_version (VERSION INT PRIMARY KEY NOT NULL, DESCRIPTION TEXT NOT NULL, INSTALLED_ON TIMESTAMP NOT NULL DEFAULT now())");
+            connection.setAutoCommit(false);
+            statement.execute("SELECT pg_advisory_xact_lock(" + MIGRATION_LOCK_KEY + ")");
+            resultSet = statement.executeQuery("SELECT COALESCE(MAX(VERSION), 0) FROM schema_version");
+            resultSet.next();
+            int currentVersion = resultSet.getInt(1);
+            connection.commit();
+
+            recordStatement = connection.prepareStatement("INSERT INTO schema_version (VERSION, DESCRIPTION) VALUES (?,?)");
+            int applied = 0;
+            for (Integer version : migrations.subMap(currentVersion, false, Math.max(target, currentVersion), true).keySet()) {
+                Resource migration = migrations.get(version);
+                String script = readScript(migration);
+                if (script.startsWith(NO_TRANSACTION)) {
+                    if (migrateOutsideTransaction(connection, statement, recordStatement, version, migration, script)) {
+                        applied++;
+                    }
+                    continue;
+                }
+                statement.execute("SELECT pg_advisory_xact_lock(" + MIGRATION_LOCK_KEY + ")");
+                //Another instance may have applied this migration while we waited for the lock
+                resultSet = statement.executeQuery("SELECT 1 FROM schema_version WHERE VERSION = " + version);
+                if (!resultSet.next()) {
+                    statement.execute(script);
+                    recordStatement.setInt(1, version);
+                    recordStatement.setString(2, describe(migration));
+                    recordStatement.executeUpdate();
+                    applied++;
+                    count("catalogue.schema.migrations");
+                }
+                connection.commit();
+            }
+            return applied;
+        } catch (SQLException sqle) {
+            if (connection != null && !connection.getAutoCommit()) {
+                connection.rollback();
+            }
+            throw sqle;
+        } finally {
+            try {
+                if (resultSet != null) {
+                    resultSet.close();
+                }
+                if (recordStatement != null) {
+                    recordStatement.close();
+                }
+                if (statement != null) {
+                    statement.close();
+                }
+                if (connection != null) {
+                    connection.setAutoCommit(true);
+                    connection.close();
+                }
+            } catch (Exception e) {
+                count(InstrumentedMovieRepository.ERRORS, "exception", e.getClass().getSimpleName());
+            }
+        }
+    }
+
+    /**
+     * Applies a migration that commits as it goes, holding the session advisory lock rather than the transaction
+     * scoped one, which is released before returning so that the pooled connection does not keep it
+     * @return true if the migration was applied, or false if another instance applied it first
+     */
+    private boolean migrateOutsideTransaction(Connection connection, Statement statement, PreparedStatement recordStatement,
+                                              Integer version, Resource migration, String script) throws SQLException {
+        connection.setAutoCommit(true);
+        statement.execute("SELECT pg_advisory_lock(" + MIGRATION_LOCK_KEY + ")");
+        try (ResultSet resultSet = statement.executeQuery("SELECT 1 FROM schema_version WHERE VERSION = " + version)) {
+            if (resultSet.next()) {
+                return false;
+            }
+            statement.execute(script);
+            recordStatement.setInt(1, version);
+            recordStatement.setString(2, describe(migration));
+            recordStatement.executeUpdate();
+            count("catalogue.schema.migrations");
+            return true;
+        } finally {
+            statement.execute("SELECT pg_advisory_unlock(" + MIGRATION_LOCK_KEY + ")");
+            connection.setAutoCommit(false);
+        }
+    }
+
+    /**
+     * Finds the migration scripts in the migration location
+     * @return The scripts keyed and ordered by version
+     * @throws IllegalStateException if the scripts cannot be read, or two scripts have the same version
+     */
+    TreeMap<Integer, Resource> findMigrations() {
+        ResourcePatternResolver resolver = new PathMatchingResourcePatternResolver();
+        TreeMap<Integer, Resource> migrations = new TreeMap<>();
+        try {
+            for (Resource resource : resolver.getResources(migrationLocation + "/V*__*.sql")) {
+                Matcher matcher = MIGRATION_NAME.matcher(resource.getFilename());
+                if (!matcher.matches()) {
+                    continue;
+                }
+                Resource duplicate = migrations.put(Integer.valueOf(matcher.group(1)), resource);
+                if (duplicate != null) {
+                    throw new IllegalStateException(String.format("Migrations %s and %s have the same version",
+                            duplicate.getFilename(), resource.getFilename()));
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Migration scripts could not be read from " + migrationLocation, e);
+        }
+        return migrations;
+    }
+
+    private String readScript(Resource migration) throws SQLException {
+        try (InputStream inputStream = migration.getInputStream()) {
+            return StreamUtils.copyToString(inputStream, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new SQLException("Migration " + migration.getFilename() + " could not be read", e);
+        }
+    }
+
+    private String describe(Resource migration) {
+        Matcher matcher = MIGRATION_NAME.matcher(migration.getFilename());
+        return matcher.matches() ? matcher.group(2).replace('_', ' ') : migration.getFilename();
+    }
+
+    //Shards' migrators are created without a registry, so count nothing
+    private void count(String name, String... tags) {
+        if (meterRegistry != null) {
+            meterRegistry.counter(name, tags).increment();
+        }
+    }
+}
@@ -0,0 +1,616 @@
+package com.mr.moviecatalogue.service;
+
+import com.mr.moviecatalogue.domain.DirectorSuggestion;
+import com.mr.moviecatalogue.domain.Movie;
+import com.mr.moviecatalogue.inputobject.MovieIO;
+import com.zaxxer.hikari.HikariDataSource;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Movie repository that spreads the catalogue over several PostgreSQL databases, listed in catalogue.shards.urls,
+ * each holding its own movie_table and director_table through a DatabaseService. Used when catalogue.repository
+ * is set to sharded.
+ *
+ * Each movie is held by the shard chosen by a jump consistent hash of its case folded title, so operations on one
+ * title go to one shard, including those that match titles whatever their case. Scans are sent to every shard at
+ * once and their results merged. Operations spanning shards are only a unit of work on each shard: if one shard
+ * fails, the changes already made on the others are kept.
+ *
+ * Adding a shard to the end of the list moves about 1/n of the movies to it, and shards being removed are listed
+ * in catalogue.shards.retired-urls. In either case an instance started with catalogue.shards.rebalance set moves
+ * every movie that is not on its shard before it starts serving requests.
+ */
+@Component
+@ConditionalOnProperty(name = "catalogue.repository", havingValue = "sharded")
+public class ShardedMovieRepository implements MovieRepository {
+
+    @Autowired
+    MeterRegistry meterRegistry;
+
+    @Autowired
+    CatalogueVersion catalogueVersion;
+
+    @Value("${catalogue.shards.urls:}")
+    private String[] urls;
+
+    @Value("${catalogue.shards.retired-urls:}")
+    private String[] retiredUrls;
+
+    @Value("${catalogue.shards.maximum-pool-size:10}")
+    private int maximumPoolSize;
+
+    @Value("${catalogue.shards.rebalance:false}")
+    private boolean rebalanceOnStart;
+
+    @Value("${spring.datasource.username}")
+    private String databaseUser;
+
+    @Value("${spring.datasource.password}")
+    private String databasePassword;
+
+    @Value("${spring.datasource.hikari.connection-timeout:2000}")
+    private long connectionTimeout;
+
+    @Value("${spring.datasource.hikari.connection-init-sql:}")
+    private String connectionInitSql;
+
+    @Value("${catalogue.migration.location:classpath:db/migration}")
+    private String migrationLocation;
+
+    @Value("${catalogue.migration.target:2147483647}")
+    private int migrationTarget = Integer.MAX_VALUE;
+
+    //Number of movies read from a shard at a time when streaming or rebalancing
+    @Value("${catalogue.streaming.fetch-size:500}")
+    private int pageSize;
+
+    //Shards in the order they are listed, which decides where each title is held, so must not be reordered
+    private List<DatabaseService> shards = new ArrayList<>();
+
+    //Shards being emptied by a rebalance, which are not otherwise read or written
+    private List<DatabaseService> retiredShards = new ArrayList<>();
+
+    private final List<HikariDataSource> pools = new ArrayList<>();
+
+    //Runs the calls to each shard for a scan, with a thread for each connection the shards can have open
+    private ExecutorService fanOutExecutor;
+
+    public ShardedMovieRepository() {
+    }
+
+    /**
+     * Creates a repository over shards that have already been set up
+     */
+    ShardedMovieRepository(List<DatabaseService> shards, List<DatabaseService> retiredShards, int pageSize) {
+        this.shards = shards;
+        this.retiredShards = retiredShards;
+        this.pageSize = pageSize;
+        fanOutExecutor = Executors.newFixedThreadPool(shards.size(), new CustomizableThreadFactory("catalogue-shard-"));
+    }
+
+    @PostConstruct
+    public void start() {
+        shards = openShards(urls);
+        retiredShards = openShards(retiredUrls);
+        if (shards.isEmpty()) {
+            throw new IllegalStateException("catalogue.shards.urls must list at least one database when catalogue.repository is sharded");
+        }
+        fanOutExecutor = Executors.newFixedThreadPool(shards.size() * maximumPoolSize, new CustomizableThreadFactory("catalogue-shard-"));
+        meterRegistry.gauge("catalogue.shards", shards, List::size);
+        if (rebalanceOnStart) {
+            rebalance();
+        }
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        fanOutExecutor.shutdown();
+        fanOutExecutor.awaitTermination(30, TimeUnit.SECONDS);
+        pools.forEach(HikariDataSource::close);
+    }
+
+    private List<DatabaseService> openShards(String[] shardUrls) {
+        List<DatabaseService> opened = new ArrayList<>();
+        for (String url : shardUrls) {
+            if (url.trim().isEmpty()) {
+                continue;
+            }
+            HikariDataSource pool = new HikariDataSource();
+            pool.setPoolName("moviedb-shard-" + (pools.size() + 1));
+            pool.setJdbcUrl(url.trim());
+            pool.setUsername(databaseUser);
+            pool.setPassword(databasePassword);
+            pool.setMaximumPoolSize(maximumPoolSize);
+            pool.setMinimumIdle(Math.min(5, maximumPoolSize));
+            pool.setConnectionTimeout(connectionTimeout);
+            //Start even if a shard is down, as only the movies it holds are unavailable until it is up
+            pool.setInitializationFailTimeout(-1);
+            if (!connectionInitSql.isEmpty()) {
+                pool.setConnectionInitSql(connectionInitSql);
+            }
+            pool.setMetricRegistry(meterRegistry);
+            pools.add(pool);
+            DatabaseService shard = new DatabaseService(pool, new SchemaMigrator(pool, migrationLocation, migrationTarget), url.trim(),
+                    databaseUser, databasePassword, pageSize, meterRegistry, catalogueVersion);
+            shard.initialiseSchema();
+            opened.add(shard);
+        }
+        return opened;
+    }
+
+    /**
+     * Chooses the shard for a title with Lamping and Veach's jump consistent hash of the 64 bit FNV-1a hash of
+     * its case folded UTF-8 bytes. When a shard is added only the movies moving to it change shard.
+     * @param title Title of the movie
+     * @param shardCount Number of shards
+     * @return Index of the shard holding the title
+     */
+    static int shardFor(String title, int shardCount) {
+        long key = 0xcbf29ce484222325L;
+        for (byte b : title.toLowerCase(Locale.ROOT).getBytes(StandardCharsets.UTF_8)) {
+            key = (key ^ (b & 0xff)) * 0x100000001b3L;
+        }
+        long bucket = -1;
+        long next = 0;
+        while (next < shardCount) {
+            bucket = next;
+            key = key * 2862933555777941757L + 1;
+            next = (long) ((bucket + 1) * ((double) (1L << 31) / (double) ((key >>> 33) + 1)));
+        }
+        return (int) bucket;
+    }
+
+    private DatabaseService shard(String title) {
+        return shards.get(shardFor(title, shards.size()));
+    }
+
+    /**
+     * Calls every shard at once and waits for all of them
+     * @return The result from each shard, in shard order
+     */
+    private <T> List<T> fanOut(Function<DatabaseService, T> call) {
+        List<CompletableFuture<T>> futures = new ArrayList<>();
+        for (DatabaseService shard : shards) {
+            futures.add(CompletableFuture.supplyAsync(() -> call.apply(shard), fanOutExecutor));
+        }
+        List<T> results = new ArrayList<>();
+        for (CompletableFuture<T> future : futures) {
+            results.add(join(future));
+        }
+        return results;
+    }
+
+    /**
+     * Merges the movies read from each shard
+     * @return All of the movies, or null if any shard's could not be read
+     */
+    private Map<String, Movie> merge(List<Map<String, Movie>> shardMovies) {
+        Map<String, Movie> merged = new HashMap<>();
+        for (Map<String, Movie> movies : shardMovies) {
+            if (movies == null) {
+                return null;
+            }
+            merged.putAll(movies);
+        }
+        return merged;
+    }
+
+    @Override
+    public void dropDatabase() {
+        fanOut(shard -> {
+            shard.dropDatabase();
+            return null;
+        });
+    }
+
+    @Override
+    public Map<String, Movie> getAllMovies() {
+        return merge(fanOut(DatabaseService::getAllMovies));
+    }
+
+    /**
+     * Reads each shard a page at a time, passing the movies to the visitor in title order by always taking the
+     * shard whose next title comes first
+     */
+    @Override
+    public void streamAllMovies(MovieVisitor visitor) throws IOException {
+        PriorityQueue<ShardCursor> cursors = new PriorityQueue<>(Comparator.comparing(ShardCursor::title));
+        for (DatabaseService shard : shards) {
+            ShardCursor cursor = new ShardCursor(shard);
+            if (cursor.advance()) {
+                cursors.add(cursor);
+            }
+        }
+        while (!cursors.isEmpty()) {
+            ShardCursor cursor = cursors.poll();
+            visitor.visit(cursor.title(), cursor.movie());
+            if (cursor.advance()) {
+                cursors.add(cursor);
+            }
+        }
+    }
+
+    @Override
+    public int addMovie(MovieIO movieIO) {
+        return shard(movieIO.getTitle()).addMovie(movieIO);
+    }
+
+    /**
+     * Adds the movies for each shard as one unit of work on that shard
+     * @return 1 or 0 for each movie as for one database, or null if the movies for any shard could not be added,
+     * although those for other shards may have been
+     */
+    @Override
+    public int[] addMovies(List<MovieIO> movies) {
+        Map<Integer, List<Integer>> byShard = groupByShard(movies.size(), i -> movies.get(i).getTitle());
+        int[] rowsAdded = new int[movies.size()];
+        boolean failed = false;
+        for (Map.Entry<Integer, int[]> added : callEachShard(byShard, (shard, indexes) -> {
+            List<MovieIO> shardMovies = new ArrayList<>();
+            indexes.forEach(i -> shardMovies.add(movies.get(i)));
+            return shard.addMovies(shardMovies);
+        }).entrySet()) {
+            if (added.getValue() == null) {
+                failed = true;
+                continue;
+            }
+            List<Integer> indexes = byShard.get(added.getKey());
+            for (int i = 0; i < indexes.size(); i++) {
+                rowsAdded[indexes.get(i)] = added.getValue()[i];
+            }
+        }
+        return failed ? null : rowsAdded;
+    }
+
+    @Override
+    public Movie getMovieByTitle(String title) {
+        return shard(title).getMovieByTitle(title);
+    }
+
+    @Override
+    public Map<String, Movie> getMoviesByDirector(String director) {
+        return merge(fanOut(shard -> shard.getMoviesByDirector(director)));
+    }
+
+    @Override
+    public Map<String, Movie> getMoviesAboveRating(Float rating) {
+        return merge(fanOut(shard -> shard.getMoviesAboveRating(rating)));
+    }
+
+    @Override
+    public Map<String, Movie> getMoviesByDirectorAboveRating(String director, Float rating) {
+        return merge(fanOut(shard -> shard.getMoviesByDirectorAboveRating(director, rating)));
+    }
+
+    /**
+     * Reads a page from every shard and keeps the first limit movies of them all
+     */
+    @Override
+    public Map<String, Movie> getMoviesPage(String director, Float rating, String afterTitle, int limit) {
+        Map<String, Movie> merged = merge(fanOut(shard -> shard.getMoviesPage(director, rating, afterTitle, limit)));
+        if (merged == null) {
+            return null;
+        }
+        Map<String, Movie> page = new LinkedHashMap<>();
+        for (Map.Entry<String, Movie> entry : new TreeMap<>(merged).entrySet()) {
+            if (page.size() == limit) {
+                break;
+            }
+            page.put(entry.getKey(), entry.getValue());
+        }
+        return page;
+    }
+
+    /**
+     * Adds up the counts of the directors suggested by each shard. A director's movies are spread over the shards
+     * by title, so a director just outside one shard's suggestions can be counted low.
+     */
+    @Override
+    public List<DirectorSuggestion> suggestDirectors(String prefix, int limit) {
+        Map<String, DirectorSuggestion> byName = new LinkedHashMap<>();
+        for (List<DirectorSuggestion> suggestions : fanOut(shard -> shard.suggestDirectors(prefix, limit))) {
+            if (suggestions == null) {
+                return null;
+            }
+            for (DirectorSuggestion suggestion : suggestions) {
+                byName.merge(suggestion.getDirector().toLowerCase(Locale.ROOT), new DirectorSuggestion(suggestion.getDirector(), suggestion.getMovies()),
+                        (counted, more) -> new DirectorSuggestion(counted.getDirector(), counted.getMovies() + more.getMovies()));
+            }
+        }
+        List<DirectorSuggestion> merged = new ArrayList<>(byName.values());
+        merged.sort(Comparator.comparingInt(DirectorSuggestion::getMovies).reversed().thenComparing(DirectorSuggestion::getDirector));
+        return merged.size() > limit ? new ArrayList<>(merged.subList(0, limit)) : merged;
+    }
+
+    /**
+     * Edits the movie on its shard. When the new title belongs on another shard the edited movie is added there
+     * and then removed from the old shard, which is not one unit of work: a failure between the two leaves the
+     * movie on both, until the next rebalance removes the copy on the old shard.
+     */
+    @Override
+    public Map<String, Movie> editMovie(String title, String newTitle, String director, Float rating) {
+        DatabaseService source = shard(title);
+        if (newTitle == null || shard(newTitle) == source) {
+            return source.editMovie(title, newTitle, director, rating);
+        }
+        Movie movie = source.getMovieByTitle(title);
+        if (movie == null) {
+            return new HashMap<>();
+        }
+        MovieIO added = new MovieIO(newTitle, director != null ? director : movie.getDirectorName(),
+                rating != null ? rating : storedRating(movie));
+        if (shard(newTitle).addMovie(added) == 0) {
+            //The new title is already taken
+            return null;
+        }
+        Movie edited = new Movie(added.getDirector(), added.getRating());
+        if (source.deleteMovies(Collections.singletonList(title)) < 0) {
+            //Left on both shards until a rebalance removes the old copy
+            count("catalogue.shards.stranded-copies", 1);
+        }
+        Map<String, Movie> editedMovie = new HashMap<>();
+        editedMovie.put(newTitle, edited);
+        return editedMovie;
+    }
+
+    @Override
+    public int updateDirector(String title, String director) {
+        return shard(title).updateDirector(title, director);
+    }
+
+    /**
+     * Checks that every title is present before setting the director on any shard, so that no movies are updated
+     * if one is missing. A movie deleted between the check and the update is still reported as missing, but the
+     * movies on other shards will have been updated.
+     */
+    @Override
+    public Map<String, Movie> updateDirectorForMovies(List<String> titles, String director) {
+        Map<Integer, List<Integer>> byShard = groupByShard(titles.size(), titles::get);
+        Map<String, Movie> missingMovies = new LinkedHashMap<>();
+        for (List<String> missing : callEachShard(byShard, (shard, indexes) -> {
+            List<String> shardMissing = new ArrayList<>();
+            indexes.forEach(i -> {
+                if (shard.getMovieByTitle(titles.get(i)) == null && !shardMissing.contains(titles.get(i))) {
+                    shardMissing.add(titles.get(i));
+                }
+            });
+            return shardMissing;
+        }).values()) {
+            missing.forEach(title -> missingMovies.put(title, null));
+        }
+        if (!missingMovies.isEmpty()) {
+            return missingMovies;
+        }
+        boolean failed = false;
+        Map<String, Movie> updatedMovies = new LinkedHashMap<>();
+        for (Map<String, Movie> updated : callEachShard(byShard, (shard, indexes) -> {
+            List<String> shardTitles = new ArrayList<>();
+            indexes.forEach(i -> shardTitles.add(titles.get(i)));
+            return shard.updateDirectorForMovies(shardTitles, director);
+        }).values()) {
+            if (updated == null) {
+                failed = true;
+            } else {
+                updatedMovies.putAll(updated);
+            }
+        }
+        return failed ? null : updatedMovies;
+    }
+
+    @Override
+    public int updateRating(String title, Float rating) {
+        return shard(title).updateRating(title, rating);
+    }
+
+    /**
+     * Makes the edits for each shard as one unit of work on that shard
+     * @return 1 or 0 for each edit as for one database, or null if the edits for any shard could not be made,
+     * although those for other shards may have been. Making the edits again is harmless.
+     */
+    @Override
+    public int[] updateMovies(List<PendingEdit> edits) {
+        Map<Integer, List<Integer>> byShard = groupByShard(edits.size(), i -> edits.get(i).getTitle());
+        int[] rowsUpdated = new int[edits.size()];
+        boolean failed = false;
+        for (Map.Entry<Integer, int[]> updated : callEachShard(byShard, (shard, indexes) -> {
+            List<PendingEdit> shardEdits = new ArrayList<>();
+            indexes.forEach(i -> shardEdits.add(edits.get(i)));
+            return shard.updateMovies(shardEdits);
+        }).entrySet()) {
+            if (updated.getValue() == null) {
+                failed = true;
+                continue;
+            }
+            List<Integer> indexes = byShard.get(updated.getKey());
+            for (int i = 0; i < indexes.size(); i++) {
+                rowsUpdated[indexes.get(i)] = updated.getValue()[i];
+            }
+        }
+        return failed ? null : rowsUpdated;
+    }
+
+    @Override
+    public int deleteMovie(String title) {
+        return shard(title).deleteMovie(title);
+    }
+
+    @Override
+    public int deleteDirector(String director) {
+        int rowsUpdated = 0;
+        for (Integer shardRows : fanOut(shard -> shard.deleteDirector(director))) {
+            rowsUpdated += shardRows;
+        }
+        return rowsUpdated;
+    }
+
+    /**
+     * Moves every movie that is not on the shard its title belongs on, including all of the movies on retired
+     * shards, a page at a time. Each page is added to the shards it belongs on before it is deleted from the one
+     * it was read from, so an interrupted rebalance leaves movies on both, and can be run again. Writes made
+     * during a rebalance go to the new shards, so movies still to be moved may be missed by reads until it ends.
+     * @return The number of movies moved
+     * @throws IllegalStateException if a shard could not be read or written, in which case the rebalance stops
+     */
+    public int rebalance() {
+        long start = System.nanoTime();
+        int moved = 0;
+        List<DatabaseService> sources = new ArrayList<>(shards);
+        sources.addAll(retiredShards);
+        for (int index = 0; index < sources.size(); index++) {
+            DatabaseService source = sources.get(index);
+            String after = null;
+            Map<String, Movie> page;
+            while (!(page = readPage(source, after)).isEmpty()) {
+                Map<Integer, List<MovieIO>> moves = new HashMap<>();
+                List<String> movedTitles = new ArrayList<>();
+                for (Map.Entry<String, Movie> entry : page.entrySet()) {
+                    after = entry.getKey();
+                    int target = shardFor(entry.getKey(), shards.size());
+                    if (target != index) {
+                        moves.computeIfAbsent(target, shard -> new ArrayList<>())
+                                .add(new MovieIO(entry.getKey(), entry.getValue().getDirectorName(), storedRating(entry.getValue())));
+                        movedTitles.add(entry.getKey());
+                    }
+                }
+                for (Map.Entry<Integer, List<MovieIO>> move : moves.entrySet()) {
+                    //Titles already on the target were copied by an earlier, interrupted rebalance, or written since
+                    if (shards.get(move.getKey()).addMovies(move.getValue()) == null) {
+                        throw new IllegalStateException("Movies could not be added to shard " + (move.getKey() + 1));
+                    }
+                }
+                if (!movedTitles.isEmpty() && source.deleteMovies(movedTitles) < 0) {
+                    throw new IllegalStateException("Moved movies could not be deleted from shard " + (index + 1));
+                }
+                moved += movedTitles.size();
+            }
+        }
+        if (meterRegistry != null) {
+            meterRegistry.timer("catalogue.shards.rebalance").record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+        count("catalogue.shards.rebalanced", moved);
+        return moved;
+    }
+
+    private Map<String, Movie> readPage(DatabaseService shard, String afterTitle) {
+        Map<String, Movie> page = shard.getMoviesPage(null, null, afterTitle, pageSize);
+        if (page == null) {
+            throw new IllegalStateException("Movies could not be read from a shard");
+        }
+        return page;
+    }
+
+    /**
+     * @return The rating as stored in the database, with -1.0 for no rating
+     */
+    //Repositories created over given shards, as in tests, have no registry
+    private void count(String name, int amount) {
+        if (meterRegistry != null) {
+            meterRegistry.counter(name).increment(amount);
+        }
+    }
+
+    private static float storedRating(Movie movie) {
+        return movie.hasRating() ? movie.getRatingValue() : -1.0f;
+    }
+
+    /**
+     * @return The indexes of the items held on each shard, keyed by the shard's index
+     */
+    private Map<Integer, List<Integer>> groupByShard(int size, Function<Integer, String> title) {
+        Map<Integer, List<Integer>> byShard = new TreeMap<>();
+        for (int i = 0; i < size; i++) {
+            byShard.computeIfAbsent(shardFor(title.apply(i), shards.size()), shard -> new ArrayList<>()).add(i);
+        }
+        return byShard;
+    }
+
+    /**
+     * Calls each shard that has items at once, passing it the indexes of its items, and waits for all of them
+     * @return The result from each shard, keyed by the shard's index
+     */
+    private <T> Map<Integer, T> callEachShard(Map<Integer, List<Integer>> byShard, ShardCall<T> call) {
+        Map<Integer, CompletableFuture<T>> futures = new TreeMap<>();
+        byShard.forEach((index, indexes) -> futures.put(index,
+                CompletableFuture.supplyAsync(() -> call.apply(shards.get(index), indexes), fanOutExecutor)));
+        Map<Integer, T> results = new TreeMap<>();
+        futures.forEach((index, future) -> results.put(index, join(future)));
+        return results;
+    }
+
+    /**
+     * Waits for a call to a shard, rethrowing any exception it threw
+     */
+    private static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private interface ShardCall<T> {
+        T apply(DatabaseService shard, List<Integer> indexes);
+    }
+
+    /**
+     * Reads the movies on one shard in title order, a page at a time
+     */
+    private class ShardCursor {
+        private final DatabaseService shard;
+        private Iterator<Map.Entry<String, Movie>> page = Collections.emptyIterator();
+        private Map.Entry<String, Movie> current;
+        private boolean lastPage;
+
+        ShardCursor(DatabaseService shard) {
+            this.shard = shard;
+        }
+
+        /**
+         * Moves to the next movie, reading the next page if needed
+         * @return false once there are no more movies
+         */
+        boolean advance() throws IOException {
+            if (!page.hasNext() && !lastPage) {
+                Map<String, Movie> next = shard.getMoviesPage(null, null, current == null ? null : current.getKey(), pageSize);
+                if (next == null) {
+                    throw new IOException("Movies could not be read from a shard");
+                }
+                lastPage = next.size() < pageSize;
+                page = next.entrySet().iterator();
+            }
+            if (!page.hasNext()) {
+                return false;
+            }
+            current = page.next();
+            return true;
+        }
+
+        String title() {
+            return current.getKey();
+        }
+
+        Movie movie() {
+            return current.getValue();
+        }
+    }
+}
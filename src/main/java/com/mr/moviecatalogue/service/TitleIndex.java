@@ -0,0 +1,532 @@
+package com.mr.moviecatalogue.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.StampedLock;
+import java.util.regex.Pattern;
+
+/**
+ * Inverted index of titles for full-text search. Titles are split into case folded words, and each distinct word
+ * has a primitive array of the ids of the titles containing it, with titles given int ids in the same way as in
+ * the RatingIndex. Words are held in sorted order so that the words starting with a query word can be read as a
+ * range. To find misspelt words, each distinct word is also given an id and split into trigrams padded with
+ * spaces at the start and end, with a primitive array of word ids for each trigram. Words sharing enough trigrams
+ * with a query word are then checked by edit distance, counting a swap of two letters as one edit.
+ *
+ * Each word of a query scores a title by its best match: the same word in the title, a word in the title
+ * starting with it, or otherwise a word within the allowed edits of it. Titles are ranked by the total over the
+ * query words, then by the fewest words, then by title. scan ranks titles without an index in exactly the same
+ * way, by scoring every title, and is what the index's results are checked against.
+ *
+ * Searches take a shared read lock and updates take an exclusive write lock. A title change is a remove of the
+ * old title and a put of the new one. A search keeps its scores in small hash maps of the title and word ids it
+ * matched, so the memory it uses follows the number of matches rather than the size of the index.
+ * @param <V> Type of the movies held in the index
+ */
+class TitleIndex<V> {
+
+    private static final Pattern WORD_SEPARATOR = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+    //Most words of a query that are searched for, to bound the work done for one request
+    static final int MAX_QUERY_WORDS = 8;
+
+    private static final float EXACT_SCORE = 1.0f;
+    private static final float PREFIX_SCORE = 0.75f;
+    //Misspelt matches score at most this, so that a typo never ranks above a title with the word spelt as searched
+    private static final float FUZZY_SCORE = 0.5f;
+    //Shorter query words match too many words as prefixes or with an edit, so they only match whole words
+    private static final int MIN_PREFIX_LENGTH = 2;
+    private static final int MIN_FUZZY_LENGTH = 4;
+    //Query words this long may have two edits rather than one. An edit changes at most four trigrams, so words
+    //within the allowed edits always share a trigram with the query word and are found through the trigrams.
+    private static final int TWO_EDIT_LENGTH = 8;
+    private static final int TRIGRAMS_PER_EDIT = 4;
+
+    //Best match first. Ties go to the title with fewer words, as more of it was matched, then to title order.
+    private static final Comparator<Match<?>> RANKING = Comparator.<Match<?>>comparingDouble(match -> -match.score)
+            .thenComparingInt(match -> match.words)
+            .thenComparing(match -> match.title);
+
+    private final StampedLock lock = new StampedLock();
+
+    private final Map<String, Integer> idsByTitle = new HashMap<>();
+    private String[] titles = new String[64];
+    private Object[] values = new Object[64];
+    //Number of words in each title, used to rank shorter titles first
+    private int[] wordCounts = new int[64];
+    private int[] freeIds = new int[16];
+    private int freeCount;
+    private int nextId;
+
+    private final TreeMap<String, Word> words = new TreeMap<>();
+    private Word[] wordsById = new Word[64];
+    private int[] freeWordIds = new int[16];
+    private int freeWordCount;
+    private int nextWordId;
+    //Ids of the words containing each trigram
+    private final Map<String, Postings> trigrams = new HashMap<>();
+
+    /**
+     * Indexes a title, or replaces the movie held for it if the title is already indexed
+     * @param title Title of the movie
+     * @param value The movie
+     */
+    void put(String title, V value) {
+        List<String> titleWords = words(title);
+        long stamp = lock.writeLock();
+        try {
+            Integer id = idsByTitle.get(title);
+            if (id != null) {
+                values[id] = value;
+                return;
+            }
+            id = allocate(title);
+            values[id] = value;
+            wordCounts[id] = titleWords.size();
+            for (String text : new HashSet<>(titleWords)) {
+                Word word = words.get(text);
+                if (word == null) {
+                    word = addWord(text);
+                }
+                word.titleIds.add(id);
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Removes a title from the index
+     * @param title Title of the movie
+     */
+    void remove(String title) {
+        List<String> titleWords = words(title);
+        long stamp = lock.writeLock();
+        try {
+            Integer id = idsByTitle.remove(title);
+            if (id == null) {
+                return;
+            }
+            for (String text : new HashSet<>(titleWords)) {
+                Word word = words.get(text);
+                if (word != null && word.titleIds.remove(id) && word.titleIds.size == 0) {
+                    removeWord(word);
+                }
+            }
+            titles[id] = null;
+            values[id] = null;
+            freeIds = append(freeIds, freeCount++, id);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Removes every title from the index
+     */
+    void clear() {
+        long stamp = lock.writeLock();
+        try {
+            idsByTitle.clear();
+            Arrays.fill(titles, null);
+            Arrays.fill(values, null);
+            freeCount = 0;
+            nextId = 0;
+            words.clear();
+            Arrays.fill(wordsById, null);
+            freeWordCount = 0;
+            nextWordId = 0;
+            trigrams.clear();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Finds the titles best matching the query words
+     * @param queryWords Words to be searched for, from queryWords
+     * @param limit Maximum number of titles to return
+     * @return A LinkedHashMap of the matching movies keyed by title, best match first
+     */
+    @SuppressWarnings("unchecked")
+    Map<String, V> search(List<String> queryWords, int limit) {
+        PriorityQueue<Match<?>> best = new PriorityQueue<>(RANKING.reversed());
+        //Total over the query words searched so far for each title id
+        Scores totals = new Scores();
+        long stamp = lock.readLock();
+        try {
+            for (String queryWord : queryWords) {
+                //Each query word scores a title by its best match, only added to the total once the word is searched
+                Scores wordScores = new Scores();
+                Map<String, Word> wordMatches = queryWord.length() >= MIN_PREFIX_LENGTH
+                        ? words.subMap(queryWord, true, queryWord + Character.MAX_VALUE, false)
+                        : words.subMap(queryWord, true, queryWord, true);
+                for (Word word : wordMatches.values()) {
+                    wordScores.match(word.titleIds, word.text.equals(queryWord) ? EXACT_SCORE : PREFIX_SCORE);
+                }
+                if (queryWord.length() >= MIN_FUZZY_LENGTH) {
+                    int maxEdits = maxEdits(queryWord);
+                    Set<String> queryTrigrams = trigrams(queryWord);
+                    //Number of the query word's trigrams each word id shares
+                    Scores sharedTrigrams = new Scores();
+                    for (String trigram : queryTrigrams) {
+                        Postings postings = trigrams.get(trigram);
+                        for (int i = 0; postings != null && i < postings.size; i++) {
+                            sharedTrigrams.add(postings.ids[i], 1);
+                        }
+                    }
+                    int minShared = Math.max(1, queryTrigrams.size() - TRIGRAMS_PER_EDIT * maxEdits);
+                    for (int i = 0; i < sharedTrigrams.ids.length; i++) {
+                        if (sharedTrigrams.ids[i] != Scores.NO_ID && sharedTrigrams.scores[i] >= minShared) {
+                            Word word = wordsById[sharedTrigrams.ids[i]];
+                            float score = fuzzyScore(queryWord, word.text, maxEdits);
+                            if (score > 0) {
+                                wordScores.match(word.titleIds, score);
+                            }
+                        }
+                    }
+                }
+                for (int i = 0; i < wordScores.ids.length; i++) {
+                    if (wordScores.ids[i] != Scores.NO_ID) {
+                        totals.add(wordScores.ids[i], wordScores.scores[i]);
+                    }
+                }
+            }
+            for (int i = 0; i < totals.ids.length; i++) {
+                int id = totals.ids[i];
+                if (id != Scores.NO_ID) {
+                    offer(best, new Match<>(titles[id], values[id], totals.scores[i], wordCounts[id]), limit);
+                }
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        return (Map<String, V>) ranked(best);
+    }
+
+    /**
+     * Ranks titles without an index, in the same way as search
+     * @param queryWords Words to be searched for, from queryWords
+     * @param movies Movies to be searched, keyed by title
+     * @param limit Maximum number of titles to return
+     * @return A LinkedHashMap of the matching movies keyed by title, best match first
+     */
+    @SuppressWarnings("unchecked")
+    static <V> Map<String, V> scan(List<String> queryWords, Map<String, V> movies, int limit) {
+        PriorityQueue<Match<?>> best = new PriorityQueue<>(RANKING.reversed());
+        movies.forEach((title, movie) -> {
+            List<String> titleWords = words(title);
+            float score = 0;
+            for (String queryWord : queryWords) {
+                score += score(queryWord, titleWords);
+            }
+            if (score > 0) {
+                offer(best, new Match<>(title, movie, score, titleWords.size()), limit);
+            }
+        });
+        return (Map<String, V>) ranked(best);
+    }
+
+    /**
+     * Splits a search query into the words to be searched for
+     * @param query Search query
+     * @return The distinct case folded words of the query, at most MAX_QUERY_WORDS of them
+     */
+    static List<String> queryWords(String query) {
+        List<String> queryWords = new ArrayList<>(new LinkedHashSet<>(words(query)));
+        return queryWords.size() > MAX_QUERY_WORDS ? new ArrayList<>(queryWords.subList(0, MAX_QUERY_WORDS)) : queryWords;
+    }
+
+    /**
+     * @return The number of titles in the index
+     */
+    int size() {
+        long stamp = lock.readLock();
+        try {
+            return idsByTitle.size();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private static float score(String queryWord, List<String> titleWords) {
+        if (titleWords.contains(queryWord)) {
+            return EXACT_SCORE;
+        }
+        if (queryWord.length() >= MIN_PREFIX_LENGTH && titleWords.stream().anyMatch(word -> word.startsWith(queryWord))) {
+            return PREFIX_SCORE;
+        }
+        float best = 0;
+        if (queryWord.length() >= MIN_FUZZY_LENGTH) {
+            int maxEdits = maxEdits(queryWord);
+            for (String word : titleWords) {
+                best = Math.max(best, fuzzyScore(queryWord, word, maxEdits));
+            }
+        }
+        return best;
+    }
+
+    private static int maxEdits(String queryWord) {
+        return queryWord.length() >= TWO_EDIT_LENGTH ? 2 : 1;
+    }
+
+    //Scores a word within the allowed edits by the share of its letters that did not need an edit
+    private static float fuzzyScore(String queryWord, String word, int maxEdits) {
+        int edits = edits(queryWord, word, maxEdits);
+        return edits > maxEdits ? 0 : FUZZY_SCORE * (1 - (float) edits / Math.max(queryWord.length(), word.length()));
+    }
+
+    //Optimal string alignment distance: insertions, deletions, substitutions and swaps of adjacent letters
+    private static int edits(String a, String b, int maxEdits) {
+        if (Math.abs(a.length() - b.length()) > maxEdits) {
+            return maxEdits + 1;
+        }
+        int[] twoRowsUp = new int[b.length() + 1];
+        int[] rowUp = new int[b.length() + 1];
+        int[] row = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++) {
+            rowUp[j] = j;
+        }
+        for (int i = 1; i <= a.length(); i++) {
+            row[0] = i;
+            for (int j = 1; j <= b.length(); j++) {
+                int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+                row[j] = Math.min(Math.min(rowUp[j] + 1, row[j - 1] + 1), rowUp[j - 1] + cost);
+                if (i > 1 && j > 1 && a.charAt(i - 1) == b.charAt(j - 2) && a.charAt(i - 2) == b.charAt(j - 1)) {
+                    row[j] = Math.min(row[j], twoRowsUp[j - 2] + 1);
+                }
+            }
+            int[] reused = twoRowsUp;
+            twoRowsUp = rowUp;
+            rowUp = row;
+            row = reused;
+        }
+        return rowUp[b.length()];
+    }
+
+    private static List<String> words(String text) {
+        List<String> textWords = new ArrayList<>();
+        for (String word : WORD_SEPARATOR.split(text.toLowerCase(Locale.ROOT))) {
+            if (!word.isEmpty()) {
+                textWords.add(word);
+            }
+        }
+        return textWords;
+    }
+
+    //Two spaces before the word give trigrams for its first letters, and one after marks its end
+    private static Set<String> trigrams(String word) {
+        Set<String> wordTrigrams = new HashSet<>();
+        String padded = "  " + word + " ";
+        for (int i = 0; i + 3 <= padded.length(); i++) {
+            wordTrigrams.add(padded.substring(i, i + 3));
+        }
+        return wordTrigrams;
+    }
+
+    private static void offer(PriorityQueue<Match<?>> best, Match<?> match, int limit) {
+        if (best.size() < limit) {
+            best.add(match);
+        } else if (RANKING.compare(match, best.peek()) < 0) {
+            best.poll();
+            best.add(match);
+        }
+    }
+
+    private static Map<String, Object> ranked(PriorityQueue<Match<?>> best) {
+        List<Match<?>> matches = new ArrayList<>(best);
+        matches.sort(RANKING);
+        Map<String, Object> ranked = new LinkedHashMap<>();
+        for (Match<?> match : matches) {
+            ranked.put(match.title, match.value);
+        }
+        return ranked;
+    }
+
+    private static int[] append(int[] ids, int size, int id) {
+        if (size == ids.length) {
+            ids = Arrays.copyOf(ids, size * 2);
+        }
+        ids[size] = id;
+        return ids;
+    }
+
+    private Word addWord(String text) {
+        int wordId;
+        if (freeWordCount > 0) {
+            wordId = freeWordIds[--freeWordCount];
+        } else {
+            wordId = nextWordId++;
+            if (wordId == wordsById.length) {
+                wordsById = Arrays.copyOf(wordsById, wordsById.length * 2);
+            }
+        }
+        Word word = new Word(text, wordId);
+        wordsById[wordId] = word;
+        words.put(text, word);
+        for (String trigram : trigrams(text)) {
+            trigrams.computeIfAbsent(trigram, key -> new Postings()).add(wordId);
+        }
+        return word;
+    }
+
+    private void removeWord(Word word) {
+        words.remove(word.text);
+        wordsById[word.id] = null;
+        for (String trigram : trigrams(word.text)) {
+            Postings postings = trigrams.get(trigram);
+            if (postings != null && postings.remove(word.id) && postings.size == 0) {
+                trigrams.remove(trigram);
+            }
+        }
+        freeWordIds = append(freeWordIds, freeWordCount++, word.id);
+    }
+
+    private int allocate(String title) {
+        int id;
+        if (freeCount > 0) {
+            id = freeIds[--freeCount];
+        } else {
+            id = nextId++;
+            if (id == titles.length) {
+                int capacity = titles.length * 2;
+                titles = Arrays.copyOf(titles, capacity);
+                values = Arrays.copyOf(values, capacity);
+                wordCounts = Arrays.copyOf(wordCounts, capacity);
+            }
+        }
+        titles[id] = title;
+        idsByTitle.put(title, id);
+        return id;
+    }
+
+    /**
+     * Ids of the titles containing a word, or of the words containing a trigram, in no particular order. Most
+     * words are in only a few titles, so lists start small.
+     */
+    private static final class Postings {
+        private int[] ids = new int[2];
+        private int size;
+
+        private void add(int id) {
+            ids = append(ids, size++, id);
+        }
+
+        //Moves the last id into the removed id's position
+        private boolean remove(int id) {
+            for (int i = 0; i < size; i++) {
+                if (ids[i] == id) {
+                    ids[i] = ids[--size];
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static final class Word {
+        private final String text;
+        private final int id;
+        private final Postings titleIds = new Postings();
+
+        private Word(String text, int id) {
+            this.text = text;
+            this.id = id;
+        }
+    }
+
+    /**
+     * Scores of title or word ids, in an open addressing hash table of primitive arrays so that a search does not
+     * box the ids it matches. Free slots hold NO_ID, as ids are never negative.
+     */
+    private static final class Scores {
+        private static final int NO_ID = -1;
+
+        private int[] ids = newIds(16);
+        private float[] scores = new float[16];
+        private int size;
+
+        //Adds to the score of an id, starting from zero
+        private void add(int id, float score) {
+            int slot = slot(id);
+            if (ids[slot] == NO_ID) {
+                insert(slot, id, score);
+            } else {
+                scores[slot] += score;
+            }
+        }
+
+        //Scores each of the title ids by the best of their scores
+        private void match(Postings titleIds, float score) {
+            for (int i = 0; i < titleIds.size; i++) {
+                int slot = slot(titleIds.ids[i]);
+                if (ids[slot] == NO_ID) {
+                    insert(slot, titleIds.ids[i], score);
+                } else {
+                    scores[slot] = Math.max(scores[slot], score);
+                }
+            }
+        }
+
+        private void insert(int slot, int id, float score) {
+            ids[slot] = id;
+            scores[slot] = score;
+            //Kept at most half full, so that probes stay short
+            if (++size * 2 > ids.length) {
+                int[] oldIds = ids;
+                float[] oldScores = scores;
+                ids = newIds(oldIds.length * 2);
+                scores = new float[oldIds.length * 2];
+                for (int i = 0; i < oldIds.length; i++) {
+                    if (oldIds[i] != NO_ID) {
+                        int newSlot = slot(oldIds[i]);
+                        ids[newSlot] = oldIds[i];
+                        scores[newSlot] = oldScores[i];
+                    }
+                }
+            }
+        }
+
+        //Linear probing from a hash spreading the ids, which are mostly small and consecutive
+        private int slot(int id) {
+            int mask = ids.length - 1;
+            int hash = id * 0x9E3779B9;
+            int slot = (hash ^ hash >>> 16) & mask;
+            while (ids[slot] != NO_ID && ids[slot] != id) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private static int[] newIds(int capacity) {
+            int[] ids = new int[capacity];
+            Arrays.fill(ids, NO_ID);
+            return ids;
+        }
+    }
+
+    private static final class Match<V> {
+        private final String title;
+        private final V value;
+        private final float score;
+        private final int words;
+
+        private Match(String title, V value, float score, int words) {
+            this.title = title;
+            this.value = value;
+            this.score = score;
+            this.words = words;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.mr.moviecatalogue.service;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Locks on the titles being changed, so that changes to the same movie are written to the database, applied to the
+ * snapshot and recorded in the change log one at a time, while changes to different movies run alongside each other.
+ * Titles are matched case insensitively, as the database matches them when writing. A set of titles is locked all
+ * at once, waiting until none of them are held, so two changes locking several titles cannot deadlock. A change
+ * that could affect any movie locks every title, waiting for the changes holding titles to finish, and titles are
+ * not locked while it is waiting so that it is not held off for long.
+ */
+class TitleLocks {
+
+    /**
+     * A lock that has been taken, released by closing it
+     */
+    interface Held extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    //Lower case forms of the titles that are locked
+    private final Set<String> held = new HashSet<>();
+
+    //Whether every title is locked, and the number of callers waiting to lock every title
+    private boolean exclusive;
+    private int exclusiveWaiting;
+
+    /**
+     * Locks one title, waiting until it is not held
+     * @param title Title to lock
+     * @throws RejectedExecutionException if interrupted while waiting
+     */
+    Held lock(String title) {
+        return lock(Collections.singletonList(title));
+    }
+
+    /**
+     * Locks all of the given titles, waiting until none of them are held
+     * @param titles Titles to lock, which may repeat. Null titles are ignored.
+     * @throws RejectedExecutionException if interrupted while waiting
+     */
+    Held lock(Collection<String> titles) {
+        Set<String> keys = new HashSet<>();
+        for (String title : titles) {
+            if (title != null) {
+                keys.add(key(title));
+            }
+        }
+        synchronized (this) {
+            while (exclusive || exclusiveWaiting > 0 || !Collections.disjoint(held, keys)) {
+                await();
+            }
+            held.addAll(keys);
+        }
+        return () -> {
+            synchronized (this) {
+                held.removeAll(keys);
+                notifyAll();
+            }
+        };
+    }
+
+    /**
+     * Locks every title, waiting until no titles are held
+     * @throws RejectedExecutionException if interrupted while waiting
+     */
+    Held lockAll() {
+        synchronized (this) {
+            exclusiveWaiting++;
+            try {
+                while (exclusive || !held.isEmpty()) {
+                    await();
+                }
+            } finally {
+                exclusiveWaiting--;
+                notifyAll();
+            }
+            exclusive = true;
+        }
+        return () -> {
+            synchronized (this) {
+                exclusive = false;
+                notifyAll();
+            }
+        };
+    }
+
+    private void await() {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while waiting for another change to the same movie", e);
+        }
+    }
+
+    private static String key(String title) {
+        return title.toLowerCase(Locale.ROOT);
+    }
+}
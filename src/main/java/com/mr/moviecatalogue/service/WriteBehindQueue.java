@@ -0,0 +1,547 @@
+package com.mr.moviecatalogue.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Queue of director and rating edits that have been accepted but not yet written to the database, used by the
+ * MovieCatalogueService when catalogue.write-behind.enabled is set. Each edit is appended to a journal file and
+ * forced to disk before it is accepted, so that edits accepted before a crash are written once the application
+ * restarts. Pending edits are held by title, and an edit to a title that already has one pending is combined with
+ * it, so however many times a movie is edited before the queue is flushed it is only written once.
+ *
+ * The queue is flushed by a background thread every catalogue.write-behind.flush-interval milliseconds, and as
+ * soon as catalogue.write-behind.batch-size titles are pending, writing the edits to the repository in
+ * transactions of up to that many movies. After each flush the journal is rewritten with only the edits still
+ * pending. When catalogue.write-behind.capacity titles are pending or being written, edits to other titles wait
+ * for a flush to make room, and are rejected if there is still none after catalogue.write-behind.offer-timeout.
+ *
+ * The queue does not answer reads. The service applies each accepted edit to the CatalogueSnapshot, and flushes
+ * the queue before anything is written to the repository, so that pending edits are never written after a later
+ * change to the same movie. Reads from the repository are not held up by a flush: the service applies the edits
+ * returned by pendingEdits to movies read by title or without a filter, and only flushes the queue first for reads
+ * that select movies by director or rating while edits are pending.
+ *
+ * Edits that update no movie, because there is no longer a movie with the title, are counted and reported. A
+ * batch that fails catalogue.write-behind.max-attempts flushes in a row has its edits written one at a time, and
+ * those that still fail while others succeed are moved to a quarantine file next to the journal, so that they no
+ * longer hold up the queue. If none of them can be written the database is taken to be unavailable and they are
+ * kept. Listeners added with addDiscardListener are called on the flush thread after edits have been discarded
+ * in either way, as the snapshot and change log have already been told about them.
+ */
+@Component
+public class WriteBehindQueue {
+
+    @Autowired
+    MovieRepository movieRepository;
+
+    @Autowired
+    ObjectMapper objectMapper;
+
+    @Autowired
+    MeterRegistry meterRegistry;
+
+    @Value("${catalogue.write-behind.enabled:false}")
+    private boolean enabled;
+
+    @Value("${catalogue.write-behind.journal:write-behind.journal}")
+    private String journal;
+
+    //Most titles with edits pending before further edits wait for a flush
+    @Value("${catalogue.write-behind.capacity:10000}")
+    private int capacity;
+
+    //Most movies written in one transaction, and the number of pending titles that starts a flush straight away
+    @Value("${catalogue.write-behind.batch-size:500}")
+    private int batchSize;
+
+    @Value("${catalogue.write-behind.flush-interval:200}")
+    private long flushInterval;
+
+    //Time an edit waits for room in a full queue before it is rejected
+    @Value("${catalogue.write-behind.offer-timeout:1000}")
+    private long offerTimeout;
+
+    //Flushes of a batch that can fail in a row before its edits are written one at a time
+    @Value("${catalogue.write-behind.max-attempts:5}")
+    private int maxAttempts;
+
+    //Guards the pending edits and the journal, and is notified when a flush has written edits from the queue
+    private final Object lock = new Object();
+
+    //Held while edits are written to the repository, so that only one flush runs at a time
+    private final Object flushLock = new Object();
+
+    //Pending edits keyed by title, in the order the titles were first edited
+    private final LinkedHashMap<String, PendingEdit> pending = new LinkedHashMap<>();
+
+    //Edits taken from the queue by a flush that is still writing them, which count towards the capacity
+    private List<PendingEdit> writing = Collections.emptyList();
+
+    //Number of flushes in a row that have failed to write a batch, guarded by the flush lock
+    private int failedFlushes;
+
+    //Called after edits that could not be written have been discarded
+    private final List<Runnable> discardListeners = new CopyOnWriteArrayList<>();
+
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    private ScheduledExecutorService flusher;
+    private Path journalPath;
+    private FileChannel journalChannel;
+
+    //True once an edit has been appended to the journal since it was last rewritten
+    private boolean journalGrown;
+
+    private Counter queued;
+    private Counter coalesced;
+    private Counter rejected;
+    private Counter unmatched;
+    private Counter quarantined;
+    private Counter retried;
+    private Counter replayed;
+    private Timer flushTimer;
+
+    @PostConstruct
+    public void start() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        queued = meterRegistry.counter("catalogue.write-behind.edits", "result", "queued");
+        coalesced = meterRegistry.counter("catalogue.write-behind.edits", "result", "coalesced");
+        rejected = meterRegistry.counter("catalogue.write-behind.edits", "result", "rejected");
+        unmatched = meterRegistry.counter("catalogue.write-behind.edits", "result", "unmatched");
+        quarantined = meterRegistry.counter("catalogue.write-behind.edits", "result", "quarantined");
+        retried = meterRegistry.counter("catalogue.write-behind.edits", "result", "retried");
+        replayed = meterRegistry.counter("catalogue.write-behind.edits", "result", "replayed");
+        flushTimer = meterRegistry.timer("catalogue.write-behind.flush");
+        meterRegistry.gauge("catalogue.write-behind.pending", this, queue -> queue.pendingCount());
+
+        journalPath = Paths.get(journal);
+        int replayedMovies = replayJournal();
+        journalChannel = openJournal();
+        flusher = Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("catalogue-write-behind-"));
+        flusher.scheduleWithFixedDelay(this::flushQuietly, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+        if (replayedMovies > 0) {
+            replayed.increment(replayedMovies);
+            scheduleFlush();
+        }
+    }
+
+    /**
+     * Stops the background flushes and writes out the edits still pending
+     */
+    @PreDestroy
+    public void stop() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        flusher.shutdown();
+        flush();
+        synchronized (lock) {
+            journalChannel.close();
+        }
+    }
+
+    /**
+     * @return true if director and rating edits should be queued rather than written straight to the repository
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Accepts an edit once it has been appended to the journal, combining it with any edit pending for the same
+     * title. Waits for a flush to make room if the queue is full and the title has no edit pending.
+     * @param edit Edit to be written to the repository
+     * @throws RejectedExecutionException if the queue is still full after the offer timeout
+     * @throws UncheckedIOException if the edit could not be written to the journal, in which case it is not accepted
+     */
+    public void enqueue(PendingEdit edit) {
+        synchronized (lock) {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(offerTimeout);
+            while (pending.size() + writing.size() >= capacity && !pending.containsKey(edit.getTitle())) {
+                scheduleFlush();
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0) {
+                    rejected.increment();
+                    throw new RejectedExecutionException("The write-behind queue is full");
+                }
+                try {
+                    lock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    rejected.increment();
+                    throw new RejectedExecutionException("Interrupted while waiting for room in the write-behind queue", e);
+                }
+            }
+            try {
+                journalChannel.write(ByteBuffer.wrap(journalLine(edit)));
+                journalChannel.force(false);
+                journalGrown = true;
+            } catch (IOException e) {
+                throw new UncheckedIOException("The edit could not be written to the write-behind journal", e);
+            }
+            PendingEdit previous = pending.get(edit.getTitle());
+            pending.put(edit.getTitle(), previous == null ? edit : previous.then(edit));
+            (previous == null ? queued : coalesced).increment();
+            if (pending.size() >= batchSize) {
+                scheduleFlush();
+            }
+        }
+    }
+
+    /**
+     * Adds a listener to be called after edits that could not be written to the database have been discarded.
+     * Listeners are called on the flush thread without any of the queue's locks held.
+     * @param listener Listener to call
+     */
+    public void addDiscardListener(Runnable listener) {
+        discardListeners.add(listener);
+    }
+
+    /**
+     * Returns the edits that have been accepted and not yet written, including those being written by a flush that
+     * has not finished, combined by title
+     * @return The edits keyed by title, empty if the queue is disabled
+     */
+    public Map<String, PendingEdit> pendingEdits() {
+        if (!enabled) {
+            return Collections.emptyMap();
+        }
+        synchronized (lock) {
+            Map<String, PendingEdit> edits = new LinkedHashMap<>();
+            writing.forEach(edit -> edits.put(edit.getTitle(), edit));
+            pending.forEach((title, edit) -> edits.merge(title, edit, PendingEdit::then));
+            return edits;
+        }
+    }
+
+    /**
+     * Returns the edit to one title that has been accepted and not yet written, in the same way as pendingEdits
+     * @param title Title of the movie, matched case sensitively
+     * @return The edit, or null if there is none
+     */
+    public PendingEdit pendingEdit(String title) {
+        if (!enabled) {
+            return null;
+        }
+        synchronized (lock) {
+            PendingEdit edit = null;
+            for (PendingEdit written : writing) {
+                if (written.getTitle().equals(title)) {
+                    edit = written;
+                }
+            }
+            PendingEdit later = pending.get(title);
+            return edit == null ? later : later == null ? edit : edit.then(later);
+        }
+    }
+
+    /**
+     * @return true if there are edits accepted and not yet written, including those being written by a flush
+     */
+    public boolean hasPending() {
+        if (!enabled) {
+            return false;
+        }
+        synchronized (lock) {
+            return !pending.isEmpty() || !writing.isEmpty();
+        }
+    }
+
+    /**
+     * Writes the pending edits to the repository, waiting for any flush already running. Edits accepted while the
+     * flush runs are left for the next one, unless they are to titles that were already pending. Edits that could
+     * not be written stay pending, and are tried again by the next flush, unless they are quarantined.
+     * @return true if every edit accepted before the call has been written or discarded, or false if some could not be
+     */
+    public boolean flush() {
+        if (!enabled) {
+            return true;
+        }
+        synchronized (flushLock) {
+            int remaining = pendingCount();
+            while (remaining > 0) {
+                List<PendingEdit> batch = new ArrayList<>();
+                synchronized (lock) {
+                    Iterator<PendingEdit> edits = pending.values().iterator();
+                    while (edits.hasNext() && batch.size() < Math.min(batchSize, remaining)) {
+                        batch.add(edits.next());
+                        edits.remove();
+                    }
+                    writing = batch;
+                }
+                if (batch.isEmpty()) {
+                    break;
+                }
+                remaining -= batch.size();
+                long start = System.nanoTime();
+                int[] rowsUpdated = write(batch);
+                if (rowsUpdated == null && ++failedFlushes >= maxAttempts) {
+                    rowsUpdated = writeSeparately(batch);
+                }
+                flushTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                if (rowsUpdated == null) {
+                    restore(batch);
+                    retried.increment(batch.size());
+                    return false;
+                }
+                failedFlushes = 0;
+                reportUnmatched(batch, rowsUpdated);
+                synchronized (lock) {
+                    writing = Collections.emptyList();
+                    lock.notifyAll();
+                }
+            }
+            try {
+                compactJournal();
+            } catch (IOException e) {
+                //The journal still holds every pending edit, along with ones already written, which are harmless to replay
+                countError(e);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @return The number of titles with edits pending
+     */
+    public int pendingCount() {
+        synchronized (lock) {
+            return pending.size();
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            countError(e);
+        }
+    }
+
+    /**
+     * Counts a failure to write, journal or report edits under catalogue.write-behind.errors, tagged with the type
+     * of exception
+     */
+    private void countError(Exception e) {
+        meterRegistry.counter("catalogue.write-behind.errors", "exception", e.getClass().getSimpleName()).increment();
+    }
+
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            flusher.execute(() -> {
+                flushScheduled.set(false);
+                flushQuietly();
+            });
+        }
+    }
+
+    /**
+     * @return The number of movies updated by each edit, or null if the batch could not be written
+     */
+    private int[] write(List<PendingEdit> batch) {
+        try {
+            return movieRepository.updateMovies(batch);
+        } catch (RuntimeException e) {
+            countError(e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes each edit of a batch that has failed too many flushes in its own transaction, to find the edits that
+     * cannot be written. If any of them can be written the database is available, so those that cannot are
+     * quarantined rather than holding up the queue any longer.
+     * @return The number of movies updated by each edit, -1 for those quarantined, or null if none of them could be written
+     */
+    private int[] writeSeparately(List<PendingEdit> batch) {
+        int[] rowsUpdated = new int[batch.size()];
+        List<PendingEdit> failed = new ArrayList<>();
+        for (int i = 0; i < batch.size(); i++) {
+            int[] rows = write(Collections.singletonList(batch.get(i)));
+            if (rows == null) {
+                failed.add(batch.get(i));
+                rowsUpdated[i] = -1;
+            } else {
+                rowsUpdated[i] = rows[0];
+            }
+        }
+        if (failed.size() == batch.size()) {
+            return null;
+        }
+        if (!failed.isEmpty()) {
+            try {
+                quarantine(failed);
+            } catch (IOException e) {
+                countError(e);
+                return null;
+            }
+            quarantined.increment(failed.size());
+            scheduleDiscardNotice();
+        }
+        return rowsUpdated;
+    }
+
+    /**
+     * Appends edits that cannot be written to the quarantine file, so that they can be looked into and applied by hand
+     */
+    private void quarantine(List<PendingEdit> edits) throws IOException {
+        try (FileChannel channel = FileChannel.open(quarantinePath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND)) {
+            for (PendingEdit edit : edits) {
+                channel.write(ByteBuffer.wrap(journalLine(edit)));
+            }
+            channel.force(false);
+        }
+    }
+
+    private Path quarantinePath() {
+        return journalPath.resolveSibling(journalPath.getFileName() + ".quarantine");
+    }
+
+    /**
+     * Reports the edits in a written batch that updated no movie, as there was no movie with the title by then
+     */
+    private void reportUnmatched(List<PendingEdit> batch, int[] rowsUpdated) {
+        List<String> titles = new ArrayList<>();
+        for (int i = 0; i < batch.size(); i++) {
+            if (rowsUpdated[i] == 0) {
+                titles.add(batch.get(i).getTitle());
+            }
+        }
+        if (!titles.isEmpty()) {
+            unmatched.increment(titles.size());
+            scheduleDiscardNotice();
+        }
+    }
+
+    /**
+     * Calls the discard listeners on the flush thread once the current flush has finished, so that they are not
+     * called holding the flush lock, which a request thread can wait for while holding locks of its own
+     */
+    private void scheduleDiscardNotice() {
+        if (discardListeners.isEmpty()) {
+            return;
+        }
+        try {
+            flusher.execute(() -> discardListeners.forEach(Runnable::run));
+        } catch (RejectedExecutionException e) {
+            //The queue is stopping, so the discarded edits are not reported to listeners
+            countError(e);
+        }
+    }
+
+    /**
+     * Puts edits that could not be written back into the queue, ahead of any made to the same titles since
+     */
+    private void restore(List<PendingEdit> batch) {
+        synchronized (lock) {
+            LinkedHashMap<String, PendingEdit> restored = new LinkedHashMap<>();
+            for (PendingEdit edit : batch) {
+                PendingEdit later = pending.get(edit.getTitle());
+                restored.put(edit.getTitle(), later == null ? edit : edit.then(later));
+            }
+            pending.forEach(restored::putIfAbsent);
+            pending.clear();
+            pending.putAll(restored);
+            writing = Collections.emptyList();
+        }
+    }
+
+    /**
+     * Reads the edits left in the journal by a previous run into the queue. A last line only partly written
+     * before a crash was never accepted, so is skipped.
+     * @return The number of titles with edits pending
+     */
+    private int replayJournal() throws IOException {
+        if (!Files.exists(journalPath)) {
+            return 0;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(journalPath, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                PendingEdit edit;
+                try {
+                    edit = objectMapper.readValue(line, PendingEdit.class);
+                } catch (IOException e) {
+                    //An incomplete edit, written as the application stopped
+                    countError(e);
+                    continue;
+                }
+                pending.merge(edit.getTitle(), edit, PendingEdit::then);
+                journalGrown = true;
+            }
+        }
+        return pending.size();
+    }
+
+    /**
+     * Replaces the journal with one holding only the edits still pending. The new journal is written alongside
+     * and moved over the old one, so a crash part way through leaves one or the other.
+     */
+    private void compactJournal() throws IOException {
+        synchronized (lock) {
+            if (!journalGrown) {
+                return;
+            }
+            Path compacted = journalPath.resolveSibling(journalPath.getFileName() + ".tmp");
+            try (FileChannel channel = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                for (PendingEdit edit : pending.values()) {
+                    channel.write(ByteBuffer.wrap(journalLine(edit)));
+                }
+                channel.force(false);
+            }
+            journalChannel.close();
+            Files.move(compacted, journalPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            journalChannel = openJournal();
+            journalGrown = !pending.isEmpty();
+        }
+    }
+
+    private FileChannel openJournal() throws IOException {
+        return FileChannel.open(journalPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private byte[] journalLine(PendingEdit edit) throws IOException {
+        byte[] json = objectMapper.writeValueAsBytes(edit);
+        byte[] line = new byte[json.length + 1];
+        System.arraycopy(json, 0, line, 0, json.length);
+        line[json.length] = '\n';
+        return line;
+    }
+}
@@ -0,0 +1,2 @@
+-- Movie catalogue table, keyed by the case sensitive title
+CREATE TABLE IF NOT EXISTS movie_table (TITLE TEXT PRIMARY KEY NOT NULL, DIRECTOR TEXT, RATING FLOAT);
@@ -0,0 +1,2 @@
+-- Supports the keyset queries in getMoviesPage and the streamed catalogue, which order titles by code point
+CREATE INDEX IF NOT EXISTS movie_title_c_idx ON movie_table (TITLE COLLATE "C");
@@ -0,0 +1,10 @@
+-- Case insensitive title lookups used by updateDirector, updateRating and deleteMovie
+CREATE INDEX IF NOT EXISTS movie_lower_title_idx ON movie_table (lower(TITLE));
+
+-- Director searches use LOWER(DIRECTOR) LIKE LOWER(?). text_pattern_ops lets a left anchored pattern
+-- such as 'guy%' use the index whatever the database collation is, and it also serves the equality
+-- match in deleteDirector
+CREATE INDEX IF NOT EXISTS movie_lower_director_idx ON movie_table (lower(DIRECTOR) text_pattern_ops);
+
+-- RATING >= ? filters
+CREATE INDEX IF NOT EXISTS movie_rating_idx ON movie_table (RATING);
@@ -0,0 +1,70 @@
+-- Directors are held once each in director_table and movies refer to them by id. The unique key is the case
+-- folded name, so that directors differing only in case are the same director, as they already are for the
+-- director searches and deletes. The name stored is the first spelling added. text_pattern_ops lets left
+-- anchored LIKE patterns use the key as well as equality matches.
+--
+-- The directors are moved over in three migrations, so that the catalogue stays readable and writable by both
+-- old and new instances throughout. This one adds the table, the id column and movie_view, V5 backfills the ids
+-- in batches, and V6 drops the director column. V4 and V5 are applied by one release, which reads through
+-- movie_view and writes only the ids, while instances of the previous release keep reading and writing the
+-- director names. V6 is held back by catalogue.migration.target until a later release, once every instance
+-- reads through movie_view.
+CREATE TABLE IF NOT EXISTS director_table (DIRECTOR_ID SERIAL PRIMARY KEY NOT NULL, NAME TEXT NOT NULL);
+CREATE UNIQUE INDEX IF NOT EXISTS director_lower_name_idx ON director_table (lower(NAME) text_pattern_ops);
+
+-- Returns the id of the director with the given name, adding the director if there is not one yet, or null for
+-- a null name. Writes pass the director's name through this rather than looking the id up themselves.
+CREATE OR REPLACE FUNCTION director_id(director_name TEXT) RETURNS INT AS $$
+DECLARE
+    id INT;
+BEGIN
+    IF director_name IS NULL THEN
+        RETURN NULL;
+    END IF;
+    SELECT DIRECTOR_ID INTO id FROM director_table WHERE lower(NAME) = lower(director_name);
+    IF id IS NULL THEN
+        INSERT INTO director_table (NAME) VALUES (director_name) ON CONFLICT DO NOTHING RETURNING DIRECTOR_ID INTO id;
+    END IF;
+    IF id IS NULL THEN
+        -- Added by another transaction since the first lookup
+        SELECT DIRECTOR_ID INTO id FROM director_table WHERE lower(NAME) = lower(director_name);
+    END IF;
+    RETURN id;
+END;
+$$ LANGUAGE plpgsql;
+
+-- A nullable column without a default is only added to the catalog, so the movies are not rewritten here
+ALTER TABLE movie_table ADD COLUMN IF NOT EXISTS DIRECTOR_ID INT REFERENCES director_table (DIRECTOR_ID) ON DELETE SET NULL;
+
+-- Until V6 drops the director column, keeps the name and the id in step both ways: the id is set for movies
+-- written with a director name by instances that have not been upgraded, and the name is set for movies written
+-- with an id by those that have. A name that only differs in case from the director's is left as it was written.
+CREATE OR REPLACE FUNCTION movie_director_id_sync() RETURNS TRIGGER AS $$
+DECLARE
+    director_name TEXT;
+BEGIN
+    IF TG_OP = 'UPDATE' AND NEW.DIRECTOR IS DISTINCT FROM OLD.DIRECTOR
+            OR TG_OP = 'INSERT' AND NEW.DIRECTOR IS NOT NULL THEN
+        NEW.DIRECTOR_ID := director_id(NEW.DIRECTOR);
+    ELSIF TG_OP = 'INSERT' OR NEW.DIRECTOR_ID IS DISTINCT FROM OLD.DIRECTOR_ID THEN
+        SELECT NAME INTO director_name FROM director_table WHERE DIRECTOR_ID = NEW.DIRECTOR_ID;
+        IF lower(director_name) IS DISTINCT FROM lower(NEW.DIRECTOR) THEN
+            NEW.DIRECTOR := director_name;
+        END IF;
+    END IF;
+    RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS movie_director_id_sync ON movie_table;
+CREATE TRIGGER movie_director_id_sync BEFORE INSERT OR UPDATE OF DIRECTOR, DIRECTOR_ID ON movie_table
+    FOR EACH ROW EXECUTE FUNCTION movie_director_id_sync();
+
+-- Movies of a director, for the director searches and deletes. The column is still empty, so this is quick to build.
+CREATE INDEX IF NOT EXISTS movie_director_id_idx ON movie_table (DIRECTOR_ID);
+
+-- Movies with their director's name, in the same columns as movie_table had before, for the queries that read
+-- movies. Movies are only missing their director here until V5 has backfilled their id.
+CREATE OR REPLACE VIEW movie_view AS
+    SELECT movie_table.TITLE, director_table.NAME AS DIRECTOR, movie_table.RATING
+    FROM movie_table LEFT JOIN director_table ON director_table.DIRECTOR_ID = movie_table.DIRECTOR_ID;
@@ -0,0 +1,30 @@
+-- no-transaction
+-- Adds a director for each case folded name in movie_table, keeping the first spelling in title order, and then
+-- sets the id of every movie with a director, in batches of 10000 movies in title order. Each batch is committed
+-- before the next, so rows are only locked for as long as one batch takes, and the catalogue can be read and
+-- written throughout. Writes made since V4 already have their id set by the trigger. The migration runs outside
+-- a transaction so that it can commit, and only sets ids that are missing, so can be run again if it is stopped
+-- part way through.
+DO $$
+DECLARE
+    last_title TEXT := '';
+    batch_last_title TEXT;
+BEGIN
+    INSERT INTO director_table (NAME)
+        SELECT DISTINCT ON (lower(DIRECTOR)) DIRECTOR FROM movie_table WHERE DIRECTOR IS NOT NULL
+        ORDER BY lower(DIRECTOR), TITLE COLLATE "C"
+        ON CONFLICT DO NOTHING;
+    COMMIT;
+    LOOP
+        SELECT max(TITLE) INTO batch_last_title FROM (
+            SELECT TITLE COLLATE "C" AS TITLE FROM movie_table WHERE TITLE COLLATE "C" > last_title
+            ORDER BY TITLE COLLATE "C" LIMIT 10000) AS batch;
+        EXIT WHEN batch_last_title IS NULL;
+        UPDATE movie_table SET DIRECTOR_ID = director_id(DIRECTOR)
+            WHERE TITLE COLLATE "C" > last_title AND TITLE COLLATE "C" <= batch_last_title
+            AND DIRECTOR IS NOT NULL AND DIRECTOR_ID IS NULL;
+        COMMIT;
+        last_title := batch_last_title;
+    END LOOP;
+END;
+$$;
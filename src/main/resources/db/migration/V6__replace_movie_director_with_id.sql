@@ -0,0 +1,8 @@
+-- Contract step of the move to director_table, only applied once catalogue.migration.target is raised to 6 by a
+-- release after the one that applied V4 and V5, when every instance reads through movie_view and no instance
+-- writes the director names any longer. Every movie has its director's id by then, so the director names are
+-- dropped from movie_table along with the trigger that kept them in step with the ids. Dropping a column only
+-- changes the catalog, and also drops movie_lower_director_idx.
+DROP TRIGGER IF EXISTS movie_director_id_sync ON movie_table;
+DROP FUNCTION IF EXISTS movie_director_id_sync();
+ALTER TABLE movie_table DROP COLUMN IF EXISTS DIRECTOR;
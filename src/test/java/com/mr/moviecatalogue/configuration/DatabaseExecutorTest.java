@@ -0,0 +1,60 @@
+package com.mr.moviecatalogue.configuration;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+public class DatabaseExecutorTest {
+
+    private DatabaseExecutor databaseExecutor;
+
+    @Before
+    public void setup() {
+        databaseExecutor = new DatabaseExecutor();
+        ReflectionTestUtils.setField(databaseExecutor, "poolSize", 1);
+        ReflectionTestUtils.setField(databaseExecutor, "queueCapacity", 1);
+        databaseExecutor.start();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        databaseExecutor.stop();
+    }
+
+    @Test
+    public void test_supply_completes_with_result() throws ExecutionException, InterruptedException {
+        assertEquals("Hot Fuzz", databaseExecutor.supply(() -> "Hot Fuzz").get());
+    }
+
+    @Test
+    public void test_work_beyond_the_queue_is_rejected() throws ExecutionException, InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch running = new CountDownLatch(1);
+        CompletableFuture<String> blocked = databaseExecutor.supply(() -> {
+            running.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return "Hot Fuzz";
+        });
+        running.await();
+        CompletableFuture<String> queued = databaseExecutor.supply(() -> "Snatch");
+        assertThrows(RejectedExecutionException.class, () -> databaseExecutor.supply(() -> "Tropic Thunder"));
+        release.countDown();
+        assertEquals("Hot Fuzz", blocked.get());
+        assertEquals("Snatch", queued.get());
+    }
+}
@@ -0,0 +1,52 @@
+package com.mr.moviecatalogue.configuration;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import javax.servlet.ServletException;
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+public class InFlightRequestFilterTest {
+
+    private MeterRegistry meterRegistry;
+    private InFlightRequestFilter filter;
+
+    @Before
+    public void setup() {
+        meterRegistry = new SimpleMeterRegistry();
+        filter = new InFlightRequestFilter(meterRegistry);
+    }
+
+    @Test
+    public void test_request_is_counted_while_it_is_handled() throws ServletException, IOException {
+        filter.doFilter(new MockHttpServletRequest(), new MockHttpServletResponse(), (request, response) ->
+                assertEquals(1.0, meterRegistry.get("catalogue.requests.in.flight").gauge().value()));
+        assertEquals(0, filter.getInFlight());
+    }
+
+    @Test
+    public void test_request_is_counted_after_exception() {
+        assertThrows(IllegalStateException.class, () -> filter.doFilter(new MockHttpServletRequest(), new MockHttpServletResponse(),
+                (request, response) -> { throw new IllegalStateException(); }));
+        assertEquals(0, filter.getInFlight());
+    }
+
+    @Test
+    public void test_async_request_is_counted_until_it_completes() throws ServletException, IOException {
+        MockHttpServletRequest asyncRequest = new MockHttpServletRequest();
+        asyncRequest.setAsyncSupported(true);
+        filter.doFilter(asyncRequest, new MockHttpServletResponse(), (request, response) -> request.startAsync());
+        assertEquals(1, filter.getInFlight());
+        asyncRequest.getAsyncContext().complete();
+        assertEquals(0, filter.getInFlight());
+    }
+}
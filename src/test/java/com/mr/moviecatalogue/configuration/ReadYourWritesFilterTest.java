@@ -0,0 +1,71 @@
+package com.mr.moviecatalogue.configuration;
+
+import com.mr.moviecatalogue.service.ReadRouting;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.Cookie;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+public class ReadYourWritesFilterTest {
+
+    private ReadYourWritesFilter filter;
+
+    @Before
+    public void setup() {
+        filter = new ReadYourWritesFilter(5000);
+    }
+
+    @Test
+    public void test_write_is_pinned_to_primary_and_sets_cookie() throws ServletException, IOException {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        assertTrue(pinned(new MockHttpServletRequest("PATCH", "/movies/Hot Fuzz"), response));
+        Cookie cookie = response.getCookie(ReadYourWritesFilter.COOKIE_NAME);
+        assertNotNull(cookie);
+        assertTrue(Long.parseLong(cookie.getValue()) > System.currentTimeMillis());
+        assertFalse(ReadRouting.isPinnedToPrimary());
+    }
+
+    @Test
+    public void test_read_is_pinned_to_primary_only_within_cookie_window() throws ServletException, IOException {
+        assertFalse(pinned(new MockHttpServletRequest("GET", "/movies"), new MockHttpServletResponse()));
+
+        MockHttpServletRequest recentWriter = new MockHttpServletRequest("GET", "/movies");
+        recentWriter.setCookies(new Cookie(ReadYourWritesFilter.COOKIE_NAME, String.valueOf(System.currentTimeMillis() + 1000)));
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        assertTrue(pinned(recentWriter, response));
+        assertNull(response.getCookie(ReadYourWritesFilter.COOKIE_NAME));
+
+        MockHttpServletRequest expired = new MockHttpServletRequest("GET", "/movies");
+        expired.setCookies(new Cookie(ReadYourWritesFilter.COOKIE_NAME, String.valueOf(System.currentTimeMillis() - 1)));
+        assertFalse(pinned(expired, new MockHttpServletResponse()));
+
+        MockHttpServletRequest invalid = new MockHttpServletRequest("GET", "/movies");
+        invalid.setCookies(new Cookie(ReadYourWritesFilter.COOKIE_NAME, "forever"));
+        assertFalse(pinned(invalid, new MockHttpServletResponse()));
+    }
+
+    @Test
+    public void test_routing_is_carried_over_to_decorated_tasks() {
+        AtomicBoolean pinned = new AtomicBoolean();
+        Runnable task = ReadRouting.onPrimary(() -> ReadRouting.propagate(() -> pinned.set(ReadRouting.isPinnedToPrimary())));
+        task.run();
+        assertTrue(pinned.get());
+        assertFalse(ReadRouting.isPinnedToPrimary());
+    }
+
+    private boolean pinned(MockHttpServletRequest request, MockHttpServletResponse response) throws ServletException, IOException {
+        AtomicBoolean pinned = new AtomicBoolean();
+        filter.doFilter(request, response, (filteredRequest, filteredResponse) -> pinned.set(ReadRouting.isPinnedToPrimary()));
+        return pinned.get();
+    }
+}
@@ -0,0 +1,111 @@
+package com.mr.moviecatalogue.configuration;
+
+import com.mr.moviecatalogue.domain.Catalogue;
+import com.mr.moviecatalogue.domain.Movie;
+import com.mr.moviecatalogue.inputobject.DirectorIO;
+import com.mr.moviecatalogue.inputobject.MovieIO;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.http.converter.cbor.MappingJackson2CborHttpMessageConverter;
+import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
+import org.springframework.http.converter.smile.MappingJackson2SmileHttpMessageConverter;
+import org.springframework.mock.http.MockHttpInputMessage;
+import org.springframework.mock.http.MockHttpOutputMessage;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+public class ServiceContextTest {
+
+    private static final MediaType SMILE = new MediaType("application", "x-jackson-smile");
+
+    private List<HttpMessageConverter<?>> converters;
+    private Catalogue catalogue;
+
+    @Before
+    public void setup() {
+        converters = new ArrayList<>();
+        new ServiceContext().configureMessageConverters(converters);
+
+        catalogue = new Catalogue();
+        catalogue.setMovies(new HashMap<>());
+        catalogue.getMovies().put("Hot Fuzz", new Movie(Optional.of("Edgar Wright"), Optional.of(Float.valueOf((float) 5.0))));
+        catalogue.getMovies().put("Shaun of the Dead", new Movie(Optional.of("Edgar Wright"), Optional.empty()));
+        catalogue.getMovies().put("Snatch", new Movie(Optional.empty(), Optional.of(Float.valueOf((float) 4.5))));
+    }
+
+    @Test
+    public void test_json_is_written_before_binary_formats_when_any_type_is_accepted() {
+        int json = indexOf(MappingJackson2HttpMessageConverter.class);
+        assertTrue(json < indexOf(MappingJackson2SmileHttpMessageConverter.class));
+        assertTrue(json < indexOf(MappingJackson2CborHttpMessageConverter.class));
+    }
+
+    @Test
+    public void test_catalogue_round_trips_through_smile_and_cbor() throws IOException {
+        MappingJackson2SmileHttpMessageConverter smile = converter(MappingJackson2SmileHttpMessageConverter.class);
+        assertEquals(catalogue, smile.read(Catalogue.class, new MockHttpInputMessage(write(smile, catalogue, SMILE))));
+
+        MappingJackson2CborHttpMessageConverter cbor = converter(MappingJackson2CborHttpMessageConverter.class);
+        assertEquals(catalogue, cbor.read(Catalogue.class, new MockHttpInputMessage(write(cbor, catalogue, MediaType.APPLICATION_CBOR))));
+    }
+
+    @Test
+    public void test_request_bodies_are_read_from_smile() throws IOException {
+        MappingJackson2SmileHttpMessageConverter smile = converter(MappingJackson2SmileHttpMessageConverter.class);
+        MovieIO movieIO = new MovieIO("Hot Fuzz", "Edgar Wright", Float.valueOf((float) 5.0));
+        assertEquals(movieIO, smile.read(MovieIO.class, new MockHttpInputMessage(write(smile, movieIO, SMILE))));
+
+        DirectorIO directorIO = new DirectorIO("Edgar Wright", Arrays.asList("Hot Fuzz", "Shaun of the Dead"));
+        assertEquals(directorIO, smile.read(DirectorIO.class, new MockHttpInputMessage(write(smile, directorIO, SMILE))));
+    }
+
+    @Test
+    public void test_movies_are_written_as_json_with_null_for_a_missing_director_or_rating() throws IOException {
+        MappingJackson2HttpMessageConverter json = converter(MappingJackson2HttpMessageConverter.class);
+        assertEquals("{\"director\":null,\"rating\":4.5}",
+                new String(write(json, catalogue.getMovies().get("Snatch"), MediaType.APPLICATION_JSON), "UTF-8"));
+        assertEquals("{\"director\":\"Edgar Wright\",\"rating\":null}",
+                new String(write(json, catalogue.getMovies().get("Shaun of the Dead"), MediaType.APPLICATION_JSON), "UTF-8"));
+        assertEquals(catalogue, json.read(Catalogue.class, new MockHttpInputMessage(write(json, catalogue, MediaType.APPLICATION_JSON))));
+    }
+
+    @Test
+    public void test_smile_catalogue_is_smaller_than_json() throws IOException {
+        byte[] json = write(converter(MappingJackson2HttpMessageConverter.class), catalogue, MediaType.APPLICATION_JSON);
+        byte[] smile = write(converter(MappingJackson2SmileHttpMessageConverter.class), catalogue, SMILE);
+        assertTrue(smile.length < json.length);
+    }
+
+    private int indexOf(Class<?> converterClass) {
+        for (int i = 0; i < converters.size(); i++) {
+            if (converters.get(i).getClass() == converterClass) {
+                return i;
+            }
+        }
+        fail(converterClass.getSimpleName() + " is not configured");
+        return -1;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T converter(Class<T> converterClass) {
+        return (T) converters.get(indexOf(converterClass));
+    }
+
+    private byte[] write(HttpMessageConverter<Object> converter, Object body, MediaType mediaType) throws IOException {
+        MockHttpOutputMessage outputMessage = new MockHttpOutputMessage();
+        converter.write(body, mediaType, outputMessage);
+        return outputMessage.getBodyAsBytes();
+    }
+}
@@ -0,0 +1,188 @@
+package com.mr.moviecatalogue.controller;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mr.moviecatalogue.domain.ChangeType;
+import com.mr.moviecatalogue.domain.MovieChange;
+import com.mr.moviecatalogue.service.ChangeLog;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+public class ChangeBroadcasterTest {
+
+    private ChangeLog changeLog;
+    private ChangeBroadcaster changeBroadcaster;
+
+    @Before
+    public void setup() {
+        changeLog = new ChangeLog();
+        ReflectionTestUtils.setField(changeLog, "capacity", 100);
+        changeLog.initialise();
+
+        changeBroadcaster = new ChangeBroadcaster();
+        changeBroadcaster.changeLog = changeLog;
+        changeBroadcaster.objectMapper = Jackson2ObjectMapperBuilder.json().build();
+        ReflectionTestUtils.setField(changeBroadcaster, "bufferSize", 3);
+        ReflectionTestUtils.setField(changeBroadcaster, "maxSubscribers", 2);
+        ReflectionTestUtils.setField(changeBroadcaster, "senderThreads", 2);
+        ReflectionTestUtils.setField(changeBroadcaster, "timeout", 60000L);
+        changeBroadcaster.start();
+    }
+
+    @After
+    public void tearDown() {
+        changeBroadcaster.stop();
+    }
+
+    @Test
+    public void test_recorded_changes_are_sent_to_subscribers_in_order() throws InterruptedException {
+        long subscribedAt = changeLog.latest();
+        RecordingEmitter emitter = new RecordingEmitter(null);
+        changeBroadcaster.subscribe(emitter);
+
+        changeLog.record(change("Hot Fuzz"));
+        changeLog.record(change("Snatch"));
+
+        await(() -> emitter.events().size() == 3);
+        List<String> events = emitter.events();
+        assertEquals("id:" + subscribedAt + "\nevent:subscribed\ndata:" + subscribedAt, events.get(0));
+        assertTrue(events.get(1).startsWith("id:" + (subscribedAt + 1) + "\nevent:DELETED\ndata:{"));
+        assertTrue(events.get(2).contains("\"title\":\"Snatch\""));
+        assertFalse(emitter.completed);
+    }
+
+    @Test
+    public void test_slow_subscriber_is_disconnected_without_blocking_writes_or_other_subscribers() throws InterruptedException {
+        CountDownLatch released = new CountDownLatch(1);
+        RecordingEmitter slowEmitter = new RecordingEmitter(released);
+        RecordingEmitter emitter = new RecordingEmitter(null);
+        changeBroadcaster.subscribe(slowEmitter);
+        changeBroadcaster.subscribe(emitter);
+
+        //The slow subscriber is stuck sending its first event, so the changes overflow its queue while the other keeps up
+        for (int i = 0; i < 5; i++) {
+            changeLog.record(change("Movie " + i));
+            int sent = i + 2;
+            await(() -> emitter.events().size() == sent);
+        }
+        await(() -> changeBroadcaster.subscriberCount() == 1);
+        assertFalse(slowEmitter.completed);
+
+        released.countDown();
+        await(() -> slowEmitter.completed);
+        assertFalse(emitter.completed);
+    }
+
+    @Test
+    public void test_subscribers_are_disconnected_when_changes_cannot_be_described() throws InterruptedException {
+        RecordingEmitter emitter = new RecordingEmitter(null);
+        changeBroadcaster.subscribe(emitter);
+
+        changeLog.invalidate();
+
+        await(() -> emitter.completed);
+        assertEquals(0, changeBroadcaster.subscriberCount());
+    }
+
+    @Test
+    public void test_subscribers_are_disconnected_when_a_change_cannot_be_written() throws InterruptedException {
+        changeBroadcaster.objectMapper = new ObjectMapper() {
+            @Override
+            public String writeValueAsString(Object value) throws JsonProcessingException {
+                if ("Unwritable".equals(((MovieChange) value).getTitle())) {
+                    throw new JsonMappingException(null, "Cannot write change");
+                }
+                return super.writeValueAsString(value);
+            }
+        };
+        RecordingEmitter emitter = new RecordingEmitter(null);
+        changeBroadcaster.subscribe(emitter);
+        changeLog.record(change("Hot Fuzz"));
+        await(() -> emitter.events().size() == 2);
+
+        changeLog.record(change("Unwritable"));
+        changeLog.record(change("Snatch"));
+
+        await(() -> emitter.completed);
+        assertEquals(0, changeBroadcaster.subscriberCount());
+        assertEquals(2, emitter.events().size());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void test_subscribe_is_rejected_when_at_maximum_subscribers() {
+        changeBroadcaster.subscribe(new RecordingEmitter(null));
+        changeBroadcaster.subscribe(new RecordingEmitter(null));
+        changeBroadcaster.subscribe(new RecordingEmitter(null));
+    }
+
+    private MovieChange change(String title) {
+        return new MovieChange(0, ChangeType.DELETED, title, null, null, null);
+    }
+
+    private void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Timed out waiting for the broadcaster");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Emitter that records the text sent to it, optionally waiting on a latch before each write to act as a slow client
+     */
+    private static class RecordingEmitter extends ResponseBodyEmitter {
+
+        private final List<String> sent = new CopyOnWriteArrayList<>();
+        private final CountDownLatch released;
+        private volatile boolean completed;
+
+        private RecordingEmitter(CountDownLatch released) {
+            this.released = released;
+        }
+
+        @Override
+        public void send(Object object, MediaType mediaType) throws IOException {
+            if (released != null) {
+                try {
+                    released.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            sent.add((String) object);
+        }
+
+        /**
+         * @return The events sent so far, split on the blank lines that end them
+         */
+        private List<String> events() {
+            return Arrays.asList(String.join("", sent).split("\n\n"));
+        }
+
+        @Override
+        public void complete() {
+            completed = true;
+        }
+    }
+}
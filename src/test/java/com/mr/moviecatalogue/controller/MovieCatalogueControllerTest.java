@@ -2,12 +2,23 @@ package com.mr.moviecatalogue.controller;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.ObjectWriter;
+import com.mr.moviecatalogue.configuration.DatabaseExecutor;
+import com.mr.moviecatalogue.domain.BatchItemResult;
+import com.mr.moviecatalogue.domain.BatchItemStatus;
 import com.mr.moviecatalogue.domain.Catalogue;
+import com.mr.moviecatalogue.domain.ChangeFeed;
+import com.mr.moviecatalogue.domain.ChangeType;
+import com.mr.moviecatalogue.domain.DirectorSuggestion;
 import com.mr.moviecatalogue.domain.Movie;
+import com.mr.moviecatalogue.domain.MovieChange;
 import com.mr.moviecatalogue.inputobject.DirectorIO;
 import com.mr.moviecatalogue.inputobject.MovieIO;
-import com.mr.moviecatalogue.service.DatabaseService;
+import com.mr.moviecatalogue.service.CatalogueResponseCache;
+import com.mr.moviecatalogue.service.CatalogueVersion;
 import com.mr.moviecatalogue.service.MovieCatalogueService;
+import com.mr.moviecatalogue.service.MovieVisitor;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.Before;
 
 import org.junit.Test;
@@ -16,33 +27,63 @@ import org.mockito.Mockito;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.boot.test.mock.mockito.SpyBean;
+import org.springframework.context.annotation.Import;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 import org.springframework.test.web.servlet.MockMvc;
 import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.RequestBuilder;
+import org.springframework.test.web.servlet.ResultActions;
 import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
 import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.RejectedExecutionException;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 @RunWith(SpringJUnit4ClassRunner.class)
 @WebMvcTest(MovieCatalogueController.class)
+@Import({DatabaseExecutor.class, CatalogueVersion.class, SimpleMeterRegistry.class})
 public class MovieCatalogueControllerTest {
 
     @MockBean
     MovieCatalogueService service;
 
+    @SpyBean
+    DatabaseExecutor databaseExecutor;
+
+    @MockBean
+    ChangeBroadcaster changeBroadcaster;
+
     @MockBean
-    DatabaseService database;
+    CatalogueResponseCache catalogueResponseCache;
+
+    @Autowired
+    CatalogueVersion catalogueVersion;
+
+    @Autowired
+    MeterRegistry meterRegistry;
 
     @Autowired
     MockMvc mvc;
@@ -64,7 +105,7 @@ public class MovieCatalogueControllerTest {
     public void test_get_movies_no_params(){
         Mockito.when(service.getCurrentCatalogue()).thenReturn(serviceResponse);
         try {
-            MvcResult response = mvc.perform(MockMvcRequestBuilders.get("/movies"))
+            MvcResult response = perform(MockMvcRequestBuilders.get("/movies"))
                     .andExpect(status().isOk()).andReturn();
             Catalogue responseCatalogue = Jackson2ObjectMapperBuilder.json().build().readerFor(Catalogue.class).readValue(response.getResponse().getContentAsString());
             assertEquals(serviceResponse, responseCatalogue);
@@ -80,7 +121,7 @@ public class MovieCatalogueControllerTest {
         serviceResponse.getMovies().remove("Shaun of the Dead");
         Mockito.when(service.getMovieByTitle(title)).thenReturn(serviceResponse);
         try {
-            MvcResult response = mvc.perform(MockMvcRequestBuilders.get("/movies").param("title", title))
+            MvcResult response = perform(MockMvcRequestBuilders.get("/movies").param("title", title))
                     .andExpect(status().isOk()).andReturn();
             Catalogue responseCatalogue = Jackson2ObjectMapperBuilder.json().build().readerFor(Catalogue.class).readValue(response.getResponse().getContentAsString());
             assertEquals(serviceResponse, responseCatalogue);
@@ -102,7 +143,7 @@ public class MovieCatalogueControllerTest {
         serviceResponse.getMovies().remove("Shaun of the Dead");
         Mockito.when(service.getMovieByTitle(title)).thenReturn(serviceResponse);
         try {
-            MvcResult response = mvc.perform(MockMvcRequestBuilders.get("/movies").params(queryParams))
+            MvcResult response = perform(MockMvcRequestBuilders.get("/movies").params(queryParams))
                     .andExpect(status().isOk()).andReturn();
             Catalogue responseCatalogue = Jackson2ObjectMapperBuilder.json().build().readerFor(Catalogue.class).readValue(response.getResponse().getContentAsString());
             assertEquals(serviceResponse, responseCatalogue);
@@ -119,7 +160,7 @@ public class MovieCatalogueControllerTest {
         queryParams.put("director", Arrays.asList(director));
         Mockito.when(service.getMoviesByDirector(director)).thenReturn(serviceResponse);
         try {
-            MvcResult response = mvc.perform(MockMvcRequestBuilders.get("/movies").params(queryParams))
+            MvcResult response = perform(MockMvcRequestBuilders.get("/movies").params(queryParams))
                     .andExpect(status().isOk()).andReturn();
             Catalogue responseCatalogue = Jackson2ObjectMapperBuilder.json().build().readerFor(Catalogue.class).readValue(response.getResponse().getContentAsString());
             assertEquals(serviceResponse, responseCatalogue);
@@ -136,7 +177,7 @@ public class MovieCatalogueControllerTest {
         queryParams.put("rating", Arrays.asList(ratingString));
         Mockito.when(service.getMoviesAboveRating(Float.valueOf(ratingString))).thenReturn(serviceResponse);
         try {
-            MvcResult response = mvc.perform(MockMvcRequestBuilders.get("/movies").params(queryParams))
+            MvcResult response = perform(MockMvcRequestBuilders.get("/movies").params(queryParams))
                     .andExpect(status().isOk()).andReturn();
             Catalogue responseCatalogue = Jackson2ObjectMapperBuilder.json().build().readerFor(Catalogue.class).readValue(response.getResponse().getContentAsString());
             assertEquals(serviceResponse, responseCatalogue);
@@ -155,7 +196,7 @@ public class MovieCatalogueControllerTest {
         queryParams.put("rating", Arrays.asList(ratingString));
         Mockito.when(service.getMoviesByDirectorAboveRating(director, Float.valueOf(ratingString))).thenReturn(serviceResponse);
         try {
-            MvcResult response = mvc.perform(MockMvcRequestBuilders.get("/movies").params(queryParams))
+            MvcResult response = perform(MockMvcRequestBuilders.get("/movies").params(queryParams))
                     .andExpect(status().isOk()).andReturn();
             Catalogue responseCatalogue = Jackson2ObjectMapperBuilder.json().build().readerFor(Catalogue.class).readValue(response.getResponse().getContentAsString());
             assertEquals(serviceResponse, responseCatalogue);
@@ -171,7 +212,7 @@ public class MovieCatalogueControllerTest {
         MultiValueMap<String, String> queryParams = new LinkedMultiValueMap<>();
         queryParams.put("rating", Arrays.asList(ratingString));
         try {
-            mvc.perform(MockMvcRequestBuilders.get("/movies").params(queryParams))
+            perform(MockMvcRequestBuilders.get("/movies").params(queryParams))
                     .andExpect(status().isBadRequest());
         } catch (Exception e) {
             e.printStackTrace();
@@ -186,7 +227,7 @@ public class MovieCatalogueControllerTest {
         queryParams.put("rating", Arrays.asList(ratingString));
         Mockito.when(service.getMoviesAboveRating(Float.valueOf(ratingString))).thenThrow(IllegalArgumentException.class);
         try {
-            mvc.perform(MockMvcRequestBuilders.get("/movies").params(queryParams))
+            perform(MockMvcRequestBuilders.get("/movies").params(queryParams))
                     .andExpect(status().isBadRequest());
         } catch (Exception e) {
             e.printStackTrace();
@@ -202,7 +243,7 @@ public class MovieCatalogueControllerTest {
         queryParams.put("rating", Arrays.asList(ratingString));
         queryParams.put("director", Arrays.asList(director));
         try {
-            mvc.perform(MockMvcRequestBuilders.get("/movies").params(queryParams))
+            perform(MockMvcRequestBuilders.get("/movies").params(queryParams))
                     .andExpect(status().isBadRequest());
         } catch (Exception e) {
             e.printStackTrace();
@@ -219,7 +260,7 @@ public class MovieCatalogueControllerTest {
         queryParams.put("director", Arrays.asList(director));
         Mockito.when(service.getMoviesByDirectorAboveRating(director, Float.valueOf(ratingString))).thenThrow(IllegalArgumentException.class);
         try {
-            mvc.perform(MockMvcRequestBuilders.get("/movies").params(queryParams))
+            perform(MockMvcRequestBuilders.get("/movies").params(queryParams))
                     .andExpect(status().isBadRequest());
         } catch (Exception e) {
             e.printStackTrace();
@@ -230,7 +271,7 @@ public class MovieCatalogueControllerTest {
     @Test
     public void test_add_movie_returns_bad_request_for_null_body(){
         try {
-            mvc.perform(MockMvcRequestBuilders.post("/movies").contentType(MediaType.APPLICATION_JSON_VALUE).content(""))
+            perform(MockMvcRequestBuilders.post("/movies").contentType(MediaType.APPLICATION_JSON_VALUE).content(""))
                     .andExpect(status().isBadRequest());
         } catch (Exception e) {
             e.printStackTrace();
@@ -243,7 +284,7 @@ public class MovieCatalogueControllerTest {
         try {
             ObjectWriter writer = new ObjectMapper().writer().withDefaultPrettyPrinter();
             String requestBody = writer.writeValueAsString(movieIO);
-            mvc.perform(MockMvcRequestBuilders.post("/movies").contentType(MediaType.APPLICATION_JSON_VALUE).content(requestBody))
+            perform(MockMvcRequestBuilders.post("/movies").contentType(MediaType.APPLICATION_JSON_VALUE).content(requestBody))
                     .andExpect(status().isBadRequest());
         } catch (Exception e) {
             e.printStackTrace();
@@ -257,7 +298,7 @@ public class MovieCatalogueControllerTest {
         try {
             ObjectWriter writer = new ObjectMapper().writer().withDefaultPrettyPrinter();
             String requestBody = writer.writeValueAsString(movieIO);
-            mvc.perform(MockMvcRequestBuilders.post("/movies").contentType(MediaType.APPLICATION_JSON_VALUE).content(requestBody))
+            perform(MockMvcRequestBuilders.post("/movies").contentType(MediaType.APPLICATION_JSON_VALUE).content(requestBody))
                     .andExpect(status().isBadRequest());
         } catch (Exception e) {
             e.printStackTrace();
@@ -271,7 +312,7 @@ public class MovieCatalogueControllerTest {
         try {
             ObjectWriter writer = new ObjectMapper().writer().withDefaultPrettyPrinter();
             String requestBody = writer.writeValueAsString(movieIO);
-            mvc.perform(MockMvcRequestBuilders.post("/movies").contentType(MediaType.APPLICATION_JSON_VALUE).content(requestBody))
+            perform(MockMvcRequestBuilders.post("/movies").contentType(MediaType.APPLICATION_JSON_VALUE).content(requestBody))
                     .andExpect(status().isOk());
             Mockito.verify(service, Mockito.times(1)).addMovie(movieIO);
         } catch (Exception e) {
@@ -280,6 +321,35 @@ public class MovieCatalogueControllerTest {
         }
     }
 
+    @Test
+    public void test_add_movies_returns_bad_request_for_empty_list(){
+        try {
+            perform(MockMvcRequestBuilders.post("/movies/batch").contentType(MediaType.APPLICATION_JSON_VALUE).content("[]"))
+                    .andExpect(status().isBadRequest());
+            Mockito.verify(service, Mockito.never()).addMovies(any());
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail();
+        }
+    }
+
+    @Test
+    public void test_add_movies_returns_status_of_each_movie_from_service(){
+        movieIO.setTitle("Tropic Thunder");
+        List<MovieIO> movieIOs = Collections.singletonList(movieIO);
+        Mockito.when(service.addMovies(movieIOs)).thenReturn(Collections.singletonList(new BatchItemResult("Tropic Thunder", BatchItemStatus.CREATED)));
+        try {
+            ObjectWriter writer = new ObjectMapper().writer().withDefaultPrettyPrinter();
+            String requestBody = writer.writeValueAsString(movieIOs);
+            MvcResult result = perform(MockMvcRequestBuilders.post("/movies/batch").contentType(MediaType.APPLICATION_JSON_VALUE).content(requestBody))
+                    .andExpect(status().isOk()).andReturn();
+            assertEquals("[{\"title\":\"Tropic Thunder\",\"status\":\"CREATED\"}]", result.getResponse().getContentAsString());
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail();
+        }
+    }
+
     @Test
     public void test_add_movie_returns_bad_request_when_service_throws_illegal_argument_exception(){
         Mockito.doAnswer(invocation -> {
@@ -289,7 +359,7 @@ public class MovieCatalogueControllerTest {
         try {
             ObjectWriter writer = new ObjectMapper().writer().withDefaultPrettyPrinter();
             String requestBody = writer.writeValueAsString(movieIO);
-            mvc.perform(MockMvcRequestBuilders.post("/movies").contentType(MediaType.APPLICATION_JSON_VALUE).content(requestBody))
+            perform(MockMvcRequestBuilders.post("/movies").contentType(MediaType.APPLICATION_JSON_VALUE).content(requestBody))
                     .andExpect(status().isBadRequest());
             Mockito.verify(service, Mockito.times(1)).addMovie(movieIO);
         } catch (Exception e) {
@@ -301,7 +371,7 @@ public class MovieCatalogueControllerTest {
     @Test
     public void test_edit_movie_returns_bad_request_when_body_is_empty(){
         try {
-            mvc.perform(MockMvcRequestBuilders.patch("/movies/Tropic Thunder").contentType(MediaType.APPLICATION_JSON_VALUE).content(""))
+            perform(MockMvcRequestBuilders.patch("/movies/Tropic Thunder").contentType(MediaType.APPLICATION_JSON_VALUE).content(""))
                     .andExpect(status().isBadRequest());
         } catch (Exception e) {
             e.printStackTrace();
@@ -319,7 +389,7 @@ public class MovieCatalogueControllerTest {
         try {
             ObjectWriter writer = new ObjectMapper().writer().withDefaultPrettyPrinter();
             String requestBody = writer.writeValueAsString(movieIO);
-            mvc.perform(MockMvcRequestBuilders.patch("/movies/Tropic Thunder").contentType(MediaType.APPLICATION_JSON_VALUE).content(requestBody))
+            perform(MockMvcRequestBuilders.patch("/movies/Tropic Thunder").contentType(MediaType.APPLICATION_JSON_VALUE).content(requestBody))
                     .andExpect(status().isBadRequest());
             Mockito.verify(service, Mockito.times(1)).editMovie("Tropic Thunder", movieIO);
         } catch (Exception e) {
@@ -335,7 +405,7 @@ public class MovieCatalogueControllerTest {
         try {
             ObjectWriter writer = new ObjectMapper().writer().withDefaultPrettyPrinter();
             String requestBody = writer.writeValueAsString(movieIO);
-            mvc.perform(MockMvcRequestBuilders.patch("/movies/Tropic Thunder").contentType(MediaType.APPLICATION_JSON_VALUE).content(requestBody))
+            perform(MockMvcRequestBuilders.patch("/movies/Tropic Thunder").contentType(MediaType.APPLICATION_JSON_VALUE).content(requestBody))
                     .andExpect(status().isOk());
             Mockito.verify(service, Mockito.times(1)).editMovie("Tropic Thunder", movieIO);
         } catch (Exception e) {
@@ -345,10 +415,30 @@ public class MovieCatalogueControllerTest {
     }
 
     @Test
-    public void test_clear_catalogue_calls_database_service(){
+    public void test_edit_movie_returns_edited_movie_from_service(){
+        movieIO.setRating(Float.valueOf("4.0"));
+        Catalogue catalogue = new Catalogue();
+        HashMap<String, Movie> editedMovie = new HashMap<>();
+        editedMovie.put("Tropic Thunder", new Movie(Optional.of("Ben Stiller"), Optional.of(Float.valueOf("4.0"))));
+        catalogue.setMovies(editedMovie);
+        Mockito.when(service.editMovie("Tropic Thunder", movieIO)).thenReturn(catalogue);
         try {
-            mvc.perform(MockMvcRequestBuilders.delete("/movies")).andExpect(status().isOk());
-            Mockito.verify(database, Mockito.times(1)).dropDatabase();
+            ObjectWriter writer = new ObjectMapper().writer().withDefaultPrettyPrinter();
+            String requestBody = writer.writeValueAsString(movieIO);
+            MvcResult result = perform(MockMvcRequestBuilders.patch("/movies/Tropic Thunder").contentType(MediaType.APPLICATION_JSON_VALUE).content(requestBody))
+                    .andExpect(status().isOk()).andReturn();
+            assertEquals("{\"movies\":{\"Tropic Thunder\":{\"director\":\"Ben Stiller\",\"rating\":4.0}}}", result.getResponse().getContentAsString());
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail();
+        }
+    }
+
+    @Test
+    public void test_clear_catalogue_calls_service_method(){
+        try {
+            perform(MockMvcRequestBuilders.delete("/movies")).andExpect(status().isOk());
+            Mockito.verify(service, Mockito.times(1)).clearCatalogue();
         } catch (Exception e) {
             e.printStackTrace();
             fail();
@@ -361,7 +451,7 @@ public class MovieCatalogueControllerTest {
             throw new IllegalArgumentException();
         }).when(service).deleteDirectorFromMovie("Tropic Thunder");
         try {
-            mvc.perform(MockMvcRequestBuilders.delete("/movies/Tropic Thunder/director")).andExpect(status().isBadRequest());
+            perform(MockMvcRequestBuilders.delete("/movies/Tropic Thunder/director")).andExpect(status().isBadRequest());
             Mockito.verify(service, Mockito.times(1)).deleteDirectorFromMovie("Tropic Thunder");
         } catch (Exception e) {
             e.printStackTrace();
@@ -372,7 +462,7 @@ public class MovieCatalogueControllerTest {
     @Test
     public void test_delete_director_from_movie_calls_service_method(){
         try {
-            mvc.perform(MockMvcRequestBuilders.delete("/movies/Tropic Thunder/director")).andExpect(status().isOk());
+            perform(MockMvcRequestBuilders.delete("/movies/Tropic Thunder/director")).andExpect(status().isOk());
             Mockito.verify(service, Mockito.times(1)).deleteDirectorFromMovie("Tropic Thunder");
         } catch (Exception e) {
             e.printStackTrace();
@@ -386,7 +476,7 @@ public class MovieCatalogueControllerTest {
             throw new IllegalArgumentException();
         }).when(service).deleteRatingFromMovie("Tropic Thunder");
         try {
-            mvc.perform(MockMvcRequestBuilders.delete("/movies/Tropic Thunder/rating")).andExpect(status().isBadRequest());
+            perform(MockMvcRequestBuilders.delete("/movies/Tropic Thunder/rating")).andExpect(status().isBadRequest());
             Mockito.verify(service, Mockito.times(1)).deleteRatingFromMovie("Tropic Thunder");
         } catch (Exception e) {
             e.printStackTrace();
@@ -397,7 +487,7 @@ public class MovieCatalogueControllerTest {
     @Test
     public void test_delete_rating_from_movie_calls_service_method(){
         try {
-            mvc.perform(MockMvcRequestBuilders.delete("/movies/Tropic Thunder/rating")).andExpect(status().isOk());
+            perform(MockMvcRequestBuilders.delete("/movies/Tropic Thunder/rating")).andExpect(status().isOk());
             Mockito.verify(service, Mockito.times(1)).deleteRatingFromMovie("Tropic Thunder");
         } catch (Exception e) {
             e.printStackTrace();
@@ -411,7 +501,7 @@ public class MovieCatalogueControllerTest {
             throw new IllegalArgumentException();
         }).when(service).deleteMovie("Tropic Thunder");
         try {
-            mvc.perform(MockMvcRequestBuilders.delete("/movies/Tropic Thunder")).andExpect(status().isBadRequest());
+            perform(MockMvcRequestBuilders.delete("/movies/Tropic Thunder")).andExpect(status().isBadRequest());
             Mockito.verify(service, Mockito.times(1)).deleteMovie("Tropic Thunder");
         } catch (Exception e) {
             e.printStackTrace();
@@ -422,7 +512,7 @@ public class MovieCatalogueControllerTest {
     @Test
     public void test_delete_movie_calls_service_method(){
         try {
-            mvc.perform(MockMvcRequestBuilders.delete("/movies/Tropic Thunder")).andExpect(status().isOk());
+            perform(MockMvcRequestBuilders.delete("/movies/Tropic Thunder")).andExpect(status().isOk());
             Mockito.verify(service, Mockito.times(1)).deleteMovie("Tropic Thunder");
         } catch (Exception e) {
             e.printStackTrace();
@@ -436,7 +526,7 @@ public class MovieCatalogueControllerTest {
             throw new IllegalArgumentException();
         }).when(service).deleteDirector("Ben Stiller");
         try {
-            mvc.perform(MockMvcRequestBuilders.delete("/movies/directors/Ben Stiller")).andExpect(status().isBadRequest());
+            perform(MockMvcRequestBuilders.delete("/movies/directors/Ben Stiller")).andExpect(status().isBadRequest());
             Mockito.verify(service, Mockito.times(1)).deleteDirector("Ben Stiller");
         } catch (Exception e) {
             e.printStackTrace();
@@ -447,7 +537,7 @@ public class MovieCatalogueControllerTest {
     @Test
     public void test_delete_director_calls_service_method(){
         try {
-            mvc.perform(MockMvcRequestBuilders.delete("/movies/directors/Ben Stiller")).andExpect(status().isOk());
+            perform(MockMvcRequestBuilders.delete("/movies/directors/Ben Stiller")).andExpect(status().isOk());
             Mockito.verify(service, Mockito.times(1)).deleteDirector("Ben Stiller");
         } catch (Exception e) {
             e.printStackTrace();
@@ -458,7 +548,7 @@ public class MovieCatalogueControllerTest {
     @Test
     public void test_add_director_returns_bad_request_for_null_body(){
         try {
-            mvc.perform(MockMvcRequestBuilders.post("/movies/directors").contentType(MediaType.APPLICATION_JSON_VALUE).content(""))
+            perform(MockMvcRequestBuilders.post("/movies/directors").contentType(MediaType.APPLICATION_JSON_VALUE).content(""))
                     .andExpect(status().isBadRequest());
         } catch (Exception e) {
             e.printStackTrace();
@@ -472,7 +562,7 @@ public class MovieCatalogueControllerTest {
         try {
             ObjectWriter writer = new ObjectMapper().writer().withDefaultPrettyPrinter();
             String requestBody = writer.writeValueAsString(directorIO);
-            mvc.perform(MockMvcRequestBuilders.post("/movies/directors").contentType(MediaType.APPLICATION_JSON_VALUE).content(requestBody))
+            perform(MockMvcRequestBuilders.post("/movies/directors").contentType(MediaType.APPLICATION_JSON_VALUE).content(requestBody))
                     .andExpect(status().isBadRequest());
         } catch (Exception e) {
             e.printStackTrace();
@@ -487,7 +577,7 @@ public class MovieCatalogueControllerTest {
         try {
             ObjectWriter writer = new ObjectMapper().writer().withDefaultPrettyPrinter();
             String requestBody = writer.writeValueAsString(directorIO);
-            mvc.perform(MockMvcRequestBuilders.post("/movies/directors").contentType(MediaType.APPLICATION_JSON_VALUE).content(requestBody))
+            perform(MockMvcRequestBuilders.post("/movies/directors").contentType(MediaType.APPLICATION_JSON_VALUE).content(requestBody))
                     .andExpect(status().isBadRequest());
         } catch (Exception e) {
             e.printStackTrace();
@@ -502,7 +592,7 @@ public class MovieCatalogueControllerTest {
         try {
             ObjectWriter writer = new ObjectMapper().writer().withDefaultPrettyPrinter();
             String requestBody = writer.writeValueAsString(directorIO);
-            mvc.perform(MockMvcRequestBuilders.post("/movies/directors").contentType(MediaType.APPLICATION_JSON_VALUE).content(requestBody))
+            perform(MockMvcRequestBuilders.post("/movies/directors").contentType(MediaType.APPLICATION_JSON_VALUE).content(requestBody))
                     .andExpect(status().isBadRequest());
         } catch (Exception e) {
             e.printStackTrace();
@@ -518,7 +608,7 @@ public class MovieCatalogueControllerTest {
         try {
             ObjectWriter writer = new ObjectMapper().writer().withDefaultPrettyPrinter();
             String requestBody = writer.writeValueAsString(directorIO);
-            mvc.perform(MockMvcRequestBuilders.post("/movies/directors").contentType(MediaType.APPLICATION_JSON_VALUE).content(requestBody))
+            perform(MockMvcRequestBuilders.post("/movies/directors").contentType(MediaType.APPLICATION_JSON_VALUE).content(requestBody))
                     .andExpect(status().isBadRequest());
         } catch (Exception e) {
             e.printStackTrace();
@@ -534,7 +624,7 @@ public class MovieCatalogueControllerTest {
         try {
             ObjectWriter writer = new ObjectMapper().writer().withDefaultPrettyPrinter();
             String requestBody = writer.writeValueAsString(directorIO);
-            mvc.perform(MockMvcRequestBuilders.post("/movies/directors").contentType(MediaType.APPLICATION_JSON_VALUE).content(requestBody))
+            perform(MockMvcRequestBuilders.post("/movies/directors").contentType(MediaType.APPLICATION_JSON_VALUE).content(requestBody))
                     .andExpect(status().isOk());
             Mockito.verify(service, Mockito.times(1)).addDirector(directorIO);
         } catch (Exception e) {
@@ -554,7 +644,7 @@ public class MovieCatalogueControllerTest {
         try {
             ObjectWriter writer = new ObjectMapper().writer().withDefaultPrettyPrinter();
             String requestBody = writer.writeValueAsString(directorIO);
-            mvc.perform(MockMvcRequestBuilders.post("/movies/directors").contentType(MediaType.APPLICATION_JSON_VALUE).content(requestBody))
+            perform(MockMvcRequestBuilders.post("/movies/directors").contentType(MediaType.APPLICATION_JSON_VALUE).content(requestBody))
                     .andExpect(status().isBadRequest());
             Mockito.verify(service, Mockito.times(1)).addDirector(directorIO);
         } catch (Exception e) {
@@ -564,4 +654,367 @@ public class MovieCatalogueControllerTest {
     }
 
 
+
+    @Test
+    public void test_get_movies_limit_and_after_params_call_paged_service(){
+        serviceResponse.setNext("SG90IEZ1eno");
+        MultiValueMap<String, String> queryParams = new LinkedMultiValueMap<>();
+        queryParams.put("limit", Arrays.asList("2"));
+        queryParams.put("after", Arrays.asList("QQ"));
+        Mockito.when(service.getCurrentCatalogue(2, "QQ")).thenReturn(serviceResponse);
+        try {
+            MvcResult response = perform(MockMvcRequestBuilders.get("/movies").params(queryParams))
+                    .andExpect(status().isOk()).andReturn();
+            Catalogue responseCatalogue = Jackson2ObjectMapperBuilder.json().build().readerFor(Catalogue.class).readValue(response.getResponse().getContentAsString());
+            assertEquals(serviceResponse, responseCatalogue);
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail();
+        }
+    }
+
+    @Test
+    public void test_get_movies_director_param_with_limit_calls_paged_service(){
+        String director = "Edgar Wright";
+        MultiValueMap<String, String> queryParams = new LinkedMultiValueMap<>();
+        queryParams.put("director", Arrays.asList(director));
+        queryParams.put("limit", Arrays.asList("10"));
+        Mockito.when(service.getMoviesByDirector(director, 10, null)).thenReturn(serviceResponse);
+        try {
+            perform(MockMvcRequestBuilders.get("/movies").params(queryParams)).andExpect(status().isOk());
+            Mockito.verify(service, Mockito.times(1)).getMoviesByDirector(director, 10, null);
+            Mockito.verify(service, Mockito.never()).getMoviesByDirector(director);
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail();
+        }
+    }
+
+    @Test
+    public void test_get_movies_returns_bad_request_when_paged_service_throws_illegal_argument_exception(){
+        MultiValueMap<String, String> queryParams = new LinkedMultiValueMap<>();
+        queryParams.put("after", Arrays.asList("not a cursor!"));
+        Mockito.when(service.getCurrentCatalogue(null, "not a cursor!")).thenThrow(IllegalArgumentException.class);
+        try {
+            perform(MockMvcRequestBuilders.get("/movies").params(queryParams)).andExpect(status().isBadRequest());
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail();
+        }
+    }
+
+    @Test
+    public void test_stream_movies_writes_catalogue_from_service(){
+        try {
+            Mockito.doAnswer(invocation -> {
+                MovieVisitor visitor = invocation.getArgument(0);
+                for (java.util.Map.Entry<String, Movie> entry : serviceResponse.getMovies().entrySet()) {
+                    visitor.visit(entry.getKey(), entry.getValue());
+                }
+                return null;
+            }).when(service).streamCurrentCatalogue(any());
+            MvcResult asyncResult = mvc.perform(MockMvcRequestBuilders.get("/movies").param("stream", "true")).andReturn();
+            MvcResult response = mvc.perform(asyncDispatch(asyncResult)).andExpect(status().isOk()).andReturn();
+            Catalogue responseCatalogue = Jackson2ObjectMapperBuilder.json().build().readerFor(Catalogue.class).readValue(response.getResponse().getContentAsString());
+            assertEquals(serviceResponse, responseCatalogue);
+            Mockito.verify(service, Mockito.never()).getCurrentCatalogue();
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail();
+        }
+    }
+
+    @Test
+    public void test_suggest_directors_returns_service_suggestions(){
+        List<DirectorSuggestion> suggestions = Arrays.asList(new DirectorSuggestion("Edgar Wright", 2));
+        Mockito.when(service.suggestDirectors("ed", 5)).thenReturn(suggestions);
+        try {
+            MvcResult response = perform(MockMvcRequestBuilders.get("/movies/directors/suggest").param("prefix", "ed").param("limit", "5"))
+                    .andExpect(status().isOk()).andReturn();
+            assertEquals("[{\"director\":\"Edgar Wright\",\"movies\":2}]", response.getResponse().getContentAsString());
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail();
+        }
+    }
+
+    @Test
+    public void test_search_movies_returns_service_matches_in_rank_order(){
+        Map<String, Movie> movies = new LinkedHashMap<>();
+        movies.put("Hot Shots!", new Movie("Jim Abrahams", (float) 3.5));
+        movies.put("Hot Fuzz", new Movie("Edgar Wright", (float) 5.0));
+        Catalogue catalogue = new Catalogue();
+        catalogue.setMovies(movies);
+        Mockito.when(service.searchMovies("hot sho", null)).thenReturn(catalogue);
+        Mockito.when(service.searchMovies("", null)).thenThrow(IllegalArgumentException.class);
+        Mockito.when(service.searchMovies("hot", null)).thenThrow(RejectedExecutionException.class);
+        try {
+            MvcResult response = perform(MockMvcRequestBuilders.get("/movies/search").param("q", "hot sho"))
+                    .andExpect(status().isOk()).andReturn();
+            String content = response.getResponse().getContentAsString();
+            assertTrue(content.indexOf("Hot Shots!") < content.indexOf("Hot Fuzz"));
+            perform(MockMvcRequestBuilders.get("/movies/search").param("q", "")).andExpect(status().isBadRequest());
+            perform(MockMvcRequestBuilders.get("/movies/search").param("q", "hot")).andExpect(status().isServiceUnavailable());
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail();
+        }
+    }
+
+    @Test
+    public void test_suggest_directors_returns_bad_request_when_service_throws_illegal_argument_exception(){
+        Mockito.when(service.suggestDirectors(null, 0)).thenThrow(IllegalArgumentException.class);
+        try {
+            perform(MockMvcRequestBuilders.get("/movies/directors/suggest").param("limit", "0")).andExpect(status().isBadRequest());
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail();
+        }
+    }
+
+    @Test
+    public void test_requests_are_rejected_with_service_unavailable_when_executor_is_full(){
+        Mockito.doThrow(new RejectedExecutionException()).when(databaseExecutor).supply(any());
+        try {
+            double rejected = meterRegistry.counter("catalogue.requests.rejected", "reason", "queue-full").count();
+            perform(MockMvcRequestBuilders.get("/movies")).andExpect(status().isServiceUnavailable()).andExpect(header().string("Retry-After", "1"));
+            Mockito.verify(service, Mockito.never()).getCurrentCatalogue();
+            assertEquals(rejected + 1, meterRegistry.counter("catalogue.requests.rejected", "reason", "queue-full").count());
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail();
+        }
+    }
+
+    @Test
+    public void test_invalid_requests_are_answered_without_the_executor(){
+        try {
+            perform(MockMvcRequestBuilders.get("/movies").param("rating", "not a rating")).andExpect(status().isBadRequest());
+            Mockito.verify(databaseExecutor, Mockito.never()).supply(any());
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail();
+        }
+    }
+
+    @Test
+    public void test_get_movies_returns_etag_and_last_modified_of_catalogue_version(){
+        Mockito.when(service.getCurrentCatalogue()).thenReturn(serviceResponse);
+        CatalogueVersion.Stamp version = catalogueVersion.current();
+        long lastModified = version.getLastModified() / 1000 * 1000 + 1000;
+        try {
+            //Last-Modified is only given once the second after the change has passed
+            Thread.sleep(Math.max(0, lastModified - System.currentTimeMillis()));
+            MvcResult response = perform(MockMvcRequestBuilders.get("/movies")).andExpect(status().isOk())
+                    .andExpect(header().string("ETag", version.getETag())).andReturn();
+            assertEquals(lastModified, response.getResponse().getDateHeader("Last-Modified"));
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail();
+        }
+    }
+
+    @Test
+    public void test_get_movies_returns_not_modified_for_current_etag_without_calling_service(){
+        String eTag = catalogueVersion.current().getETag();
+        try {
+            perform(MockMvcRequestBuilders.get("/movies").param("director", "Edgar Wright").header("If-None-Match", eTag))
+                    .andExpect(status().isNotModified()).andExpect(header().string("ETag", eTag));
+            Mockito.verify(service, Mockito.never()).getMoviesByDirector(any());
+            Mockito.verify(databaseExecutor, Mockito.never()).supply(any());
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail();
+        }
+    }
+
+    @Test
+    public void test_get_movies_returns_catalogue_when_etag_is_from_an_older_version(){
+        String eTag = catalogueVersion.current().getETag();
+        catalogueVersion.increment();
+        Mockito.when(service.getMovieByTitle("Hot Fuzz")).thenReturn(serviceResponse);
+        try {
+            MvcResult response = perform(MockMvcRequestBuilders.get("/movies").param("title", "Hot Fuzz").header("If-None-Match", eTag))
+                    .andExpect(status().isOk()).andReturn();
+            assertNotEquals(eTag, response.getResponse().getHeader("ETag"));
+            Mockito.verify(service, Mockito.times(1)).getMovieByTitle("Hot Fuzz");
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail();
+        }
+    }
+
+    @Test
+    public void test_get_movies_returns_not_modified_when_unchanged_since_if_modified_since(){
+        HttpHeaders requestHeaders = new HttpHeaders();
+        requestHeaders.setIfModifiedSince(catalogueVersion.current().getLastModified() + 1000);
+        try {
+            perform(MockMvcRequestBuilders.get("/movies").param("rating", "4.0").headers(requestHeaders))
+                    .andExpect(status().isNotModified());
+            Mockito.verify(service, Mockito.never()).getMoviesAboveRating(any());
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail();
+        }
+    }
+
+    @Test
+    public void test_get_movies_returns_catalogue_when_changed_in_the_same_second_as_if_modified_since(){
+        catalogueVersion.increment();
+        HttpHeaders requestHeaders = new HttpHeaders();
+        //Last-Modified as the client was given it, before a second change made within the same second
+        requestHeaders.setIfModifiedSince(catalogueVersion.current().getLastModified() / 1000 * 1000);
+        catalogueVersion.increment();
+        Mockito.when(service.getMoviesAboveRating(any())).thenReturn(serviceResponse);
+        try {
+            perform(MockMvcRequestBuilders.get("/movies").param("rating", "4.0").headers(requestHeaders))
+                    .andExpect(status().isOk());
+            Mockito.verify(service, Mockito.times(1)).getMoviesAboveRating(any());
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail();
+        }
+    }
+
+    @Test
+    public void test_stream_movies_returns_not_modified_for_current_etag(){
+        try {
+            mvc.perform(MockMvcRequestBuilders.get("/movies").param("stream", "true").header("If-None-Match", catalogueVersion.current().getETag()))
+                    .andExpect(status().isNotModified());
+            Mockito.verify(service, Mockito.never()).streamCurrentCatalogue(any());
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail();
+        }
+    }
+
+    @Test
+    public void test_get_movies_writes_encoded_catalogue_from_response_cache(){
+        CatalogueResponseCache.EncodedCatalogue encoded = encodedCatalogue();
+        Mockito.when(catalogueResponseCache.isEnabled()).thenReturn(true);
+        Mockito.when(catalogueResponseCache.getIfCurrent(any())).thenReturn(Optional.of(encoded));
+        try {
+            MvcResult response = perform(MockMvcRequestBuilders.get("/movies").accept(MediaType.APPLICATION_JSON))
+                    .andExpect(status().isOk()).andExpect(header().string("ETag", encoded.getStamp().getETag()))
+                    .andExpect(header().doesNotExist(HttpHeaders.CONTENT_ENCODING)).andReturn();
+            assertArrayEquals(encoded.getJson(), response.getResponse().getContentAsByteArray());
+            assertEquals(MediaType.APPLICATION_JSON_VALUE, response.getResponse().getContentType());
+            Mockito.verify(service, Mockito.never()).getCurrentCatalogue();
+            Mockito.verify(databaseExecutor, Mockito.never()).supply(any());
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail();
+        }
+    }
+
+    @Test
+    public void test_get_movies_writes_gzip_from_response_cache_when_accepted(){
+        CatalogueResponseCache.EncodedCatalogue encoded = encodedCatalogue();
+        Mockito.when(catalogueResponseCache.isEnabled()).thenReturn(true);
+        Mockito.when(catalogueResponseCache.getIfCurrent(any())).thenReturn(Optional.of(encoded));
+        try {
+            MvcResult response = perform(MockMvcRequestBuilders.get("/movies").header(HttpHeaders.ACCEPT_ENCODING, "deflate, gzip;q=0.5"))
+                    .andExpect(status().isOk()).andExpect(header().string(HttpHeaders.CONTENT_ENCODING, "gzip")).andReturn();
+            assertArrayEquals(encoded.getGzip(), response.getResponse().getContentAsByteArray());
+
+            response = perform(MockMvcRequestBuilders.get("/movies").header(HttpHeaders.ACCEPT_ENCODING, "*, gzip;q=0"))
+                    .andExpect(status().isOk()).andExpect(header().doesNotExist(HttpHeaders.CONTENT_ENCODING)).andReturn();
+            assertArrayEquals(encoded.getJson(), response.getResponse().getContentAsByteArray());
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail();
+        }
+    }
+
+    @Test
+    public void test_get_movies_encodes_catalogue_on_database_executor_after_a_change(){
+        CatalogueResponseCache.EncodedCatalogue encoded = encodedCatalogue();
+        Mockito.when(catalogueResponseCache.isEnabled()).thenReturn(true);
+        Mockito.when(catalogueResponseCache.getIfCurrent(any())).thenReturn(Optional.empty());
+        try {
+            Mockito.when(catalogueResponseCache.get()).thenReturn(encoded);
+            MvcResult response = perform(MockMvcRequestBuilders.get("/movies"))
+                    .andExpect(status().isOk()).andReturn();
+            assertArrayEquals(encoded.getJson(), response.getResponse().getContentAsByteArray());
+            Mockito.verify(databaseExecutor, Mockito.times(1)).supply(any());
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail();
+        }
+    }
+
+    @Test
+    public void test_get_movies_does_not_use_response_cache_for_filtered_or_other_formats(){
+        Mockito.when(catalogueResponseCache.isEnabled()).thenReturn(true);
+        Mockito.when(service.getMoviesByDirector("Edgar Wright")).thenReturn(serviceResponse);
+        try {
+            perform(MockMvcRequestBuilders.get("/movies").param("director", "Edgar Wright")).andExpect(status().isOk());
+            perform(MockMvcRequestBuilders.get("/movies").header(HttpHeaders.ACCEPT, "application/cbor, application/json;q=0.5"));
+            Mockito.verify(catalogueResponseCache, Mockito.never()).getIfCurrent(any());
+            Mockito.verify(catalogueResponseCache, Mockito.never()).get();
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail();
+        }
+    }
+
+    @Test
+    public void test_get_changes_returns_change_feed_from_service(){
+        ChangeFeed feed = new ChangeFeed();
+        feed.setChanges(Arrays.asList(new MovieChange(43, ChangeType.DELETED, "Hot Fuzz", null, null, null)));
+        feed.setLatest(43);
+        feed.setInstance("a");
+        Mockito.when(service.getChanges(42L, null)).thenReturn(feed);
+        Mockito.when(service.getChanges(42L, "a")).thenReturn(feed);
+        try {
+            MvcResult response = perform(MockMvcRequestBuilders.get("/movies/changes").param("since", "42"))
+                    .andExpect(status().isOk()).andReturn();
+            assertEquals("{\"changes\":[{\"sequence\":43,\"type\":\"DELETED\",\"title\":\"Hot Fuzz\"}],\"latest\":43,\"more\":false,\"resync\":false,\"instance\":\"a\"}",
+                    response.getResponse().getContentAsString());
+            perform(MockMvcRequestBuilders.get("/movies/changes").param("since", "42").param("instance", "a")).andExpect(status().isOk());
+            Mockito.verify(service).getChanges(42L, "a");
+            Mockito.verify(databaseExecutor, Mockito.never()).supply(any());
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail();
+        }
+    }
+
+    @Test
+    public void test_get_changes_returns_bad_request_without_valid_since(){
+        try {
+            perform(MockMvcRequestBuilders.get("/movies/changes")).andExpect(status().isBadRequest());
+            perform(MockMvcRequestBuilders.get("/movies/changes").param("since", "yesterday")).andExpect(status().isBadRequest());
+            Mockito.verify(service, Mockito.never()).getChanges(Mockito.anyLong(), any());
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail();
+        }
+    }
+
+    @Test
+    public void test_subscribe_to_changes_returns_service_unavailable_when_at_maximum_subscribers(){
+        Mockito.when(changeBroadcaster.subscribe()).thenThrow(IllegalStateException.class);
+        try {
+            mvc.perform(MockMvcRequestBuilders.get("/movies/events")).andExpect(status().isServiceUnavailable());
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail();
+        }
+    }
+
+    private CatalogueResponseCache.EncodedCatalogue encodedCatalogue() {
+        CatalogueResponseCache.EncodedCatalogue encoded = Mockito.mock(CatalogueResponseCache.EncodedCatalogue.class);
+        Mockito.when(encoded.getStamp()).thenReturn(catalogueVersion.current());
+        Mockito.when(encoded.getJson()).thenReturn("{\"movies\":{}}".getBytes(StandardCharsets.UTF_8));
+        Mockito.when(encoded.getGzip()).thenReturn(new byte[]{31, -117, 8, 0});
+        return encoded;
+    }
+
+    //The handlers return CompletableFutures, so the response is only written once the async result is dispatched
+    private ResultActions perform(RequestBuilder request) throws Exception {
+        ResultActions actions = mvc.perform(request);
+        MvcResult result = actions.andReturn();
+        return result.getRequest().isAsyncStarted() ? mvc.perform(asyncDispatch(result)) : actions;
+    }
 }
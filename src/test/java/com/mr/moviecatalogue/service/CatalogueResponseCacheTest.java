@@ -0,0 +1,113 @@
+package com.mr.moviecatalogue.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mr.moviecatalogue.domain.Catalogue;
+import com.mr.moviecatalogue.domain.Movie;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.Spy;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.util.StreamUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+public class CatalogueResponseCacheTest {
+
+    @Mock
+    MovieCatalogueService movieCatalogueService;
+
+    @Spy
+    CatalogueVersion catalogueVersion = new CatalogueVersion();
+
+    @Spy
+    ObjectMapper objectMapper = Jackson2ObjectMapperBuilder.json().build();
+
+    @Spy
+    MeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @InjectMocks
+    CatalogueResponseCache cache;
+
+    private Catalogue catalogue;
+
+    @Before
+    public void setup() {
+        cache.registerMetrics();
+        catalogue = new Catalogue();
+        catalogue.setMovies(new HashMap<>());
+        catalogue.getMovies().put("Hot Fuzz", new Movie(Optional.of("Edgar Wright"), Optional.of(Float.valueOf((float) 5.0))));
+        catalogue.getMovies().put("Snatch", new Movie(Optional.of("Guy Ritchie"), Optional.empty()));
+        Mockito.when(movieCatalogueService.getCurrentCatalogue()).thenReturn(catalogue);
+    }
+
+    @Test
+    public void test_catalogue_is_encoded_as_json_and_gzip() throws IOException {
+        CatalogueResponseCache.EncodedCatalogue encoded = cache.get();
+        assertArrayEquals(objectMapper.writeValueAsBytes(catalogue), encoded.getJson());
+        assertArrayEquals(encoded.getJson(), StreamUtils.copyToByteArray(new GZIPInputStream(new ByteArrayInputStream(encoded.getGzip()))));
+        assertEquals(catalogueVersion.current().getETag(), encoded.getStamp().getETag());
+    }
+
+    @Test
+    public void test_catalogue_is_only_encoded_again_after_a_change() throws IOException {
+        CatalogueResponseCache.EncodedCatalogue encoded = cache.get();
+        assertSame(encoded, cache.get());
+        assertSame(encoded, cache.getIfCurrent(catalogueVersion.current()).get());
+        Mockito.verify(movieCatalogueService, Mockito.times(1)).getCurrentCatalogue();
+
+        catalogueVersion.increment();
+        assertFalse(cache.getIfCurrent(catalogueVersion.current()).isPresent());
+        CatalogueResponseCache.EncodedCatalogue reencoded = cache.get();
+        assertNotSame(encoded, reencoded);
+        assertEquals(catalogueVersion.current().getETag(), reencoded.getStamp().getETag());
+        Mockito.verify(movieCatalogueService, Mockito.times(2)).getCurrentCatalogue();
+        assertEquals(2.0, meterRegistry.counter("catalogue.response-cache.requests", "result", "miss").count());
+    }
+
+    @Test
+    public void test_concurrent_requests_encode_each_version_once() throws Exception {
+        CountDownLatch reading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Mockito.when(movieCatalogueService.getCurrentCatalogue()).thenAnswer(invocation -> {
+            reading.countDown();
+            release.await();
+            return catalogue;
+        });
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<CatalogueResponseCache.EncodedCatalogue>> requests = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                requests.add(executor.submit(() -> cache.get()));
+            }
+            reading.await();
+            release.countDown();
+            CatalogueResponseCache.EncodedCatalogue encoded = requests.get(0).get();
+            for (Future<CatalogueResponseCache.EncodedCatalogue> request : requests) {
+                assertSame(encoded, request.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        Mockito.verify(movieCatalogueService, Mockito.times(1)).getCurrentCatalogue();
+    }
+}
@@ -0,0 +1,254 @@
+package com.mr.moviecatalogue.service;
+
+import com.mr.moviecatalogue.domain.DirectorSuggestion;
+import com.mr.moviecatalogue.domain.Movie;
+import com.mr.moviecatalogue.inputobject.MovieIO;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.Spy;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+public class CatalogueSnapshotTest {
+
+    @Mock
+    MovieRepository database;
+
+    @Spy
+    MeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @Mock
+    WriteBehindQueue writeBehindQueue;
+
+    @Spy
+    CatalogueVersion catalogueVersion = new CatalogueVersion();
+
+    @InjectMocks
+    CatalogueSnapshot snapshot;
+
+    private Map<String, Movie> movieMap;
+
+    @Before
+    public void setup() {
+        ReflectionTestUtils.setField(snapshot, "enabled", true);
+        snapshot.registerMetrics();
+        movieMap = new HashMap<>();
+        movieMap.put("Hot Fuzz", new Movie(Optional.of("Edgar Wright"), Optional.of(Float.valueOf((float) 5.0))));
+        movieMap.put("Shaun of the Dead", new Movie(Optional.of("Edgar Wright"), Optional.of(Float.valueOf((float) -1.0))));
+        movieMap.put("Tropic Thunder", new Movie(Optional.of("Ben Stiller"), Optional.of(Float.valueOf((float) 4.5))));
+        Mockito.when(database.getAllMovies()).thenReturn(movieMap);
+        Mockito.when(writeBehindQueue.flush()).thenReturn(true);
+    }
+
+    @Test
+    public void test_snapshot_is_loaded_once_and_then_served_from_memory() {
+        assertEquals(3, snapshot.getAllMovies().get().size());
+        assertEquals(1, snapshot.getMovieByTitle("Hot Fuzz").get().size());
+        assertTrue(snapshot.getMovieByTitle("hot fuzz").get().isEmpty());
+        Mockito.verify(database, Mockito.times(1)).getAllMovies();
+        assertEquals(2.0, meterRegistry.counter("catalogue.snapshot.requests", "result", "hit").count());
+        assertEquals(1.0, meterRegistry.counter("catalogue.snapshot.requests", "result", "miss").count());
+    }
+
+    @Test
+    public void test_null_ratings_are_held_as_empty() {
+        assertEquals(Optional.empty(), snapshot.getAllMovies().get().get("Shaun of the Dead").getRating());
+    }
+
+    @Test
+    public void test_disabled_snapshot_returns_null_without_calling_database() {
+        ReflectionTestUtils.setField(snapshot, "enabled", false);
+        assertFalse(snapshot.getAllMovies().isPresent());
+        assertFalse(snapshot.getMovieByTitle("Hot Fuzz").isPresent());
+        Mockito.verify(database, Mockito.never()).getAllMovies();
+    }
+
+    @Test
+    public void test_unavailable_database_returns_null() {
+        Mockito.when(database.getAllMovies()).thenReturn(null);
+        assertFalse(snapshot.getAllMovies().isPresent());
+    }
+
+    @Test
+    public void test_director_wildcards_and_rating_filters_match_database_semantics() {
+        assertEquals(2, snapshot.getMoviesByDirector("edgar*").get().size());
+        assertEquals(2, snapshot.getMoviesByDirector("%WRIGHT").get().size());
+        assertEquals(1, snapshot.getMoviesByDirector("Ben Stille_").get().size());
+        assertTrue(snapshot.getMoviesByDirector("Ben").get().isEmpty());
+        assertEquals(2, snapshot.getMoviesAboveRating(Float.valueOf((float) 4.5)).get().size());
+        assertEquals(1, snapshot.getMoviesByDirectorAboveRating("Edgar Wright", Float.valueOf((float) 0.0)).get().size());
+    }
+
+    @Test
+    public void test_writes_are_applied_to_loaded_snapshot() {
+        snapshot.getAllMovies();
+        snapshot.movieAdded(new MovieIO("Snatch", "Guy Ritchie", Float.valueOf((float) -1.0)), 1);
+        snapshot.ratingUpdated("Snatch", Float.valueOf((float) 4.8), 1);
+        snapshot.movieEdited("Hot Fuzz", "Hot Fuzz 2", new Movie(Optional.of("Edgar Wright"), Optional.of(Float.valueOf((float) 5.0))));
+        snapshot.directorUpdated("Tropic Thunder", null, 1);
+        snapshot.movieDeleted("Shaun of the Dead", 1);
+        snapshot.directorDeleted("guy ritchie");
+
+        Map<String, Movie> movies = snapshot.getAllMovies().get();
+        assertEquals(new Movie(Optional.empty(), Optional.of(Float.valueOf((float) 4.8))), movies.get("Snatch"));
+        assertEquals(new Movie(Optional.of("Edgar Wright"), Optional.of(Float.valueOf((float) 5.0))), movies.get("Hot Fuzz 2"));
+        assertEquals(new Movie(Optional.empty(), Optional.of(Float.valueOf((float) 4.5))), movies.get("Tropic Thunder"));
+        assertEquals(3, movies.size());
+        Mockito.verify(database, Mockito.times(1)).getAllMovies();
+    }
+
+    @Test
+    public void test_failed_writes_are_not_applied() {
+        snapshot.getAllMovies();
+        snapshot.movieAdded(new MovieIO("Hot Fuzz", "Someone Else", Float.valueOf((float) 1.0)), 0);
+        assertEquals(Optional.of("Edgar Wright"), snapshot.getAllMovies().get().get("Hot Fuzz").getDirector());
+    }
+
+    @Test
+    public void test_writes_affecting_several_rows_cause_reload() {
+        snapshot.getAllMovies();
+        snapshot.movieDeleted("Hot Fuzz", 2);
+        snapshot.getAllMovies();
+        Mockito.verify(database, Mockito.times(2)).getAllMovies();
+    }
+
+    @Test
+    public void test_invalidate_causes_reload() {
+        snapshot.getAllMovies();
+        snapshot.invalidate();
+        snapshot.getAllMovies();
+        Mockito.verify(database, Mockito.times(2)).getAllMovies();
+    }
+
+    @Test
+    public void test_snapshot_is_not_loaded_while_pending_edits_cannot_be_written() {
+        Mockito.when(writeBehindQueue.flush()).thenReturn(false);
+        assertFalse(snapshot.getAllMovies().isPresent());
+        Mockito.verify(database, Mockito.never()).getAllMovies();
+    }
+
+    @Test
+    public void test_edit_to_a_movie_missing_from_the_snapshot_discards_it() {
+        snapshot.getAllMovies();
+        snapshot.movieDeleted("Hot Fuzz", 1);
+        snapshot.movieEdited("Hot Fuzz", "Hot Fuzz", new Movie(Optional.of("Edgar Wright"), Optional.empty()));
+        assertEquals(3, snapshot.getAllMovies().get().size());
+        Mockito.verify(database, Mockito.times(2)).getAllMovies();
+    }
+
+    @Test
+    public void test_reload_replaces_a_snapshot_that_has_diverged_from_the_database() {
+        snapshot.getAllMovies();
+        Map<String, Movie> databaseMovies = new HashMap<>();
+        databaseMovies.put("Hot Fuzz", new Movie(Optional.of("Someone Else"), Optional.of(Float.valueOf((float) 2.0))));
+        databaseMovies.put("Snatch", new Movie(Optional.of("Guy Ritchie"), Optional.of(Float.valueOf((float) 4.8))));
+        Mockito.when(database.getAllMovies()).thenReturn(databaseMovies);
+
+        assertTrue(snapshot.reload());
+        assertEquals(1, catalogueVersion.current().getVersion());
+        assertEquals(new HashSet<>(Arrays.asList("Hot Fuzz", "Snatch")), snapshot.getAllMovies().get().keySet());
+        assertEquals(Arrays.asList("Snatch"), new ArrayList<>(snapshot.getMoviesAboveRating(Float.valueOf((float) 4.5)).get().keySet()));
+        assertTrue(snapshot.getMoviesByDirector("Edgar Wright").get().isEmpty());
+        assertEquals(Arrays.asList("Snatch"), new ArrayList<>(snapshot.searchTitles(TitleIndex.queryWords("snatch"), 10).get().keySet()));
+        assertEquals(1.0, meterRegistry.counter("catalogue.snapshot.reloads", "result", "replaced").count());
+    }
+
+    @Test
+    public void test_reload_that_finds_no_changes_keeps_the_catalogue_version() {
+        snapshot.getAllMovies();
+        Mockito.when(database.getAllMovies()).thenReturn(new HashMap<>(movieMap));
+
+        assertTrue(snapshot.reload());
+        assertEquals(0, catalogueVersion.current().getVersion());
+    }
+
+    @Test
+    public void test_reload_is_discarded_when_a_write_reaches_the_snapshot_while_it_loads() {
+        snapshot.getAllMovies();
+        Mockito.when(database.getAllMovies()).thenAnswer(invocation -> {
+            snapshot.movieAdded(new MovieIO("Snatch", "Guy Ritchie", Float.valueOf((float) 4.8)), 1);
+            return new HashMap<>();
+        });
+
+        assertFalse(snapshot.reload());
+        assertEquals(4, snapshot.getAllMovies().get().size());
+        assertEquals(1.0, meterRegistry.counter("catalogue.snapshot.reloads", "result", "skipped").count());
+    }
+
+    @Test
+    public void test_reload_does_not_load_a_snapshot_that_is_not_loaded() {
+        assertFalse(snapshot.reload());
+        Mockito.verify(database, Mockito.never()).getAllMovies();
+    }
+
+    @Test
+    public void test_pages_are_returned_in_title_order_after_the_given_title() {
+        Map<String, Movie> firstPage = snapshot.getMoviesPage(null, null, null, 2).get();
+        assertEquals(Arrays.asList("Hot Fuzz", "Shaun of the Dead"), Arrays.asList(firstPage.keySet().toArray()));
+        Map<String, Movie> secondPage = snapshot.getMoviesPage(null, null, "Shaun of the Dead", 2).get();
+        assertEquals(Arrays.asList("Tropic Thunder"), Arrays.asList(secondPage.keySet().toArray()));
+        Map<String, Movie> filteredPage = snapshot.getMoviesPage("edgar*", Float.valueOf((float) 1.0), null, 2).get();
+        assertEquals(Arrays.asList("Hot Fuzz"), Arrays.asList(filteredPage.keySet().toArray()));
+    }
+
+    @Test
+    public void test_rating_queries_follow_writes_to_the_snapshot() {
+        assertEquals(2, snapshot.getMoviesAboveRating(Float.valueOf((float) 4.5)).get().size());
+        snapshot.ratingUpdated("Tropic Thunder", Float.valueOf((float) 3.0), 1);
+        snapshot.ratingUpdated("Shaun of the Dead", Float.valueOf((float) 4.8), 1);
+        snapshot.movieEdited("Hot Fuzz", "Hot Fuzz 2", new Movie(Optional.of("Edgar Wright"), Optional.of(Float.valueOf((float) 5.0))));
+        snapshot.movieAdded(new MovieIO("Snatch", "Guy Ritchie", Float.valueOf((float) 4.6)), 1);
+        snapshot.movieDeleted("Snatch", 1);
+
+        Map<String, Movie> movies = snapshot.getMoviesAboveRating(Float.valueOf((float) 4.5)).get();
+        assertEquals(new HashSet<>(Arrays.asList("Hot Fuzz 2", "Shaun of the Dead")), movies.keySet());
+        assertEquals(1, snapshot.getMoviesByDirectorAboveRating("Edgar*", Float.valueOf((float) 4.9)).get().size());
+    }
+
+    @Test
+    public void test_director_queries_and_suggestions_follow_writes_to_the_snapshot() {
+        assertEquals(Arrays.asList(new DirectorSuggestion("Edgar Wright", 2), new DirectorSuggestion("Ben Stiller", 1)),
+                snapshot.suggestDirectors("", 10).get());
+        snapshot.directorUpdated("Hot Fuzz", "Ben Stiller", 1);
+        snapshot.movieEdited("Shaun of the Dead", "Shaun of the Dead", new Movie(Optional.of("Simon Pegg"), Optional.empty()));
+        snapshot.movieAdded(new MovieIO("Zoolander", "ben stiller", Float.valueOf((float) 3.0)), 1);
+
+        assertEquals(3, snapshot.getMoviesByDirector("BEN*").get().size());
+        assertTrue(snapshot.getMoviesByDirector("Edgar Wright").get().isEmpty());
+        assertEquals(Arrays.asList(new DirectorSuggestion("Ben Stiller", 3)), snapshot.suggestDirectors("b", 10).get());
+
+        snapshot.directorDeleted("Ben Stiller");
+        assertTrue(snapshot.getMoviesByDirector("Ben%").get().isEmpty());
+        assertEquals(Arrays.asList(new DirectorSuggestion("Simon Pegg", 1)), snapshot.suggestDirectors("", 10).get());
+    }
+
+    @Test
+    public void test_title_search_follows_writes_to_the_snapshot() {
+        assertEquals(Arrays.asList("Hot Fuzz"), new ArrayList<>(snapshot.searchTitles(TitleIndex.queryWords("fuz"), 10).get().keySet()));
+        snapshot.movieEdited("Hot Fuzz", "Hot Fuzz 2", new Movie(Optional.empty(), Optional.of(Float.valueOf((float) 4.0))));
+        snapshot.movieAdded(new MovieIO("Fuzz Buzz", "Ben Stiller", Float.valueOf((float) 3.0)), 1);
+
+        Map<String, Movie> movies = snapshot.searchTitles(TitleIndex.queryWords("fuzz"), 10).get();
+        assertEquals(Arrays.asList("Fuzz Buzz", "Hot Fuzz 2"), new ArrayList<>(movies.keySet()));
+        assertEquals(Float.valueOf((float) 4.0), movies.get("Hot Fuzz 2").getRatingValue());
+
+        snapshot.movieDeleted("Fuzz Buzz", 1);
+        assertEquals(1, snapshot.searchTitles(TitleIndex.queryWords("fuzz"), 10).get().size());
+    }
+}
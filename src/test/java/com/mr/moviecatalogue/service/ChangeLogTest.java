@@ -0,0 +1,98 @@
+package com.mr.moviecatalogue.service;
+
+import com.mr.moviecatalogue.domain.ChangeFeed;
+import com.mr.moviecatalogue.domain.ChangeType;
+import com.mr.moviecatalogue.domain.MovieChange;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+public class ChangeLogTest {
+
+    private ChangeLog changeLog;
+    private long start;
+
+    @Before
+    public void setup() {
+        changeLog = new ChangeLog();
+        ReflectionTestUtils.setField(changeLog, "capacity", 3);
+        changeLog.initialise();
+        start = changeLog.since(0, 10).getLatest();
+    }
+
+    @Test
+    public void test_changes_since_sequence_are_returned_in_order() {
+        changeLog.record(change("Hot Fuzz"));
+        changeLog.record(Arrays.asList(change("Snatch"), change("Tropic Thunder")));
+
+        ChangeFeed feed = changeLog.since(start + 1, 10);
+        assertFalse(feed.isResync());
+        assertFalse(feed.isMore());
+        assertEquals(2, feed.getChanges().size());
+        assertEquals("Snatch", feed.getChanges().get(0).getTitle());
+        assertEquals(start + 3, feed.getChanges().get(1).getSequence());
+        assertEquals(start + 3, feed.getLatest());
+        assertTrue(changeLog.since(start + 3, 10).getChanges().isEmpty());
+    }
+
+    @Test
+    public void test_changes_beyond_limit_are_left_for_the_next_request() {
+        changeLog.record(Arrays.asList(change("Hot Fuzz"), change("Snatch"), change("Tropic Thunder")));
+
+        ChangeFeed feed = changeLog.since(start, 2);
+        assertEquals(2, feed.getChanges().size());
+        assertTrue(feed.isMore());
+        assertEquals("Tropic Thunder", changeLog.since(feed.getLatest(), 2).getChanges().get(0).getTitle());
+    }
+
+    @Test
+    public void test_resync_when_changes_have_been_overwritten() {
+        changeLog.record(Arrays.asList(change("Hot Fuzz"), change("Snatch"), change("Tropic Thunder")));
+        assertFalse(changeLog.since(start, 10).isResync());
+
+        changeLog.record(change("Shaun of the Dead"));
+        ChangeFeed feed = changeLog.since(start, 10);
+        assertTrue(feed.isResync());
+        assertTrue(feed.getChanges().isEmpty());
+        assertEquals(start + 4, feed.getLatest());
+        assertEquals(3, changeLog.since(start + 1, 10).getChanges().size());
+    }
+
+    @Test
+    public void test_resync_for_unknown_sequences_and_after_invalidate() {
+        assertTrue(changeLog.since(0, 10).isResync());
+        assertTrue(changeLog.since(start + 1, 10).isResync());
+        assertFalse(changeLog.since(start, 10).isResync());
+
+        changeLog.invalidate();
+        assertTrue(changeLog.since(start, 10).isResync());
+        assertFalse(changeLog.since(start + 1, 10).isResync());
+    }
+
+    @Test
+    public void test_resync_for_sequences_from_another_instance() {
+        changeLog.record(change("Hot Fuzz"));
+        String instance = changeLog.since(start, 10).getInstance();
+        assertNotNull(instance);
+        assertEquals(1, changeLog.since(start, instance, 10).getChanges().size());
+
+        ChangeLog otherInstance = new ChangeLog();
+        ReflectionTestUtils.setField(otherInstance, "capacity", 3);
+        otherInstance.initialise();
+        assertNotEquals(instance, otherInstance.since(start, 10).getInstance());
+        ChangeFeed feed = changeLog.since(start, otherInstance.since(start, 10).getInstance(), 10);
+        assertTrue(feed.isResync());
+        assertEquals(instance, feed.getInstance());
+    }
+
+    private MovieChange change(String title) {
+        return new MovieChange(0, ChangeType.DELETED, title, null, null, null);
+    }
+}
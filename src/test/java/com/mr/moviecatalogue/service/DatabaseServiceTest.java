@@ -1,16 +1,30 @@
 package com.mr.moviecatalogue.service;
 
 import com.mr.moviecatalogue.domain.Movie;
+import com.mr.moviecatalogue.inputobject.MovieIO;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import lombok.SneakyThrows;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.InjectMocks;
+import org.mockito.Mock;
 import org.mockito.Mockito;
+import org.mockito.Spy;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.util.ReflectionTestUtils;
 
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -18,6 +32,18 @@ import static org.junit.jupiter.api.Assertions.*;
 @RunWith(SpringJUnit4ClassRunner.class)
 public class DatabaseServiceTest {
 
+    @Mock
+    private DataSource dataSource;
+
+    @Spy
+    private MeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @Spy
+    private CatalogueVersion catalogueVersion = new CatalogueVersion();
+
+    @Mock
+    private ReplicaDataSources replicaDataSources;
+
     @InjectMocks
     private DatabaseService databaseService;
 
@@ -33,6 +59,13 @@ public class DatabaseServiceTest {
     @Before
     public void setup(){
          mockResultSet = Mockito.mock(ResultSet.class);
+         databaseService.registerMetrics();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void test_initialise_schema_refuses_a_database_name_that_is_not_an_identifier(){
+        ReflectionTestUtils.setField(databaseService, "databaseUrl", "jdbc:postgresql://localhost:5432/moviedb;DROP DATABASE postgres");
+        databaseService.initialiseSchema();
     }
 
     //SneakyThrows annotation is used to avoid compiler issues with calling ResultSet methods,
@@ -71,4 +104,276 @@ public class DatabaseServiceTest {
         assertEquals(movieRatingOne, movieMap.get(movieTitleOne).getRating().get());
         assertEquals(Float.valueOf((float) -1.0), movieMap.get(movieTitleTwo).getRating().get());
     }
+
+    @Test @SneakyThrows(SQLException.class)
+    public void test_connection_is_returned_to_pool_after_query() {
+        Connection mockConnection = Mockito.mock(Connection.class);
+        PreparedStatement mockStatement = Mockito.mock(PreparedStatement.class);
+        Mockito.when(dataSource.getConnection()).thenReturn(mockConnection);
+        Mockito.when(mockConnection.prepareStatement(Mockito.anyString())).thenReturn(mockStatement);
+        Mockito.when(mockStatement.executeQuery()).thenReturn(mockResultSet);
+        Mockito.when(mockResultSet.next()).thenReturn(false);
+
+        assertTrue(databaseService.getAllMovies().isEmpty());
+        Mockito.verify(mockConnection, Mockito.times(1)).close();
+    }
+
+    @Test @SneakyThrows(SQLException.class)
+    public void test_reads_go_to_replica_unless_pinned_to_primary() {
+        DataSource replica = Mockito.mock(DataSource.class);
+        Connection mockConnection = Mockito.mock(Connection.class);
+        PreparedStatement mockStatement = Mockito.mock(PreparedStatement.class);
+        Mockito.when(replicaDataSources.next()).thenReturn(replica);
+        Mockito.when(replica.getConnection()).thenReturn(mockConnection);
+        Mockito.when(dataSource.getConnection()).thenReturn(mockConnection);
+        Mockito.when(mockConnection.prepareStatement(Mockito.anyString())).thenReturn(mockStatement);
+        Mockito.when(mockStatement.executeQuery()).thenReturn(mockResultSet);
+        Mockito.when(mockResultSet.next()).thenReturn(false);
+
+        databaseService.getMoviesByDirector(movieDirectorOne);
+        Mockito.verify(replica, Mockito.times(1)).getConnection();
+        Mockito.verify(dataSource, Mockito.never()).getConnection();
+        assertEquals(1, meterRegistry.timer("catalogue.repository.connection.open", "target", "replica").count());
+
+        ReadRouting.onPrimary(() -> databaseService.getMoviesByDirector(movieDirectorOne));
+        databaseService.updateRating(movieTitleOne, movieRatingOne);
+        Mockito.verify(replica, Mockito.times(1)).getConnection();
+        Mockito.verify(dataSource, Mockito.times(2)).getConnection();
+        assertEquals(2, meterRegistry.timer("catalogue.repository.connection.open", "target", "primary").count());
+    }
+
+    @Test @SneakyThrows(SQLException.class)
+    public void test_read_falls_back_to_primary_when_replica_is_unavailable() {
+        DataSource replica = Mockito.mock(DataSource.class);
+        Connection mockConnection = Mockito.mock(Connection.class);
+        PreparedStatement mockStatement = Mockito.mock(PreparedStatement.class);
+        Mockito.when(replicaDataSources.next()).thenReturn(replica);
+        Mockito.when(replica.getConnection()).thenThrow(new SQLTransientConnectionException("Connection is not available"));
+        Mockito.when(dataSource.getConnection()).thenReturn(mockConnection);
+        Mockito.when(mockConnection.prepareStatement(Mockito.anyString())).thenReturn(mockStatement);
+        Mockito.when(mockStatement.executeQuery()).thenReturn(mockResultSet);
+        Mockito.when(mockResultSet.next()).thenReturn(false);
+
+        assertNull(databaseService.getMovieByTitle(movieTitleOne));
+        Mockito.verify(dataSource, Mockito.times(1)).getConnection();
+        Mockito.verify(replicaDataSources, Mockito.times(1)).countFallback();
+        //Recorded once, against the primary the connection was borrowed from
+        assertEquals(1, meterRegistry.timer("catalogue.repository.connection.open", "target", "primary").count());
+        assertEquals(0, meterRegistry.timer("catalogue.repository.connection.open", "target", "replica").count());
+    }
+
+    @Test @SneakyThrows(SQLException.class)
+    public void test_drop_database_increments_catalogue_version_once_table_is_truncated() {
+        Connection mockConnection = Mockito.mock(Connection.class);
+        Statement mockStatement = Mockito.mock(Statement.class);
+        Mockito.when(dataSource.getConnection()).thenReturn(mockConnection);
+        Mockito.when(mockConnection.createStatement()).thenReturn(mockStatement);
+        long version = catalogueVersion.current().getVersion();
+
+        databaseService.dropDatabase();
+        assertEquals(version + 1, catalogueVersion.current().getVersion());
+
+        Mockito.when(mockStatement.executeUpdate(Mockito.anyString())).thenThrow(new SQLException("Truncate failed"));
+        databaseService.dropDatabase();
+        assertEquals(version + 1, catalogueVersion.current().getVersion());
+    }
+
+    @Test @SneakyThrows(SQLException.class)
+    public void test_get_all_movies_returns_null_when_pool_times_out() {
+        Mockito.when(dataSource.getConnection()).thenThrow(new SQLTransientConnectionException("Connection is not available"));
+        assertNull(databaseService.getAllMovies());
+        assertEquals(1.0, meterRegistry.counter("catalogue.repository.errors", "exception", "SQLTransientConnectionException").count());
+        assertEquals(1, meterRegistry.timer("catalogue.repository.connection.open", "target", "primary").count());
+    }
+
+    @Test @SneakyThrows(SQLException.class)
+    public void test_add_movie_sets_the_director_to_the_name_stored() {
+        Connection mockConnection = Mockito.mock(Connection.class);
+        PreparedStatement mockStatement = Mockito.mock(PreparedStatement.class);
+        Mockito.when(dataSource.getConnection()).thenReturn(mockConnection);
+        Mockito.when(mockConnection.prepareStatement("INSERT INTO movie_table (TITLE,DIRECTOR_ID,RATING) VALUES (?,director_id(?),?) RETURNING " +
+                "COALESCE((SELECT NAME FROM director_table WHERE director_table.DIRECTOR_ID = movie_table.DIRECTOR_ID), ?) AS DIRECTOR;")).thenReturn(mockStatement);
+        Mockito.when(mockStatement.executeQuery()).thenReturn(mockResultSet);
+        Mockito.when(mockResultSet.next()).thenReturn(true);
+        Mockito.when(mockResultSet.getString("DIRECTOR")).thenReturn("BEN STILLER");
+
+        MovieIO movieIO = new MovieIO(movieTitleOne, movieDirectorOne, movieRatingOne);
+        assertEquals(1, databaseService.addMovie(movieIO));
+        assertEquals("BEN STILLER", movieIO.getDirector());
+        Mockito.verify(mockStatement).setString(2, movieDirectorOne);
+        Mockito.verify(mockStatement).setString(4, movieDirectorOne);
+        Mockito.verify(mockConnection).close();
+    }
+
+    @Test @SneakyThrows(SQLException.class)
+    public void test_add_movies_sends_one_batch_in_one_transaction() {
+        Connection mockConnection = Mockito.mock(Connection.class);
+        PreparedStatement mockStatement = Mockito.mock(PreparedStatement.class);
+        Mockito.when(dataSource.getConnection()).thenReturn(mockConnection);
+        Mockito.when(mockConnection.prepareStatement(Mockito.anyString(), Mockito.eq(Statement.RETURN_GENERATED_KEYS))).thenReturn(mockStatement);
+        Mockito.when(mockStatement.executeBatch()).thenReturn(new int[]{1, 0});
+        Mockito.when(mockStatement.getGeneratedKeys()).thenReturn(mockResultSet);
+        Mockito.when(mockResultSet.next()).thenReturn(true).thenReturn(false);
+        Mockito.when(mockResultSet.getString("DIRECTOR")).thenReturn("BEN STILLER");
+
+        MovieIO added = new MovieIO(movieTitleOne, movieDirectorOne, movieRatingOne);
+        MovieIO duplicate = new MovieIO(movieTitleTwo, movieDirectorTwo, movieRatingTwo);
+        int[] rowsAdded = databaseService.addMovies(Arrays.asList(added, duplicate));
+
+        assertArrayEquals(new int[]{1, 0}, rowsAdded);
+        assertEquals("BEN STILLER", added.getDirector());
+        assertEquals(movieDirectorTwo, duplicate.getDirector());
+        Mockito.verify(mockConnection).setAutoCommit(false);
+        Mockito.verify(mockStatement, Mockito.times(2)).addBatch();
+        Mockito.verify(mockStatement, Mockito.times(1)).executeBatch();
+        Mockito.verify(mockConnection).commit();
+        Mockito.verify(mockConnection).close();
+    }
+
+    @Test @SneakyThrows(SQLException.class)
+    public void test_add_movies_rolls_back_and_returns_null_when_batch_fails() {
+        Connection mockConnection = Mockito.mock(Connection.class);
+        PreparedStatement mockStatement = Mockito.mock(PreparedStatement.class);
+        Mockito.when(dataSource.getConnection()).thenReturn(mockConnection);
+        Mockito.when(mockConnection.prepareStatement(Mockito.anyString(), Mockito.anyInt())).thenReturn(mockStatement);
+        Mockito.when(mockStatement.executeBatch()).thenThrow(new SQLException("Batch failed"));
+
+        assertNull(databaseService.addMovies(Arrays.asList(new MovieIO(movieTitleOne, movieDirectorOne, movieRatingOne))));
+        Mockito.verify(mockConnection).rollback();
+        Mockito.verify(mockConnection, Mockito.never()).commit();
+        Mockito.verify(mockConnection).close();
+    }
+
+    @Test @SneakyThrows(SQLException.class)
+    public void test_update_director_for_movies_returns_missing_titles_and_does_not_update() {
+        Connection mockConnection = Mockito.mock(Connection.class);
+        PreparedStatement mockStatement = Mockito.mock(PreparedStatement.class);
+        Mockito.when(dataSource.getConnection()).thenReturn(mockConnection);
+        Mockito.when(mockConnection.prepareStatement(Mockito.anyString())).thenReturn(mockStatement);
+        Mockito.when(mockStatement.executeQuery()).thenReturn(mockResultSet);
+        Mockito.when(mockResultSet.next()).thenReturn(true).thenReturn(false);
+        Mockito.when(mockResultSet.getString("TITLE")).thenReturn(movieTitleOne);
+
+        Map<String, Movie> updatedMovies = databaseService.updateDirectorForMovies(Arrays.asList(movieTitleOne, movieTitleTwo), movieDirectorOne);
+
+        assertEquals(1, updatedMovies.size());
+        assertTrue(updatedMovies.containsKey(movieTitleTwo));
+        assertNull(updatedMovies.get(movieTitleTwo));
+        Mockito.verify(mockStatement, Mockito.times(1)).executeQuery();
+        Mockito.verify(mockConnection).rollback();
+        Mockito.verify(mockConnection, Mockito.never()).commit();
+        Mockito.verify(mockConnection).close();
+    }
+
+    @Test @SneakyThrows(SQLException.class)
+    public void test_update_director_for_movies_updates_all_titles_in_one_transaction() {
+        Connection mockConnection = Mockito.mock(Connection.class);
+        PreparedStatement mockStatement = Mockito.mock(PreparedStatement.class);
+        Mockito.when(dataSource.getConnection()).thenReturn(mockConnection);
+        Mockito.when(mockConnection.prepareStatement(Mockito.anyString())).thenReturn(mockStatement);
+        Mockito.when(mockStatement.executeQuery()).thenReturn(mockResultSet);
+        Mockito.when(mockResultSet.next()).thenReturn(true, true, false, true, true, false);
+        Mockito.when(mockResultSet.getString("TITLE")).thenReturn(movieTitleOne, movieTitleTwo, movieTitleOne, movieTitleTwo);
+        Mockito.when(mockResultSet.getString("DIRECTOR")).thenReturn("BEN STILLER");
+
+        Map<String, Movie> updatedMovies = databaseService.updateDirectorForMovies(Arrays.asList(movieTitleOne, movieTitleTwo), movieDirectorOne);
+
+        assertEquals(2, updatedMovies.size());
+        assertEquals("BEN STILLER", updatedMovies.get(movieTitleTwo).getDirectorName());
+        Mockito.verify(mockConnection).setAutoCommit(false);
+        Mockito.verify(mockStatement, Mockito.times(2)).executeQuery();
+        Mockito.verify(mockConnection).commit();
+        Mockito.verify(mockConnection).close();
+    }
+
+    @Test @SneakyThrows(SQLException.class)
+    public void test_edit_movie_sets_only_given_fields_and_returns_updated_row() {
+        Connection mockConnection = Mockito.mock(Connection.class);
+        PreparedStatement mockStatement = Mockito.mock(PreparedStatement.class);
+        Mockito.when(dataSource.getConnection()).thenReturn(mockConnection);
+        Mockito.when(mockConnection.prepareStatement("UPDATE movie_table SET TITLE = ?, RATING = ? WHERE TITLE = ? " +
+                "AND (TITLE IS DISTINCT FROM ? OR CAST(RATING AS real) IS DISTINCT FROM ?) RETURNING TITLE, " +
+                "(SELECT NAME FROM director_table WHERE director_table.DIRECTOR_ID = movie_table.DIRECTOR_ID) AS DIRECTOR, RATING;")).thenReturn(mockStatement);
+        Mockito.when(mockStatement.executeQuery()).thenReturn(mockResultSet);
+        Mockito.when(mockResultSet.next()).thenReturn(true).thenReturn(false);
+        Mockito.when(mockResultSet.getString("TITLE")).thenReturn(movieTitleTwo);
+        Mockito.when(mockResultSet.getString("DIRECTOR")).thenReturn(movieDirectorOne);
+        Mockito.when(mockResultSet.getFloat("RATING")).thenReturn(movieRatingTwo);
+
+        Map<String, Movie> editedMovie = databaseService.editMovie(movieTitleOne, movieTitleTwo, null, movieRatingTwo);
+
+        assertEquals(1, editedMovie.size());
+        assertEquals(movieDirectorOne, editedMovie.get(movieTitleTwo).getDirector().get());
+        Mockito.verify(mockStatement).setString(1, movieTitleTwo);
+        Mockito.verify(mockStatement).setFloat(2, movieRatingTwo);
+        Mockito.verify(mockStatement).setString(3, movieTitleOne);
+        Mockito.verify(mockStatement).setString(4, movieTitleTwo);
+        Mockito.verify(mockStatement).setFloat(5, movieRatingTwo);
+        Mockito.verify(mockConnection).close();
+    }
+
+    @Test @SneakyThrows(SQLException.class)
+    public void test_edit_movie_returns_given_director_name_when_director_is_new() {
+        Connection mockConnection = Mockito.mock(Connection.class);
+        PreparedStatement mockStatement = Mockito.mock(PreparedStatement.class);
+        Mockito.when(dataSource.getConnection()).thenReturn(mockConnection);
+        Mockito.when(mockConnection.prepareStatement("UPDATE movie_table SET DIRECTOR_ID = director_id(?) WHERE TITLE = ? " +
+                "AND (NOT EXISTS (SELECT 1 FROM director_table WHERE director_table.DIRECTOR_ID = movie_table.DIRECTOR_ID " +
+                "AND lower(director_table.NAME) = lower(?))) RETURNING TITLE, " +
+                "COALESCE((SELECT NAME FROM director_table WHERE director_table.DIRECTOR_ID = movie_table.DIRECTOR_ID), ?) AS DIRECTOR, RATING;")).thenReturn(mockStatement);
+        Mockito.when(mockStatement.executeQuery()).thenReturn(mockResultSet);
+
+        databaseService.editMovie(movieTitleOne, null, movieDirectorTwo, null);
+
+        Mockito.verify(mockStatement).setString(1, movieDirectorTwo);
+        Mockito.verify(mockStatement).setString(2, movieTitleOne);
+        Mockito.verify(mockStatement).setString(3, movieDirectorTwo);
+        Mockito.verify(mockStatement).setString(4, movieDirectorTwo);
+    }
+
+    @Test @SneakyThrows(SQLException.class)
+    public void test_delete_director_clears_movies_and_removes_director_in_one_transaction() {
+        Connection mockConnection = Mockito.mock(Connection.class);
+        PreparedStatement updateStatement = Mockito.mock(PreparedStatement.class);
+        PreparedStatement deleteStatement = Mockito.mock(PreparedStatement.class);
+        Mockito.when(dataSource.getConnection()).thenReturn(mockConnection);
+        Mockito.when(mockConnection.prepareStatement(Mockito.startsWith("UPDATE movie_table SET DIRECTOR_ID = NULL"))).thenReturn(updateStatement);
+        Mockito.when(mockConnection.prepareStatement("DELETE FROM director_table WHERE lower(NAME) = lower(?)")).thenReturn(deleteStatement);
+        Mockito.when(updateStatement.executeUpdate()).thenReturn(2);
+
+        assertEquals(2, databaseService.deleteDirector(movieDirectorTwo));
+        Mockito.verify(updateStatement).setString(1, movieDirectorTwo);
+        Mockito.verify(deleteStatement).setString(1, movieDirectorTwo);
+        Mockito.verify(deleteStatement).executeUpdate();
+        Mockito.verify(mockConnection).setAutoCommit(false);
+        Mockito.verify(mockConnection).commit();
+        Mockito.verify(mockConnection).close();
+
+        Mockito.when(deleteStatement.executeUpdate()).thenThrow(new SQLException("Delete failed"));
+        assertEquals(0, databaseService.deleteDirector(movieDirectorTwo));
+        Mockito.verify(mockConnection).rollback();
+    }
+
+    @Test @SneakyThrows({SQLException.class, java.io.IOException.class})
+    public void test_stream_all_movies_uses_cursor_and_visits_each_row() {
+        ReflectionTestUtils.setField(databaseService, "streamFetchSize", 500);
+        Connection mockConnection = Mockito.mock(Connection.class);
+        PreparedStatement mockStatement = Mockito.mock(PreparedStatement.class);
+        Mockito.when(dataSource.getConnection()).thenReturn(mockConnection);
+        Mockito.when(mockConnection.prepareStatement(Mockito.anyString())).thenReturn(mockStatement);
+        Mockito.when(mockStatement.executeQuery()).thenReturn(mockResultSet);
+        Mockito.when(mockResultSet.next()).thenReturn(true).thenReturn(true).thenReturn(false);
+        Mockito.when(mockResultSet.getString("TITLE")).thenReturn(movieTitleOne).thenReturn(movieTitleTwo);
+        Mockito.when(mockResultSet.getString("DIRECTOR")).thenReturn(movieDirectorOne).thenReturn(movieDirectorTwo);
+        Mockito.when(mockResultSet.getFloat("RATING")).thenReturn(movieRatingOne).thenReturn(movieRatingTwo);
+
+        List<String> visited = new ArrayList<>();
+        databaseService.streamAllMovies((title, movie) -> visited.add(title));
+
+        assertEquals(2, visited.size());
+        assertEquals(movieTitleOne, visited.get(0));
+        Mockito.verify(mockConnection).setAutoCommit(false);
+        Mockito.verify(mockStatement).setFetchSize(500);
+        Mockito.verify(mockConnection, Mockito.times(1)).close();
+    }
 }
@@ -0,0 +1,91 @@
+package com.mr.moviecatalogue.service;
+
+import com.mr.moviecatalogue.domain.DirectorSuggestion;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+public class DirectorIndexTest {
+
+    private DirectorIndex<String> directorIndex;
+
+    @Before
+    public void setup() {
+        directorIndex = new DirectorIndex<>();
+        directorIndex.put("Hot Fuzz", "Edgar Wright", "Hot Fuzz");
+        directorIndex.put("Shaun of the Dead", "Edgar Wright", "Shaun of the Dead");
+        directorIndex.put("Tropic Thunder", "Ben Stiller", "Tropic Thunder");
+        directorIndex.put("Zoolander", "Ben Stiller", "Zoolander");
+        directorIndex.put("Ben-Hur", "William Wyler", "Ben-Hur");
+        directorIndex.put("Snatch", "Guy Ritchie", "Snatch");
+        directorIndex.put("Untitled", null, "Untitled");
+    }
+
+    @Test
+    public void test_exact_name_is_not_case_sensitive() {
+        assertEquals(new HashSet<>(Arrays.asList("Hot Fuzz", "Shaun of the Dead")), titlesMatching("EDGAR WRIGHT"));
+        assertTrue(titlesMatching("Edgar").isEmpty());
+    }
+
+    @Test
+    public void test_prefix_pattern_reads_range_of_directors() {
+        assertEquals(new HashSet<>(Arrays.asList("Tropic Thunder", "Zoolander")), titlesMatching("ben%"));
+        assertEquals(new HashSet<>(Arrays.asList("Tropic Thunder", "Zoolander")), titlesMatching("Ben Stiller%%"));
+        assertEquals(6, titlesMatching("%").size());
+    }
+
+    @Test
+    public void test_other_patterns_are_matched_against_each_director() {
+        assertEquals(new HashSet<>(Arrays.asList("Hot Fuzz", "Shaun of the Dead")), titlesMatching("%wright"));
+        assertEquals(new HashSet<>(Arrays.asList("Snatch")), titlesMatching("Guy Ritchi_"));
+        assertEquals(new HashSet<>(Arrays.asList("Snatch")), titlesMatching("Guy%Ritchie"));
+        assertTrue(titlesMatching("Guy\\%").isEmpty());
+    }
+
+    @Test
+    public void test_director_keeps_the_spelling_it_was_first_indexed_with() {
+        directorIndex.put("Spaceballs", "BEN STILLER", "Spaceballs");
+        assertEquals("Ben Stiller", directorIndex.name("ben stiller"));
+        assertEquals("Ben Stiller", directorIndex.suggest("ben s", 1).get(0).getDirector());
+        assertNull(directorIndex.name("Ben"));
+    }
+
+    @Test
+    public void test_put_moves_movie_when_director_changes_and_remove_drops_empty_directors() {
+        directorIndex.remove("Snatch", "Guy Ritchie");
+        directorIndex.put("Snatch", "Ben Stiller", "Snatch");
+        assertEquals(3, titlesMatching("Ben Stiller").size());
+        assertTrue(titlesMatching("Guy%").isEmpty());
+        assertTrue(directorIndex.suggest("guy", 10).isEmpty());
+    }
+
+    @Test
+    public void test_suggest_returns_directors_with_most_movies_first() {
+        assertEquals(Arrays.asList(new DirectorSuggestion("Ben Stiller", 2), new DirectorSuggestion("Edgar Wright", 2)),
+                directorIndex.suggest("", 2));
+        assertEquals(Arrays.asList(new DirectorSuggestion("Ben Stiller", 2)), directorIndex.suggest("BEN", 10));
+        assertTrue(directorIndex.suggest("Ben%", 10).isEmpty());
+    }
+
+    @Test
+    public void test_movies_by_director_is_a_copy() {
+        directorIndex.moviesBy("ben stiller").forEach((title, movie) -> directorIndex.remove(title, "Ben Stiller"));
+        assertTrue(directorIndex.moviesBy("Ben Stiller").isEmpty());
+        directorIndex.clear();
+        assertTrue(titlesMatching("%").isEmpty());
+    }
+
+    private Set<String> titlesMatching(String like) {
+        Set<String> titles = new HashSet<>();
+        directorIndex.forEachMatching(like, (title, movie) -> titles.add(title));
+        return titles;
+    }
+}
@@ -0,0 +1,171 @@
+package com.mr.moviecatalogue.service;
+
+import com.mr.moviecatalogue.domain.DirectorSuggestion;
+import com.mr.moviecatalogue.domain.Movie;
+import com.mr.moviecatalogue.inputobject.MovieIO;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+public class InMemoryMovieRepositoryTest {
+
+    private InMemoryMovieRepository repository;
+
+    @Before
+    public void setup() {
+        repository = new InMemoryMovieRepository();
+        repository.addMovie(new MovieIO("Hot Fuzz", "Edgar Wright", Float.valueOf((float) 5.0)));
+        repository.addMovie(new MovieIO("Shaun of the Dead", "Edgar Wright", Float.valueOf((float) -1.0)));
+        repository.addMovie(new MovieIO("Tropic Thunder", "Ben Stiller", Float.valueOf((float) 4.5)));
+    }
+
+    @Test
+    public void test_add_movie_does_not_replace_existing_title() {
+        assertEquals(0, repository.addMovie(new MovieIO("Hot Fuzz", "Someone Else", Float.valueOf((float) 1.0))));
+        assertEquals(new Movie(Optional.of("Edgar Wright"), Optional.of(Float.valueOf((float) 5.0))), repository.getMovieByTitle("Hot Fuzz"));
+    }
+
+    @Test
+    public void test_director_keeps_the_spelling_it_was_first_stored_with() {
+        MovieIO movieIO = new MovieIO("The World's End", "EDGAR WRIGHT", Float.valueOf((float) 4.0));
+        assertEquals(1, repository.addMovie(movieIO));
+        assertEquals("Edgar Wright", movieIO.getDirector());
+        assertEquals("Edgar Wright", repository.getMovieByTitle("The World's End").getDirectorName());
+
+        assertEquals("Ben Stiller", repository.editMovie("Hot Fuzz", null, "ben stiller", null).get("Hot Fuzz").getDirectorName());
+        assertEquals("Ben Stiller", repository.updateDirectorForMovies(Arrays.asList("Shaun of the Dead"), "BEN STILLER")
+                .get("Shaun of the Dead").getDirectorName());
+
+        repository.deleteDirector("ben stiller");
+        repository.updateDirector("Hot Fuzz", "ben stiller");
+        assertEquals("ben stiller", repository.getMovieByTitle("Hot Fuzz").getDirectorName());
+    }
+
+    @Test
+    public void test_add_movies_reports_each_movie() {
+        int[] rowsAdded = repository.addMovies(Arrays.asList(new MovieIO("Snatch", null, Float.valueOf((float) -1.0)),
+                new MovieIO("Hot Fuzz", null, Float.valueOf((float) -1.0))));
+        assertArrayEquals(new int[]{1, 0}, rowsAdded);
+        assertEquals(4, repository.getAllMovies().size());
+    }
+
+    @Test
+    public void test_movies_returned_are_copies() {
+        repository.getMovieByTitle("Hot Fuzz").setRating(Optional.empty());
+        repository.getAllMovies().get("Hot Fuzz").setDirector(Optional.empty());
+        assertEquals(new Movie(Optional.of("Edgar Wright"), Optional.of(Float.valueOf((float) 5.0))), repository.getMovieByTitle("Hot Fuzz"));
+    }
+
+    @Test
+    public void test_queries_match_database_semantics() {
+        assertEquals(2, repository.getMoviesByDirector("edgar*").size());
+        assertEquals(1, repository.getMoviesByDirector("%stiller").size());
+        assertEquals(2, repository.getMoviesAboveRating(Float.valueOf((float) 4.5)).size());
+        assertEquals(1, repository.getMoviesByDirectorAboveRating("Edgar Wright", Float.valueOf((float) 0.0)).size());
+        assertNull(repository.getMovieByTitle("hot fuzz"));
+    }
+
+    @Test
+    public void test_get_movies_page_uses_title_as_keyset() {
+        Map<String, Movie> page = repository.getMoviesPage(null, null, "Hot Fuzz", 1);
+        assertEquals(Arrays.asList("Shaun of the Dead"), new ArrayList<>(page.keySet()));
+        page = repository.getMoviesPage("Edgar*", Float.valueOf((float) 0.0), null, 10);
+        assertEquals(Arrays.asList("Hot Fuzz"), new ArrayList<>(page.keySet()));
+    }
+
+    @Test
+    public void test_edit_movie_renames_and_keeps_unset_fields() {
+        Map<String, Movie> edited = repository.editMovie("Hot Fuzz", "Hot Fuzz 2", null, Float.valueOf((float) 4.0));
+        assertEquals(new Movie(Optional.of("Edgar Wright"), Optional.of(Float.valueOf((float) 4.0))), edited.get("Hot Fuzz 2"));
+        assertNull(repository.getMovieByTitle("Hot Fuzz"));
+        assertEquals(1, repository.deleteMovie("HOT FUZZ 2"));
+    }
+
+    @Test
+    public void test_edit_movie_leaves_movie_with_the_values_given_as_it_is() {
+        assertTrue(repository.editMovie("Hot Fuzz", "Hot Fuzz", "edgar wright", Float.valueOf((float) 5.0)).isEmpty());
+        assertEquals(new Movie(Optional.of("Edgar Wright"), Optional.of(Float.valueOf((float) 5.0))), repository.getMovieByTitle("Hot Fuzz"));
+        assertEquals(1, repository.editMovie("Hot Fuzz", null, "Edgar Wright", Float.valueOf((float) 4.0)).size());
+    }
+
+    @Test
+    public void test_edit_movie_returns_empty_for_missing_title_and_null_for_duplicate_title() {
+        assertTrue(repository.editMovie("Snatch", null, "Guy Ritchie", null).isEmpty());
+        assertNull(repository.editMovie("Hot Fuzz", "Tropic Thunder", null, null));
+        assertNotNull(repository.getMovieByTitle("Hot Fuzz"));
+    }
+
+    @Test
+    public void test_case_insensitive_updates_and_deletes() {
+        assertEquals(1, repository.updateDirector("tropic thunder", "Ben"));
+        assertEquals(1, repository.updateRating("TROPIC THUNDER", Float.valueOf((float) 3.0)));
+        assertEquals(new Movie(Optional.of("Ben"), Optional.of(Float.valueOf((float) 3.0))), repository.getMovieByTitle("Tropic Thunder"));
+        assertEquals(2, repository.deleteDirector("edgar wright"));
+        assertEquals(Optional.empty(), repository.getMovieByTitle("Hot Fuzz").getDirector());
+        assertEquals(1, repository.deleteMovie("shaun of the dead"));
+        assertEquals(0, repository.deleteMovie("shaun of the dead"));
+    }
+
+    @Test
+    public void test_update_director_for_movies_is_all_or_nothing() {
+        assertEquals(Collections.singletonMap("Snatch", null), repository.updateDirectorForMovies(Arrays.asList("Hot Fuzz", "Snatch"), "Guy Ritchie"));
+        assertEquals(Optional.of("Edgar Wright"), repository.getMovieByTitle("Hot Fuzz").getDirector());
+        assertFalse(repository.updateDirectorForMovies(Arrays.asList("Hot Fuzz", "Tropic Thunder"), "Guy Ritchie").containsValue(null));
+        assertEquals(2, repository.getMoviesByDirector("Guy Ritchie").size());
+    }
+
+    @Test
+    public void test_director_index_follows_writes() {
+        repository.updateDirector("Tropic Thunder", "Edgar Wright");
+        repository.editMovie("Hot Fuzz", "Hot Fuzz 2", "Simon Pegg", null);
+        assertEquals(Arrays.asList(new DirectorSuggestion("Edgar Wright", 2), new DirectorSuggestion("Simon Pegg", 1)),
+                repository.suggestDirectors("", 10));
+        assertEquals(1, repository.getMoviesByDirector("simon*").size());
+        repository.deleteMovie("Shaun of the Dead");
+        assertEquals(Arrays.asList(new DirectorSuggestion("Edgar Wright", 1)), repository.suggestDirectors("e", 10));
+        assertEquals(1, repository.deleteDirector("EDGAR WRIGHT"));
+        assertTrue(repository.suggestDirectors("e", 10).isEmpty());
+        assertTrue(repository.getMoviesByDirector("%").containsKey("Hot Fuzz 2"));
+    }
+
+    @Test
+    public void test_stream_all_movies_visits_in_title_order() throws IOException {
+        List<String> titles = new ArrayList<>();
+        repository.streamAllMovies((title, movie) -> titles.add(title));
+        assertEquals(Arrays.asList("Hot Fuzz", "Shaun of the Dead", "Tropic Thunder"), titles);
+    }
+
+    @Test
+    public void test_reads_are_consistent_during_concurrent_writes() throws InterruptedException, ExecutionException {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            String title = "Movie " + i;
+            futures.add(executor.submit(() -> repository.addMovie(new MovieIO(title, "Director", Float.valueOf((float) 1.0)))));
+            futures.add(executor.submit(() -> repository.getAllMovies().values().forEach(movie -> assertTrue(movie.getRating().isPresent()))));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(1003, repository.getAllMovies().size());
+    }
+}
@@ -0,0 +1,84 @@
+package com.mr.moviecatalogue.service;
+
+import com.mr.moviecatalogue.domain.Movie;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mockito;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+public class InstrumentedMovieRepositoryTest {
+
+    private MovieRepository database;
+    private MeterRegistry meterRegistry;
+    private InstrumentedMovieRepository repository;
+
+    @Before
+    public void setup() {
+        database = Mockito.mock(MovieRepository.class);
+        meterRegistry = new SimpleMeterRegistry();
+        repository = new InstrumentedMovieRepository(database, meterRegistry);
+    }
+
+    @Test
+    public void test_calls_are_timed_and_rows_recorded_by_method() {
+        Map<String, Movie> movieMap = new HashMap<>();
+        movieMap.put("Hot Fuzz", new Movie(Optional.of("Edgar Wright"), Optional.of(Float.valueOf((float) 5.0))));
+        movieMap.put("Snatch", new Movie(Optional.of("Guy Ritchie"), Optional.of(Float.valueOf((float) -1.0))));
+        Mockito.when(database.getAllMovies()).thenReturn(movieMap);
+        Mockito.when(database.addMovies(any())).thenReturn(new int[]{1, 0, 1});
+
+        assertEquals(movieMap, repository.getAllMovies());
+        repository.getAllMovies();
+        repository.addMovies(new ArrayList<>());
+
+        assertEquals(2, meterRegistry.timer("catalogue.repository.requests", "method", "getAllMovies").count());
+        assertEquals(4.0, meterRegistry.summary("catalogue.repository.rows", "method", "getAllMovies").totalAmount());
+        assertEquals(2.0, meterRegistry.summary("catalogue.repository.rows", "method", "addMovies").totalAmount());
+        assertEquals(0, meterRegistry.timer("catalogue.repository.requests", "method", "deleteMovie").count());
+    }
+
+    @Test
+    public void test_failed_reads_are_timed_without_recording_rows() {
+        Mockito.when(database.getMoviesByDirector("Edgar Wright")).thenReturn(null);
+        assertNull(repository.getMoviesByDirector("Edgar Wright"));
+        assertEquals(1, meterRegistry.timer("catalogue.repository.requests", "method", "getMoviesByDirector").count());
+        assertEquals(0, meterRegistry.summary("catalogue.repository.rows", "method", "getMoviesByDirector").count());
+    }
+
+    @Test
+    public void test_exceptions_are_counted_by_type_and_rethrown() {
+        Mockito.when(database.deleteMovie("Hot Fuzz")).thenThrow(new IllegalStateException());
+        assertThrows(IllegalStateException.class, () -> repository.deleteMovie("Hot Fuzz"));
+        assertEquals(1.0, meterRegistry.counter("catalogue.repository.errors", "exception", "IllegalStateException").count());
+        assertEquals(1, meterRegistry.timer("catalogue.repository.requests", "method", "deleteMovie").count());
+    }
+
+    @Test
+    public void test_streamed_rows_are_counted() throws IOException {
+        Mockito.doAnswer(invocation -> {
+            MovieVisitor visitor = invocation.getArgument(0);
+            visitor.visit("Hot Fuzz", new Movie(Optional.of("Edgar Wright"), Optional.of(Float.valueOf((float) 5.0))));
+            visitor.visit("Snatch", new Movie(Optional.empty(), Optional.of(Float.valueOf((float) -1.0))));
+            return null;
+        }).when(database).streamAllMovies(any());
+        List<String> titles = new ArrayList<>();
+        repository.streamAllMovies((title, movie) -> titles.add(title));
+        assertEquals(Arrays.asList("Hot Fuzz", "Snatch"), titles);
+        assertEquals(2.0, meterRegistry.summary("catalogue.repository.rows", "method", "streamAllMovies").totalAmount());
+    }
+}
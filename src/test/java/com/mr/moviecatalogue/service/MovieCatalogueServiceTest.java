@@ -1,31 +1,62 @@
 package com.mr.moviecatalogue.service;
 
+import com.mr.moviecatalogue.domain.BatchItemResult;
+import com.mr.moviecatalogue.domain.BatchItemStatus;
 import com.mr.moviecatalogue.domain.Catalogue;
+import com.mr.moviecatalogue.domain.ChangeFeed;
+import com.mr.moviecatalogue.domain.ChangeType;
+import com.mr.moviecatalogue.domain.DirectorSuggestion;
 import com.mr.moviecatalogue.domain.Movie;
+import com.mr.moviecatalogue.domain.MovieChange;
 import com.mr.moviecatalogue.inputobject.DirectorIO;
 import com.mr.moviecatalogue.inputobject.MovieIO;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.Mockito;
+import org.mockito.Spy;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.util.ReflectionTestUtils;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
 
 @RunWith(SpringJUnit4ClassRunner.class)
 public class MovieCatalogueServiceTest {
 
     @Mock
-    DatabaseService database;
+    MovieRepository database;
+
+    @Mock
+    CatalogueSnapshot snapshot;
+
+    @Spy
+    CatalogueVersion catalogueVersion = new CatalogueVersion();
+
+    @Mock
+    ChangeLog changeLog;
+
+    @Mock
+    WriteBehindQueue writeBehindQueue;
 
     @InjectMocks
     MovieCatalogueService service;
@@ -34,6 +65,7 @@ public class MovieCatalogueServiceTest {
 
     @Before
     public void setup() {
+        Mockito.when(writeBehindQueue.flush()).thenReturn(true);
         movieMap = new HashMap<>();
         movieMap.put("Hot Fuzz", new Movie(Optional.of("Edgar Wright"), Optional.of(Float.valueOf((float) 5.0))));
         movieMap.put("Shaun of the Dead", new Movie(Optional.of("Edgar Wright"), Optional.of(Float.valueOf((float) -1.0))));
@@ -88,53 +120,92 @@ public class MovieCatalogueServiceTest {
 
     @Test(expected = IllegalArgumentException.class)
     public void test_edit_movie_throws_illegal_argument_exception_if_rating_is_higher_than_acceptable_range() {
-        Mockito.when(database.getMovieByTitle("TrpicThonder")).thenReturn(new Movie(Optional.of("Ben Stiller"), Optional.of(Float.valueOf((float) 5.0))));
-        service.editMovie("TrpicThonder", new MovieIO("Tropic Thunder", "Ben Stiller", Float.valueOf((float) 50.0)));
-        Mockito.verify(database, Mockito.never()).updateRating(any(), any());
-        Mockito.verify(database, Mockito.never()).updateDirector(any(), any());
-        Mockito.verify(database, Mockito.never()).updateTitle(any(), any());
+        try {
+            service.editMovie("TrpicThonder", new MovieIO("Tropic Thunder", "Ben Stiller", Float.valueOf((float) 50.0)));
+        } finally {
+            Mockito.verify(database, Mockito.never()).editMovie(any(), any(), any(), any());
+        }
     }
 
     @Test(expected = IllegalArgumentException.class)
     public void test_edit_movie_throws_illegal_argument_exception_if_rating_is_lower_than_acceptable_range() {
-        Mockito.when(database.getMovieByTitle("TrpicThonder")).thenReturn(new Movie(Optional.of("Ben Stiller"), Optional.of(Float.valueOf((float) 5.0))));
-        service.editMovie("TrpicThonder", new MovieIO("Tropic Thunder", "Ben Stiller", Float.valueOf((float) -1.0)));
-        Mockito.verify(database, Mockito.never()).updateRating(any(), any());
-        Mockito.verify(database, Mockito.never()).updateDirector(any(), any());
-        Mockito.verify(database, Mockito.never()).updateTitle(any(), any());
+        try {
+            service.editMovie("TrpicThonder", new MovieIO("Tropic Thunder", "Ben Stiller", Float.valueOf((float) -1.0)));
+        } finally {
+            Mockito.verify(database, Mockito.never()).editMovie(any(), any(), any(), any());
+        }
     }
 
     @Test(expected = IllegalArgumentException.class)
     public void test_edit_movie_throws_illegal_argument_exception_if_movie_does_not_exist_in_database(){
-        Mockito.when(database.getMovieByTitle("TrpicThonder")).thenReturn(null);
+        Mockito.when(database.editMovie(any(), any(), any(), any())).thenReturn(new HashMap<>());
         service.editMovie("TrpicThonder", new MovieIO("TrpicThonder", "Ben Stiller", Float.valueOf((float) 5.0)));
     }
 
+    @Test(expected = IllegalArgumentException.class)
+    public void test_edit_movie_throws_illegal_argument_exception_if_database_update_fails(){
+        Mockito.when(database.editMovie(any(), any(), any(), any())).thenReturn(null);
+        service.editMovie("TrpicThonder", new MovieIO("Tropic Thunder", null, null));
+    }
+
     @Test
     public void test_database_not_called_when_edit_movie_data_is_the_same_as_already_present_data(){
-        Mockito.when(database.getMovieByTitle("TrpicThonder")).thenReturn(new Movie(Optional.of("Ben Stiller"), Optional.of(Float.valueOf((float) 5.0))));
-        service.editMovie("TrpicThonder", new MovieIO("TrpicThonder", "Ben Stiller", Float.valueOf((float) 5.0)));
+        Map<String, Movie> snapshotMovie = new HashMap<>();
+        snapshotMovie.put("TrpicThonder", new Movie(Optional.of("Ben Stiller"), Optional.of(Float.valueOf((float) 5.0))));
+        Mockito.when(snapshot.getMovieByTitle("TrpicThonder")).thenReturn(Optional.of(snapshotMovie));
+        long version = catalogueVersion.current().getVersion();
+        Catalogue catalogue = service.editMovie("TrpicThonder", new MovieIO("TrpicThonder", "Ben Stiller", Float.valueOf((float) 5.0)));
+        assertEquals(snapshotMovie, catalogue.getMovies());
+        Mockito.verify(database, Mockito.never()).editMovie(any(), any(), any(), any());
         Mockito.verify(database, Mockito.never()).updateRating(any(), any());
         Mockito.verify(database, Mockito.never()).updateDirector(any(), any());
-        Mockito.verify(database, Mockito.never()).updateTitle(any(), any());
+        Mockito.verify(changeLog, Mockito.never()).record(any(MovieChange.class));
+        assertEquals(version, catalogueVersion.current().getVersion());
     }
 
     @Test
-    public void test_database_called_if_previous_values_are_empty(){
-        Mockito.when(database.getMovieByTitle("TrpicThonder")).thenReturn(new Movie(Optional.empty(), Optional.of(Float.valueOf((float) -1.0))));
-        service.editMovie("TrpicThonder", new MovieIO("TrpicThonder", "Ben Stiller", Float.valueOf((float) 5.0)));
-        Mockito.verify(database, Mockito.times(1)).updateRating(any(), any());
-        Mockito.verify(database, Mockito.times(1)).updateDirector(any(), any());
-        Mockito.verify(database, Mockito.never()).updateTitle(any(), any());
+    public void test_edit_movie_with_no_fields_set_returns_the_movie_without_writing(){
+        Mockito.when(database.getMovieByTitle("TrpicThonder")).thenReturn(new Movie(Optional.of("Ben Stiller"), Optional.of(Float.valueOf((float) -1.0))));
+        Catalogue catalogue = service.editMovie("TrpicThonder", new MovieIO(null, null, null));
+        assertEquals(new Movie(Optional.of("Ben Stiller"), Optional.empty()), catalogue.getMovies().get("TrpicThonder"));
+        Mockito.verify(database, Mockito.never()).editMovie(any(), any(), any(), any());
+        Mockito.verify(changeLog, Mockito.never()).record(any(MovieChange.class));
     }
 
     @Test
-    public void test_database_called_if_previous_values_are_present_but_different(){
-        Mockito.when(database.getMovieByTitle("TrpicThonder")).thenReturn(new Movie(Optional.of("James Cameron"), Optional.of(Float.valueOf((float) 4.9))));
-        service.editMovie("TrpicThonder", new MovieIO("Tropic Thunder", "Ben Stiller", Float.valueOf((float) 5.0)));
-        Mockito.verify(database, Mockito.times(1)).updateRating(any(), any());
-        Mockito.verify(database, Mockito.times(1)).updateDirector(any(), any());
-        Mockito.verify(database, Mockito.times(1)).updateTitle(any(), any());
+    public void test_edit_movie_records_no_change_when_the_database_already_has_the_values(){
+        Mockito.when(database.editMovie("TrpicThonder", null, "Ben Stiller", Float.valueOf((float) 5.0))).thenReturn(new HashMap<>());
+        Mockito.when(database.getMovieByTitle("TrpicThonder")).thenReturn(new Movie(Optional.of("Ben Stiller"), Optional.of(Float.valueOf((float) 5.0))));
+        long version = catalogueVersion.current().getVersion();
+        Catalogue catalogue = service.editMovie("TrpicThonder", new MovieIO("TrpicThonder", "Ben Stiller", Float.valueOf((float) 5.0)));
+        assertEquals(new Movie(Optional.of("Ben Stiller"), Optional.of(Float.valueOf((float) 5.0))), catalogue.getMovies().get("TrpicThonder"));
+        Mockito.verify(snapshot, Mockito.never()).movieEdited(any(), any(), any());
+        Mockito.verify(changeLog, Mockito.never()).record(any(MovieChange.class));
+        assertEquals(version, catalogueVersion.current().getVersion());
+    }
+
+    @Test
+    public void test_edit_movie_only_sets_changed_fields_in_one_database_call(){
+        Map<String, Movie> snapshotMovie = new HashMap<>();
+        snapshotMovie.put("TrpicThonder", new Movie(Optional.of("Ben Stiller"), Optional.of(Float.valueOf((float) 4.0))));
+        Mockito.when(snapshot.getMovieByTitle("TrpicThonder")).thenReturn(Optional.of(snapshotMovie));
+        Map<String, Movie> editedMovie = new HashMap<>();
+        editedMovie.put("TrpicThonder", new Movie(Optional.of("Ben Stiller"), Optional.of(Float.valueOf((float) 5.0))));
+        Mockito.when(database.editMovie("TrpicThonder", null, null, Float.valueOf((float) 5.0))).thenReturn(editedMovie);
+        Catalogue catalogue = service.editMovie("TrpicThonder", new MovieIO("TrpicThonder", "Ben Stiller", Float.valueOf((float) 5.0)));
+        assertEquals(editedMovie, catalogue.getMovies());
+        Mockito.verify(database, Mockito.times(1)).editMovie("TrpicThonder", null, null, Float.valueOf((float) 5.0));
+        Mockito.verify(database, Mockito.never()).getMovieByTitle(any());
+    }
+
+    @Test
+    public void test_edit_movie_returns_edited_movie_with_null_rating_handled(){
+        Map<String, Movie> editedMovie = new HashMap<>();
+        editedMovie.put("Tropic Thunder", new Movie(Optional.of("Ben Stiller"), Optional.of(Float.valueOf((float) -1.0))));
+        Mockito.when(database.editMovie("TrpicThonder", "Tropic Thunder", "Ben Stiller", Float.valueOf((float) 4.9))).thenReturn(editedMovie);
+        Catalogue catalogue = service.editMovie("TrpicThonder", new MovieIO("Tropic Thunder", "Ben Stiller", Float.valueOf((float) 4.99)));
+        assertEquals(new Movie(Optional.of("Ben Stiller"), Optional.empty()), catalogue.getMovies().get("Tropic Thunder"));
+        Mockito.verify(snapshot, Mockito.times(1)).movieEdited("TrpicThonder", "Tropic Thunder", new Movie(Optional.of("Ben Stiller"), Optional.empty()));
     }
 
     @Test
@@ -275,25 +346,495 @@ public class MovieCatalogueServiceTest {
     @Test
     public void test_if_add_director_contains_one_missing_movie_then_no_movies_are_updated(){
         DirectorIO directorIO = new DirectorIO("Guy Ritchie", Arrays.asList("Snatch", "Lock, Stock and Two Smoking Barrels", "Sherlock Holmes"));
-        Mockito.when(database.getMovieByTitle("Snatch")).thenReturn(new Movie(Optional.empty(), Optional.of(Float.valueOf((float) 4.8))));
-        Mockito.when(database.getMovieByTitle("Sherlock Holmes")).thenReturn(new Movie(Optional.empty(), Optional.of(Float.valueOf((float) 4.5))));
-        Mockito.when(database.getMovieByTitle("Lock, Stock and Two Smoking Barrels")).thenReturn(null);
+        Mockito.when(database.updateDirectorForMovies(directorIO.getMovies(), "Guy Ritchie"))
+                .thenReturn(Collections.singletonMap("Lock, Stock and Two Smoking Barrels", null));
 
-        assertThrows(IllegalArgumentException.class, () -> {
+        IllegalArgumentException exception = assertThrows(IllegalArgumentException.class, () -> {
             service.addDirector(directorIO);
         });
-        Mockito.verify(database, Mockito.never()).updateDirector(any(), any());
+        assertTrue(exception.getMessage().endsWith("Lock, Stock and Two Smoking Barrels"));
+        Mockito.verify(snapshot, Mockito.never()).directorUpdated(any(), any(), Mockito.anyInt());
+    }
+
+    @Test
+    public void test_add_director_throws_if_the_database_could_not_update_the_movies(){
+        DirectorIO directorIO = new DirectorIO("Guy Ritchie", Arrays.asList("Snatch", "Sherlock Holmes"));
+        Mockito.when(database.updateDirectorForMovies(directorIO.getMovies(), "Guy Ritchie")).thenReturn(null);
+        long version = catalogueVersion.current().getVersion();
+
+        assertThrows(IllegalArgumentException.class, () -> service.addDirector(directorIO));
+        Mockito.verify(snapshot, Mockito.never()).directorUpdated(any(), any(), Mockito.anyInt());
+        assertEquals(version, catalogueVersion.current().getVersion());
+    }
+
+    @Test
+    public void test_add_director_records_the_name_stored_for_the_director(){
+        DirectorIO directorIO = new DirectorIO("guy ritchie", Arrays.asList("Snatch"));
+        Mockito.when(database.updateDirectorForMovies(directorIO.getMovies(), "guy ritchie"))
+                .thenReturn(Collections.singletonMap("Snatch", new Movie("Guy Ritchie", Movie.NO_RATING)));
+        service.addDirector(directorIO);
+        Mockito.verify(snapshot).directorUpdated("Snatch", "Guy Ritchie", 1);
+        Mockito.verify(changeLog).record(Collections.singletonList(new MovieChange(0, ChangeType.DIRECTOR_ADDED, "Snatch", null, "Guy Ritchie", null)));
     }
 
     @Test
-    public void test_if_add_director_called_correctly_all_movies_are_checked_and_updated(){
+    public void test_queued_edit_uses_the_name_held_for_the_director(){
+        Mockito.when(writeBehindQueue.isEnabled()).thenReturn(true);
+        Map<String, Movie> snapshotMovie = new HashMap<>();
+        snapshotMovie.put("Snatch", new Movie("Matthew Vaughn", Movie.NO_RATING));
+        Mockito.when(snapshot.getMovieByTitle("Snatch")).thenReturn(Optional.of(snapshotMovie));
+        Mockito.when(snapshot.getDirectorName("guy ritchie")).thenReturn(Optional.of("Guy Ritchie"));
+        Catalogue catalogue = service.editMovie("Snatch", new MovieIO(null, "guy ritchie", null));
+        assertEquals("Guy Ritchie", catalogue.getMovies().get("Snatch").getDirectorName());
+        Mockito.verify(writeBehindQueue).enqueue(new PendingEdit("Snatch", true, "Guy Ritchie", null));
+    }
+
+    @Test
+    public void test_if_add_director_called_correctly_all_movies_are_updated_in_one_call(){
         DirectorIO directorIO = new DirectorIO("Guy Ritchie", Arrays.asList("Snatch", "Lock, Stock and Two Smoking Barrels", "Sherlock Holmes"));
-        Mockito.when(database.getMovieByTitle("Snatch")).thenReturn(new Movie(Optional.empty(), Optional.of(Float.valueOf((float) 4.8))));
-        Mockito.when(database.getMovieByTitle("Sherlock Holmes")).thenReturn(new Movie(Optional.empty(), Optional.of(Float.valueOf((float) 4.5))));
-        Mockito.when(database.getMovieByTitle("Lock, Stock and Two Smoking Barrels")).thenReturn(new Movie(Optional.empty(), Optional.of(Float.valueOf((float) 4.3))));
+        Map<String, Movie> updatedMovies = new LinkedHashMap<>();
+        directorIO.getMovies().forEach(title -> updatedMovies.put(title, new Movie("Guy Ritchie", Movie.NO_RATING)));
+        Mockito.when(database.updateDirectorForMovies(directorIO.getMovies(), "Guy Ritchie")).thenReturn(updatedMovies);
         service.addDirector(directorIO);
-        Mockito.verify(database, Mockito.times(1)).updateDirector("Snatch", "Guy Ritchie");
-        Mockito.verify(database, Mockito.times(1)).updateDirector("Lock, Stock and Two Smoking Barrels", "Guy Ritchie");
-        Mockito.verify(database, Mockito.times(1)).updateDirector("Sherlock Holmes", "Guy Ritchie");
+        Mockito.verify(database, Mockito.times(1)).updateDirectorForMovies(directorIO.getMovies(), "Guy Ritchie");
+        Mockito.verify(database, Mockito.never()).getMovieByTitle(any());
+        Mockito.verify(database, Mockito.never()).updateDirector(any(), any());
+        Mockito.verify(snapshot, Mockito.times(1)).directorUpdated("Snatch", "Guy Ritchie", 1);
+        Mockito.verify(snapshot, Mockito.times(1)).directorUpdated("Lock, Stock and Two Smoking Barrels", "Guy Ritchie", 1);
+        Mockito.verify(snapshot, Mockito.times(1)).directorUpdated("Sherlock Holmes", "Guy Ritchie", 1);
+    }
+
+    @Test
+    public void test_get_current_catalogue_is_served_from_snapshot_when_available() {
+        Mockito.when(snapshot.getAllMovies()).thenReturn(Optional.of(movieMap));
+        Catalogue catalogue = service.getCurrentCatalogue();
+        assertEquals(movieMap, catalogue.getMovies());
+        Mockito.verify(database, Mockito.never()).getAllMovies();
+    }
+
+    @Test
+    public void test_edit_movie_checks_snapshot_before_database() {
+        Map<String, Movie> snapshotMovie = new HashMap<>();
+        snapshotMovie.put("TrpicThonder", new Movie(Optional.of("Ben Stiller"), Optional.empty()));
+        Mockito.when(snapshot.getMovieByTitle("TrpicThonder")).thenReturn(Optional.of(snapshotMovie));
+        Map<String, Movie> editedMovie = new HashMap<>();
+        editedMovie.put("Tropic Thunder", new Movie(Optional.of("Ben Stiller"), Optional.of(Float.valueOf((float) -1.0))));
+        Mockito.when(database.editMovie("TrpicThonder", "Tropic Thunder", null, null)).thenReturn(editedMovie);
+        service.editMovie("TrpicThonder", new MovieIO("Tropic Thunder", "Ben Stiller", null));
+        Mockito.verify(database, Mockito.never()).getMovieByTitle(any());
+        Mockito.verify(snapshot, Mockito.times(1)).movieEdited("TrpicThonder", "Tropic Thunder", new Movie(Optional.of("Ben Stiller"), Optional.empty()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void test_edit_movie_rejects_missing_movie_from_snapshot_without_calling_database() {
+        Mockito.when(snapshot.getMovieByTitle("TrpicThonder")).thenReturn(Optional.of(new HashMap<>()));
+        try {
+            service.editMovie("TrpicThonder", new MovieIO("Tropic Thunder", null, null));
+        } finally {
+            Mockito.verify(database, Mockito.never()).editMovie(any(), any(), any(), any());
+        }
+    }
+
+    @Test
+    public void test_edit_movie_that_changes_nothing_is_not_queued() {
+        Mockito.when(writeBehindQueue.isEnabled()).thenReturn(true);
+        Mockito.when(database.getMovieByTitle("Tropic Thunder")).thenReturn(new Movie(Optional.of("Ben Stiller"), Optional.of(Float.valueOf((float) 4.5))));
+        service.editMovie("Tropic Thunder", new MovieIO("Tropic Thunder", "ben stiller", Float.valueOf((float) 4.5)));
+        Mockito.verify(writeBehindQueue, Mockito.never()).enqueue(any());
+        Mockito.verify(changeLog, Mockito.never()).record(any(MovieChange.class));
+    }
+
+    @Test
+    public void test_edit_movie_is_queued_and_applied_to_snapshot_when_write_behind_is_enabled() {
+        Mockito.when(writeBehindQueue.isEnabled()).thenReturn(true);
+        Map<String, Movie> snapshotMovie = new HashMap<>();
+        snapshotMovie.put("Tropic Thunder", new Movie(Optional.of("Ben Stiller"), Optional.empty()));
+        Mockito.when(snapshot.getMovieByTitle("Tropic Thunder")).thenReturn(Optional.of(snapshotMovie));
+        Catalogue catalogue = service.editMovie("Tropic Thunder", new MovieIO("Tropic Thunder", null, Float.valueOf((float) 4.5)));
+        Movie edited = new Movie(Optional.of("Ben Stiller"), Optional.of(Float.valueOf((float) 4.5)));
+        assertEquals(edited, catalogue.getMovies().get("Tropic Thunder"));
+        Mockito.verify(writeBehindQueue, Mockito.times(1)).enqueue(new PendingEdit("Tropic Thunder", false, null, Float.valueOf((float) 4.5)));
+        Mockito.verify(snapshot, Mockito.times(1)).movieEdited("Tropic Thunder", "Tropic Thunder", edited);
+        Mockito.verify(database, Mockito.never()).editMovie(any(), any(), any(), any());
+    }
+
+    @Test
+    public void test_write_behind_queue_is_flushed_before_database_is_read_by_director_while_edits_are_pending() {
+        Mockito.when(writeBehindQueue.hasPending()).thenReturn(true);
+        Mockito.when(database.getMoviesByDirector("Ben Stiller")).thenReturn(new HashMap<>());
+        service.getMoviesByDirector("Ben Stiller");
+        InOrder inOrder = Mockito.inOrder(writeBehindQueue, database);
+        inOrder.verify(writeBehindQueue).flush();
+        inOrder.verify(database).getMoviesByDirector("Ben Stiller");
+    }
+
+    @Test
+    public void test_pending_edits_are_applied_to_movies_read_from_database_without_a_flush() {
+        Map<String, PendingEdit> edits = new HashMap<>();
+        edits.put("Hot Fuzz", new PendingEdit("Hot Fuzz", true, null, Float.valueOf((float) -1.0)));
+        edits.put("Snatch", PendingEdit.rating("Snatch", Float.valueOf((float) 4.5)));
+        Mockito.when(writeBehindQueue.pendingEdits()).thenReturn(edits);
+        Mockito.when(writeBehindQueue.pendingEdit("Tropic Thunder")).thenReturn(PendingEdit.director("Tropic Thunder", "Someone Else"));
+        Mockito.when(database.getAllMovies()).thenReturn(movieMap);
+        Mockito.when(database.getMovieByTitle("Tropic Thunder")).thenReturn(new Movie(Optional.of("Ben Stiller"), Optional.of(Float.valueOf((float) 5.0))));
+
+        Map<String, Movie> movies = service.getCurrentCatalogue().getMovies();
+        assertEquals(new Movie(Optional.empty(), Optional.empty()), movies.get("Hot Fuzz"));
+        assertEquals(3, movies.size());
+        assertEquals(new Movie(Optional.of("Someone Else"), Optional.of(Float.valueOf((float) 5.0))),
+                service.getMovieByTitle("Tropic Thunder").getMovies().get("Tropic Thunder"));
+        Mockito.verify(writeBehindQueue, Mockito.never()).flush();
+    }
+
+    @Test
+    public void test_writes_are_refused_when_pending_edits_cannot_be_written() {
+        Mockito.when(writeBehindQueue.flush()).thenReturn(false);
+        assertThrows(RejectedExecutionException.class, () -> service.addMovie(new MovieIO("Snatch", null, null)));
+        Mockito.verify(database, Mockito.never()).addMovie(any());
+        Mockito.verify(snapshot, Mockito.never()).movieAdded(any(), Mockito.anyInt());
+    }
+
+    @Test
+    public void test_discarded_edits_reload_snapshot_and_resync_change_log() {
+        service.start();
+        ArgumentCaptor<Runnable> listener = ArgumentCaptor.forClass(Runnable.class);
+        Mockito.verify(writeBehindQueue).addDiscardListener(listener.capture());
+        long version = catalogueVersion.current().getVersion();
+        listener.getValue().run();
+        Mockito.verify(snapshot).invalidate();
+        Mockito.verify(changeLog).invalidate();
+        assertTrue(catalogueVersion.current().getVersion() > version);
+    }
+
+    @Test
+    public void test_add_movie_applies_write_to_snapshot(){
+        MovieIO movieIO = new MovieIO("Tropic Thunder", "Ben Stiller", null);
+        Mockito.when(database.addMovie(movieIO)).thenReturn(1);
+        service.addMovie(movieIO);
+        Mockito.verify(snapshot, Mockito.times(1)).movieAdded(movieIO, 1);
+    }
+
+    @Test
+    public void test_writes_to_different_movies_are_not_held_up_by_each_other() throws Exception {
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Mockito.when(database.addMovie(any())).thenAnswer(invocation -> {
+            if (invocation.<MovieIO>getArgument(0).getTitle().equals("Hot Fuzz")) {
+                writing.countDown();
+                release.await(10, TimeUnit.SECONDS);
+            }
+            return 1;
+        });
+        Thread slowWrite = new Thread(() -> service.addMovie(new MovieIO("Hot Fuzz", "Edgar Wright", null)));
+        slowWrite.start();
+        assertTrue(writing.await(10, TimeUnit.SECONDS));
+
+        service.addMovie(new MovieIO("Snatch", "Guy Ritchie", null));
+        Mockito.verify(changeLog).record(Mockito.argThat((MovieChange change) -> "Snatch".equals(change.getTitle())));
+
+        release.countDown();
+        slowWrite.join(10000);
+        assertFalse(slowWrite.isAlive());
+    }
+
+    @Test
+    public void test_writes_to_the_same_movie_wait_for_each_other() throws Exception {
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Mockito.when(database.addMovie(any())).thenAnswer(invocation -> {
+            writing.countDown();
+            release.await(10, TimeUnit.SECONDS);
+            return 1;
+        });
+        Mockito.when(snapshot.getMovieByTitle("hot fuzz")).thenReturn(Optional.of(new HashMap<>(movieMap)));
+        Thread slowWrite = new Thread(() -> service.addMovie(new MovieIO("Hot Fuzz", "Edgar Wright", null)));
+        slowWrite.start();
+        assertTrue(writing.await(10, TimeUnit.SECONDS));
+
+        Thread delete = new Thread(() -> {
+            try {
+                service.deleteMovie("hot fuzz");
+            } catch (IllegalArgumentException e) {
+                //The snapshot given has no movie titled in lower case
+            }
+        });
+        delete.start();
+        delete.join(200);
+        assertTrue(delete.isAlive());
+        Mockito.verify(snapshot, Mockito.never()).getMovieByTitle("hot fuzz");
+
+        release.countDown();
+        delete.join(10000);
+        slowWrite.join(10000);
+        assertFalse(delete.isAlive());
+        Mockito.verify(snapshot).getMovieByTitle("hot fuzz");
+    }
+
+    @Test
+    public void test_clear_catalogue_calls_database_service_and_invalidates_snapshot(){
+        service.clearCatalogue();
+        Mockito.verify(database, Mockito.times(1)).dropDatabase();
+        Mockito.verify(snapshot, Mockito.times(1)).invalidate();
+    }
+
+    @Test
+    public void test_writes_that_change_nothing_keep_the_catalogue_version(){
+        long version = catalogueVersion.current().getVersion();
+        Mockito.when(database.addMovie(any())).thenReturn(0);
+        service.addMovie(new MovieIO("Hot Fuzz", "Edgar Wright", null));
+        Mockito.when(database.addMovies(any())).thenReturn(new int[] {0, 0});
+        service.addMovies(Arrays.asList(new MovieIO("Hot Fuzz", "Edgar Wright", null), new MovieIO("Snatch", "Guy Ritchie", null)));
+        Mockito.when(database.addMovies(any())).thenReturn(null);
+        service.addMovies(Arrays.asList(new MovieIO("Snatch", "Guy Ritchie", null)));
+        Mockito.when(database.deleteDirector("Guy Ritchie")).thenReturn(0);
+        service.deleteDirector("Guy Ritchie");
+        assertEquals(version, catalogueVersion.current().getVersion());
+        Mockito.verify(changeLog, Mockito.never()).record(any(MovieChange.class));
+        Mockito.verify(changeLog, Mockito.never()).record(Mockito.<List<MovieChange>>any());
+    }
+
+    @Test
+    public void test_changes_increment_catalogue_version_after_snapshot_is_updated(){
+        long version = catalogueVersion.current().getVersion();
+        Mockito.when(database.getMovieByTitle("Tropic Thunder")).thenReturn(movieMap.get("Tropic Thunder"));
+        Mockito.when(database.deleteMovie("Tropic Thunder")).thenReturn(1);
+        service.deleteMovie("Tropic Thunder");
+        service.clearCatalogue();
+        assertEquals(version + 2, catalogueVersion.current().getVersion());
+        InOrder inOrder = Mockito.inOrder(snapshot, catalogueVersion);
+        inOrder.verify(snapshot).movieDeleted("Tropic Thunder", 1);
+        inOrder.verify(catalogueVersion).increment();
+        inOrder.verify(snapshot).invalidate();
+        inOrder.verify(catalogueVersion).increment();
+    }
+
+    @Test
+    public void test_add_movie_records_added_change_with_stored_values(){
+        MovieIO movieIO = new MovieIO("Tropic Thunder", "Ben Stiller", Float.valueOf((float) 4.99));
+        Mockito.when(database.addMovie(movieIO)).thenReturn(1);
+        service.addMovie(movieIO);
+        Mockito.verify(changeLog, Mockito.times(1)).record(new MovieChange(0, ChangeType.ADDED, "Tropic Thunder", null, null,
+                new Movie(Optional.of("Ben Stiller"), Optional.of(Float.valueOf((float) 4.9)))));
+    }
+
+    @Test
+    public void test_edit_movie_records_previous_title_when_renamed(){
+        Map<String, Movie> editedMovie = new HashMap<>();
+        editedMovie.put("Tropic Thunder", new Movie(Optional.of("Ben Stiller"), Optional.of(Float.valueOf((float) -1.0))));
+        Mockito.when(database.editMovie("TrpicThonder", "Tropic Thunder", null, null)).thenReturn(editedMovie);
+        service.editMovie("TrpicThonder", new MovieIO("Tropic Thunder", null, null));
+        Mockito.verify(changeLog, Mockito.times(1)).record(new MovieChange(0, ChangeType.EDITED, "Tropic Thunder", "TrpicThonder", null,
+                new Movie(Optional.of("Ben Stiller"), Optional.empty())));
+    }
+
+    @Test
+    public void test_changes_to_more_than_one_row_make_change_feed_clients_resync(){
+        Mockito.when(database.getMovieByTitle("Tropic Thunder")).thenReturn(movieMap.get("Tropic Thunder"));
+        Mockito.when(database.deleteMovie("Tropic Thunder")).thenReturn(2);
+        service.deleteMovie("Tropic Thunder");
+        Mockito.verify(changeLog, Mockito.times(1)).invalidate();
+        Mockito.verify(changeLog, Mockito.never()).record(any(MovieChange.class));
+    }
+
+    @Test
+    public void test_delete_director_and_clear_catalogue_record_changes_to_all_movies(){
+        Mockito.when(database.deleteDirector("Edgar Wright")).thenReturn(2);
+        service.deleteDirector("Edgar Wright");
+        service.clearCatalogue();
+        InOrder inOrder = Mockito.inOrder(changeLog);
+        inOrder.verify(changeLog).record(new MovieChange(0, ChangeType.DIRECTOR_DELETED, null, null, "Edgar Wright", null));
+        inOrder.verify(changeLog).record(new MovieChange(0, ChangeType.CLEARED, null, null, null, null));
+    }
+
+    @Test
+    public void test_get_changes_is_capped_at_max_limit(){
+        ReflectionTestUtils.setField(service, "maxChangesLimit", 1000);
+        ChangeFeed feed = new ChangeFeed();
+        Mockito.when(changeLog.since(42L, "instance", 1000)).thenReturn(feed);
+        assertSame(feed, service.getChanges(42L, "instance"));
+    }
+
+    @Test
+    public void test_reads_and_unchanged_edits_do_not_increment_catalogue_version(){
+        long version = catalogueVersion.current().getVersion();
+        Map<String, Movie> snapshotMovie = new HashMap<>();
+        snapshotMovie.put("Hot Fuzz", movieMap.get("Hot Fuzz"));
+        Mockito.when(snapshot.getMovieByTitle("Hot Fuzz")).thenReturn(Optional.of(snapshotMovie));
+        service.getMovieByTitle("Hot Fuzz");
+        service.editMovie("Hot Fuzz", new MovieIO("Hot Fuzz", "Edgar Wright", Float.valueOf((float) 5.0)));
+        assertEquals(version, catalogueVersion.current().getVersion());
+    }
+
+    @Test
+    public void test_get_current_catalogue_page_sets_cursor_when_more_movies_remain() {
+        ReflectionTestUtils.setField(service, "maxPageLimit", 1000);
+        Map<String, Movie> page = new LinkedHashMap<>();
+        page.put("Hot Fuzz", movieMap.get("Hot Fuzz"));
+        page.put("Shaun of the Dead", movieMap.get("Shaun of the Dead"));
+        page.put("Tropic Thunder", movieMap.get("Tropic Thunder"));
+        Mockito.when(database.getMoviesPage(null, null, null, 3)).thenReturn(page);
+
+        Catalogue catalogue = service.getCurrentCatalogue(2, null);
+        assertEquals(Arrays.asList("Hot Fuzz", "Shaun of the Dead"), Arrays.asList(catalogue.getMovies().keySet().toArray()));
+        assertEquals(Optional.empty(), catalogue.getMovies().get("Shaun of the Dead").getRating());
+
+        Mockito.when(database.getMoviesPage(null, null, "Shaun of the Dead", 3)).thenReturn(new LinkedHashMap<>());
+        assertNull(service.getCurrentCatalogue(2, catalogue.getNext()).getNext());
+        Mockito.verify(database, Mockito.times(1)).getMoviesPage(null, null, "Shaun of the Dead", 3);
+    }
+
+    @Test
+    public void test_get_current_catalogue_page_does_not_set_cursor_on_last_page() {
+        ReflectionTestUtils.setField(service, "maxPageLimit", 1000);
+        Mockito.when(database.getMoviesPage(null, null, null, 11)).thenReturn(new LinkedHashMap<>(movieMap));
+        Catalogue catalogue = service.getCurrentCatalogue(10, null);
+        assertEquals(3, catalogue.getMovies().size());
+        assertNull(catalogue.getNext());
+    }
+
+    @Test
+    public void test_page_limit_is_capped_at_maximum() {
+        ReflectionTestUtils.setField(service, "maxPageLimit", 2);
+        Mockito.when(database.getMoviesPage(eq("Edgar*"), isNull(), isNull(), eq(3))).thenReturn(new LinkedHashMap<>());
+        service.getMoviesByDirector("Edgar*", 1000000, null);
+        service.getMoviesByDirector("Edgar*", null, null);
+        Mockito.verify(database, Mockito.times(2)).getMoviesPage("Edgar*", null, null, 3);
+    }
+
+    @Test
+    public void test_rating_page_rounds_rating() {
+        ReflectionTestUtils.setField(service, "maxPageLimit", 1000);
+        Mockito.when(database.getMoviesPage(null, Float.valueOf((float) 4.9), null, 11)).thenReturn(new LinkedHashMap<>());
+        service.getMoviesAboveRating(Float.valueOf((float) 4.99), 10, null);
+        Mockito.verify(database, Mockito.times(1)).getMoviesPage(null, Float.valueOf((float) 4.9), null, 11);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void test_page_throws_illegal_argument_exception_for_invalid_cursor() {
+        ReflectionTestUtils.setField(service, "maxPageLimit", 1000);
+        service.getCurrentCatalogue(10, "not a cursor!");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void test_page_throws_illegal_argument_exception_for_non_positive_limit() {
+        ReflectionTestUtils.setField(service, "maxPageLimit", 1000);
+        service.getCurrentCatalogue(0, null);
+    }
+
+    @Test
+    public void test_suggest_directors_applies_default_and_maximum_limits() {
+        ReflectionTestUtils.setField(service, "defaultSuggestLimit", 10);
+        ReflectionTestUtils.setField(service, "maxSuggestLimit", 50);
+        List<DirectorSuggestion> suggestions = Arrays.asList(new DirectorSuggestion("Edgar Wright", 2));
+        Mockito.when(database.suggestDirectors("Ed", 10)).thenReturn(suggestions);
+        assertEquals(suggestions, service.suggestDirectors("Ed", null));
+        Mockito.when(database.suggestDirectors("", 50)).thenReturn(null);
+        assertTrue(service.suggestDirectors(null, 1000).isEmpty());
+    }
+
+    @Test
+    public void test_suggest_directors_uses_snapshot_when_available() {
+        ReflectionTestUtils.setField(service, "maxSuggestLimit", 50);
+        List<DirectorSuggestion> suggestions = Arrays.asList(new DirectorSuggestion("Edgar Wright", 2));
+        Mockito.when(snapshot.suggestDirectors("Ed", 5)).thenReturn(Optional.of(suggestions));
+        assertEquals(suggestions, service.suggestDirectors("Ed", 5));
+        Mockito.verify(database, Mockito.never()).suggestDirectors(any(), Mockito.anyInt());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void test_suggest_directors_throws_illegal_argument_exception_for_non_positive_limit() {
+        service.suggestDirectors("Ed", 0);
+    }
+
+    @Test
+    public void test_search_movies_is_refused_without_reading_the_database_when_snapshot_unavailable() {
+        ReflectionTestUtils.setField(service, "maxSearchLimit", 100);
+        Mockito.when(snapshot.searchTitles(Arrays.asList("hot"), 20)).thenReturn(Optional.empty());
+        assertThrows(RejectedExecutionException.class, () -> service.searchMovies("HOT", 20));
+        Mockito.verify(database, Mockito.never()).getAllMovies();
+    }
+
+    @Test
+    public void test_search_movies_uses_snapshot_when_available() {
+        ReflectionTestUtils.setField(service, "maxSearchLimit", 100);
+        Map<String, Movie> movies = new LinkedHashMap<>();
+        movies.put("Hot Fuzz", new Movie("Edgar Wright", (float) 5.0));
+        Mockito.when(snapshot.searchTitles(Arrays.asList("hot", "fuz"), 5)).thenReturn(Optional.of(movies));
+        assertEquals(movies, service.searchMovies("Hot fuz", 5).getMovies());
+        Mockito.verify(database, Mockito.never()).getAllMovies();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void test_search_movies_throws_illegal_argument_exception_for_query_without_words() {
+        service.searchMovies(" - ", null);
+    }
+
+    @Test
+    public void test_stream_current_catalogue_falls_back_to_database_and_handles_null_ratings() throws IOException {
+        Mockito.doAnswer(invocation -> {
+            MovieVisitor visitor = invocation.getArgument(0);
+            visitor.visit("Shaun of the Dead", movieMap.get("Shaun of the Dead"));
+            return null;
+        }).when(database).streamAllMovies(any());
+        List<Movie> visited = new ArrayList<>();
+        service.streamCurrentCatalogue((title, movie) -> visited.add(movie));
+        assertEquals(Arrays.asList(new Movie(Optional.of("Edgar Wright"), Optional.empty())), visited);
+    }
+
+    @Test
+    public void test_stream_current_catalogue_does_not_use_database_when_snapshot_available() throws IOException {
+        Mockito.when(snapshot.forEachMovie(any())).thenReturn(true);
+        service.streamCurrentCatalogue((title, movie) -> { });
+        Mockito.verify(database, Mockito.never()).streamAllMovies(any());
+    }
+
+    @Test
+    public void test_add_movies_reports_status_of_each_movie_in_order(){
+        Mockito.when(database.addMovies(any())).thenReturn(new int[]{1, 0});
+        List<BatchItemResult> results = service.addMovies(Arrays.asList(
+                new MovieIO("Tropic Thunder", "Ben Stiller", Float.valueOf((float) 4.99)),
+                new MovieIO(null, "Ben Stiller", null),
+                new MovieIO("Snatch", "Guy Ritchie", Float.valueOf((float) 50.0)),
+                new MovieIO("Tropic Thunder", "Ben Stiller", null),
+                new MovieIO("Hot Fuzz", "Edgar Wright", null)));
+
+        assertEquals(Arrays.asList(BatchItemStatus.CREATED, BatchItemStatus.MISSING_TITLE, BatchItemStatus.RATING_OUT_OF_RANGE,
+                BatchItemStatus.DUPLICATE_IN_BATCH, BatchItemStatus.DUPLICATE_TITLE),
+                results.stream().map(BatchItemResult::getStatus).collect(java.util.stream.Collectors.toList()));
+        assertEquals("Snatch", results.get(2).getTitle());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void test_add_movies_rounds_ratings_and_only_writes_valid_movies_through_to_snapshot(){
+        ArgumentCaptor<List<MovieIO>> captor = ArgumentCaptor.forClass(List.class);
+        Mockito.when(database.addMovies(captor.capture())).thenReturn(new int[]{1, 0});
+        service.addMovies(Arrays.asList(
+                new MovieIO("Tropic Thunder", "Ben Stiller", Float.valueOf((float) 4.99)),
+                new MovieIO("Hot Fuzz", "Edgar Wright", null)));
+
+        assertEquals(2, captor.getValue().size());
+        assertEquals(Float.valueOf((float) 4.9), captor.getValue().get(0).getRating());
+        assertEquals(Float.valueOf((float) -1.0), captor.getValue().get(1).getRating());
+        Mockito.verify(snapshot, Mockito.times(1)).movieAdded(captor.getValue().get(0), 1);
+        Mockito.verify(snapshot, Mockito.times(1)).movieAdded(any(), Mockito.anyInt());
+    }
+
+    @Test
+    public void test_add_movies_marks_valid_movies_as_failed_when_database_write_fails(){
+        Mockito.when(database.addMovies(any())).thenReturn(null);
+        List<BatchItemResult> results = service.addMovies(Arrays.asList(
+                new MovieIO("Tropic Thunder", "Ben Stiller", null),
+                new MovieIO("", "Ben Stiller", null)));
+
+        assertEquals(BatchItemStatus.FAILED, results.get(0).getStatus());
+        assertEquals(BatchItemStatus.MISSING_TITLE, results.get(1).getStatus());
+        Mockito.verify(snapshot, Mockito.never()).movieAdded(any(), Mockito.anyInt());
+    }
+
+    @Test
+    public void test_add_movies_does_not_call_database_when_no_movies_are_valid(){
+        service.addMovies(Arrays.asList(new MovieIO(null, "Ben Stiller", null)));
+        Mockito.verify(database, Mockito.never()).addMovies(any());
     }
-}
\ No newline at end of file
+}
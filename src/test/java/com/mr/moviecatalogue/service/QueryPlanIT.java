@@ -0,0 +1,114 @@
+package com.mr.moviecatalogue.service;
+
+import com.zaxxer.hikari.HikariDataSource;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that PostgreSQL plans the catalogue queries with the indexes added by the migrations, by running EXPLAIN
+ * on the statements DatabaseService sends, with their values bound and planned as they are by the pool's
+ * connection-init-sql. The database at spring.datasource.url is emptied and filled with 100000 movies by 10000
+ * directors. Run with mvn verify -Pintegration-tests, which passes the url in its primary-url property.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+public class QueryPlanIT {
+
+    private static HikariDataSource dataSource;
+    private static DatabaseService databaseService;
+
+    @BeforeClass
+    public static void setup() throws SQLException {
+        String url = System.getProperty("spring.datasource.url");
+        dataSource = new HikariDataSource();
+        dataSource.setJdbcUrl(url);
+        dataSource.setUsername(System.getProperty("spring.datasource.username", "postgres"));
+        dataSource.setPassword(System.getProperty("spring.datasource.password", "postgrespw"));
+        dataSource.setConnectionInitSql("SET plan_cache_mode = force_custom_plan");
+        databaseService = new DatabaseService(dataSource, new SchemaMigrator(dataSource, "classpath:db/migration", Integer.MAX_VALUE),
+                url, dataSource.getUsername(), dataSource.getPassword(), 500, new SimpleMeterRegistry(), new CatalogueVersion());
+        databaseService.initialiseSchema();
+        databaseService.dropDatabase();
+        try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+            statement.executeUpdate("INSERT INTO director_table (NAME) SELECT 'Director ' || i FROM generate_series(1, 10000) i");
+            //Ratings are spread evenly over the tenths from 0.0 to 5.0, with every 52nd movie unrated
+            statement.executeUpdate("INSERT INTO movie_table (TITLE, DIRECTOR_ID, RATING) SELECT 'Movie ' || i, DIRECTOR_ID, " +
+                    "CASE WHEN i % 52 = 51 THEN -1.0 ELSE (i % 52) / 10.0 END FROM generate_series(1, 100000) i " +
+                    "JOIN director_table ON NAME = 'Director ' || (i % 10000 + 1)");
+            statement.execute("ANALYZE movie_table");
+            statement.execute("ANALYZE director_table");
+        }
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        databaseService.dropDatabase();
+        dataSource.close();
+    }
+
+    @Test
+    public void test_selective_rating_filters_use_the_rating_index() throws SQLException {
+        assertUses("movie_rating_idx", "SELECT * FROM movie_view WHERE RATING >= ?;", 4.9f);
+        assertUses("movie_rating_idx", "SELECT * FROM movie_view WHERE LOWER(DIRECTOR) LIKE LOWER(?) AND RATING >= ?;", "director 1%", 4.9f);
+        //Most movies match, so reading the table is cheaper
+        assertFalse(explain("SELECT * FROM movie_view WHERE RATING >= ?;", 1.0f).contains("movie_rating_idx"));
+    }
+
+    @Test
+    public void test_case_insensitive_title_writes_use_the_lower_title_index() throws SQLException {
+        assertUses("movie_lower_title_idx", "UPDATE movie_table SET RATING = ? WHERE lower(TITLE) = lower(?)", 4.5f, "MOVIE 7");
+        assertUses("movie_lower_title_idx", "UPDATE movie_table SET DIRECTOR_ID = director_id(?) WHERE lower(TITLE) = lower(?)", "Director 1", "MOVIE 7");
+        assertUses("movie_lower_title_idx", "DELETE FROM movie_table WHERE LOWER(TITLE) = LOWER(?)", "MOVIE 7");
+    }
+
+    @Test
+    public void test_pages_are_read_in_title_order_from_the_collate_c_index() throws SQLException {
+        assertUses("movie_title_c_idx", "SELECT * FROM movie_view WHERE TRUE ORDER BY TITLE COLLATE \"C\" LIMIT ?;", 100);
+        assertUses("movie_title_c_idx", "SELECT * FROM movie_view WHERE TRUE AND TITLE COLLATE \"C\" > ? ORDER BY TITLE COLLATE \"C\" LIMIT ?;", "Movie 5", 100);
+    }
+
+    @Test
+    public void test_director_searches_use_the_lower_name_index_and_the_director_id_index() throws SQLException {
+        String plan = explain("SELECT * FROM movie_view WHERE LOWER(DIRECTOR) LIKE LOWER(?);", "Director 999");
+        assertTrue(plan.contains("director_lower_name_idx"), plan);
+        assertTrue(plan.contains("movie_director_id_idx"), plan);
+        assertUses("director_lower_name_idx", "SELECT * FROM movie_view WHERE LOWER(DIRECTOR) LIKE LOWER(?);", "director 999%");
+        assertUses("director_lower_name_idx", "SELECT director_table.NAME, COUNT(*) FROM director_table " +
+                "JOIN movie_table ON movie_table.DIRECTOR_ID = director_table.DIRECTOR_ID " +
+                "WHERE LOWER(director_table.NAME) LIKE LOWER(?) GROUP BY director_table.DIRECTOR_ID " +
+                "ORDER BY COUNT(*) DESC, director_table.NAME LIMIT ?;", "director 99%", 10);
+        assertUses("director_lower_name_idx", "DELETE FROM director_table WHERE lower(NAME) = lower(?)", "DIRECTOR 999");
+    }
+
+    private static void assertUses(String index, String sql, Object... values) throws SQLException {
+        String plan = explain(sql, values);
+        assertTrue(plan.contains(index), plan);
+    }
+
+    private static String explain(String sql, Object... values) throws SQLException {
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement statement = connection.prepareStatement("EXPLAIN " + sql)) {
+            for (int i = 0; i < values.length; i++) {
+                statement.setObject(i + 1, values[i]);
+            }
+            StringBuilder plan = new StringBuilder();
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    plan.append(resultSet.getString(1)).append('\n');
+                }
+            }
+            return plan.toString();
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.mr.moviecatalogue.service;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+public class RatingIndexTest {
+
+    private RatingIndex<String> ratingIndex;
+
+    @Before
+    public void setup() {
+        ratingIndex = new RatingIndex<>();
+        ratingIndex.put("Hot Fuzz", Float.valueOf((float) 5.0), "Hot Fuzz");
+        ratingIndex.put("Tropic Thunder", Float.valueOf((float) 4.9), "Tropic Thunder");
+        ratingIndex.put("Snatch", Float.valueOf((float) 4.0), "Snatch");
+        ratingIndex.put("Shaun of the Dead", Float.valueOf((float) -1.0), "Shaun of the Dead");
+    }
+
+    @Test
+    public void test_titles_at_least_reads_buckets_from_rating_upwards() {
+        assertEquals(new HashSet<>(Arrays.asList("Hot Fuzz", "Tropic Thunder")), titlesAtLeast((float) 4.9));
+        assertEquals(new HashSet<>(Arrays.asList("Hot Fuzz")), titlesAtLeast((float) 4.95));
+        assertEquals(3, titlesAtLeast((float) 0.0).size());
+    }
+
+    @Test
+    public void test_unrated_movies_are_not_indexed() {
+        assertEquals(3, ratingIndex.size());
+        ratingIndex.put("Snatch", Float.NaN, "Snatch");
+        assertFalse(titlesAtLeast((float) 0.0).contains("Snatch"));
+    }
+
+    @Test
+    public void test_put_moves_title_between_buckets() {
+        ratingIndex.put("Snatch", Float.valueOf((float) 4.9), "Snatch");
+        ratingIndex.put("Hot Fuzz", Float.valueOf((float) 1.0), "Hot Fuzz");
+        assertEquals(new HashSet<>(Arrays.asList("Snatch", "Tropic Thunder")), titlesAtLeast((float) 4.0));
+        assertEquals(3, ratingIndex.size());
+    }
+
+    @Test
+    public void test_removed_ids_are_reused_and_other_titles_are_kept() {
+        ratingIndex.remove("Tropic Thunder");
+        ratingIndex.put("Hot Fuzz 2", Float.valueOf((float) 4.9), "Hot Fuzz 2");
+        assertEquals(new HashSet<>(Arrays.asList("Hot Fuzz", "Hot Fuzz 2")), titlesAtLeast((float) 4.9));
+        assertEquals(3, ratingIndex.size());
+    }
+
+    @Test
+    public void test_index_grows_past_initial_capacity() {
+        for (int i = 0; i < 10000; i++) {
+            ratingIndex.put("Movie " + i, Float.valueOf((float) ((i % 51) / 10.0)), "Movie " + i);
+        }
+        for (int i = 0; i < 10000; i += 2) {
+            ratingIndex.remove("Movie " + i);
+        }
+        assertEquals(5003, ratingIndex.size());
+        ratingIndex.clear();
+        assertTrue(titlesAtLeast((float) 0.0).isEmpty());
+    }
+
+    @Test
+    public void test_titles_moved_into_removed_positions_can_still_be_replaced_and_removed() {
+        ratingIndex.clear();
+        Map<String, String> expected = new HashMap<>();
+        for (int i = 0; i < 300; i++) {
+            ratingIndex.put("Movie " + i, Float.valueOf((float) 3.0), "Movie " + i);
+            expected.put("Movie " + i, "Movie " + i);
+        }
+        for (int i = 0; i < 300; i += 3) {
+            ratingIndex.remove("Movie " + i);
+            expected.remove("Movie " + i);
+            ratingIndex.put("Movie " + (i + 1), Float.valueOf((float) 4.0), "Movie " + (i + 1) + " moved");
+            expected.put("Movie " + (i + 1), "Movie " + (i + 1) + " moved");
+        }
+        for (int i = 2; i < 300; i += 3) {
+            ratingIndex.put("Movie " + i, Float.valueOf((float) 3.0), "Movie " + i + " edited");
+            expected.put("Movie " + i, "Movie " + i + " edited");
+        }
+        Map<String, String> read = new HashMap<>();
+        assertEquals(200, ratingIndex.forEachAtLeast((float) 0.0, read::put));
+        assertEquals(expected, read);
+        expected.keySet().forEach(ratingIndex::remove);
+        assertEquals(0, ratingIndex.countAtLeast((float) 0.0));
+    }
+
+    @Test
+    public void test_put_replaces_the_value_held_for_a_title() {
+        ratingIndex.put("Hot Fuzz", Float.valueOf((float) 5.0), "Hot Fuzz edited");
+        Set<String> values = new HashSet<>();
+        assertEquals(1, ratingIndex.forEachAtLeast((float) 5.0, (title, value) -> values.add(value)));
+        assertEquals(new HashSet<>(Arrays.asList("Hot Fuzz edited")), values);
+    }
+
+    @Test
+    public void test_plan_uses_index_only_for_selective_ratings() {
+        assertEquals(2, ratingIndex.countAtLeast((float) 4.9));
+        assertEquals(1, ratingIndex.plan((float) 5.0));
+        assertEquals(-1, ratingIndex.plan((float) 4.0));
+    }
+
+    @Test
+    public void test_updates_made_while_reading_do_not_change_a_bucket_being_read() {
+        for (int i = 0; i < 100; i++) {
+            ratingIndex.put("Movie " + i, Float.valueOf((float) 4.5), "Movie " + i);
+        }
+        List<String> read = new ArrayList<>();
+        int count = ratingIndex.forEachAtLeast((float) 4.5, (title, value) -> {
+            read.add(value);
+            if (title.startsWith("Movie ")) {
+                ratingIndex.remove(title);
+                ratingIndex.put(title + " copy", Float.valueOf((float) 4.5), title + " copy");
+            }
+            ratingIndex.put("Hot Fuzz", Float.valueOf((float) 5.0), "Hot Fuzz edited");
+        });
+        assertEquals(102, count);
+        assertEquals(102, read.size());
+        assertEquals(102, new HashSet<>(read).size());
+        //Buckets not yet reached are read as they are when the query reaches them
+        assertTrue(read.contains("Hot Fuzz edited"));
+        assertFalse(read.stream().anyMatch(value -> value.endsWith(" copy")));
+        assertEquals(103, ratingIndex.size());
+        assertEquals(102, ratingIndex.countAtLeast((float) 4.5));
+    }
+
+    private Set<String> titlesAtLeast(float rating) {
+        Set<String> titles = new HashSet<>();
+        ratingIndex.forEachAtLeast(rating, (title, value) -> {
+            assertEquals(title, value);
+            titles.add(title);
+        });
+        return titles;
+    }
+}
@@ -0,0 +1,120 @@
+package com.mr.moviecatalogue.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.sql.Connection;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs reads through the application against a real primary and read replica, set by spring.datasource.url and
+ * catalogue.replicas.urls, checking which database each read was sent to by the connections borrowed from each
+ * pool. Run with mvn verify -Pintegration-tests, which passes the urls in its primary-url and replica-url properties.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = {
+        "catalogue.repository=jdbc", "catalogue.snapshot.enabled=false", "catalogue.response-cache.enabled=false",
+        "catalogue.replicas.maximum-pool-size=1", "catalogue.replicas.connection-timeout=500",
+        "catalogue.replicas.read-your-writes-window=2000"})
+public class ReplicaReadsIT {
+
+    private static final String TITLE = "Replica Reads IT";
+
+    @Autowired
+    TestRestTemplate restTemplate;
+
+    @Autowired
+    MeterRegistry meterRegistry;
+
+    @Autowired
+    ReplicaDataSources replicaDataSources;
+
+    @After
+    public void tearDown() {
+        restTemplate.delete("/movies/{title}", TITLE);
+    }
+
+    @Test
+    public void test_reads_go_to_the_replica() {
+        double primary = borrowed("moviedb-pool");
+        double replica = borrowed("moviedb-replica-1");
+
+        assertEquals(HttpStatus.OK, getMovie(null).getStatusCode());
+        assertEquals(primary, borrowed("moviedb-pool"));
+        assertEquals(replica + 1, borrowed("moviedb-replica-1"));
+    }
+
+    @Test
+    public void test_reads_fall_back_to_the_primary_when_no_replica_connection_is_available() throws Exception {
+        double primary = borrowed("moviedb-pool");
+        double fallbacks = meterRegistry.get("catalogue.replicas.fallbacks").counter().count();
+
+        //Holds the replica's only connection
+        try (Connection connection = replicaDataSources.next().getConnection()) {
+            assertEquals(HttpStatus.OK, getMovie(null).getStatusCode());
+        }
+        assertEquals(primary + 1, borrowed("moviedb-pool"));
+        assertEquals(fallbacks + 1, meterRegistry.get("catalogue.replicas.fallbacks").counter().count());
+    }
+
+    @Test
+    public void test_a_client_reads_its_own_writes_from_the_primary_until_the_window_ends() throws InterruptedException {
+        ResponseEntity<String> added = restTemplate.postForEntity("/movies",
+                Collections.singletonMap("title", TITLE), String.class);
+        assertEquals(HttpStatus.OK, added.getStatusCode());
+        List<String> cookies = added.getHeaders().get(HttpHeaders.SET_COOKIE);
+        assertNotNull(cookies);
+        String cookie = cookies.get(0).split(";")[0];
+        assertTrue(cookie.startsWith("catalogue-primary-until="));
+
+        double primary = borrowed("moviedb-pool");
+        double replica = borrowed("moviedb-replica-1");
+        ResponseEntity<String> read = getMovie(cookie);
+        assertTrue(read.getBody().contains(TITLE));
+        assertEquals(primary + 1, borrowed("moviedb-pool"));
+        assertEquals(replica, borrowed("moviedb-replica-1"));
+
+        Thread.sleep(2100);
+        getMovie(cookie);
+        assertEquals(primary + 1, borrowed("moviedb-pool"));
+        assertEquals(replica + 1, borrowed("moviedb-replica-1"));
+
+        //The replica catches up with the write
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!getMovie(null).getBody().contains(TITLE)) {
+            assertTrue(System.currentTimeMillis() < deadline, "The movie did not reach the replica");
+            Thread.sleep(100);
+        }
+    }
+
+    private ResponseEntity<String> getMovie(String cookie) {
+        HttpHeaders headers = new HttpHeaders();
+        if (cookie != null) {
+            headers.add(HttpHeaders.COOKIE, cookie);
+        }
+        return restTemplate.exchange("/movies?title={title}", HttpMethod.GET, new HttpEntity<>(headers), String.class, TITLE);
+    }
+
+    /**
+     * @return The number of connections borrowed from the named pool, which has no meters until it is first used
+     */
+    private double borrowed(String pool) {
+        Timer acquire = meterRegistry.find("hikaricp.connections.acquire").tag("pool", pool).timer();
+        return acquire == null ? 0 : acquire.count();
+    }
+}
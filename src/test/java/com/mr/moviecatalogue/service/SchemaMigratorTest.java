@@ -0,0 +1,125 @@
+package com.mr.moviecatalogue.service;
+
+import lombok.SneakyThrows;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.springframework.core.io.Resource;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.contains;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+public class SchemaMigratorTest {
+
+    @Mock
+    DataSource dataSource;
+
+    @Mock
+    Connection connection;
+
+    @Mock
+    Statement statement;
+
+    @Mock
+    PreparedStatement recordStatement;
+
+    @Mock
+    ResultSet resultSet;
+
+    @InjectMocks
+    SchemaMigrator schemaMigrator;
+
+    @Before
+    @SneakyThrows(SQLException.class)
+    public void setup() {
+        ReflectionTestUtils.setField(schemaMigrator, "migrationLocation", "classpath:db/migration");
+        Mockito.when(dataSource.getConnection()).thenReturn(connection);
+        Mockito.when(connection.createStatement()).thenReturn(statement);
+        Mockito.when(connection.prepareStatement(Mockito.anyString())).thenReturn(recordStatement);
+        Mockito.when(statement.executeQuery(Mockito.anyString())).thenReturn(resultSet);
+    }
+
+    @Test
+    public void test_migrations_are_found_in_version_order() {
+        TreeMap<Integer, Resource> migrations = schemaMigrator.findMigrations();
+        assertEquals(Arrays.asList(1, 2, 3, 4, 5, 6), new ArrayList<>(migrations.keySet()));
+        assertEquals("V1__create_movie_table.sql", migrations.firstEntry().getValue().getFilename());
+    }
+
+    @Test @SneakyThrows(SQLException.class)
+    public void test_only_migrations_newer_than_recorded_version_are_applied() {
+        Mockito.when(resultSet.next()).thenReturn(true).thenReturn(false);
+        Mockito.when(resultSet.getInt(1)).thenReturn(2);
+
+        assertEquals(4, schemaMigrator.migrate());
+        Mockito.verify(statement, Mockito.times(1)).execute(contains("movie_rating_idx"));
+        Mockito.verify(statement, Mockito.times(1)).execute(contains("CREATE TABLE IF NOT EXISTS director_table"));
+        Mockito.verify(statement, Mockito.never()).execute(contains("CREATE TABLE IF NOT EXISTS movie_table"));
+        Mockito.verify(recordStatement).setInt(1, 3);
+        Mockito.verify(recordStatement).setString(2, "add query indexes");
+        Mockito.verify(recordStatement).setInt(1, 4);
+        Mockito.verify(recordStatement).setString(2, "create director table");
+        Mockito.verify(recordStatement).setInt(1, 6);
+        Mockito.verify(connection, Mockito.times(4)).commit();
+        Mockito.verify(connection).close();
+    }
+
+    @Test @SneakyThrows(SQLException.class)
+    public void test_no_transaction_migration_runs_with_auto_commit_holding_session_lock() {
+        Mockito.when(resultSet.next()).thenReturn(true).thenReturn(false);
+        Mockito.when(resultSet.getInt(1)).thenReturn(4);
+
+        assertEquals(2, schemaMigrator.migrate());
+        InOrder inOrder = Mockito.inOrder(connection, statement, recordStatement);
+        inOrder.verify(connection).setAutoCommit(true);
+        inOrder.verify(statement).execute("SELECT pg_advisory_lock(7011355201)");
+        inOrder.verify(statement).execute(contains("DO $$"));
+        inOrder.verify(recordStatement).setInt(1, 5);
+        inOrder.verify(statement).execute("SELECT pg_advisory_unlock(7011355201)");
+        inOrder.verify(connection).setAutoCommit(false);
+    }
+
+    @Test @SneakyThrows(SQLException.class)
+    public void test_migrations_newer_than_target_are_not_applied() {
+        ReflectionTestUtils.setField(schemaMigrator, "target", 5);
+        Mockito.when(resultSet.next()).thenReturn(true).thenReturn(false);
+        Mockito.when(resultSet.getInt(1)).thenReturn(4);
+
+        assertEquals(1, schemaMigrator.migrate());
+        Mockito.verify(recordStatement).setInt(1, 5);
+        Mockito.verify(recordStatement, Mockito.never()).setInt(1, 6);
+        Mockito.verify(statement, Mockito.never()).execute(contains("DROP COLUMN"));
+
+        ReflectionTestUtils.setField(schemaMigrator, "target", 3);
+        assertEquals(0, schemaMigrator.migrate());
+    }
+
+    @Test @SneakyThrows(SQLException.class)
+    public void test_failed_migration_is_rolled_back_and_rethrown() {
+        Mockito.when(resultSet.next()).thenReturn(true).thenReturn(false);
+        Mockito.when(resultSet.getInt(1)).thenReturn(0);
+        Mockito.when(statement.execute(contains("CREATE TABLE IF NOT EXISTS movie_table"))).thenThrow(new SQLException("Migration failed"));
+
+        assertThrows(SQLException.class, () -> schemaMigrator.migrate());
+        Mockito.verify(connection).rollback();
+        Mockito.verify(recordStatement, Mockito.never()).executeUpdate();
+        Mockito.verify(connection).close();
+    }
+}
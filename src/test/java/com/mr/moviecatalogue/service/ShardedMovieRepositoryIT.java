@@ -0,0 +1,176 @@
+package com.mr.moviecatalogue.service;
+
+import com.mr.moviecatalogue.domain.Movie;
+import com.mr.moviecatalogue.inputobject.MovieIO;
+import com.zaxxer.hikari.HikariDataSource;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.ApplicationContext;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs the sharded repository against real PostgreSQL databases, listed in catalogue.shards.urls, which are emptied
+ * by every test. Run with mvn verify -Pintegration-tests, which passes the urls in its shard-urls property.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringBootTest(properties = {"catalogue.repository=sharded", "catalogue.snapshot.enabled=false"})
+public class ShardedMovieRepositoryIT {
+
+    @Autowired
+    ApplicationContext applicationContext;
+
+    @Autowired
+    MovieRepository movieRepository;
+
+    @Autowired
+    MeterRegistry meterRegistry;
+
+    @Autowired
+    CatalogueVersion catalogueVersion;
+
+    @Value("${catalogue.shards.urls}")
+    private String[] urls;
+
+    @Value("${spring.datasource.username}")
+    private String databaseUser;
+
+    @Value("${spring.datasource.password}")
+    private String databasePassword;
+
+    //Each shard opened on its own, to check what it holds and to put movies on the wrong shard
+    private final List<DatabaseService> shards = new ArrayList<>();
+
+    private final List<HikariDataSource> pools = new ArrayList<>();
+
+    @Before
+    public void setup() {
+        assertTrue(urls.length >= 2, "catalogue.shards.urls must list at least two databases");
+        for (String url : urls) {
+            HikariDataSource pool = new HikariDataSource();
+            pool.setJdbcUrl(url.trim());
+            pool.setUsername(databaseUser);
+            pool.setPassword(databasePassword);
+            pool.setMaximumPoolSize(2);
+            pools.add(pool);
+            shards.add(new DatabaseService(pool, new SchemaMigrator(pool, "classpath:db/migration", Integer.MAX_VALUE),
+                    url.trim(), databaseUser, databasePassword, 100, meterRegistry, catalogueVersion));
+        }
+        movieRepository.dropDatabase();
+    }
+
+    @After
+    public void tearDown() {
+        movieRepository.dropDatabase();
+        pools.forEach(HikariDataSource::close);
+    }
+
+    @Test
+    public void test_no_pool_or_migrator_is_created_for_spring_datasource_url() {
+        assertEquals(0, applicationContext.getBeanNamesForType(DataSource.class).length);
+        assertEquals(0, applicationContext.getBeanNamesForType(SchemaMigrator.class).length);
+    }
+
+    @Test
+    public void test_movies_are_spread_over_the_shards_and_scans_read_them_all() throws IOException {
+        List<MovieIO> movies = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            movies.add(new MovieIO("Movie " + i, i % 2 == 0 ? "Edgar Wright" : "Guy Ritchie", Float.valueOf(i / 10.0f)));
+        }
+        int[] added = movieRepository.addMovies(movies);
+        assertEquals(40, Arrays.stream(added).sum());
+
+        int held = 0;
+        for (int shard = 0; shard < shards.size(); shard++) {
+            Map<String, Movie> shardMovies = shards.get(shard).getAllMovies();
+            assertFalse(shardMovies.isEmpty());
+            for (String title : shardMovies.keySet()) {
+                assertEquals(shard, ShardedMovieRepository.shardFor(title, shards.size()));
+            }
+            held += shardMovies.size();
+        }
+        assertEquals(40, held);
+
+        assertEquals(40, movieRepository.getAllMovies().size());
+        assertEquals(20, movieRepository.getMoviesByDirector("edgar wright").size());
+        assertEquals(10, movieRepository.getMoviesAboveRating(Float.valueOf(2.95f)).size());
+        assertEquals(5, movieRepository.getMoviesByDirectorAboveRating("Guy Ritchie", Float.valueOf(2.95f)).size());
+        assertEquals(new Movie("Guy Ritchie", 0.7f), movieRepository.getMovieByTitle("Movie 7"));
+
+        List<String> titles = new ArrayList<>(new TreeMap<>(movieRepository.getAllMovies()).keySet());
+        assertEquals(titles.subList(10, 15), new ArrayList<>(movieRepository.getMoviesPage(null, null, titles.get(9), 5).keySet()));
+        List<String> streamed = new ArrayList<>();
+        movieRepository.streamAllMovies((title, movie) -> streamed.add(title));
+        assertEquals(titles, streamed);
+    }
+
+    @Test
+    public void test_renaming_to_a_title_on_another_shard_moves_the_movie() {
+        String title = titleOn(0, 0);
+        String newTitle = titleOn(1, 0);
+        assertEquals(1, movieRepository.addMovie(new MovieIO(title, "Edgar Wright", Float.valueOf(4.0f))));
+
+        Map<String, Movie> edited = movieRepository.editMovie(title, newTitle, null, Float.valueOf(4.5f));
+        assertEquals(new Movie("Edgar Wright", 4.5f), edited.get(newTitle));
+        assertNull(shards.get(0).getMovieByTitle(title));
+        assertEquals(new Movie("Edgar Wright", 4.5f), shards.get(1).getMovieByTitle(newTitle));
+        assertEquals(Collections.singleton(newTitle), movieRepository.getAllMovies().keySet());
+
+        //The new title is taken, so nothing changes
+        assertEquals(1, movieRepository.addMovie(new MovieIO(title, "Guy Ritchie", Float.valueOf(3.0f))));
+        assertNull(movieRepository.editMovie(title, newTitle, null, null));
+        assertEquals(new Movie("Guy Ritchie", 3.0f), shards.get(0).getMovieByTitle(title));
+        assertEquals(new Movie("Edgar Wright", 4.5f), shards.get(1).getMovieByTitle(newTitle));
+    }
+
+    @Test
+    public void test_rebalance_moves_movies_onto_the_shards_they_belong_on() {
+        List<MovieIO> misplaced = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            misplaced.add(new MovieIO(titleOn(1, i), "Edgar Wright", Float.valueOf(i)));
+        }
+        //Also left on the wrong shard by an interrupted rebalance
+        misplaced.add(new MovieIO(titleOn(0, 0), null, Float.valueOf(-1.0f)));
+        shards.get(1).addMovies(Collections.singletonList(misplaced.get(5)));
+        shards.get(0).addMovies(misplaced);
+
+        ShardedMovieRepository sharded = (ShardedMovieRepository) ReflectionTestUtils.getField(movieRepository, "delegate");
+        assertEquals(6, sharded.rebalance());
+
+        Map<String, Movie> first = shards.get(0).getAllMovies();
+        Map<String, Movie> second = shards.get(1).getAllMovies();
+        assertEquals(Collections.singleton(titleOn(0, 0)), first.keySet());
+        assertEquals(5, second.size());
+        assertEquals(new Movie("Edgar Wright", 3.0f), second.get(titleOn(1, 3)));
+        assertEquals(0, sharded.rebalance());
+    }
+
+    /**
+     * @return The nth title, in the order generated, that belongs on the given shard
+     */
+    private String titleOn(int shard, int n) {
+        for (int i = 0; ; i++) {
+            String title = "Movie " + i;
+            if (ShardedMovieRepository.shardFor(title, shards.size()) == shard && n-- == 0) {
+                return title;
+            }
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package com.mr.moviecatalogue.service;
+
+import com.mr.moviecatalogue.domain.DirectorSuggestion;
+import com.mr.moviecatalogue.domain.Movie;
+import com.mr.moviecatalogue.inputobject.MovieIO;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+public class ShardedMovieRepositoryTest {
+
+    private DatabaseService first;
+    private DatabaseService second;
+    private TreeMap<String, Movie> firstMovies;
+    private TreeMap<String, Movie> secondMovies;
+    private ShardedMovieRepository repository;
+
+    @Before
+    public void setup() {
+        firstMovies = new TreeMap<>();
+        secondMovies = new TreeMap<>();
+        first = shard(firstMovies);
+        second = shard(secondMovies);
+        repository = new ShardedMovieRepository(Arrays.asList(first, second), new ArrayList<>(), 2);
+    }
+
+    @Test
+    public void test_titles_are_spread_over_shards_whatever_their_case() {
+        int[] counts = new int[3];
+        for (int i = 0; i < 30000; i++) {
+            int shard = ShardedMovieRepository.shardFor("Movie " + i, 3);
+            assertEquals(shard, ShardedMovieRepository.shardFor("MOVIE " + i, 3));
+            counts[shard]++;
+        }
+        for (int count : counts) {
+            assertTrue(count > 9000 && count < 11000);
+        }
+    }
+
+    @Test
+    public void test_adding_a_shard_only_moves_titles_to_the_new_shard() {
+        int moved = 0;
+        for (int i = 0; i < 30000; i++) {
+            int before = ShardedMovieRepository.shardFor("Movie " + i, 2);
+            int after = ShardedMovieRepository.shardFor("Movie " + i, 3);
+            if (before != after) {
+                assertEquals(2, after);
+                moved++;
+            }
+        }
+        assertTrue(moved > 9000 && moved < 11000);
+    }
+
+    @Test
+    public void test_title_operations_go_to_one_shard() {
+        String title = titleOn(1, 0);
+        repository.getMovieByTitle(title);
+        repository.updateRating(title.toUpperCase(), Float.valueOf((float) 4.5));
+        repository.deleteMovie(title);
+        Mockito.verify(second).getMovieByTitle(title);
+        Mockito.verify(second).updateRating(title.toUpperCase(), Float.valueOf((float) 4.5));
+        Mockito.verify(second).deleteMovie(title);
+        Mockito.verifyNoInteractions(first);
+    }
+
+    @Test
+    public void test_scans_merge_every_shard_and_fail_if_any_shard_fails() {
+        firstMovies.put(titleOn(0, 0), new Movie("Edgar Wright", 5.0f));
+        secondMovies.put(titleOn(1, 0), new Movie("Ben Stiller", 4.5f));
+        assertEquals(2, repository.getAllMovies().size());
+
+        Mockito.when(second.getAllMovies()).thenReturn(null);
+        assertNull(repository.getAllMovies());
+    }
+
+    @Test
+    public void test_pages_and_streams_are_merged_in_title_order() throws IOException {
+        for (int i = 0; i < 3; i++) {
+            firstMovies.put(titleOn(0, i), new Movie("Edgar Wright", 5.0f));
+            secondMovies.put(titleOn(1, i), new Movie("Ben Stiller", 4.5f));
+        }
+        List<String> titles = new ArrayList<>(firstMovies.keySet());
+        titles.addAll(secondMovies.keySet());
+        Collections.sort(titles);
+
+        assertEquals(titles.subList(0, 2), new ArrayList<>(repository.getMoviesPage(null, null, null, 2).keySet()));
+        assertEquals(titles.subList(3, 5), new ArrayList<>(repository.getMoviesPage(null, null, titles.get(2), 2).keySet()));
+
+        List<String> streamed = new ArrayList<>();
+        repository.streamAllMovies((title, movie) -> streamed.add(title));
+        assertEquals(titles, streamed);
+    }
+
+    @Test
+    public void test_add_movies_returns_results_in_request_order() {
+        MovieIO onSecond = new MovieIO(titleOn(1, 0), "Ben Stiller", Float.valueOf((float) 4.5));
+        MovieIO onFirst = new MovieIO(titleOn(0, 0), "Edgar Wright", Float.valueOf((float) 5.0));
+        MovieIO alsoOnSecond = new MovieIO(titleOn(1, 1), "Guy Ritchie", Float.valueOf((float) 4.0));
+        Mockito.when(first.addMovies(Arrays.asList(onFirst))).thenReturn(new int[]{1});
+        Mockito.when(second.addMovies(Arrays.asList(onSecond, alsoOnSecond))).thenReturn(new int[]{0, 1});
+
+        assertArrayEquals(new int[]{0, 1, 1}, repository.addMovies(Arrays.asList(onSecond, onFirst, alsoOnSecond)));
+
+        Mockito.when(first.addMovies(anyList())).thenReturn(null);
+        assertNull(repository.addMovies(Arrays.asList(onSecond, onFirst, alsoOnSecond)));
+    }
+
+    @Test
+    public void test_no_shard_is_updated_when_a_title_is_missing_from_any_shard() {
+        firstMovies.put(titleOn(0, 0), new Movie("Edgar Wright", 5.0f));
+        Map<String, Movie> updated = repository.updateDirectorForMovies(Arrays.asList(titleOn(0, 0), titleOn(1, 0)), "Guy Ritchie");
+        assertEquals(Collections.singletonMap(titleOn(1, 0), null), updated);
+        Mockito.verify(first, Mockito.never()).updateDirectorForMovies(anyList(), any());
+        Mockito.verify(second, Mockito.never()).updateDirectorForMovies(anyList(), any());
+    }
+
+    @Test
+    public void test_director_suggestions_are_counted_over_all_shards() {
+        Mockito.when(first.suggestDirectors("ed", 2)).thenReturn(Arrays.asList(new DirectorSuggestion("Edgar Wright", 2), new DirectorSuggestion("Ed Wood", 1)));
+        Mockito.when(second.suggestDirectors("ed", 2)).thenReturn(Arrays.asList(new DirectorSuggestion("Ed Wood", 2), new DirectorSuggestion("EDGAR WRIGHT", 2)));
+        assertEquals(Arrays.asList(new DirectorSuggestion("Edgar Wright", 4), new DirectorSuggestion("Ed Wood", 3)),
+                repository.suggestDirectors("ed", 2));
+    }
+
+    @Test
+    public void test_rename_to_a_title_on_another_shard_moves_the_movie() {
+        String title = titleOn(0, 0);
+        String newTitle = titleOn(1, 0);
+        firstMovies.put(title, new Movie("Edgar Wright", -1.0f));
+        Mockito.when(second.addMovie(any())).thenReturn(1);
+
+        Map<String, Movie> edited = repository.editMovie(title, newTitle, null, Float.valueOf((float) 4.5));
+        assertEquals(new Movie("Edgar Wright", 4.5f), edited.get(newTitle));
+        Mockito.verify(second).addMovie(new MovieIO(newTitle, "Edgar Wright", Float.valueOf((float) 4.5)));
+        Mockito.verify(first).deleteMovies(Collections.singletonList(title));
+        Mockito.verify(first, Mockito.never()).editMovie(any(), any(), any(), any());
+    }
+
+    @Test
+    public void test_rebalance_moves_movies_onto_their_shards_and_empties_retired_shards() {
+        TreeMap<String, Movie> retiredMovies = new TreeMap<>();
+        DatabaseService retired = shard(retiredMovies);
+        repository = new ShardedMovieRepository(Arrays.asList(first, second), Arrays.asList(retired), 2);
+        for (int i = 0; i < 3; i++) {
+            firstMovies.put(titleOn(0, i), new Movie("Edgar Wright", 5.0f));
+            firstMovies.put(titleOn(1, i), new Movie("Ben Stiller", 4.5f));
+        }
+        retiredMovies.put(titleOn(0, 3), new Movie(null, -1.0f));
+        Mockito.when(first.addMovies(anyList())).thenReturn(new int[]{1});
+        Mockito.when(second.addMovies(anyList())).thenAnswer(invocation -> new int[((List<?>) invocation.getArgument(0)).size()]);
+        Mockito.when(first.deleteMovies(anyList())).thenAnswer(invocation -> ((List<?>) invocation.getArgument(0)).size());
+        Mockito.when(retired.deleteMovies(anyList())).thenReturn(1);
+
+        assertEquals(4, repository.rebalance());
+
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<List<MovieIO>> movedToSecond = ArgumentCaptor.forClass(List.class);
+        Mockito.verify(second, Mockito.atLeastOnce()).addMovies(movedToSecond.capture());
+        List<String> titles = new ArrayList<>();
+        movedToSecond.getAllValues().forEach(movies -> movies.forEach(movie -> titles.add(movie.getTitle())));
+        Collections.sort(titles);
+        assertEquals(Arrays.asList(titleOn(1, 0), titleOn(1, 1), titleOn(1, 2)), titles);
+        Mockito.verify(first).addMovies(Arrays.asList(new MovieIO(titleOn(0, 3), null, Float.valueOf((float) -1.0))));
+        Mockito.verify(retired).deleteMovies(Arrays.asList(titleOn(0, 3)));
+    }
+
+    /**
+     * @return The nth title, in the order generated, that belongs on the given one of two shards
+     */
+    private String titleOn(int shard, int n) {
+        for (int i = 0; ; i++) {
+            String title = "Movie " + i;
+            if (ShardedMovieRepository.shardFor(title, 2) == shard && n-- == 0) {
+                return title;
+            }
+        }
+    }
+
+    /**
+     * @return A mock shard that reads the movies in the given map
+     */
+    private DatabaseService shard(TreeMap<String, Movie> movies) {
+        DatabaseService shard = Mockito.mock(DatabaseService.class);
+        Mockito.when(shard.getAllMovies()).thenAnswer(invocation -> new HashMap<>(movies));
+        Mockito.when(shard.getMovieByTitle(any())).thenAnswer(invocation -> movies.get((String) invocation.getArgument(0)));
+        Mockito.when(shard.getMoviesPage(isNull(), isNull(), any(), anyInt())).thenAnswer(invocation -> {
+            String after = invocation.getArgument(2);
+            int limit = invocation.getArgument(3);
+            Map<String, Movie> page = new LinkedHashMap<>();
+            for (Map.Entry<String, Movie> entry : (after == null ? movies : movies.tailMap(after, false)).entrySet()) {
+                if (page.size() == limit) {
+                    break;
+                }
+                page.put(entry.getKey(), entry.getValue());
+            }
+            return page;
+        });
+        Mockito.when(shard.updateDirectorForMovies(anyList(), eq("Guy Ritchie"))).thenAnswer(invocation -> {
+            Map<String, Movie> updated = new LinkedHashMap<>();
+            invocation.<List<String>>getArgument(0).forEach(title -> updated.put(title, new Movie("Guy Ritchie", movies.get(title).getRatingValue())));
+            return updated;
+        });
+        return shard;
+    }
+}
@@ -0,0 +1,108 @@
+package com.mr.moviecatalogue.service;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+public class TitleIndexTest {
+
+    private static final List<String> TITLES = Arrays.asList("Hot Fuzz", "Shaun of the Dead", "The World's End",
+            "Hot Shots!", "Tropic Thunder", "Dead Man's Shoes", "Snatch");
+
+    private TitleIndex<String> titleIndex;
+
+    @Before
+    public void setup() {
+        titleIndex = new TitleIndex<>();
+        TITLES.forEach(title -> titleIndex.put(title, title));
+    }
+
+    @Test
+    public void test_query_words_are_case_folded_distinct_and_capped() {
+        assertEquals(Arrays.asList("shaun", "of", "the", "dead"), TitleIndex.queryWords("SHAUN of the... Dead, dead"));
+        assertTrue(TitleIndex.queryWords(" !? ").isEmpty());
+        assertEquals(TitleIndex.MAX_QUERY_WORDS, TitleIndex.queryWords("a b c d e f g h i j k").size());
+    }
+
+    @Test
+    public void test_whole_words_rank_above_prefixes_and_more_matched_words_rank_first() {
+        assertEquals(Arrays.asList("Dead Man's Shoes", "Shaun of the Dead"), search("dead", 10));
+        assertEquals(Arrays.asList("Shaun of the Dead", "Dead Man's Shoes"), search("shaun dead", 10));
+        assertEquals(Arrays.asList("Hot Fuzz", "Hot Shots!"), search("hot", 10));
+        assertEquals(Arrays.asList("Hot Shots!", "Hot Fuzz", "Dead Man's Shoes"), search("hot sho", 10));
+        assertEquals(Arrays.asList("Tropic Thunder"), search("trop", 10));
+    }
+
+    @Test
+    public void test_misspelt_words_match_by_trigrams() {
+        assertEquals(Arrays.asList("Tropic Thunder"), search("tropci thundr", 10));
+        assertEquals("Snatch", search("snach", 10).get(0));
+        assertEquals(Arrays.asList("Shaun of the Dead", "Dead Man's Shoes"), search("shuan deda", 10));
+        assertTrue(search("xyzzy", 10).isEmpty());
+    }
+
+    @Test
+    public void test_limit_keeps_the_best_matches() {
+        assertEquals(Arrays.asList("Hot Fuzz"), search("hot", 1));
+    }
+
+    @Test
+    public void test_renamed_and_removed_titles_are_searched_by_their_new_words() {
+        titleIndex.remove("Hot Fuzz");
+        titleIndex.put("Hot Fuzz 2", "Hot Fuzz 2");
+        titleIndex.remove("Snatch");
+        assertEquals(Arrays.asList("Hot Fuzz 2"), search("fuzz", 10));
+        assertTrue(search("snatch", 10).isEmpty());
+        assertEquals(TITLES.size() - 1, titleIndex.size());
+
+        titleIndex.put("Hot Fuzz 2", "edited");
+        assertEquals("edited", titleIndex.search(TitleIndex.queryWords("fuzz"), 10).get("Hot Fuzz 2"));
+    }
+
+    @Test
+    public void test_searches_on_one_thread_do_not_carry_scores_over() {
+        TitleIndex<String> largerIndex = new TitleIndex<>();
+        for (int i = 0; i < 200; i++) {
+            largerIndex.put("Movie " + i + " of the Dead", "Movie " + i);
+        }
+        List<String> expected = search("shuan deda", 10);
+        assertEquals(25, largerIndex.search(TitleIndex.queryWords("shuan deda movei"), 25).size());
+        assertEquals(expected, search("shuan deda", 10));
+        assertEquals(Arrays.asList("Snatch"), search("snatch", 10));
+        assertEquals(Arrays.asList("Movie 7"), new ArrayList<>(largerIndex.search(TitleIndex.queryWords("7 dead"), 1).values()));
+    }
+
+    @Test
+    public void test_scan_ranks_the_same_as_the_index() {
+        List<String> titles = new ArrayList<>(TITLES);
+        for (int i = 0; i < 2000; i++) {
+            titles.add("Movie " + i + (i % 3 == 0 ? " of the Dead" : " Thunder"));
+        }
+        Collections.shuffle(titles);
+        Map<String, String> movies = new HashMap<>();
+        titles.forEach(title -> {
+            titleIndex.put(title, title);
+            movies.put(title, title);
+        });
+        for (String query : Arrays.asList("dead", "the thundr", "movie 12", "hot shots", "o", "mov of", "shuan deda", "movei 1")) {
+            List<String> queryWords = TitleIndex.queryWords(query);
+            assertEquals(new ArrayList<>(TitleIndex.scan(queryWords, movies, 25).keySet()),
+                    new ArrayList<>(titleIndex.search(queryWords, 25).keySet()));
+        }
+    }
+
+    private List<String> search(String query, int limit) {
+        return new ArrayList<>(titleIndex.search(TitleIndex.queryWords(query), limit).keySet());
+    }
+}
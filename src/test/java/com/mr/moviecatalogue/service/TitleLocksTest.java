@@ -0,0 +1,73 @@
+package com.mr.moviecatalogue.service;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+public class TitleLocksTest {
+
+    private final TitleLocks titleLocks = new TitleLocks();
+
+    @Test
+    public void test_different_titles_can_be_locked_together() {
+        try (TitleLocks.Held hotFuzz = titleLocks.lock("Hot Fuzz");
+             TitleLocks.Held others = titleLocks.lock(Arrays.asList("Snatch", "Tropic Thunder", null))) {
+            assertNotNull(hotFuzz);
+            assertNotNull(others);
+        }
+    }
+
+    @Test
+    public void test_a_title_waits_until_it_is_released_in_any_case() throws Exception {
+        TitleLocks.Held held = titleLocks.lock("Hot Fuzz");
+        CountDownLatch locked = new CountDownLatch(1);
+        Thread waiting = new Thread(() -> {
+            try (TitleLocks.Held again = titleLocks.lock(Arrays.asList("Snatch", "hot fuzz"))) {
+                locked.countDown();
+            }
+        });
+        waiting.start();
+        assertFalse(locked.await(200, TimeUnit.MILLISECONDS));
+        held.close();
+        assertTrue(locked.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void test_locking_every_title_waits_for_titles_and_holds_off_new_ones() throws Exception {
+        TitleLocks.Held held = titleLocks.lock("Hot Fuzz");
+        CountDownLatch lockedAll = new CountDownLatch(1);
+        CountDownLatch releaseAll = new CountDownLatch(1);
+        Thread exclusive = new Thread(() -> {
+            try (TitleLocks.Held all = titleLocks.lockAll()) {
+                lockedAll.countDown();
+                releaseAll.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        exclusive.start();
+        assertFalse(lockedAll.await(200, TimeUnit.MILLISECONDS));
+
+        CountDownLatch lockedOther = new CountDownLatch(1);
+        Thread other = new Thread(() -> {
+            try (TitleLocks.Held snatch = titleLocks.lock("Snatch")) {
+                lockedOther.countDown();
+            }
+        });
+        other.start();
+        assertFalse(lockedOther.await(200, TimeUnit.MILLISECONDS));
+
+        held.close();
+        assertTrue(lockedAll.await(10, TimeUnit.SECONDS));
+        assertFalse(lockedOther.await(200, TimeUnit.MILLISECONDS));
+        releaseAll.countDown();
+        assertTrue(lockedOther.await(10, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,213 @@
+package com.mr.moviecatalogue.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+public class WriteBehindQueueTest {
+
+    private MovieRepository database;
+    private MeterRegistry meterRegistry;
+    private Path journal;
+    private List<WriteBehindQueue> queues;
+
+    @Before
+    public void setup() throws IOException {
+        database = Mockito.mock(MovieRepository.class);
+        Mockito.when(database.updateMovies(any())).thenAnswer(invocation -> new int[((List<?>) invocation.getArgument(0)).size()]);
+        meterRegistry = new SimpleMeterRegistry();
+        journal = Files.createTempDirectory("write-behind").resolve("write-behind.journal");
+        queues = new ArrayList<>();
+    }
+
+    @After
+    public void teardown() throws IOException {
+        for (WriteBehindQueue queue : queues) {
+            ((ScheduledExecutorService) ReflectionTestUtils.getField(queue, "flusher")).shutdownNow();
+        }
+        Files.deleteIfExists(journal);
+        Files.delete(journal.getParent());
+    }
+
+    @Test
+    public void test_edits_to_the_same_title_are_written_once() throws IOException {
+        WriteBehindQueue queue = start(10);
+        queue.enqueue(PendingEdit.rating("Hot Fuzz", Float.valueOf((float) 4.0)));
+        queue.enqueue(PendingEdit.director("Hot Fuzz", "Edgar Wright"));
+        queue.enqueue(PendingEdit.rating("Hot Fuzz", Float.valueOf((float) 5.0)));
+        queue.enqueue(PendingEdit.rating("Snatch", Float.valueOf((float) 4.5)));
+        assertEquals(2, queue.pendingCount());
+
+        assertTrue(queue.flush());
+        assertEquals(Arrays.asList(new PendingEdit("Hot Fuzz", true, "Edgar Wright", Float.valueOf((float) 5.0)),
+                PendingEdit.rating("Snatch", Float.valueOf((float) 4.5))), writtenEdits(1).get(0));
+        assertEquals(0, queue.pendingCount());
+        assertEquals(0, Files.size(journal));
+        assertEquals(2.0, meterRegistry.counter("catalogue.write-behind.edits", "result", "coalesced").count());
+    }
+
+    @Test
+    public void test_edits_left_in_journal_are_replayed_on_start() throws IOException {
+        WriteBehindQueue crashed = start(10);
+        crashed.enqueue(PendingEdit.rating("Hot Fuzz", Float.valueOf((float) 5.0)));
+        crashed.enqueue(PendingEdit.director("Hot Fuzz", null));
+        Files.write(journal, "{\"title\":\"Sna".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        //Replayed edits are flushed straight away in the background, so flushing waits for that to finish
+        WriteBehindQueue restarted = start(10);
+        assertTrue(restarted.flush());
+        assertEquals(0, restarted.pendingCount());
+        assertEquals(Arrays.asList(new PendingEdit("Hot Fuzz", true, null, Float.valueOf((float) 5.0))), writtenEdits(1).get(0));
+        assertEquals(1.0, meterRegistry.counter("catalogue.write-behind.edits", "result", "replayed").count());
+        //The incomplete edit at the end of the journal is skipped
+        assertEquals(1.0, meterRegistry.find("catalogue.write-behind.errors").counter().count());
+    }
+
+    @Test
+    public void test_edits_that_could_not_be_written_are_kept_for_the_next_flush() {
+        WriteBehindQueue queue = start(10);
+        Mockito.doReturn(null).doReturn(new int[]{1}).when(database).updateMovies(any());
+        queue.enqueue(PendingEdit.director("Snatch", "Guy Ritchie"));
+        assertFalse(queue.flush());
+        assertEquals(1, queue.pendingCount());
+        assertEquals(1.0, meterRegistry.counter("catalogue.write-behind.edits", "result", "retried").count());
+
+        queue.enqueue(PendingEdit.rating("Snatch", Float.valueOf((float) 4.5)));
+        assertTrue(queue.flush());
+        assertEquals(Arrays.asList(new PendingEdit("Snatch", true, "Guy Ritchie", Float.valueOf((float) 4.5))), writtenEdits(2).get(1));
+    }
+
+    @Test
+    public void test_edits_matching_no_movie_are_reported_to_listeners() throws InterruptedException {
+        WriteBehindQueue queue = start(10);
+        CountDownLatch discarded = new CountDownLatch(1);
+        queue.addDiscardListener(discarded::countDown);
+        Mockito.doReturn(new int[]{1, 0}).when(database).updateMovies(any());
+        queue.enqueue(PendingEdit.rating("Hot Fuzz", Float.valueOf((float) 4.0)));
+        queue.enqueue(PendingEdit.rating("Deleted", Float.valueOf((float) 4.0)));
+
+        assertTrue(queue.flush());
+        assertTrue(discarded.await(5, TimeUnit.SECONDS));
+        assertEquals(1.0, meterRegistry.counter("catalogue.write-behind.edits", "result", "unmatched").count());
+    }
+
+    @Test
+    public void test_edits_that_keep_failing_are_quarantined_once_the_rest_of_their_batch_is_written() throws IOException, InterruptedException {
+        WriteBehindQueue queue = start(10);
+        CountDownLatch discarded = new CountDownLatch(1);
+        queue.addDiscardListener(discarded::countDown);
+        PendingEdit poison = PendingEdit.director("Snatch", "Guy Ritchie");
+        Mockito.doAnswer(invocation -> {
+            List<?> edits = invocation.getArgument(0);
+            return edits.contains(poison) ? null : new int[]{1};
+        }).when(database).updateMovies(any());
+        queue.enqueue(PendingEdit.rating("Hot Fuzz", Float.valueOf((float) 4.0)));
+        queue.enqueue(poison);
+
+        assertFalse(queue.flush());
+        assertEquals(2, queue.pendingEdits().size());
+        assertTrue(queue.flush());
+        assertEquals(0, queue.pendingCount());
+        assertTrue(discarded.await(5, TimeUnit.SECONDS));
+        assertEquals(1.0, meterRegistry.counter("catalogue.write-behind.edits", "result", "quarantined").count());
+        Path quarantine = journal.resolveSibling(journal.getFileName() + ".quarantine");
+        assertEquals(1, Files.readAllLines(quarantine).size());
+        Files.delete(quarantine);
+    }
+
+    @Test
+    public void test_edits_are_kept_while_none_of_them_can_be_written() {
+        WriteBehindQueue queue = start(10);
+        Mockito.doReturn(null).when(database).updateMovies(any());
+        queue.enqueue(PendingEdit.rating("Hot Fuzz", Float.valueOf((float) 4.0)));
+        queue.enqueue(PendingEdit.rating("Snatch", Float.valueOf((float) 4.5)));
+        for (int i = 0; i < 4; i++) {
+            assertFalse(queue.flush());
+        }
+        assertEquals(2, queue.pendingCount());
+        assertTrue(queue.hasPending());
+        assertEquals(0.0, meterRegistry.counter("catalogue.write-behind.edits", "result", "quarantined").count());
+    }
+
+    @Test
+    public void test_pending_edits_are_combined_by_title() {
+        WriteBehindQueue queue = start(10);
+        queue.enqueue(PendingEdit.rating("Hot Fuzz", Float.valueOf((float) 4.0)));
+        queue.enqueue(PendingEdit.director("Hot Fuzz", "Edgar Wright"));
+        assertEquals(new PendingEdit("Hot Fuzz", true, "Edgar Wright", Float.valueOf((float) 4.0)), queue.pendingEdit("Hot Fuzz"));
+        assertEquals(queue.pendingEdit("Hot Fuzz"), queue.pendingEdits().get("Hot Fuzz"));
+        assertNull(queue.pendingEdit("Snatch"));
+    }
+
+    @Test
+    public void test_edits_to_other_titles_are_rejected_when_queue_stays_full() {
+        WriteBehindQueue queue = start(1);
+        Mockito.doReturn(null).when(database).updateMovies(any());
+        queue.enqueue(PendingEdit.rating("Hot Fuzz", Float.valueOf((float) 4.0)));
+        queue.enqueue(PendingEdit.rating("Hot Fuzz", Float.valueOf((float) 5.0)));
+        assertThrows(RejectedExecutionException.class, () -> queue.enqueue(PendingEdit.rating("Snatch", Float.valueOf((float) 4.5))));
+        assertEquals(1.0, meterRegistry.counter("catalogue.write-behind.edits", "result", "rejected").count());
+    }
+
+    @Test
+    public void test_disabled_queue_does_not_call_database() {
+        WriteBehindQueue queue = new WriteBehindQueue();
+        ReflectionTestUtils.setField(queue, "movieRepository", database);
+        assertFalse(queue.isEnabled());
+        assertTrue(queue.flush());
+        Mockito.verify(database, Mockito.never()).updateMovies(any());
+    }
+
+    private WriteBehindQueue start(int capacity) {
+        WriteBehindQueue queue = new WriteBehindQueue();
+        ReflectionTestUtils.setField(queue, "movieRepository", database);
+        ReflectionTestUtils.setField(queue, "objectMapper", new ObjectMapper());
+        ReflectionTestUtils.setField(queue, "meterRegistry", meterRegistry);
+        ReflectionTestUtils.setField(queue, "enabled", true);
+        ReflectionTestUtils.setField(queue, "journal", journal.toString());
+        ReflectionTestUtils.setField(queue, "capacity", capacity);
+        ReflectionTestUtils.setField(queue, "batchSize", 10);
+        ReflectionTestUtils.setField(queue, "flushInterval", 60000L);
+        ReflectionTestUtils.setField(queue, "offerTimeout", 50L);
+        ReflectionTestUtils.setField(queue, "maxAttempts", 2);
+        try {
+            queue.start();
+        } catch (IOException e) {
+            fail(e);
+        }
+        queues.add(queue);
+        return queue;
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<List<PendingEdit>> writtenEdits(int flushes) {
+        ArgumentCaptor<List<PendingEdit>> captor = ArgumentCaptor.forClass(List.class);
+        Mockito.verify(database, Mockito.times(flushes)).updateMovies(captor.capture());
+        return captor.getAllValues();
+    }
+}